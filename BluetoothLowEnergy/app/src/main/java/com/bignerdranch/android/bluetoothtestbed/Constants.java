@@ -12,10 +12,32 @@ public class Constants {
 
     public static String CHARACTERISTIC_TIME_STRING = "7D2EDEAD-F7BD-485A-BD9D-92AD6ECFE93E";
     public static UUID CHARACTERISTIC_TIME_UUID = UUID.fromString(CHARACTERISTIC_TIME_STRING);
+
+    // Capabilities, the client reads what the server supports and writes back what it will use
+    public static String CHARACTERISTIC_CONTROL_STRING = "7D2EC0DE-F7BD-485A-BD9D-92AD6ECFE93E";
+    public static UUID CHARACTERISTIC_CONTROL_UUID = UUID.fromString(CHARACTERISTIC_CONTROL_STRING);
+
+    // Read only, a snapshot of the server's metrics
+    public static String CHARACTERISTIC_STATS_STRING = "7D2E57A7-F7BD-485A-BD9D-92AD6ECFE93E";
+    public static UUID CHARACTERISTIC_STATS_UUID = UUID.fromString(CHARACTERISTIC_STATS_STRING);
+
     public static String CLIENT_CONFIGURATION_DESCRIPTOR_STRING = "00002902-0000-1000-8000-00805f9b34fb";
     public static UUID CLIENT_CONFIGURATION_DESCRIPTOR_UUID = UUID.fromString(CLIENT_CONFIGURATION_DESCRIPTOR_STRING);
 
-    public static final String CLIENT_CONFIGURATION_DESCRIPTOR_SHORT_ID = "2902";
+    public static final int CLIENT_CONFIGURATION_DESCRIPTOR_SHORT_ID = 0x2902;
+
+    // Most of it is spent in low power mode, see ScanScheduler
+    public static final long SCAN_PERIOD = 30000;
+
+    // ATT_MTU, in bytes. Every packet loses 3 bytes of it to the ATT header
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 517;
+    public static final int ATT_HEADER_SIZE = 3;
+    // The longest attribute value ATT allows, and so the longest long write
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+    // The ATT error for an attribute the server does not have, BluetoothGatt has no name for it
+    public static final int GATT_INVALID_HANDLE = 0x01;
 
-    public static final long SCAN_PERIOD = 5000;
+    // Under the app's files directory, pull with adb to replay
+    public static final String TRACE_DIRECTORY = "traces";
 }
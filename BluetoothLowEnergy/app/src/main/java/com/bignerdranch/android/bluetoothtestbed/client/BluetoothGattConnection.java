@@ -0,0 +1,50 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+public class BluetoothGattConnection implements GattConnection {
+
+    private BluetoothGatt mGatt;
+
+    public BluetoothGattConnection(BluetoothGatt gatt) {
+        mGatt = gatt;
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return mGatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return mGatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        return mGatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return mGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mGatt.discoverServices();
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return mGatt.requestConnectionPriority(connectionPriority);
+    }
+
+    @Override
+    public void disconnect() {
+        mGatt.disconnect();
+        mGatt.close();
+    }
+}
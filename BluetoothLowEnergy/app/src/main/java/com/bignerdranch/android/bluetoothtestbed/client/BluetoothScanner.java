@@ -0,0 +1,40 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+
+import java.util.List;
+
+public class BluetoothScanner implements Scanner {
+
+    private BluetoothLeScanner mScanner;
+    private List<ScanFilter> mFilters;
+    private ScanCallback mCallback;
+
+    public BluetoothScanner(BluetoothLeScanner scanner, List<ScanFilter> filters, ScanCallback callback) {
+        mScanner = scanner;
+        mFilters = filters;
+        mCallback = callback;
+    }
+
+    @Override
+    public void startScan(boolean lowLatency, long reportDelayMillis) {
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(lowLatency ? ScanSettings.SCAN_MODE_LOW_LATENCY : ScanSettings.SCAN_MODE_LOW_POWER)
+                .setReportDelay(reportDelayMillis)
+                .build();
+        mScanner.startScan(mFilters, settings, mCallback);
+    }
+
+    @Override
+    public void flushPendingScanResults() {
+        mScanner.flushPendingScanResults(mCallback);
+    }
+
+    @Override
+    public void stopScan() {
+        mScanner.stopScan(mCallback);
+    }
+}
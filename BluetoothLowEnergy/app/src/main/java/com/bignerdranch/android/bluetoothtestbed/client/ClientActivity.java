@@ -5,67 +5,93 @@ import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.databinding.DataBindingUtil;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.os.ParcelUuid;
 import android.support.v7.app.AppCompatActivity;
-import android.util.Log;
-import android.view.LayoutInflater;
-import android.view.View;
+import android.support.v7.widget.LinearLayoutManager;
+import android.view.Choreographer;
+import android.widget.EditText;
 
 import com.bignerdranch.android.bluetoothtestbed.R;
 import com.bignerdranch.android.bluetoothtestbed.databinding.ActivityClientBinding;
-import com.bignerdranch.android.bluetoothtestbed.databinding.ViewGattServerBinding;
-import com.bignerdranch.android.bluetoothtestbed.util.BluetoothUtils;
+import com.bignerdranch.android.bluetoothtestbed.log.LogController;
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsController;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceWriter;
 import com.bignerdranch.android.bluetoothtestbed.util.StringUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import static com.bignerdranch.android.bluetoothtestbed.Constants.SCAN_PERIOD;
 import static com.bignerdranch.android.bluetoothtestbed.Constants.SERVICE_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.TRACE_DIRECTORY;
 
-public class ClientActivity extends AppCompatActivity implements GattClientActionListener {
+public class ClientActivity extends AppCompatActivity implements ClientConnection.Listener {
 
     private static final String TAG = "ClientActivity";
 
     private static final int REQUEST_ENABLE_BT = 1;
     private static final int REQUEST_FINE_LOCATION = 2;
 
+    private static final int STREAM_MESSAGE_COUNT = 100;
+
+    private static final int BENCHMARK_MESSAGE_SIZE = 100;
+    private static final int BENCHMARK_MESSAGE_COUNT = 1000;
+    private static final int BENCHMARK_BURST_SIZE = 20;
+    // A benchmark with no echoes for this long is over, whatever is missing is lost
+    private static final long BENCHMARK_TIMEOUT_MS = 5000;
+    // How often idle links are checked, to drop their connection priority
+    private static final long PRIORITY_CHECK_MS = 1000;
+    // How long small messages wait for others to share their write
+    private static final int DEFAULT_BATCH_DELAY_MS = 5;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
     private ActivityClientBinding mBinding;
 
     private boolean mScanning;
     private Handler mHandler;
-    private Handler mLogHandler;
-    private Map<String, BluetoothDevice> mScanResults;
+    private LogController mLogController;
+    private MetricsController mMetricsController;
+    private GattTraceWriter mTraceWriter;
+    private ScanResultStore mScanResultStore;
+    private ScanResultAdapter mScanResultAdapter;
+    private long mScanStartNanos;
+    private boolean mScanFlushPending;
+    private final Choreographer.FrameCallback mScanFlushCallback = frameTimeNanos -> flushScanResults();
 
-    private boolean mConnected;
-    private boolean mTimeInitialized;
-    private boolean mEchoInitialized;
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothLeScanner mBluetoothLeScanner;
     private ScanCallback mScanCallback;
-    private BluetoothGatt mGatt;
+    private ScanScheduler mScanScheduler;
+    // Outlives scans, the system limit applies across them
+    private final ScanThrottle mScanThrottle = new ScanThrottle();
+    private final Runnable mScanTick = this::onScanTick;
+    private ClientConnectionManager mConnectionManager;
+
+    private Handler mMainHandler;
+    // Set on the main thread, echoes are matched on the binder thread
+    private volatile EchoBenchmark mEchoBenchmark;
+    private int mBenchmarkProgress;
+    private final Runnable mBatchFlush = this::flushBatches;
 
     // Lifecycle
 
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        mLogHandler = new Handler(Looper.getMainLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
 
         BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
         mBluetoothAdapter = bluetoothManager.getAdapter();
@@ -78,14 +104,28 @@ public class ClientActivity extends AppCompatActivity implements GattClientActio
         mBinding.clientDeviceInfoTextView.setText(deviceInfo);
         mBinding.startScanningButton.setOnClickListener(v -> startScan());
         mBinding.stopScanningButton.setOnClickListener(v -> stopScan());
+        mScanResultStore = new ScanResultStore();
+        mScanResultAdapter = new ScanResultAdapter(this::connectDevice);
+        mBinding.serverListRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+        mBinding.serverListRecyclerView.setAdapter(mScanResultAdapter);
         mBinding.sendMessageButton.setOnClickListener(v -> sendMessage());
-        mBinding.disconnectButton.setOnClickListener(v -> disconnectGattServer());
+        mBinding.streamMessageButton.setOnClickListener(v -> streamMessage());
+        mBinding.benchmarkButton.setOnClickListener(v -> toggleBenchmark());
+        mBinding.requestTimestampButton.setOnClickListener(v -> requestTimestamp());
+        mBinding.linkStatsButton.setOnClickListener(v -> logLinkStats());
+        mBinding.disconnectButton.setOnClickListener(v -> disconnectAll());
         mBinding.viewClientLog.clearLogButton.setOnClickListener(v -> clearLogs());
+        mBinding.recordTraceCheckBox.setOnCheckedChangeListener(
+                (buttonView, isChecked) -> setRecordingTrace(isChecked));
+        mLogController = new LogController(this, TAG, mBinding.viewClientLog);
+        mConnectionManager = new ClientConnectionManager(mLogController, this);
+        mMetricsController = new MetricsController(mBinding.viewClientMetrics, mConnectionManager.getMetrics());
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        mMetricsController.onResume();
 
         // Check low energy support
         if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
@@ -95,6 +135,18 @@ public class ClientActivity extends AppCompatActivity implements GattClientActio
         }
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mMetricsController.onPause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        stopTrace();
+    }
+
     // Scanning
 
     private void startScan() {
@@ -102,14 +154,13 @@ public class ClientActivity extends AppCompatActivity implements GattClientActio
             return;
         }
 
-        disconnectGattServer();
+        mScanStartNanos = SystemClock.elapsedRealtimeNanos();
+        mScanResultStore.clear(mScanStartNanos);
+        flushScanResults();
 
-        mBinding.serverListContainer.removeAllViews();
+        mScanCallback = new BtleScanCallback();
 
-        mScanResults = new HashMap<>();
-        mScanCallback = new BtleScanCallback(mScanResults);
-
-        mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        BluetoothLeScanner bluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
 
         // Note: Filtering does not work the same (or at all) on most devices. It also is unable to
         // search for a mask or anything less than a full UUID.
@@ -121,22 +172,35 @@ public class ClientActivity extends AppCompatActivity implements GattClientActio
         List<ScanFilter> filters = new ArrayList<>();
         filters.add(scanFilter);
 
-        ScanSettings settings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
-                .build();
-
-        mBluetoothLeScanner.startScan(filters, settings, mScanCallback);
+        Scanner scanner = new BluetoothScanner(bluetoothLeScanner, filters, mScanCallback);
+        mScanScheduler = new ScanScheduler(scanner,
+                mScanThrottle,
+                mLogController,
+                mBluetoothAdapter.isOffloadedScanBatchingSupported());
 
         mHandler = new Handler();
-        mHandler.postDelayed(this::stopScan, SCAN_PERIOD);
-
         mScanning = true;
         log("Started scanning.");
+
+        long delay = mScanScheduler.start(SystemClock.elapsedRealtime(), SCAN_PERIOD);
+        mHandler.postDelayed(mScanTick, delay);
+    }
+
+    private void onScanTick() {
+        long delay = mScanScheduler.onTick(SystemClock.elapsedRealtime());
+        if (delay == ScanScheduler.NO_TICK) {
+            stopScan();
+        } else {
+            mHandler.postDelayed(mScanTick, delay);
+        }
     }
 
     private void stopScan() {
-        if (mScanning && mBluetoothAdapter != null && mBluetoothAdapter.isEnabled() && mBluetoothLeScanner != null) {
-            mBluetoothLeScanner.stopScan(mScanCallback);
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mScanTick);
+        }
+        if (mScanning && mBluetoothAdapter != null && mBluetoothAdapter.isEnabled() && mScanScheduler != null) {
+            mScanScheduler.stop(SystemClock.elapsedRealtime());
             scanComplete();
         }
 
@@ -147,20 +211,27 @@ public class ClientActivity extends AppCompatActivity implements GattClientActio
     }
 
     private void scanComplete() {
-        if (mScanResults.isEmpty()) {
-            return;
+        log(mScanScheduler.getReport(SystemClock.elapsedRealtime()));
+        flushScanResults();
+    }
+
+    // Results arrive far more often than the screen refreshes, update the list once per frame
+    private void scheduleScanFlush() {
+        if (!mScanFlushPending) {
+            mScanFlushPending = true;
+            Choreographer.getInstance().postFrameCallback(mScanFlushCallback);
         }
+    }
 
-        for (String deviceAddress : mScanResults.keySet()) {
-            BluetoothDevice device = mScanResults.get(deviceAddress);
-            GattServerViewModel viewModel = new GattServerViewModel(device);
+    private void flushScanResults() {
+        if (mScanFlushPending) {
+            Choreographer.getInstance().removeFrameCallback(mScanFlushCallback);
+            mScanFlushPending = false;
+        }
 
-            ViewGattServerBinding binding = DataBindingUtil.inflate(LayoutInflater.from(this),
-                    R.layout.view_gatt_server,
-                    mBinding.serverListContainer,
-                    true);
-            binding.setViewModel(viewModel);
-            binding.connectGattServerButton.setOnClickListener(v -> connectDevice(device));
+        List<ScanEntry> entries = mScanResultStore.snapshot();
+        if (entries != null) {
+            mScanResultAdapter.setEntries(entries);
         }
     }
 
@@ -190,24 +261,26 @@ public class ClientActivity extends AppCompatActivity implements GattClientActio
         log("Requested user enable Location. Try starting the scan again.");
     }
 
+    // Callbacks are delivered on the main thread
     private class BtleScanCallback extends ScanCallback {
 
-        private Map<String, BluetoothDevice> mScanResults;
-
-        BtleScanCallback(Map<String, BluetoothDevice> scanResults) {
-            mScanResults = scanResults;
-        }
-
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            addScanResult(result);
+            int newDevices = addScanResult(result) ? 1 : 0;
+            mScanScheduler.onScanResults(1, newDevices, SystemClock.elapsedRealtime());
+            scheduleScanFlush();
         }
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
+            int newDevices = 0;
             for (ScanResult result : results) {
-                addScanResult(result);
+                if (addScanResult(result)) {
+                    newDevices++;
+                }
             }
+            mScanScheduler.onScanResults(results.size(), newDevices, SystemClock.elapsedRealtime());
+            scheduleScanFlush();
         }
 
         @Override
@@ -215,114 +288,321 @@ public class ClientActivity extends AppCompatActivity implements GattClientActio
             logError("BLE Scan Failed with code " + errorCode);
         }
 
-        private void addScanResult(ScanResult result) {
+        // Returns true if the server is new
+        private boolean addScanResult(ScanResult result) {
             BluetoothDevice device = result.getDevice();
             String deviceAddress = device.getAddress();
-            mScanResults.put(deviceAddress, device);
+            boolean isNew = mScanResultStore.update(deviceAddress, device, result.getRssi(), result.getTimestampNanos());
+            if (isNew && mScanResultStore.size() == 1) {
+                long elapsedMillis = (SystemClock.elapsedRealtimeNanos() - mScanStartNanos) / 1000000;
+                log("First server found after " + elapsedMillis + " ms");
+            }
+            return isNew;
         }
     }
 
     // Gatt connection
 
     private void connectDevice(BluetoothDevice device) {
+        mConnectionManager.setCompressionOffered(mBinding.compressCheckBox.isChecked());
+        ClientConnection connection = mConnectionManager.add(device.getAddress(), device);
+        if (connection == null) {
+            log("Already connected to " + device.getAddress());
+            return;
+        }
+
         log("Connecting to " + device.getAddress());
-        GattClientCallback gattClientCallback = new GattClientCallback(this);
-        mGatt = device.connectGatt(this, false, gattClientCallback);
+        BluetoothGatt gatt = device.connectGatt(this, false, connection.getCallback());
+        connection.setConnection(new BluetoothGattConnection(gatt));
+
+        mMainHandler.removeCallbacks(mPriorityCheck);
+        mMainHandler.postDelayed(mPriorityCheck, PRIORITY_CHECK_MS);
+    }
+
+    // Runs while any server is connected
+    private final Runnable mPriorityCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnectionManager.size() == 0) {
+                return;
+            }
+            mConnectionManager.updatePriorities();
+            mMainHandler.postDelayed(this, PRIORITY_CHECK_MS);
+        }
+    };
+
+    private void disconnectAll() {
+        mConnectionManager.disconnectAll();
     }
 
     // Messaging
 
     private void sendMessage() {
-        if (!mConnected || !mEchoInitialized) {
+        String message = mBinding.messageEditText.getText().toString();
+        byte[] messageBytes = StringUtils.bytesFromString(message);
+        if (messageBytes.length == 0) {
+            logError("Unable to convert message to bytes");
             return;
         }
 
-        BluetoothGattCharacteristic characteristic = BluetoothUtils.findEchoCharacteristic(mGatt);
-        if (characteristic == null) {
-            logError("Unable to find echo characteristic.");
-            disconnectGattServer();
-            return;
+        log("Sending message: " + message);
+        applyBatching();
+        if (isBroadcast()) {
+            int servers = mConnectionManager.broadcastEcho(messageBytes, isWriteWithoutResponse());
+            log("Queued for servers: ", servers);
+        } else {
+            ClientConnection connection = mConnectionManager.sendEchoRoundRobin(messageBytes, isWriteWithoutResponse());
+            if (connection == null) {
+                logError("No server is ready.");
+                return;
+            }
+            log("Queued for " + connection.getAddress());
+            log(connection.getOperationQueue().getStats());
         }
+        logHex("Message: ", messageBytes);
+        flushBatches();
+    }
 
-        String message = mBinding.messageEditText.getText().toString();
-        log("Sending message: " + message);
+    // Queues the message many times over so the sustained write rate can be measured
+    private void streamMessage() {
+        if (mConnectionManager.getReadyCount() == 0) {
+            return;
+        }
 
-        byte[] messageBytes = StringUtils.bytesFromString(message);
+        byte[] messageBytes = StringUtils.bytesFromString(mBinding.messageEditText.getText().toString());
         if (messageBytes.length == 0) {
             logError("Unable to convert message to bytes");
             return;
         }
 
-        characteristic.setValue(messageBytes);
-        boolean success = mGatt.writeCharacteristic(characteristic);
-        if (success) {
-            log("Wrote: " + StringUtils.byteArrayInHexFormat(messageBytes));
+        mConnectionManager.resetStats();
+        applyBatching();
+        for (int i = 0; i < STREAM_MESSAGE_COUNT; i++) {
+            queueEcho(messageBytes);
+        }
+        flushBatches();
+        log("Streaming " + STREAM_MESSAGE_COUNT + " messages of " + messageBytes.length + " bytes"
+                + (isWriteWithoutResponse() ? " without response" : " with response")
+                + (isBroadcast() ? " to each of " : " across ") + mConnectionManager.getReadyCount() + " servers");
+    }
+
+    private void queueEcho(byte[] message) {
+        if (isBroadcast()) {
+            mConnectionManager.broadcastEcho(message, isWriteWithoutResponse());
         } else {
-            logError("Failed to write data");
+            mConnectionManager.sendEchoRoundRobin(message, isWriteWithoutResponse());
+        }
+    }
+
+    private boolean isWriteWithoutResponse() {
+        return mBinding.writeWithoutResponseCheckBox.isChecked();
+    }
+
+    // Every message to every server, instead of each message to the next server in turn
+    private boolean isBroadcast() {
+        return mBinding.broadcastCheckBox.isChecked();
+    }
+
+    private void applyBatching() {
+        long delayNanos = readNumber(mBinding.batchDelayEditText, DEFAULT_BATCH_DELAY_MS) * NANOS_PER_MILLI;
+        mConnectionManager.setBatching(mBinding.batchCheckBox.isChecked(), delayNanos);
+    }
+
+    // Sends the batches that are due and waits for the next one
+    private void flushBatches() {
+        mMainHandler.removeCallbacks(mBatchFlush);
+        long delayNanos = mConnectionManager.flushBatches(System.nanoTime());
+        if (delayNanos != ClientConnection.NO_FLUSH) {
+            mMainHandler.postDelayed(mBatchFlush, (delayNanos + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI);
         }
     }
 
     private void requestTimestamp() {
-        if (!mConnected || !mTimeInitialized) {
+        if (mConnectionManager.requestTimestamps() == 0) {
+            logError("Unable to find time charactaristic");
+        }
+    }
+
+    private void logLinkStats() {
+        log(mConnectionManager.getReport());
+        mConnectionManager.readServerStats();
+    }
+
+    // Trace
+
+    private void setRecordingTrace(boolean recording) {
+        if (recording) {
+            startTrace();
+        } else {
+            stopTrace();
+        }
+    }
+
+    // Every connection records into the one trace
+    private void startTrace() {
+        File file = GattTraceWriter.newTraceFile(new File(getFilesDir(), TRACE_DIRECTORY), "client");
+        try {
+            mTraceWriter = new GattTraceWriter(file);
+        } catch (IOException e) {
+            logError("Unable to record trace: " + e.getMessage());
+            mBinding.recordTraceCheckBox.setChecked(false);
             return;
         }
+        mConnectionManager.setTrace(mTraceWriter);
+        log("Recording trace to " + file.getPath());
+    }
 
-        BluetoothGattCharacteristic characteristic = BluetoothUtils.findTimeCharacteristic(mGatt);
-        if (characteristic == null) {
-            logError("Unable to find time charactaristic");
+    private void stopTrace() {
+        if (mTraceWriter == null) {
+            return;
+        }
+        mConnectionManager.setTrace(null);
+        // Callbacks still recording finish first, the writer drops anything after closing
+        GattTraceWriter traceWriter = mTraceWriter;
+        mTraceWriter = null;
+        try {
+            traceWriter.close();
+            log("Trace stopped: " + traceWriter.getEvents() + " events, "
+                    + traceWriter.getDroppedEvents() + " dropped");
+        } catch (IOException e) {
+            logError("Unable to finish trace: " + e.getMessage());
+        }
+    }
+
+    // Echo benchmark
+
+    private void toggleBenchmark() {
+        if (mEchoBenchmark != null) {
+            finishBenchmark();
+            return;
+        }
+        if (mConnectionManager.getReadyCount() == 0) {
             return;
         }
 
-        mGatt.readCharacteristic(characteristic);
+        // Broadcast echoes would come back once per server and count as duplicates, so the
+        // benchmark always spreads its messages across the servers
+        EchoBenchmark benchmark = new EchoBenchmark(
+                readNumber(mBinding.benchmarkSizeEditText, BENCHMARK_MESSAGE_SIZE),
+                readNumber(mBinding.benchmarkCountEditText, BENCHMARK_MESSAGE_COUNT),
+                readNumber(mBinding.benchmarkBurstEditText, BENCHMARK_BURST_SIZE));
+        log("Echo benchmark started, " + benchmark.getMessageSize() + " byte messages"
+                + (isWriteWithoutResponse() ? " without response" : " with response")
+                + " across " + mConnectionManager.getReadyCount() + " servers");
+
+        mConnectionManager.resetStats();
+        mConnectionManager.setBulkTransfer(true);
+        applyBatching();
+        mEchoBenchmark = benchmark;
+        mBenchmarkProgress = 0;
+        mMainHandler.postDelayed(mBenchmarkTimeout, BENCHMARK_TIMEOUT_MS);
+        sendBenchmarkBurst();
+    }
+
+    private void sendBenchmarkBurst() {
+        EchoBenchmark benchmark = mEchoBenchmark;
+        if (benchmark == null) {
+            return;
+        }
+
+        for (byte[] message : benchmark.nextBurst(System.nanoTime())) {
+            mConnectionManager.sendEchoRoundRobin(message, isWriteWithoutResponse());
+        }
+        flushBatches();
+    }
+
+    private void finishBenchmark() {
+        EchoBenchmark benchmark = mEchoBenchmark;
+        if (benchmark == null) {
+            return;
+        }
+
+        mEchoBenchmark = null;
+        mMainHandler.removeCallbacks(mBenchmarkTimeout);
+        mConnectionManager.setBulkTransfer(false);
+        benchmark.finish();
+        log(benchmark.getReport());
+        log(mConnectionManager.getReport());
+    }
+
+    // Checks for progress rather than being reset by every echo
+    private final Runnable mBenchmarkTimeout = new Runnable() {
+        @Override
+        public void run() {
+            EchoBenchmark benchmark = mEchoBenchmark;
+            if (benchmark == null) {
+                return;
+            }
+
+            int received = benchmark.getReceived();
+            if (received == mBenchmarkProgress) {
+                logError("Echo benchmark timed out");
+                finishBenchmark();
+            } else {
+                mBenchmarkProgress = received;
+                mMainHandler.postDelayed(this, BENCHMARK_TIMEOUT_MS);
+            }
+        }
+    };
+
+    private static int readNumber(EditText editText, int defaultValue) {
+        try {
+            return Integer.parseInt(editText.getText().toString());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     // Logging
 
     private void clearLogs() {
-        mLogHandler.post(() -> mBinding.viewClientLog.logTextView.setText(""));
+        mLogController.clear();
     }
 
-    // Gat Client Action Listener
+    private void log(String msg) {
+        mLogController.log(msg);
+    }
 
-    @Override
-    public void log(String msg) {
-        Log.d(TAG, msg);
-        mLogHandler.post(() -> {
-            mBinding.viewClientLog.logTextView.append(msg + "\n");
-            mBinding.viewClientLog.logScrollView.post(() -> mBinding.viewClientLog.logScrollView.fullScroll(View.FOCUS_DOWN));
-        });
+    private void log(String msg, Object detail) {
+        mLogController.log(msg, detail);
     }
 
-    @Override
-    public void logError(String msg) {
-        log("Error: " + msg);
+    private void logHex(String msg, byte[] payload) {
+        mLogController.logHex(msg, payload);
     }
 
-    @Override
-    public void setConnected(boolean connected) {
-        mConnected = connected;
+    private void logError(String msg) {
+        log("Error: " + msg);
     }
 
+    // Client Connection Listener
+
     @Override
-    public void initializeTime() {
-        mTimeInitialized = true;
+    public void onReady(ClientConnection connection) {
+        log("Ready: " + connection.getAddress() + ", " + mConnectionManager.getReadyCount() + " servers ready");
     }
 
     @Override
-    public void initializeEcho() {
-        mEchoInitialized = true;
+    public void onEchoReceived(ClientConnection connection, byte[] message) {
+        EchoBenchmark benchmark = mEchoBenchmark;
+        if (benchmark != null && benchmark.onEcho(message, System.nanoTime())) {
+            // Benchmark echoes are only reported in the summary
+            if (benchmark.isComplete()) {
+                mMainHandler.post(this::finishBenchmark);
+            } else if (benchmark.isBurstDue()) {
+                mMainHandler.post(this::sendBenchmarkBurst);
+            }
+            return;
+        }
+
+        connection.logHex("Read: ", message);
+        connection.logUtf8("Received message: ", message);
     }
 
     @Override
-    public void disconnectGattServer() {
-        log("Closing Gatt connection");
-        clearLogs();
-        mConnected = false;
-        mEchoInitialized = false;
-        mTimeInitialized = false;
-        if (mGatt != null) {
-            mGatt.disconnect();
-            mGatt.close();
+    public void onDisconnected(ClientConnection connection) {
+        if (mConnectionManager.size() == 0) {
+            mMainHandler.post(this::finishBenchmark);
         }
     }
 }
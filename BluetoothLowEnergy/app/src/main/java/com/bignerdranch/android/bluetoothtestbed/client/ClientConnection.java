@@ -0,0 +1,475 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.support.annotation.Nullable;
+
+import com.bignerdranch.android.bluetoothtestbed.log.Logger;
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsRegistry;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceWriter;
+import com.bignerdranch.android.bluetoothtestbed.util.BatchStats;
+import com.bignerdranch.android.bluetoothtestbed.util.CodecStats;
+import com.bignerdranch.android.bluetoothtestbed.util.MessageBatcher;
+import com.bignerdranch.android.bluetoothtestbed.util.MessageFragmenter;
+import com.bignerdranch.android.bluetoothtestbed.util.PayloadCodec;
+
+import java.util.List;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.DEFAULT_MTU;
+
+/**
+ * One session with a server: its own callback, operation queue, characteristic index, state
+ * and echo stats, so any number of them can run side by side.
+ *
+ * GattClientActionListener calls arrive on the binder thread, sends come from the main thread.
+ */
+public class ClientConnection implements GattClientActionListener {
+
+    public static final long NO_FLUSH = -1;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    public interface Listener {
+
+        // Connected, with echo notifications enabled
+        void onReady(ClientConnection connection);
+
+        void onEchoReceived(ClientConnection connection, byte[] message);
+
+        void onDisconnected(ClientConnection connection);
+    }
+
+    private final String mAddress;
+    private final BluetoothDevice mDevice;
+    private final Logger mLogger;
+    private final Listener mListener;
+    private final GattOperationQueue mOperationQueue;
+    private final GattCharacteristicIndex mCharacteristicIndex = new GattCharacteristicIndex();
+    private final GattClientCallback mCallback;
+    // Main thread only
+    private final ConnectionPriorityGovernor mPriorityGovernor = new ConnectionPriorityGovernor();
+    private final BatchStats mBatchStats = new BatchStats();
+    private MessageBatcher mBatcher;
+    private boolean mBatching;
+    private long mBatchDelayNanos;
+    private int mBatchWriteType;
+    // Messages are encoded on the main thread and echoes decoded on the binder thread
+    private final CodecStats mCodecStats = new CodecStats();
+    private final PayloadCodec mMessageCodec = new PayloadCodec(PayloadCodec.DICTIONARY, mCodecStats);
+    private final PayloadCodec mEchoCodec = new PayloadCodec(PayloadCodec.REVERSED_DICTIONARY, mCodecStats);
+    // Prefixed to log lines, so the links can be told apart
+    private final String mLogPrefix;
+
+    private GattConnection mConnection;
+    private boolean mClosed;
+
+    private volatile boolean mConnected;
+    private volatile boolean mEchoInitialized;
+    private volatile boolean mTimeInitialized;
+    private volatile int mMtu = DEFAULT_MTU;
+    // Offered when the connection is set up, used once the server agrees
+    private volatile boolean mCompressionOffered;
+    private volatile boolean mCompressing;
+    private boolean mBulkTransfer;
+
+    private long mMessagesSent;
+    private long mBytesSent;
+    private long mEchoesReceived;
+    private long mEchoBytesReceived;
+    private long mStartNanos;
+    private long mLastEchoNanos;
+
+    // Metrics are usually shared by every connection
+    public ClientConnection(String address,
+                            BluetoothDevice device,
+                            Logger logger,
+                            Listener listener,
+                            MetricsRegistry metrics) {
+        mAddress = address;
+        mDevice = device;
+        mLogger = logger;
+        mListener = listener;
+        mLogPrefix = address + ": ";
+        mOperationQueue = new GattOperationQueue(metrics);
+        mCallback = new GattClientCallback(this, mOperationQueue, mCharacteristicIndex, metrics);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    // Pass to connectGatt, or to whatever else delivers the connection's callbacks
+    public GattClientCallback getCallback() {
+        return mCallback;
+    }
+
+    public GattOperationQueue getOperationQueue() {
+        return mOperationQueue;
+    }
+
+    public synchronized void setConnection(GattConnection connection) {
+        mConnection = connection;
+        mOperationQueue.setConnection(connection);
+    }
+
+    public boolean isReady() {
+        return mConnected && mEchoInitialized;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    // Only takes effect if set before the connection is made
+    public void setCompressionOffered(boolean compressionOffered) {
+        mCompressionOffered = compressionOffered;
+    }
+
+    public boolean isCompressing() {
+        return mCompressing;
+    }
+
+    // Messaging
+
+    // Returns the number of packets queued, counting a message held for a batch as one,
+    // 0 if the connection is not ready
+    public int sendEcho(byte[] message, boolean withoutResponse) {
+        BluetoothGattCharacteristic characteristic = mCharacteristicIndex.getEchoCharacteristic();
+        if (!isReady() || characteristic == null) {
+            return 0;
+        }
+
+        // Without response writes are still paced by onCharacteristicWrite through the queue,
+        // so the Bluetooth stack's buffers never overflow
+        int writeType = withoutResponse
+                ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+
+        int messageLength = message.length;
+        if (mCompressing) {
+            message = mMessageCodec.encode(message);
+        }
+
+        long nowNanos = System.nanoTime();
+        int packetCount;
+        MessageBatcher batcher = getBatcher();
+        if (mBatching && batcher.canBatch(message)) {
+            if (writeType != mBatchWriteType) {
+                enqueueBatch(characteristic, batcher.flush(nowNanos));
+                mBatchWriteType = writeType;
+            }
+            enqueueBatch(characteristic, batcher.add(message, nowNanos));
+            packetCount = 1;
+        } else {
+            // Anything batched earlier goes first
+            enqueueBatch(characteristic, batcher.flush(nowNanos));
+
+            // Messages longer than a single packet are split and reassembled by the server
+            List<byte[]> packets = MessageFragmenter.fragment(message, mMtu);
+            for (byte[] packet : packets) {
+                mOperationQueue.enqueue(new WriteCharacteristicOperation(characteristic, packet, writeType));
+            }
+            packetCount = packets.size();
+        }
+
+        synchronized (this) {
+            if (mMessagesSent == 0) {
+                mStartNanos = System.nanoTime();
+            }
+            mMessagesSent++;
+            mBytesSent += messageLength;
+        }
+        // Switch to high priority as soon as the queue backs up, not at the next tick
+        updatePriority();
+        return packetCount;
+    }
+
+    // Batching, main thread only
+
+    // Small messages are held for up to delayNanos, so the ones sent right after them can
+    // share their write
+    public void setBatching(boolean batching, long delayNanos) {
+        mBatching = batching;
+        mBatchDelayNanos = delayNanos;
+    }
+
+    // Sends the batch if it is due, returns the delay until it will be, NO_FLUSH if nothing is pending
+    public long flushBatch(long nowNanos) {
+        if (mBatcher == null || mBatcher.isEmpty()) {
+            return NO_FLUSH;
+        }
+
+        long dueNanos = mBatcher.getOldestNanos() + mBatchDelayNanos;
+        if (mBatching && nowNanos - dueNanos < 0) {
+            return dueNanos - nowNanos;
+        }
+
+        BluetoothGattCharacteristic characteristic = mCharacteristicIndex.getEchoCharacteristic();
+        if (!isReady() || characteristic == null) {
+            mBatcher.clear();
+            return NO_FLUSH;
+        }
+        enqueueBatch(characteristic, mBatcher.flush(nowNanos));
+        updatePriority();
+        return NO_FLUSH;
+    }
+
+    private void enqueueBatch(BluetoothGattCharacteristic characteristic, @Nullable byte[] packet) {
+        if (packet != null) {
+            mOperationQueue.enqueue(new WriteCharacteristicOperation(characteristic, packet, mBatchWriteType));
+        }
+    }
+
+    private MessageBatcher getBatcher() {
+        if (mBatcher == null) {
+            mBatcher = new MessageBatcher(mMtu, mBatchStats);
+        } else {
+            mBatcher.setMtu(mMtu);
+        }
+        return mBatcher;
+    }
+
+    // Returns false if the time characteristic is not ready
+    public boolean requestTimestamp() {
+        BluetoothGattCharacteristic characteristic = mCharacteristicIndex.getTimeCharacteristic();
+        if (!mConnected || !mTimeInitialized || characteristic == null) {
+            return false;
+        }
+
+        mOperationQueue.enqueue(new ReadCharacteristicOperation(characteristic));
+        return true;
+    }
+
+    // Recording starts with the connection's next callback
+    public void setTrace(@Nullable GattTraceWriter trace) {
+        mCallback.setTrace(trace);
+    }
+
+    // Returns false if the server has no stats characteristic, the snapshot is logged when it arrives
+    public boolean readServerStats() {
+        BluetoothGattCharacteristic characteristic = mCharacteristicIndex.getStatsCharacteristic();
+        if (!mConnected || characteristic == null) {
+            return false;
+        }
+
+        mOperationQueue.enqueue(new ReadCharacteristicOperation(characteristic));
+        return true;
+    }
+
+    // Connection priority
+
+    // A bulk transfer keeps high priority even while the queue is short
+    public void setBulkTransfer(boolean bulkTransfer) {
+        mBulkTransfer = bulkTransfer;
+        updatePriority();
+    }
+
+    // Called for every send, and regularly so idle links can drop back
+    public void updatePriority() {
+        GattConnection connection;
+        synchronized (this) {
+            connection = mConnection;
+        }
+        if (!mConnected || connection == null) {
+            return;
+        }
+
+        long nowMillis = System.nanoTime() / NANOS_PER_MILLI;
+        long totalBytesWritten = mOperationQueue.getTotalBytesWritten();
+        int priority = mPriorityGovernor.update(nowMillis,
+                mOperationQueue.getQueueDepth(),
+                mBulkTransfer,
+                totalBytesWritten);
+        if (priority == ConnectionPriorityGovernor.NO_CHANGE) {
+            return;
+        }
+
+        if (connection.requestConnectionPriority(priority)) {
+            mPriorityGovernor.onPriorityChanged(priority, nowMillis, totalBytesWritten);
+            log("Connection priority " + ConnectionPriorityGovernor.getPriorityName(priority));
+        } else {
+            logError("Connection priority request failed");
+        }
+    }
+
+    public int getConnectionPriority() {
+        return mPriorityGovernor.getPriority();
+    }
+
+    // Stats
+
+    public void resetStats() {
+        synchronized (this) {
+            mMessagesSent = 0;
+            mBytesSent = 0;
+            mEchoesReceived = 0;
+            mEchoBytesReceived = 0;
+            mStartNanos = 0;
+            mLastEchoNanos = 0;
+        }
+        mBatchStats.reset();
+        mCodecStats.reset();
+        mOperationQueue.resetStats();
+    }
+
+    public synchronized long getMessagesSent() {
+        return mMessagesSent;
+    }
+
+    public synchronized long getEchoesReceived() {
+        return mEchoesReceived;
+    }
+
+    public synchronized long getEchoBytesReceived() {
+        return mEchoBytesReceived;
+    }
+
+    synchronized long getStartNanos() {
+        return mStartNanos;
+    }
+
+    synchronized long getLastEchoNanos() {
+        return mLastEchoNanos;
+    }
+
+    public synchronized double getEchoBytesPerSecond() {
+        long elapsedNanos = mLastEchoNanos - mStartNanos;
+        if (mEchoBytesReceived == 0 || elapsedNanos <= 0) {
+            return 0;
+        }
+        return mEchoBytesReceived * (double) NANOS_PER_SECOND / elapsedNanos;
+    }
+
+    // Main thread only, like the priority governor
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        synchronized (this) {
+            report.append(String.format("%s: sent %d (%d bytes), echoed %d (%d bytes), %.0f bytes/sec, MTU %d, %s priority",
+                    mAddress,
+                    mMessagesSent,
+                    mBytesSent,
+                    mEchoesReceived,
+                    mEchoBytesReceived,
+                    getEchoBytesPerSecond(),
+                    mMtu,
+                    ConnectionPriorityGovernor.getPriorityName(mPriorityGovernor.getPriority())));
+        }
+        for (String priorityChange : mPriorityGovernor.getSwitchReports()) {
+            report.append("\n  ").append(priorityChange);
+        }
+        if (mBatchStats.getPackets() > 0) {
+            report.append("\n  ").append(mBatchStats.getReport());
+        }
+        if (mCompressing) {
+            report.append("\n  ").append(mCodecStats.getReport());
+        }
+        return report.toString();
+    }
+
+    // Gatt Client Action Listener
+
+    @Override
+    public void log(String message) {
+        mLogger.log(mLogPrefix + message);
+    }
+
+    @Override
+    public void log(String message, Object detail) {
+        mLogger.log(mLogPrefix + message, detail);
+    }
+
+    @Override
+    public void logHex(String message, byte[] payload) {
+        mLogger.logHex(mLogPrefix + message, payload);
+    }
+
+    @Override
+    public void logUtf8(String message, byte[] payload) {
+        mLogger.logUtf8(mLogPrefix + message, payload);
+    }
+
+    @Override
+    public void logError(String message) {
+        log("Error: " + message);
+    }
+
+    @Override
+    public void setConnected(boolean connected) {
+        mConnected = connected;
+    }
+
+    @Override
+    public void initializeTime() {
+        mTimeInitialized = true;
+    }
+
+    @Override
+    public void initializeEcho() {
+        mEchoInitialized = true;
+        if (mConnected) {
+            mListener.onReady(this);
+        }
+    }
+
+    @Override
+    public void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    @Override
+    public int getCapabilities() {
+        return mCompressionOffered ? PayloadCodec.CAPABILITY_COMPRESSION : 0;
+    }
+
+    @Override
+    public void setCapabilities(int capabilities) {
+        mCompressing = (capabilities & PayloadCodec.CAPABILITY_COMPRESSION) != 0;
+        log("Compression " + (mCompressing ? "on" : "off"));
+    }
+
+    @Override
+    public void onEchoReceived(byte[] payload) {
+        byte[] message = mCompressing ? mEchoCodec.decode(payload) : payload;
+        if (message == null) {
+            logError("Unable to decode echo");
+            return;
+        }
+
+        synchronized (this) {
+            mEchoesReceived++;
+            mEchoBytesReceived += message.length;
+            mLastEchoNanos = System.nanoTime();
+        }
+        mListener.onEchoReceived(this, message);
+    }
+
+    @Override
+    public void disconnectGattServer() {
+        GattConnection connection;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            connection = mConnection;
+            mConnection = null;
+        }
+
+        log("Closing Gatt connection");
+        mConnected = false;
+        mEchoInitialized = false;
+        mTimeInitialized = false;
+        mCompressing = false;
+        mOperationQueue.clear();
+        mCharacteristicIndex.invalidate();
+        if (connection != null) {
+            connection.disconnect();
+        }
+        mListener.onDisconnected(this);
+    }
+}
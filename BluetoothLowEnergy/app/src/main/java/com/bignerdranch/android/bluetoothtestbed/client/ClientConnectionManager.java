@@ -0,0 +1,262 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.Nullable;
+
+import com.bignerdranch.android.bluetoothtestbed.log.Logger;
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsRegistry;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceWriter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Any number of concurrent ClientConnections, one per server address. Echoes can go to every
+ * ready server at once, or to each in turn.
+ *
+ * Connections are added and messages sent from the main thread, while connections report
+ * being ready or gone from the binder thread. Sends work on a copy of the connections that
+ * is replaced whenever one is added or removed, so they never take the lock.
+ */
+public class ClientConnectionManager implements ClientConnection.Listener {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final Logger mLogger;
+    private final ClientConnection.Listener mListener;
+    private final Map<String, ClientConnection> mConnections = new LinkedHashMap<>();
+    // Every connection records into the same metrics
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+
+    private volatile ClientConnection[] mConnectionArray = new ClientConnection[0];
+    private int mNextConnection;
+    private volatile boolean mCompressionOffered;
+    private GattTraceWriter mTrace;
+
+    // Forwards connection events to the listener, after the manager has seen them
+    public ClientConnectionManager(Logger logger, ClientConnection.Listener listener) {
+        mLogger = logger;
+        mListener = listener;
+    }
+
+    // Returns null if the device already has a connection
+    @Nullable
+    public synchronized ClientConnection add(String address, BluetoothDevice device) {
+        if (mConnections.containsKey(address)) {
+            return null;
+        }
+
+        ClientConnection connection = new ClientConnection(address, device, mLogger, this, mMetrics);
+        connection.setCompressionOffered(mCompressionOffered);
+        connection.setTrace(mTrace);
+        mConnections.put(address, connection);
+        mConnectionArray = mConnections.values().toArray(new ClientConnection[mConnections.size()]);
+        return connection;
+    }
+
+    @Nullable
+    public synchronized ClientConnection get(String address) {
+        return mConnections.get(address);
+    }
+
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    public int size() {
+        return mConnectionArray.length;
+    }
+
+    public int getReadyCount() {
+        int count = 0;
+        for (ClientConnection connection : mConnectionArray) {
+            if (connection.isReady()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void disconnectAll() {
+        // Each disconnect removes itself through onDisconnected
+        for (ClientConnection connection : mConnectionArray) {
+            connection.disconnectGattServer();
+        }
+    }
+
+    // Messaging
+
+    // Returns the number of servers the message was queued for
+    public int broadcastEcho(byte[] message, boolean withoutResponse) {
+        int count = 0;
+        for (ClientConnection connection : mConnectionArray) {
+            if (connection.sendEcho(message, withoutResponse) > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Queues the message for the next ready server in turn, returns null if none are ready
+    @Nullable
+    public ClientConnection sendEchoRoundRobin(byte[] message, boolean withoutResponse) {
+        ClientConnection[] connections = mConnectionArray;
+        for (int i = 0; i < connections.length; i++) {
+            int index = mNextConnection % connections.length;
+            mNextConnection = index + 1;
+            ClientConnection connection = connections[index];
+            if (connection.sendEcho(message, withoutResponse) > 0) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    // Returns the number of servers a timestamp was requested from
+    public int requestTimestamps() {
+        int count = 0;
+        for (ClientConnection connection : mConnectionArray) {
+            if (connection.requestTimestamp()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Returns the number of servers stats were requested from
+    public int readServerStats() {
+        int count = 0;
+        for (ClientConnection connection : mConnectionArray) {
+            if (connection.readServerStats()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Every connection records into the same trace, including those added later
+    public synchronized void setTrace(@Nullable GattTraceWriter trace) {
+        mTrace = trace;
+        for (ClientConnection connection : mConnectionArray) {
+            connection.setTrace(trace);
+        }
+    }
+
+    // Compression, offered to servers connected from now on
+
+    public void setCompressionOffered(boolean compressionOffered) {
+        mCompressionOffered = compressionOffered;
+    }
+
+    // Batching
+
+    public void setBatching(boolean batching, long delayNanos) {
+        for (ClientConnection connection : mConnectionArray) {
+            connection.setBatching(batching, delayNanos);
+        }
+    }
+
+    // Sends the batches that are due, returns the delay until the next one is,
+    // ClientConnection.NO_FLUSH if none are pending
+    public long flushBatches(long nowNanos) {
+        long delayNanos = ClientConnection.NO_FLUSH;
+        for (ClientConnection connection : mConnectionArray) {
+            long connectionDelayNanos = connection.flushBatch(nowNanos);
+            if (connectionDelayNanos != ClientConnection.NO_FLUSH
+                    && (delayNanos == ClientConnection.NO_FLUSH || connectionDelayNanos < delayNanos)) {
+                delayNanos = connectionDelayNanos;
+            }
+        }
+        return delayNanos;
+    }
+
+    // Connection priority
+
+    public void setBulkTransfer(boolean bulkTransfer) {
+        for (ClientConnection connection : mConnectionArray) {
+            connection.setBulkTransfer(bulkTransfer);
+        }
+    }
+
+    public void updatePriorities() {
+        for (ClientConnection connection : mConnectionArray) {
+            connection.updatePriority();
+        }
+    }
+
+    // Stats
+
+    public void resetStats() {
+        for (ClientConnection connection : mConnectionArray) {
+            connection.resetStats();
+        }
+    }
+
+    // Echo throughput of all links together, from the first send to the last echo on any of them
+    public double getEchoBytesPerSecond() {
+        long bytes = 0;
+        long startNanos = 0;
+        long lastEchoNanos = 0;
+        for (ClientConnection connection : mConnectionArray) {
+            if (connection.getEchoBytesReceived() == 0) {
+                continue;
+            }
+            bytes += connection.getEchoBytesReceived();
+            long connectionStartNanos = connection.getStartNanos();
+            if (startNanos == 0 || connectionStartNanos - startNanos < 0) {
+                startNanos = connectionStartNanos;
+            }
+            long connectionLastEchoNanos = connection.getLastEchoNanos();
+            if (lastEchoNanos == 0 || connectionLastEchoNanos - lastEchoNanos > 0) {
+                lastEchoNanos = connectionLastEchoNanos;
+            }
+        }
+
+        long elapsedNanos = lastEchoNanos - startNanos;
+        if (bytes == 0 || elapsedNanos <= 0) {
+            return 0;
+        }
+        return bytes * (double) NANOS_PER_SECOND / elapsedNanos;
+    }
+
+    public String getReport() {
+        ClientConnection[] connections = mConnectionArray;
+        StringBuilder report = new StringBuilder();
+        long sent = 0;
+        long echoed = 0;
+        for (ClientConnection connection : connections) {
+            report.append(connection.getReport()).append('\n');
+            sent += connection.getMessagesSent();
+            echoed += connection.getEchoesReceived();
+        }
+        report.append(String.format("All %d servers: sent %d, echoed %d, %.0f bytes/sec",
+                connections.length,
+                sent,
+                echoed,
+                getEchoBytesPerSecond()));
+        return report.toString();
+    }
+
+    // Client Connection Listener
+
+    @Override
+    public void onReady(ClientConnection connection) {
+        mListener.onReady(connection);
+    }
+
+    @Override
+    public void onEchoReceived(ClientConnection connection, byte[] message) {
+        mListener.onEchoReceived(connection, message);
+    }
+
+    @Override
+    public void onDisconnected(ClientConnection connection) {
+        synchronized (this) {
+            if (mConnections.get(connection.getAddress()) == connection) {
+                mConnections.remove(connection.getAddress());
+                mConnectionArray = mConnections.values().toArray(new ClientConnection[mConnections.size()]);
+            }
+        }
+        mListener.onDisconnected(connection);
+    }
+}
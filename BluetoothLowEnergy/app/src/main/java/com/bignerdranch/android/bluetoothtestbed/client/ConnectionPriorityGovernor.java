@@ -0,0 +1,173 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Picks the connection priority of one link from how busy it is. A deep write queue or a
+ * bulk transfer asks for high priority, the shortest connection interval, right away. Once
+ * the link has been idle for a while it drops back to balanced, and later to low power.
+ *
+ * Every switch is recorded with the write throughput measured before and after it, so the
+ * thresholds can be tuned. Used from the main thread only.
+ */
+public class ConnectionPriorityGovernor {
+
+    public static final int NO_CHANGE = -1;
+
+    // Writes waiting at which the link counts as busy
+    private static final int BUSY_QUEUE_DEPTH = 4;
+    private static final long BALANCED_AFTER_IDLE_MILLIS = 3000;
+    private static final long LOW_POWER_AFTER_IDLE_MILLIS = 20000;
+    // Throughput before and after a switch is measured over about this long
+    private static final long MEASURE_MILLIS = 3000;
+    private static final long SAMPLE_MILLIS = 250;
+    private static final int MAX_SWITCHES = 16;
+
+    private final Deque<Sample> mSamples = new ArrayDeque<>();
+    private final Deque<Switch> mSwitches = new ArrayDeque<>();
+
+    // The Android default until something else is requested
+    private int mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    // Idle time counts from the first update, the link was not idle before it connected
+    private boolean mUpdated;
+    private long mLastBusyMillis;
+    private Switch mMeasuring;
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    // Returns the priority to request, or NO_CHANGE
+    public int update(long nowMillis, int queueDepth, boolean bulkTransfer, long totalBytesWritten) {
+        addSample(nowMillis, totalBytesWritten);
+        if (!mUpdated) {
+            mUpdated = true;
+            mLastBusyMillis = nowMillis;
+        }
+
+        if (queueDepth >= BUSY_QUEUE_DEPTH || bulkTransfer) {
+            mLastBusyMillis = nowMillis;
+            return mPriority == BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                    ? NO_CHANGE
+                    : BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        }
+
+        long idleMillis = nowMillis - mLastBusyMillis;
+        if (mPriority == BluetoothGatt.CONNECTION_PRIORITY_HIGH && idleMillis >= BALANCED_AFTER_IDLE_MILLIS) {
+            return BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        }
+        if (mPriority == BluetoothGatt.CONNECTION_PRIORITY_BALANCED && idleMillis >= LOW_POWER_AFTER_IDLE_MILLIS) {
+            return BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        }
+        return NO_CHANGE;
+    }
+
+    // Call once the priority returned by update has been requested successfully
+    public void onPriorityChanged(int priority, long nowMillis, long totalBytesWritten) {
+        Switch change = new Switch(mPriority, priority, nowMillis, totalBytesWritten, getBytesPerSecond());
+        mPriority = priority;
+
+        if (mSwitches.size() == MAX_SWITCHES) {
+            mSwitches.removeFirst();
+        }
+        mSwitches.add(change);
+        // A switch before the last one was measured leaves it unmeasured
+        mMeasuring = change;
+        mSamples.clear();
+        mSamples.add(new Sample(nowMillis, totalBytesWritten));
+    }
+
+    private void addSample(long nowMillis, long totalBytesWritten) {
+        // update is also called for every send, a few samples a second are plenty
+        if (mSamples.isEmpty() || nowMillis - mSamples.getLast().mMillis >= SAMPLE_MILLIS) {
+            mSamples.add(new Sample(nowMillis, totalBytesWritten));
+        }
+        while (mSamples.size() > 2 && nowMillis - mSamples.getFirst().mMillis > MEASURE_MILLIS) {
+            mSamples.removeFirst();
+        }
+
+        if (mMeasuring != null && nowMillis - mMeasuring.mMillis >= MEASURE_MILLIS) {
+            mMeasuring.mBytesPerSecondAfter = perSecond(totalBytesWritten - mMeasuring.mTotalBytesWritten,
+                    nowMillis - mMeasuring.mMillis);
+            mMeasuring = null;
+        }
+    }
+
+    // Write throughput over the last MEASURE_MILLIS or so
+    public double getBytesPerSecond() {
+        if (mSamples.size() < 2) {
+            return 0;
+        }
+        Sample first = mSamples.getFirst();
+        Sample last = mSamples.getLast();
+        return perSecond(last.mTotalBytesWritten - first.mTotalBytesWritten, last.mMillis - first.mMillis);
+    }
+
+    private static double perSecond(long bytes, long millis) {
+        return millis <= 0 ? 0 : bytes * 1000.0 / millis;
+    }
+
+    public List<String> getSwitchReports() {
+        List<String> reports = new ArrayList<>(mSwitches.size());
+        for (Switch change : mSwitches) {
+            reports.add(change.toString());
+        }
+        return reports;
+    }
+
+    public static String getPriorityName(int priority) {
+        switch (priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return "high";
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                return "low power";
+            default:
+                return "balanced";
+        }
+    }
+
+    private static class Sample {
+
+        private final long mMillis;
+        private final long mTotalBytesWritten;
+
+        private Sample(long millis, long totalBytesWritten) {
+            mMillis = millis;
+            mTotalBytesWritten = totalBytesWritten;
+        }
+    }
+
+    private static class Switch {
+
+        private final int mFrom;
+        private final int mTo;
+        private final long mMillis;
+        private final long mTotalBytesWritten;
+        private final double mBytesPerSecondBefore;
+        // Negative until measured
+        private double mBytesPerSecondAfter = -1;
+
+        private Switch(int from, int to, long millis, long totalBytesWritten, double bytesPerSecondBefore) {
+            mFrom = from;
+            mTo = to;
+            mMillis = millis;
+            mTotalBytesWritten = totalBytesWritten;
+            mBytesPerSecondBefore = bytesPerSecondBefore;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d ms: %s to %s, %.0f bytes/sec before, %s after",
+                    mMillis,
+                    getPriorityName(mFrom),
+                    getPriorityName(mTo),
+                    mBytesPerSecondBefore,
+                    mBytesPerSecondAfter < 0 ? "not measured" : String.format("%.0f bytes/sec", mBytesPerSecondAfter));
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+public class DiscoverServicesOperation extends GattOperation {
+
+    @Override
+    public int getType() {
+        return TYPE_DISCOVER_SERVICES;
+    }
+
+    @Override
+    public boolean execute(GattConnection connection) {
+        return connection.discoverServices();
+    }
+}
@@ -0,0 +1,235 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import com.bignerdranch.android.bluetoothtestbed.util.ByteUtils;
+import com.bignerdranch.android.bluetoothtestbed.util.LatencyHistogram;
+
+import java.util.BitSet;
+
+/**
+ * One run of the echo benchmark. Messages carry a sequence number and their send time, so
+ * every echo can be matched to its message and timed without keeping per-message state.
+ * Echoes are checked to be the exact reverse of what was sent.
+ *
+ * Messages are sent in bursts, the next burst once every echo of the last one is back.
+ * Messages are built on the main thread and echoes arrive on the binder thread.
+ */
+public class EchoBenchmark {
+
+    // Magic, sequence number and send time
+    public static final int HEADER_SIZE = 16;
+
+    private static final int MAGIC = 0x45434842;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final int mMessageSize;
+    private final int mMessageCount;
+    private final int mBurstSize;
+
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+    private final BitSet mReceived = new BitSet();
+
+    private int mSent;
+    private int mReceivedCount;
+    private long mCorrupted;
+    private long mDuplicates;
+    private long mReordered;
+    private long mBytesReceived;
+    private int mHighestReceived = -1;
+    private long mStartNanos;
+    private long mLastReceivedNanos;
+    private boolean mFinished;
+
+    public EchoBenchmark(int messageSize, int messageCount, int burstSize) {
+        mMessageSize = Math.max(HEADER_SIZE, messageSize);
+        mMessageCount = Math.max(1, messageCount);
+        mBurstSize = Math.max(1, Math.min(burstSize, mMessageCount));
+    }
+
+    public int getMessageSize() {
+        return mMessageSize;
+    }
+
+    // True once the last burst has been echoed, or finish was called
+    public synchronized boolean isComplete() {
+        return mFinished || mReceivedCount == mMessageCount;
+    }
+
+    // True when the current burst is fully echoed and another one is due
+    public synchronized boolean isBurstDue() {
+        return !mFinished && mSent < mMessageCount && mReceivedCount == mSent;
+    }
+
+    // Builds the messages of the next burst
+    public synchronized byte[][] nextBurst(long nowNanos) {
+        if (mSent == 0) {
+            mStartNanos = nowNanos;
+        }
+        int burstEnd = Math.min(mSent + mBurstSize, mMessageCount);
+        byte[][] messages = new byte[burstEnd - mSent][];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = newMessage(mSent++, nowNanos);
+        }
+        return messages;
+    }
+
+    private byte[] newMessage(int sequence, long nowNanos) {
+        byte[] message = new byte[mMessageSize];
+        putInt(message, 0, MAGIC);
+        putInt(message, 4, sequence);
+        putLong(message, 8, nowNanos);
+        for (int i = HEADER_SIZE; i < message.length; i++) {
+            message[i] = fillerByte(sequence, i);
+        }
+        return message;
+    }
+
+    // Returns false if the echo is not one of this run's messages
+    public synchronized boolean onEcho(byte[] echo, long nowNanos) {
+        if (mFinished || echo.length < HEADER_SIZE) {
+            return false;
+        }
+
+        // The server sends back the message reversed
+        byte[] message = ByteUtils.reverse(echo);
+        if (getInt(message, 0) != MAGIC) {
+            return false;
+        }
+
+        int sequence = getInt(message, 4);
+        if (sequence < 0 || sequence >= mSent || !isIntact(message, sequence)) {
+            mCorrupted++;
+            return true;
+        }
+        if (mReceived.get(sequence)) {
+            mDuplicates++;
+            return true;
+        }
+
+        mReceived.set(sequence);
+        mReceivedCount++;
+        if (sequence < mHighestReceived) {
+            mReordered++;
+        }
+        mHighestReceived = Math.max(mHighestReceived, sequence);
+        mHistogram.record(nowNanos - getLong(message, 8));
+        mBytesReceived += echo.length;
+        mLastReceivedNanos = nowNanos;
+        return true;
+    }
+
+    private boolean isIntact(byte[] message, int sequence) {
+        if (message.length != mMessageSize) {
+            return false;
+        }
+        for (int i = HEADER_SIZE; i < message.length; i++) {
+            if (message[i] != fillerByte(sequence, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Stops waiting, anything not echoed by now counts as lost
+    public synchronized void finish() {
+        mFinished = true;
+    }
+
+    // Stats
+
+    public synchronized int getSent() {
+        return mSent;
+    }
+
+    public synchronized int getReceived() {
+        return mReceivedCount;
+    }
+
+    public synchronized int getLost() {
+        return mSent - mReceivedCount;
+    }
+
+    public synchronized long getCorrupted() {
+        return mCorrupted;
+    }
+
+    public synchronized long getLatencyNanos(double percentile) {
+        return mHistogram.getValueAtPercentile(percentile);
+    }
+
+    public synchronized double getMessagesPerSecond() {
+        return perSecond(mReceivedCount);
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return perSecond(mBytesReceived);
+    }
+
+    private double perSecond(long count) {
+        long elapsedNanos = mLastReceivedNanos - mStartNanos;
+        if (count == 0 || elapsedNanos <= 0) {
+            return 0;
+        }
+        return count * (double) NANOS_PER_SECOND / elapsedNanos;
+    }
+
+    public synchronized String getReport() {
+        return String.format("Echo benchmark: %d of %d bytes, sent %d, received %d, lost %d (%.1f%%), "
+                        + "corrupted %d, duplicated %d, reordered %d\n"
+                        + "Latency p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms\n"
+                        + "%.1f msgs/sec, %.0f bytes/sec",
+                mMessageCount,
+                mMessageSize,
+                mSent,
+                mReceivedCount,
+                getLost(),
+                mSent == 0 ? 0 : getLost() * 100.0 / mSent,
+                mCorrupted,
+                mDuplicates,
+                mReordered,
+                millis(mHistogram.getValueAtPercentile(50)),
+                millis(mHistogram.getValueAtPercentile(99)),
+                millis(mHistogram.getValueAtPercentile(99.9)),
+                millis(mHistogram.getMax()),
+                getMessagesPerSecond(),
+                getBytesPerSecond());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) NANOS_PER_MILLI;
+    }
+
+    // Payload encoding
+
+    private static byte fillerByte(int sequence, int index) {
+        return (byte) (sequence * 31 + index);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            bytes[offset + i] = (byte) (value >>> (24 - 8 * i));
+        }
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,125 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.support.annotation.Nullable;
+
+import com.bignerdranch.android.bluetoothtestbed.util.BluetoothUtils;
+
+import java.util.List;
+
+/**
+ * The testbed characteristics and descriptors of one connection, looked up once when services
+ * are discovered instead of on every read and write.
+ *
+ * Resolved on the binder thread and read from the main thread. Each resolve publishes a new
+ * immutable set of references, so readers never see a mix of old and new services.
+ */
+public class GattCharacteristicIndex {
+
+    private volatile Entries mEntries = Entries.EMPTY;
+
+    // Returns true if the testbed service was found
+    public boolean resolve(List<BluetoothGattService> services) {
+        BluetoothGattService service = null;
+        for (int i = 0; i < services.size(); i++) {
+            if (BluetoothUtils.isTestbedService(services.get(i))) {
+                service = services.get(i);
+                break;
+            }
+        }
+
+        if (service == null) {
+            mEntries = Entries.EMPTY;
+            return false;
+        }
+
+        BluetoothGattCharacteristic echoCharacteristic = null;
+        BluetoothGattCharacteristic timeCharacteristic = null;
+        BluetoothGattCharacteristic controlCharacteristic = null;
+        BluetoothGattCharacteristic statsCharacteristic = null;
+        List<BluetoothGattCharacteristic> characteristics = service.getCharacteristics();
+        for (int i = 0; i < characteristics.size(); i++) {
+            BluetoothGattCharacteristic characteristic = characteristics.get(i);
+            if (BluetoothUtils.isEchoCharacteristic(characteristic)) {
+                echoCharacteristic = characteristic;
+            } else if (BluetoothUtils.isTimeCharacteristic(characteristic)) {
+                timeCharacteristic = characteristic;
+            } else if (BluetoothUtils.isControlCharacteristic(characteristic)) {
+                controlCharacteristic = characteristic;
+            } else if (BluetoothUtils.isStatsCharacteristic(characteristic)) {
+                statsCharacteristic = characteristic;
+            }
+        }
+
+        BluetoothGattDescriptor timeConfigurationDescriptor = timeCharacteristic == null
+                ? null
+                : BluetoothUtils.findClientConfigurationDescriptor(timeCharacteristic.getDescriptors());
+
+        mEntries = new Entries(echoCharacteristic,
+                timeCharacteristic,
+                timeConfigurationDescriptor,
+                controlCharacteristic,
+                statsCharacteristic);
+        return true;
+    }
+
+    // The references belong to a BluetoothGatt that is going away, or whose services changed
+    public void invalidate() {
+        mEntries = Entries.EMPTY;
+    }
+
+    public boolean isResolved() {
+        return mEntries != Entries.EMPTY;
+    }
+
+    @Nullable
+    public BluetoothGattCharacteristic getEchoCharacteristic() {
+        return mEntries.mEchoCharacteristic;
+    }
+
+    @Nullable
+    public BluetoothGattCharacteristic getTimeCharacteristic() {
+        return mEntries.mTimeCharacteristic;
+    }
+
+    @Nullable
+    public BluetoothGattDescriptor getTimeConfigurationDescriptor() {
+        return mEntries.mTimeConfigurationDescriptor;
+    }
+
+    // Servers from before the capability handshake do not have one
+    @Nullable
+    public BluetoothGattCharacteristic getControlCharacteristic() {
+        return mEntries.mControlCharacteristic;
+    }
+
+    @Nullable
+    public BluetoothGattCharacteristic getStatsCharacteristic() {
+        return mEntries.mStatsCharacteristic;
+    }
+
+    private static class Entries {
+
+        private static final Entries EMPTY = new Entries(null, null, null, null, null);
+
+        private final BluetoothGattCharacteristic mEchoCharacteristic;
+        private final BluetoothGattCharacteristic mTimeCharacteristic;
+        private final BluetoothGattDescriptor mTimeConfigurationDescriptor;
+        private final BluetoothGattCharacteristic mControlCharacteristic;
+        private final BluetoothGattCharacteristic mStatsCharacteristic;
+
+        private Entries(BluetoothGattCharacteristic echoCharacteristic,
+                        BluetoothGattCharacteristic timeCharacteristic,
+                        BluetoothGattDescriptor timeConfigurationDescriptor,
+                        BluetoothGattCharacteristic controlCharacteristic,
+                        BluetoothGattCharacteristic statsCharacteristic) {
+            mEchoCharacteristic = echoCharacteristic;
+            mTimeCharacteristic = timeCharacteristic;
+            mTimeConfigurationDescriptor = timeConfigurationDescriptor;
+            mControlCharacteristic = controlCharacteristic;
+            mStatsCharacteristic = statsCharacteristic;
+        }
+    }
+}
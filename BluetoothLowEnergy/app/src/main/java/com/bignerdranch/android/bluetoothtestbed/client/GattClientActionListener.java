@@ -4,6 +4,14 @@ public interface GattClientActionListener {
 
     void log(String message);
 
+    // Formatting is deferred until the line is shown, keeping binder thread logging cheap
+
+    void log(String message, Object detail);
+
+    void logHex(String message, byte[] payload);
+
+    void logUtf8(String message, byte[] payload);
+
     void logError(String message);
 
     void setConnected(boolean connected);
@@ -12,5 +20,16 @@ public interface GattClientActionListener {
 
     void initializeEcho();
 
+    void setMtu(int mtu);
+
+    // What this client can do, offered to servers that have a control characteristic
+    int getCapabilities();
+
+    // What the server agreed to, in effect for every message from now on
+    void setCapabilities(int capabilities);
+
+    // A whole echo, reassembled from however many packets it arrived in
+    void onEchoReceived(byte[] message);
+
     void disconnectGattServer();
 }
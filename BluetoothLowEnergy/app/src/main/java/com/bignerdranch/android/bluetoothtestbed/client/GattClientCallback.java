@@ -5,23 +5,74 @@ import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothProfile;
+import android.support.annotation.Nullable;
 
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsRegistry;
+import com.bignerdranch.android.bluetoothtestbed.metrics.StripedCounter;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceEvent;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceWriter;
 import com.bignerdranch.android.bluetoothtestbed.util.BluetoothUtils;
-import com.bignerdranch.android.bluetoothtestbed.util.StringUtils;
+import com.bignerdranch.android.bluetoothtestbed.util.MessageBatcher;
+import com.bignerdranch.android.bluetoothtestbed.util.MessageReassembler;
+import com.bignerdranch.android.bluetoothtestbed.util.PayloadCodec;
 
 import java.util.List;
+import java.util.UUID;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.GATT_INVALID_HANDLE;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.MAX_MTU;
 
 public class GattClientCallback extends BluetoothGattCallback {
 
     private GattClientActionListener mClientActionListener;
+    private GattOperationQueue mOperationQueue;
+    private GattCharacteristicIndex mCharacteristicIndex;
+    private MessageReassembler mEchoReassembler = new MessageReassembler();
+    // Set from a request rejected for a stale handle until the services are discovered again
+    private boolean mRediscovering;
+
+    // Callbacks of each type, any of them with a status other than success counts as a failure
+    private final StripedCounter mConnectionStateChanges;
+    private final StripedCounter mServicesDiscovered;
+    private final StripedCounter mCharacteristicWrites;
+    private final StripedCounter mCharacteristicReads;
+    private final StripedCounter mCharacteristicChanges;
+    private final StripedCounter mDescriptorWrites;
+    private final StripedCounter mMtuChanges;
+    private final StripedCounter mStatusFailures;
+    private final StripedCounter mBytesIn;
 
-    public GattClientCallback(GattClientActionListener clientActionListener) {
+    private volatile GattTraceWriter mTrace;
+
+    public GattClientCallback(GattClientActionListener clientActionListener,
+                              GattOperationQueue operationQueue,
+                              GattCharacteristicIndex characteristicIndex) {
+        this(clientActionListener, operationQueue, characteristicIndex, new MetricsRegistry());
+    }
+
+    public GattClientCallback(GattClientActionListener clientActionListener,
+                              GattOperationQueue operationQueue,
+                              GattCharacteristicIndex characteristicIndex,
+                              MetricsRegistry metrics) {
         mClientActionListener = clientActionListener;
+        mOperationQueue = operationQueue;
+        mCharacteristicIndex = characteristicIndex;
+        mConnectionStateChanges = metrics.counter("cb.connection_state");
+        mServicesDiscovered = metrics.counter("cb.services_discovered");
+        mCharacteristicWrites = metrics.counter("cb.characteristic_write");
+        mCharacteristicReads = metrics.counter("cb.characteristic_read");
+        mCharacteristicChanges = metrics.counter("cb.characteristic_changed");
+        mDescriptorWrites = metrics.counter("cb.descriptor_write");
+        mMtuChanges = metrics.counter("cb.mtu_changed");
+        mStatusFailures = metrics.counter("status_failures");
+        mBytesIn = metrics.counter("bytes_in");
     }
 
     @Override
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
         super.onConnectionStateChange(gatt, status, newState);
+        record(mConnectionStateChanges, status);
+        trace(GattTraceEvent.CLIENT_CONNECTION_STATE, gatt, newState, status, null, null, null);
         mClientActionListener.log("onConnectionStateChange newState: " + newState);
 
         if (status == BluetoothGatt.GATT_FAILURE) {
@@ -38,9 +89,14 @@ public class GattClientCallback extends BluetoothGattCallback {
         if (newState == BluetoothProfile.STATE_CONNECTED) {
             mClientActionListener.log("Connected to device " + gatt.getDevice().getAddress());
             mClientActionListener.setConnected(true);
-            gatt.discoverServices();
+            // Negotiate the largest packet size before anything else is sent
+            mOperationQueue.enqueue(new RequestMtuOperation(MAX_MTU));
+            mOperationQueue.enqueue(new DiscoverServicesOperation());
         } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
             mClientActionListener.log("Disconnected from device");
+            mEchoReassembler.reset();
+            mCharacteristicIndex.invalidate();
+            mRediscovering = false;
             mClientActionListener.disconnectGattServer();
         }
     }
@@ -48,112 +104,258 @@ public class GattClientCallback extends BluetoothGattCallback {
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
         super.onServicesDiscovered(gatt, status);
+        record(mServicesDiscovered, status);
+        trace(GattTraceEvent.CLIENT_SERVICES_DISCOVERED, gatt, 0, status, null, null, null);
+        mOperationQueue.onOperationCompleted(GattOperation.TYPE_DISCOVER_SERVICES, status);
+        mRediscovering = false;
 
         if (status != BluetoothGatt.GATT_SUCCESS) {
+            // Whatever was resolved before may no longer exist
+            mCharacteristicIndex.invalidate();
             mClientActionListener.log("Device service discovery unsuccessful, status " + status);
             return;
         }
 
-        List<BluetoothGattCharacteristic> matchingCharacteristics = BluetoothUtils.findCharacteristics(gatt);
-        if (matchingCharacteristics.isEmpty()) {
+        // Rediscovery replaces the previous references, since the old objects are stale
+        mCharacteristicIndex.resolve(gatt.getServices());
+        BluetoothGattCharacteristic echoCharacteristic = mCharacteristicIndex.getEchoCharacteristic();
+        BluetoothGattCharacteristic timeCharacteristic = mCharacteristicIndex.getTimeCharacteristic();
+        if (echoCharacteristic == null && timeCharacteristic == null) {
             mClientActionListener.logError("Unable to find characteristics.");
             return;
         }
 
         mClientActionListener.log("Initializing: setting write type and enabling notification");
-        for (BluetoothGattCharacteristic characteristic : matchingCharacteristics) {
-            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-            enableCharacteristicNotification(gatt, characteristic);
+        if (echoCharacteristic != null) {
+            echoCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            if (enableCharacteristicNotification(gatt, echoCharacteristic)) {
+                negotiateCapabilities();
+            }
+        }
+        if (timeCharacteristic != null) {
+            timeCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            if (enableCharacteristicNotification(gatt, timeCharacteristic)) {
+                enableCharacteristicConfigurationDescriptor();
+            }
         }
     }
 
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicWrite(gatt, characteristic, status);
+        record(mCharacteristicWrites, status);
+        trace(GattTraceEvent.CLIENT_CHARACTERISTIC_WRITE, gatt, 0, status,
+                characteristic.getUuid(), null, characteristic.getValue());
         if (status == BluetoothGatt.GATT_SUCCESS) {
             mClientActionListener.log("Characteristic written successfully");
-        } else {
+            if (BluetoothUtils.isControlCharacteristic(characteristic)) {
+                // The server only responds with success once it granted all of them
+                int capabilities = PayloadCodec.agree(mClientActionListener.getCapabilities(), characteristic.getValue());
+                mClientActionListener.setCapabilities(capabilities);
+                mClientActionListener.initializeEcho();
+            }
+        } else if (status == BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED
+                && BluetoothUtils.isControlCharacteristic(characteristic)) {
+            // Refused, the server falls back to none as well
+            mClientActionListener.log("Capabilities refused, echoing uncompressed");
+            mClientActionListener.setCapabilities(0);
+            mClientActionListener.initializeEcho();
+        } else if (!rediscoverIfServiceReplaced(status)) {
             mClientActionListener.logError("Characteristic write unsuccessful, status: " + status);
             mClientActionListener.disconnectGattServer();
+            return;
+        }
+        mOperationQueue.onOperationCompleted(GattOperation.TYPE_WRITE_CHARACTERISTIC, status);
+        if (mOperationQueue.getQueueDepth() == 0) {
+            // Report throughput once a message or stream has been fully written
+            mClientActionListener.log(mOperationQueue.getStats());
         }
     }
 
     @Override
     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicRead(gatt, characteristic, status);
-        if (status == BluetoothGatt.GATT_SUCCESS) {
+        record(mCharacteristicReads, status);
+        trace(GattTraceEvent.CLIENT_CHARACTERISTIC_READ, gatt, 0, status,
+                characteristic.getUuid(), null, characteristic.getValue());
+        if (status == BluetoothGatt.GATT_SUCCESS && characteristic.getValue() != null) {
+            mBytesIn.add(characteristic.getValue().length);
+        }
+        if (rediscoverIfServiceReplaced(status)) {
+            // Capabilities are negotiated again once the service is found
+            mOperationQueue.onOperationCompleted(GattOperation.TYPE_READ_CHARACTERISTIC, status);
+            return;
+        }
+        if (BluetoothUtils.isControlCharacteristic(characteristic)) {
+            onServerCapabilities(status == BluetoothGatt.GATT_SUCCESS ? characteristic.getValue() : null);
+        } else if (BluetoothUtils.isStatsCharacteristic(characteristic) && status == BluetoothGatt.GATT_SUCCESS) {
+            mClientActionListener.logUtf8("Server stats:\n", characteristic.getValue());
+        } else if (status == BluetoothGatt.GATT_SUCCESS) {
             mClientActionListener.log("Characteristic read successfully");
-            readCharacteristic(characteristic);
+            readMessage(characteristic.getValue());
         } else {
             mClientActionListener.logError("Characteristic read unsuccessful, status: " + status);
             // Trying to read from the Time Characteristic? It doesnt have the property or permissions
             // set to allow this. Normally this would be an error and you would want to:
             // disconnectGattServer();
         }
+        mOperationQueue.onOperationCompleted(GattOperation.TYPE_READ_CHARACTERISTIC, status);
     }
 
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
         super.onCharacteristicChanged(gatt, characteristic);
-        mClientActionListener.log("Characteristic changed, " + characteristic.getUuid().toString());
-        readCharacteristic(characteristic);
+        mCharacteristicChanges.increment();
+        trace(GattTraceEvent.CLIENT_CHARACTERISTIC_CHANGED, gatt, 0, BluetoothGatt.GATT_SUCCESS,
+                characteristic.getUuid(), null, characteristic.getValue());
+        if (characteristic.getValue() != null) {
+            mBytesIn.add(characteristic.getValue().length);
+        }
+        mClientActionListener.log("Characteristic changed, ", characteristic.getUuid());
+        if (BluetoothUtils.isEchoCharacteristic(characteristic)) {
+            byte[] value = characteristic.getValue();
+            if (MessageBatcher.isBatch(value)) {
+                // Small echoes batched by the server
+                List<byte[]> messages = MessageBatcher.unpack(value);
+                for (int i = 0; i < messages.size(); i++) {
+                    mClientActionListener.onEchoReceived(messages.get(i));
+                }
+                return;
+            }
+            // Echoes are split into MTU sized packets by the server
+            byte[] message = mEchoReassembler.onPacket(value);
+            if (message != null) {
+                mClientActionListener.onEchoReceived(message);
+            }
+        } else {
+            readMessage(characteristic.getValue());
+        }
     }
 
 
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        record(mDescriptorWrites, status);
+        trace(GattTraceEvent.CLIENT_DESCRIPTOR_WRITE, gatt, 0, status,
+                descriptor.getCharacteristic().getUuid(), descriptor.getUuid(), descriptor.getValue());
         if (status == BluetoothGatt.GATT_SUCCESS) {
             mClientActionListener.log("Descriptor written successfully: " + descriptor.getUuid().toString());
             mClientActionListener.initializeTime();
-        } else {
+        } else if (!rediscoverIfServiceReplaced(status)) {
             mClientActionListener.logError("Descriptor write unsuccessful: " + descriptor.getUuid().toString());
         }
+        mOperationQueue.onOperationCompleted(GattOperation.TYPE_WRITE_DESCRIPTOR, status);
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        super.onMtuChanged(gatt, mtu, status);
+        record(mMtuChanges, status);
+        trace(GattTraceEvent.CLIENT_MTU_CHANGED, gatt, mtu, status, null, null, null);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mClientActionListener.log("MTU changed to " + mtu);
+            mClientActionListener.setMtu(mtu);
+        } else {
+            mClientActionListener.logError("MTU request unsuccessful, status: " + status);
+        }
+        mOperationQueue.onOperationCompleted(GattOperation.TYPE_REQUEST_MTU, status);
     }
 
 
-    private void enableCharacteristicNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+    private boolean enableCharacteristicNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
         boolean characteristicWriteSuccess = gatt.setCharacteristicNotification(characteristic, true);
         if (characteristicWriteSuccess) {
             mClientActionListener.log("Characteristic notification set successfully for " + characteristic.getUuid().toString());
-            if (BluetoothUtils.isEchoCharacteristic(characteristic)) {
-                mClientActionListener.initializeEcho();
-            } else if (BluetoothUtils.isTimeCharacteristic(characteristic)) {
-                enableCharacteristicConfigurationDescriptor(gatt, characteristic);
-            }
         } else {
             mClientActionListener.logError("Characteristic notification set failure for " + characteristic.getUuid().toString());
         }
+        return characteristicWriteSuccess;
     }
 
     // Sometimes the Characteristic does not have permissions, and instead its Descriptor holds them
     // See https://www.bluetooth.com/specifications/gatt/viewer?attributeXmlFile=org.bluetooth.descriptor.gatt.client_characteristic_configuration.xml
-    private void enableCharacteristicConfigurationDescriptor(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-
-        List<BluetoothGattDescriptor> descriptorList = characteristic.getDescriptors();
-        BluetoothGattDescriptor descriptor = BluetoothUtils.findClientConfigurationDescriptor(descriptorList);
+    private void enableCharacteristicConfigurationDescriptor() {
+        BluetoothGattDescriptor descriptor = mCharacteristicIndex.getTimeConfigurationDescriptor();
         if (descriptor == null) {
             mClientActionListener.logError("Unable to find Characteristic Configuration Descriptor");
             return;
         }
 
-        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-        boolean descriptorWriteInitiated = gatt.writeDescriptor(descriptor);
-        if (descriptorWriteInitiated) {
-            mClientActionListener.log("Characteristic Configuration Descriptor write initiated: " + descriptor.getUuid().toString());
-        } else {
-            mClientActionListener.logError("Characteristic Configuration Descriptor write failed to initiate: " + descriptor.getUuid().toString());
+        // Queued, since several descriptor writes in a row would otherwise be dropped
+        mOperationQueue.enqueue(new WriteDescriptorOperation(descriptor, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
+        mClientActionListener.log("Characteristic Configuration Descriptor write queued: " + descriptor.getUuid().toString());
+    }
+
+    // A server that replaced its service in place rejects requests for the old handles. The new
+    // service is discovered once, however many requests were rejected, and set up as on connecting
+    private boolean rediscoverIfServiceReplaced(int status) {
+        if (status != GATT_INVALID_HANDLE) {
+            return false;
+        }
+        if (!mRediscovering) {
+            mRediscovering = true;
+            mClientActionListener.log("Server service changed, discovering services again");
+            mEchoReassembler.reset();
+            mCharacteristicIndex.invalidate();
+            mOperationQueue.enqueue(new DiscoverServicesOperation());
+        }
+        return true;
+    }
+
+    // Recording starts with the next callback, and stops when set to null
+    public void setTrace(@Nullable GattTraceWriter trace) {
+        mTrace = trace;
+    }
+
+    private void trace(int type,
+                       BluetoothGatt gatt,
+                       int argument,
+                       int status,
+                       @Nullable UUID characteristicUuid,
+                       @Nullable UUID descriptorUuid,
+                       @Nullable byte[] value) {
+        GattTraceWriter trace = mTrace;
+        if (trace != null) {
+            trace.record(type, gatt.getDevice().getAddress(), argument, status, 0, 0, characteristicUuid, descriptorUuid, value);
+        }
+    }
+
+    private void record(StripedCounter callbacks, int status) {
+        callbacks.increment();
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            mStatusFailures.increment();
+        }
+    }
+
+    // Echoes are only sent once both sides agree on how to encode them, so none are sent or
+    // received in the wrong format
+    private void negotiateCapabilities() {
+        BluetoothGattCharacteristic controlCharacteristic = mCharacteristicIndex.getControlCharacteristic();
+        if (controlCharacteristic == null || mClientActionListener.getCapabilities() == 0) {
+            mClientActionListener.initializeEcho();
+            return;
+        }
+        mOperationQueue.enqueue(new ReadCharacteristicOperation(controlCharacteristic));
+    }
+
+    private void onServerCapabilities(byte[] value) {
+        BluetoothGattCharacteristic controlCharacteristic = mCharacteristicIndex.getControlCharacteristic();
+        int capabilities = PayloadCodec.agree(mClientActionListener.getCapabilities(), value);
+        if (controlCharacteristic == null || capabilities == 0) {
+            mClientActionListener.log("No capabilities in common with the server");
+            mClientActionListener.initializeEcho();
+            return;
         }
+        mOperationQueue.enqueue(new WriteCharacteristicOperation(controlCharacteristic, new byte[]{(byte) capabilities}));
     }
 
-    private void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        byte[] messageBytes = characteristic.getValue();
-        mClientActionListener.log("Read: " + StringUtils.byteArrayInHexFormat(messageBytes));
-        String message = StringUtils.stringFromBytes(messageBytes);
-        if (message == null) {
+    private void readMessage(byte[] messageBytes) {
+        if (messageBytes == null) {
             mClientActionListener.logError("Unable to convert bytes to string");
             return;
         }
 
-        mClientActionListener.log("Received message: " + message);
+        mClientActionListener.logHex("Read: ", messageBytes);
+        mClientActionListener.logUtf8("Received message: ", messageBytes);
     }
 }
@@ -0,0 +1,27 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+/**
+ * The subset of BluetoothGatt used to issue operations, so queued operations can be
+ * driven by a fake connection on the JVM.
+ */
+public interface GattConnection {
+
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+    boolean requestMtu(int mtu);
+
+    boolean discoverServices();
+
+    // Not queued, there is no callback for it
+    boolean requestConnectionPriority(int connectionPriority);
+
+    // Disconnects and releases the connection, nothing can be sent on it afterwards
+    void disconnect();
+}
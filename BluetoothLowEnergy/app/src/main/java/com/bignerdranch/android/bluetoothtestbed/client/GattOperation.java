@@ -0,0 +1,33 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+/**
+ * A single GATT request. Android only allows one outstanding request per connection,
+ * so operations are run one at a time by the GattOperationQueue.
+ */
+public abstract class GattOperation {
+
+    public static final int TYPE_WRITE_CHARACTERISTIC = 1;
+    public static final int TYPE_READ_CHARACTERISTIC = 2;
+    public static final int TYPE_WRITE_DESCRIPTOR = 3;
+    public static final int TYPE_REQUEST_MTU = 4;
+    public static final int TYPE_DISCOVER_SERVICES = 5;
+
+    private static final String[] TYPE_NAMES = {
+            "unknown", "write_characteristic", "read_characteristic", "write_descriptor", "request_mtu", "discover_services"
+    };
+
+    public static String getTypeName(int type) {
+        return type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : TYPE_NAMES[0];
+    }
+
+    // The callback type that completes this operation
+    public abstract int getType();
+
+    // Returns false if the request could not be initiated, in which case no callback will arrive
+    public abstract boolean execute(GattConnection connection);
+
+    // Bytes sent to the remote device, used for throughput stats
+    public int getPayloadSize() {
+        return 0;
+    }
+}
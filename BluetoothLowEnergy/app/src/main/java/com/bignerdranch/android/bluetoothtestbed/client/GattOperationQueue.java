@@ -0,0 +1,164 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsRegistry;
+import com.bignerdranch.android.bluetoothtestbed.metrics.StripedCounter;
+import com.bignerdranch.android.bluetoothtestbed.metrics.StripedHistogram;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Serializes GATT operations for a single connection. The next operation is sent as soon
+ * as the callback for the current one arrives, since Android silently drops a request
+ * made while another is still outstanding.
+ *
+ * Operations are enqueued from the main thread and completed from the binder thread,
+ * so all access is synchronized.
+ *
+ * Each operation type records the time from its request to its callback in an "op." histogram.
+ */
+public class GattOperationQueue {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final Deque<GattOperation> mOperations = new ArrayDeque<>();
+
+    private GattConnection mConnection;
+    private GattOperation mCurrentOperation;
+    private long mCurrentStartNanos;
+
+    // Indexed by operation type
+    private final StripedHistogram[] mLatencies = new StripedHistogram[GattOperation.TYPE_DISCOVER_SERVICES + 1];
+    private final StripedCounter mBytesOut;
+
+    private long mCompletedOperations;
+    private long mFailedOperations;
+    private long mBytesWritten;
+    // Never reset, so rates can be sampled across resets
+    private long mTotalBytesWritten;
+    private long mStartTimeNanos;
+    private long mLastCompletedTimeNanos;
+
+    public GattOperationQueue() {
+        this(new MetricsRegistry());
+    }
+
+    public GattOperationQueue(MetricsRegistry metrics) {
+        for (int type = 1; type < mLatencies.length; type++) {
+            mLatencies[type] = metrics.latency("op." + GattOperation.getTypeName(type));
+        }
+        mBytesOut = metrics.counter("bytes_out");
+    }
+
+    public synchronized void setConnection(GattConnection connection) {
+        mConnection = connection;
+        executeNext();
+    }
+
+    public synchronized void enqueue(GattOperation operation) {
+        if (mStartTimeNanos == 0) {
+            mStartTimeNanos = System.nanoTime();
+        }
+        mOperations.add(operation);
+        executeNext();
+    }
+
+    // Called from the matching BluetoothGattCallback method
+    public synchronized void onOperationCompleted(int type, int status) {
+        if (mCurrentOperation == null || mCurrentOperation.getType() != type) {
+            // Not a response to anything we sent
+            return;
+        }
+
+        mLatencies[type].recordSince(mCurrentStartNanos);
+        mBytesOut.add(mCurrentOperation.getPayloadSize());
+        mBytesWritten += mCurrentOperation.getPayloadSize();
+        mTotalBytesWritten += mCurrentOperation.getPayloadSize();
+        mCurrentOperation = null;
+        mCompletedOperations++;
+        mLastCompletedTimeNanos = System.nanoTime();
+        executeNext();
+    }
+
+    public synchronized void clear() {
+        mOperations.clear();
+        mCurrentOperation = null;
+        mConnection = null;
+        resetStats();
+    }
+
+    public synchronized void resetStats() {
+        mCompletedOperations = 0;
+        mFailedOperations = 0;
+        mBytesWritten = 0;
+        // Keep timing from the operation in flight, if any
+        mStartTimeNanos = getQueueDepth() == 0 ? 0 : System.nanoTime();
+        mLastCompletedTimeNanos = 0;
+    }
+
+    private void executeNext() {
+        if (mConnection == null) {
+            return;
+        }
+
+        while (mCurrentOperation == null && !mOperations.isEmpty()) {
+            GattOperation operation = mOperations.poll();
+            long startNanos = System.nanoTime();
+            if (operation.execute(mConnection)) {
+                mCurrentOperation = operation;
+                mCurrentStartNanos = startNanos;
+            } else {
+                // No callback will come for this one, move on
+                mFailedOperations++;
+            }
+        }
+    }
+
+    // Stats
+
+    // Pending operations, including the one in flight
+    public synchronized int getQueueDepth() {
+        return mOperations.size() + (mCurrentOperation == null ? 0 : 1);
+    }
+
+    public synchronized long getCompletedOperations() {
+        return mCompletedOperations;
+    }
+
+    public synchronized long getFailedOperations() {
+        return mFailedOperations;
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public synchronized long getTotalBytesWritten() {
+        return mTotalBytesWritten;
+    }
+
+    public synchronized double getOperationsPerSecond() {
+        return perSecond(mCompletedOperations);
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return perSecond(mBytesWritten);
+    }
+
+    private double perSecond(long count) {
+        long elapsedNanos = mLastCompletedTimeNanos - mStartTimeNanos;
+        if (count == 0 || elapsedNanos <= 0) {
+            return 0;
+        }
+        return count * (double) NANOS_PER_SECOND / elapsedNanos;
+    }
+
+    public synchronized String getStats() {
+        return String.format("Queue depth: %d, completed: %d, failed: %d, %.1f ops/sec, %.0f bytes/sec",
+                getQueueDepth(),
+                mCompletedOperations,
+                mFailedOperations,
+                getOperationsPerSecond(),
+                getBytesPerSecond());
+    }
+}
@@ -1,22 +1,29 @@
 package com.bignerdranch.android.bluetoothtestbed.client;
 
-import android.bluetooth.BluetoothDevice;
 import android.databinding.BaseObservable;
 import android.databinding.Bindable;
 
 public class GattServerViewModel extends BaseObservable {
 
-    private BluetoothDevice mBluetoothDevice;
+    private ScanEntry mScanEntry;
 
-    public GattServerViewModel(BluetoothDevice bluetoothDevice) {
-        mBluetoothDevice = bluetoothDevice;
+    public GattServerViewModel(ScanEntry scanEntry) {
+        mScanEntry = scanEntry;
     }
 
     @Bindable
     public String getServerName() {
-        if (mBluetoothDevice == null) {
+        if (mScanEntry == null) {
             return "";
         }
-        return mBluetoothDevice.getAddress();
+        return mScanEntry.getAddress();
+    }
+
+    @Bindable
+    public String getSignal() {
+        if (mScanEntry == null) {
+            return "";
+        }
+        return mScanEntry.getRssi() + " dBm, seen at " + mScanEntry.getLastSeenSeconds() + " s";
     }
 }
@@ -0,0 +1,22 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+public class ReadCharacteristicOperation extends GattOperation {
+
+    private BluetoothGattCharacteristic mCharacteristic;
+
+    public ReadCharacteristicOperation(BluetoothGattCharacteristic characteristic) {
+        mCharacteristic = characteristic;
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_READ_CHARACTERISTIC;
+    }
+
+    @Override
+    public boolean execute(GattConnection connection) {
+        return connection.readCharacteristic(mCharacteristic);
+    }
+}
@@ -0,0 +1,20 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+public class RequestMtuOperation extends GattOperation {
+
+    private int mMtu;
+
+    public RequestMtuOperation(int mtu) {
+        mMtu = mtu;
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_REQUEST_MTU;
+    }
+
+    @Override
+    public boolean execute(GattConnection connection) {
+        return connection.requestMtu(mMtu);
+    }
+}
@@ -0,0 +1,51 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * A snapshot of one scanned server, as shown in the list. Immutable, so the list can diff
+ * old and new snapshots.
+ */
+public class ScanEntry {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final String mAddress;
+    private final BluetoothDevice mDevice;
+    private final int mRssi;
+    private final long mLastSeenSeconds;
+
+    ScanEntry(String address, BluetoothDevice device, int rssi, long lastSeenNanos) {
+        mAddress = address;
+        mDevice = device;
+        mRssi = rssi;
+        mLastSeenSeconds = lastSeenNanos / NANOS_PER_SECOND;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    // Smoothed, in dBm
+    public int getRssi() {
+        return mRssi;
+    }
+
+    // Since the scan started
+    public long getLastSeenSeconds() {
+        return mLastSeenSeconds;
+    }
+
+    public boolean isSameDevice(ScanEntry other) {
+        return mAddress.equals(other.mAddress);
+    }
+
+    // Same as far as the row is concerned
+    public boolean hasSameContents(ScanEntry other) {
+        return mRssi == other.mRssi && mLastSeenSeconds == other.mLastSeenSeconds;
+    }
+}
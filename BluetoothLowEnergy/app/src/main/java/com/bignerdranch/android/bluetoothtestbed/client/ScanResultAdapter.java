@@ -0,0 +1,110 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothDevice;
+import android.databinding.DataBindingUtil;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+
+import com.bignerdranch.android.bluetoothtestbed.R;
+import com.bignerdranch.android.bluetoothtestbed.databinding.ViewGattServerBinding;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scanned servers. Each new snapshot is diffed against the last one, so only rows whose
+ * device is new or whose RSSI or last seen time changed are rebound.
+ */
+public class ScanResultAdapter extends RecyclerView.Adapter<ScanResultAdapter.ViewHolder> {
+
+    public interface OnConnectListener {
+        void onConnect(BluetoothDevice device);
+    }
+
+    private final OnConnectListener mOnConnectListener;
+    private List<ScanEntry> mEntries = Collections.emptyList();
+
+    public ScanResultAdapter(OnConnectListener onConnectListener) {
+        mOnConnectListener = onConnectListener;
+    }
+
+    public void setEntries(List<ScanEntry> entries) {
+        // Devices keep their place in the list, so there are no moves to look for
+        DiffUtil.DiffResult diffResult = DiffUtil.calculateDiff(new EntryDiff(mEntries, entries), false);
+        mEntries = entries;
+        diffResult.dispatchUpdatesTo(this);
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        ViewGattServerBinding binding = DataBindingUtil.inflate(LayoutInflater.from(parent.getContext()),
+                R.layout.view_gatt_server,
+                parent,
+                false);
+        ViewHolder holder = new ViewHolder(binding);
+        binding.connectGattServerButton.setOnClickListener(v -> {
+            int position = holder.getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mOnConnectListener.onConnect(mEntries.get(position).getDevice());
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        holder.mBinding.setViewModel(new GattServerViewModel(mEntries.get(position)));
+        holder.mBinding.executePendingBindings();
+    }
+
+    @Override
+    public int getItemCount() {
+        return mEntries.size();
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+
+        private final ViewGattServerBinding mBinding;
+
+        ViewHolder(ViewGattServerBinding binding) {
+            super(binding.getRoot());
+            mBinding = binding;
+        }
+    }
+
+    private static class EntryDiff extends DiffUtil.Callback {
+
+        private final List<ScanEntry> mOldEntries;
+        private final List<ScanEntry> mNewEntries;
+
+        EntryDiff(List<ScanEntry> oldEntries, List<ScanEntry> newEntries) {
+            mOldEntries = oldEntries;
+            mNewEntries = newEntries;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldEntries.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewEntries.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldEntries.get(oldItemPosition).isSameDevice(mNewEntries.get(newItemPosition));
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            ScanEntry oldEntry = mOldEntries.get(oldItemPosition);
+            ScanEntry newEntry = mNewEntries.get(newItemPosition);
+            // Unchanged devices keep the same entry from one snapshot to the next
+            return oldEntry == newEntry || oldEntry.hasSameContents(newEntry);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scan results, one per address, in the order devices were first seen. RSSI is smoothed
+ * across advertisements, since single readings jump around by several dBm.
+ *
+ * Results are added as they arrive and read at most once per frame. Entries are only
+ * rebuilt for devices that were seen again since the last read.
+ */
+public class ScanResultStore {
+
+    // Weight of the newest RSSI reading
+    private static final double RSSI_SMOOTHING = 0.25;
+
+    private final Map<String, Record> mRecords = new LinkedHashMap<>();
+
+    private long mStartNanos;
+    private boolean mChanged;
+
+    // Timestamps are relative to this, normally the time the scan started
+    public synchronized void clear(long startNanos) {
+        mRecords.clear();
+        mStartNanos = startNanos;
+        mChanged = true;
+    }
+
+    // Returns true if the device is new
+    public synchronized boolean update(String address, BluetoothDevice device, int rssi, long timestampNanos) {
+        Record record = mRecords.get(address);
+        boolean isNew = record == null;
+        if (isNew) {
+            record = new Record(device, rssi);
+            mRecords.put(address, record);
+        } else {
+            record.mRssi += RSSI_SMOOTHING * (rssi - record.mRssi);
+        }
+        record.mLastSeenNanos = Math.max(0, timestampNanos - mStartNanos);
+        record.mEntry = null;
+        mChanged = true;
+        return isNew;
+    }
+
+    // Returns null if nothing changed since the last call
+    @Nullable
+    public synchronized List<ScanEntry> snapshot() {
+        if (!mChanged) {
+            return null;
+        }
+
+        List<ScanEntry> entries = new ArrayList<>(mRecords.size());
+        for (Map.Entry<String, Record> mapEntry : mRecords.entrySet()) {
+            Record record = mapEntry.getValue();
+            if (record.mEntry == null) {
+                record.mEntry = new ScanEntry(mapEntry.getKey(),
+                        record.mDevice,
+                        (int) Math.round(record.mRssi),
+                        record.mLastSeenNanos);
+            }
+            entries.add(record.mEntry);
+        }
+        mChanged = false;
+        return entries;
+    }
+
+    public synchronized int size() {
+        return mRecords.size();
+    }
+
+    private static class Record {
+
+        private final BluetoothDevice mDevice;
+        private double mRssi;
+        private long mLastSeenNanos;
+        // Reused by snapshots until the device is seen again
+        private ScanEntry mEntry;
+
+        private Record(BluetoothDevice device, int rssi) {
+            mDevice = device;
+            mRssi = rssi;
+        }
+    }
+}
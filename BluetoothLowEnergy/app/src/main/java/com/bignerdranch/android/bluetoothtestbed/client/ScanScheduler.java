@@ -0,0 +1,204 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import com.bignerdranch.android.bluetoothtestbed.log.Logger;
+
+/**
+ * Runs a scan in two phases. It starts in low latency mode, and once no new servers have
+ * turned up for a while it drops to low power mode, with results batched in the controller
+ * where supported. Every start goes through the ScanThrottle, so a start the system would
+ * ignore is delayed instead.
+ *
+ * Driven from the main thread: start and onTick return when the next tick is due.
+ */
+public class ScanScheduler {
+
+    public static final int PHASE_IDLE = 0;
+    // Throttled, waiting to start
+    public static final int PHASE_WAITING = 1;
+    public static final int PHASE_LOW_LATENCY = 2;
+    public static final int PHASE_BATCHED = 3;
+
+    public static final long NO_TICK = -1;
+
+    // Low latency scanning stops once this long passes without a new server
+    private static final long SETTLE_MILLIS = 2000;
+    private static final long BATCH_REPORT_DELAY_MILLIS = 1000;
+
+    private final Scanner mScanner;
+    private final ScanThrottle mThrottle;
+    private final Logger mLogger;
+    private final boolean mBatchingSupported;
+
+    private int mPhase = PHASE_IDLE;
+    private long mStartMillis;
+    private long mEndMillis;
+    private long mPhaseStartMillis;
+    private long mReportDelayMillis;
+    private long mLastNewDeviceMillis;
+
+    // Metrics of the current or last scan
+    private int mScanStarts;
+    private int mThrottledStarts;
+    private int mCallbacks;
+    private int mResults;
+    private int mDevices;
+    private long mFirstDeviceMillis;
+    private long mStopMillis;
+
+    public ScanScheduler(Scanner scanner, ScanThrottle throttle, Logger logger, boolean batchingSupported) {
+        mScanner = scanner;
+        mThrottle = throttle;
+        mLogger = logger;
+        mBatchingSupported = batchingSupported;
+    }
+
+    public int getPhase() {
+        return mPhase;
+    }
+
+    // Returns the delay until the first tick
+    public long start(long nowMillis, long durationMillis) {
+        stop(nowMillis);
+
+        mStartMillis = nowMillis;
+        mEndMillis = nowMillis + durationMillis;
+        mLastNewDeviceMillis = 0;
+        mScanStarts = 0;
+        mThrottledStarts = 0;
+        mCallbacks = 0;
+        mResults = 0;
+        mDevices = 0;
+        mFirstDeviceMillis = 0;
+        mStopMillis = 0;
+
+        mPhase = PHASE_WAITING;
+        return onTick(nowMillis);
+    }
+
+    public void stop(long nowMillis) {
+        if (mPhase == PHASE_LOW_LATENCY || mPhase == PHASE_BATCHED) {
+            stopScan();
+        }
+        if (mPhase != PHASE_IDLE) {
+            mStopMillis = nowMillis;
+        }
+        mPhase = PHASE_IDLE;
+    }
+
+    // Returns the delay until the next tick, or NO_TICK once the scan is over
+    public long onTick(long nowMillis) {
+        if (mPhase == PHASE_IDLE) {
+            return NO_TICK;
+        }
+        if (nowMillis >= mEndMillis) {
+            stop(nowMillis);
+            return NO_TICK;
+        }
+
+        long delay = mThrottle.getDelayUntilStart(nowMillis);
+        switch (mPhase) {
+            case PHASE_WAITING:
+                if (delay > 0) {
+                    if (mThrottledStarts++ == 0) {
+                        mLogger.log("Too many scans recently, starting in " + delay + " ms");
+                    }
+                    return Math.min(delay, mEndMillis - nowMillis);
+                }
+                startPhase(PHASE_LOW_LATENCY, nowMillis);
+                return SETTLE_MILLIS;
+
+            case PHASE_LOW_LATENCY:
+                long settledMillis = Math.max(mLastNewDeviceMillis, mPhaseStartMillis) + SETTLE_MILLIS;
+                if (nowMillis < settledMillis) {
+                    return settledMillis - nowMillis;
+                }
+                // Still scanning meanwhile, so there is no harm in waiting for the throttle
+                if (delay > 0) {
+                    mThrottledStarts++;
+                    return Math.min(delay, mEndMillis - nowMillis);
+                }
+                stopScan();
+                startPhase(PHASE_BATCHED, nowMillis);
+                mLogger.log("Found " + mDevices + " servers, switched to low power scanning");
+                return mEndMillis - nowMillis;
+
+            default:
+                return mEndMillis - nowMillis;
+        }
+    }
+
+    private void startPhase(int phase, long nowMillis) {
+        boolean lowLatency = phase == PHASE_LOW_LATENCY;
+        long reportDelayMillis = !lowLatency && mBatchingSupported ? BATCH_REPORT_DELAY_MILLIS : 0;
+        mScanner.startScan(lowLatency, reportDelayMillis);
+        mReportDelayMillis = reportDelayMillis;
+        mThrottle.recordStart(nowMillis);
+        mScanStarts++;
+        mPhase = phase;
+        mPhaseStartMillis = nowMillis;
+    }
+
+    // Results batched in the controller would be lost by stopping without a flush
+    private void stopScan() {
+        if (mReportDelayMillis > 0) {
+            mScanner.flushPendingScanResults();
+        }
+        mScanner.stopScan();
+    }
+
+    // Called once per scan callback, with the results it delivered
+    public void onScanResults(int results, int newDevices, long nowMillis) {
+        mCallbacks++;
+        mResults += results;
+        if (newDevices > 0) {
+            if (mDevices == 0) {
+                mFirstDeviceMillis = nowMillis;
+            }
+            mDevices += newDevices;
+            mLastNewDeviceMillis = nowMillis;
+        }
+    }
+
+    // Metrics
+
+    public int getScanStarts() {
+        return mScanStarts;
+    }
+
+    public int getThrottledStarts() {
+        return mThrottledStarts;
+    }
+
+    public int getCallbacks() {
+        return mCallbacks;
+    }
+
+    public int getResults() {
+        return mResults;
+    }
+
+    public int getDevices() {
+        return mDevices;
+    }
+
+    // New servers per second since the scan started
+    public double getDiscoveryRate(long nowMillis) {
+        long elapsedMillis = (mPhase == PHASE_IDLE ? mStopMillis : nowMillis) - mStartMillis;
+        if (elapsedMillis <= 0) {
+            return 0;
+        }
+        return mDevices * 1000.0 / elapsedMillis;
+    }
+
+    public String getReport(long nowMillis) {
+        return String.format("Scan: %d servers, %.2f/sec, first after %s, "
+                        + "%d results in %d callbacks, %d starts, %d throttled",
+                mDevices,
+                getDiscoveryRate(nowMillis),
+                mDevices == 0 ? "-" : (mFirstDeviceMillis - mStartMillis) + " ms",
+                mResults,
+                mCallbacks,
+                mScanStarts,
+                mThrottledStarts);
+    }
+}
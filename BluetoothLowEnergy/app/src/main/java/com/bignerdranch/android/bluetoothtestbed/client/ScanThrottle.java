@@ -0,0 +1,32 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+/**
+ * Keeps scan starts under the system limit. Since Android 7.0 an app that starts more than
+ * five scans in 30 seconds has further starts ignored, without an error.
+ */
+public class ScanThrottle {
+
+    private static final int MAX_STARTS = 5;
+    // A little longer than the system's window, our clock and the system's are not in step
+    private static final long WINDOW_MILLIS = 31000;
+
+    // Start times of the last MAX_STARTS scans, oldest first once full
+    private final long[] mStarts = new long[MAX_STARTS];
+    private int mCount;
+    private int mNext;
+
+    // Returns 0 if a scan can be started now
+    public long getDelayUntilStart(long nowMillis) {
+        if (mCount < MAX_STARTS) {
+            return 0;
+        }
+        // mNext is the oldest of the last MAX_STARTS starts
+        return Math.max(0, mStarts[mNext] + WINDOW_MILLIS - nowMillis);
+    }
+
+    public void recordStart(long nowMillis) {
+        mStarts[mNext] = nowMillis;
+        mNext = (mNext + 1) % MAX_STARTS;
+        mCount = Math.min(mCount + 1, MAX_STARTS);
+    }
+}
@@ -0,0 +1,16 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+/**
+ * The subset of BluetoothLeScanner used by the ScanScheduler, so scheduling can be driven by
+ * a fake scanner on the JVM.
+ */
+public interface Scanner {
+
+    // A report delay of 0 delivers every result as it arrives
+    void startScan(boolean lowLatency, long reportDelayMillis);
+
+    // Delivers the results the controller is holding for a batched scan
+    void flushPendingScanResults();
+
+    void stopScan();
+}
@@ -0,0 +1,42 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+public class WriteCharacteristicOperation extends GattOperation {
+
+    private BluetoothGattCharacteristic mCharacteristic;
+    private byte[] mValue;
+    private int mWriteType;
+
+    public WriteCharacteristicOperation(BluetoothGattCharacteristic characteristic, byte[] value) {
+        this(characteristic, value, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    }
+
+    public WriteCharacteristicOperation(BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+        mCharacteristic = characteristic;
+        mValue = value;
+        mWriteType = writeType;
+    }
+
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    @Override
+    public int getPayloadSize() {
+        return mValue.length;
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_WRITE_CHARACTERISTIC;
+    }
+
+    @Override
+    public boolean execute(GattConnection connection) {
+        // The characteristic is shared, so only set its value once it is our turn to write
+        mCharacteristic.setValue(mValue);
+        mCharacteristic.setWriteType(mWriteType);
+        return connection.writeCharacteristic(mCharacteristic);
+    }
+}
@@ -0,0 +1,25 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothGattDescriptor;
+
+public class WriteDescriptorOperation extends GattOperation {
+
+    private BluetoothGattDescriptor mDescriptor;
+    private byte[] mValue;
+
+    public WriteDescriptorOperation(BluetoothGattDescriptor descriptor, byte[] value) {
+        mDescriptor = descriptor;
+        mValue = value;
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_WRITE_DESCRIPTOR;
+    }
+
+    @Override
+    public boolean execute(GattConnection connection) {
+        mDescriptor.setValue(mValue);
+        return connection.writeDescriptor(mDescriptor);
+    }
+}
@@ -0,0 +1,63 @@
+package com.bignerdranch.android.bluetoothtestbed.log;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Passes lines on to whichever logger is attached, so something that outlives the screen
+ * showing its log can log to it while it is shown. With nothing attached, messages only go to
+ * logcat, without their payloads.
+ */
+public class ForwardingLogger implements Logger {
+
+    private final String mTag;
+    private volatile Logger mTarget;
+
+    public ForwardingLogger(String tag) {
+        mTag = tag;
+    }
+
+    public void setTarget(@Nullable Logger target) {
+        mTarget = target;
+    }
+
+    @Override
+    public void log(String message) {
+        Logger target = mTarget;
+        if (target != null) {
+            target.log(message);
+        } else {
+            Log.d(mTag, message);
+        }
+    }
+
+    @Override
+    public void log(String message, Object detail) {
+        Logger target = mTarget;
+        if (target != null) {
+            target.log(message, detail);
+        } else {
+            Log.d(mTag, message + detail);
+        }
+    }
+
+    @Override
+    public void logHex(String message, byte[] payload) {
+        Logger target = mTarget;
+        if (target != null) {
+            target.logHex(message, payload);
+        } else {
+            Log.d(mTag, message);
+        }
+    }
+
+    @Override
+    public void logUtf8(String message, byte[] payload) {
+        Logger target = mTarget;
+        if (target != null) {
+            target.logUtf8(message, payload);
+        } else {
+            Log.d(mTag, message);
+        }
+    }
+}
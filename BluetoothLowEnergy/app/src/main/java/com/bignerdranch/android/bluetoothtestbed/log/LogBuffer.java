@@ -0,0 +1,104 @@
+package com.bignerdranch.android.bluetoothtestbed.log;
+
+import java.util.List;
+
+/**
+ * Fixed size ring buffer of log events. Once full, the oldest event is overwritten, and events
+ * overwritten before anyone read them are counted as dropped.
+ *
+ * Events are appended from any thread and read in batches by the UI. Appending reuses
+ * preallocated slots, and text is only built for events that are still around to be read.
+ */
+public class LogBuffer {
+
+    private final LogEvent[] mEvents;
+    private final StringBuilder mRenderBuilder = new StringBuilder();
+    private char[] mCharBuffer = new char[0];
+
+    private long mWritten;
+    // Events appended since the last snapshot
+    private int mUnread;
+    private long mDroppedLines;
+    private boolean mChanged;
+
+    public LogBuffer(int capacity) {
+        mEvents = new LogEvent[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mEvents[i] = new LogEvent();
+        }
+    }
+
+    public synchronized void append(String message) {
+        next().set(message, null, null, LogEvent.FORMAT_NONE);
+    }
+
+    // The detail is only converted to a string when the line is read
+    public synchronized void append(String message, Object detail) {
+        next().set(message, detail, null, LogEvent.FORMAT_NONE);
+    }
+
+    // The payload is copied, and only formatted as hex when the line is read
+    public synchronized void appendHex(String message, byte[] payload) {
+        next().set(message, null, payload, LogEvent.FORMAT_HEX);
+    }
+
+    // The payload is copied, and only decoded as UTF-8 when the line is read
+    public synchronized void appendUtf8(String message, byte[] payload) {
+        next().set(message, null, payload, LogEvent.FORMAT_UTF8);
+    }
+
+    private LogEvent next() {
+        int capacity = mEvents.length;
+        if (mUnread == capacity) {
+            // Overwriting an event that was never read
+            mDroppedLines++;
+        } else {
+            mUnread++;
+        }
+        LogEvent event = mEvents[(int) (mWritten % capacity)];
+        mWritten++;
+        mChanged = true;
+        return event;
+    }
+
+    // Copies every line still held, oldest first, and marks them read. The newly read
+    // lines are the last ones in the list. Returns how many there are, or -1 if nothing
+    // changed since the last call.
+    public synchronized int snapshot(List<String> lines) {
+        if (!mChanged) {
+            return -1;
+        }
+
+        lines.clear();
+        int capacity = mEvents.length;
+        long start = Math.max(0, mWritten - capacity);
+        for (long i = start; i < mWritten; i++) {
+            lines.add(render(mEvents[(int) (i % capacity)]));
+        }
+        int unread = mUnread;
+        mUnread = 0;
+        mChanged = false;
+        return unread;
+    }
+
+    private String render(LogEvent event) {
+        if (mCharBuffer.length < event.getPayloadLength()) {
+            mCharBuffer = new char[event.getPayloadLength()];
+        }
+        return event.render(mRenderBuilder, mCharBuffer);
+    }
+
+    public synchronized long getDroppedLines() {
+        return mDroppedLines;
+    }
+
+    public synchronized void clear() {
+        for (LogEvent event : mEvents) {
+            event.clear();
+        }
+        mWritten = 0;
+        mUnread = 0;
+        mDroppedLines = 0;
+        mChanged = true;
+    }
+}
@@ -0,0 +1,108 @@
+package com.bignerdranch.android.bluetoothtestbed.log;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.View;
+import android.widget.ArrayAdapter;
+
+import com.bignerdranch.android.bluetoothtestbed.R;
+import com.bignerdranch.android.bluetoothtestbed.databinding.ViewLogBinding;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shows log lines in a view_log layout. Lines are collected in a LogBuffer from any thread
+ * and copied to the list at most once per frame, however fast they arrive.
+ *
+ * Lines are formatted, and written to logcat, when they are flushed to the list. Lines
+ * dropped because producers outran the UI never reach logcat either.
+ */
+public class LogController implements Logger {
+
+    private static final int MAX_LINES = 500;
+
+    private final String mTag;
+    private final Context mContext;
+    private final ViewLogBinding mBinding;
+    private final LogBuffer mBuffer = new LogBuffer(MAX_LINES);
+    private final List<String> mLines = new ArrayList<>();
+    private final ArrayAdapter<String> mAdapter;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private final Choreographer.FrameCallback mFlushCallback = frameTimeNanos -> flush();
+
+    public LogController(Context context, String tag, ViewLogBinding binding) {
+        mTag = tag;
+        mContext = context;
+        mBinding = binding;
+        mAdapter = new ArrayAdapter<>(context, R.layout.view_log_line, mLines);
+        mBinding.logListView.setAdapter(mAdapter);
+    }
+
+    @Override
+    public void log(String msg) {
+        mBuffer.append(msg);
+        scheduleFlush();
+    }
+
+    @Override
+    public void log(String msg, Object detail) {
+        mBuffer.append(msg, detail);
+        scheduleFlush();
+    }
+
+    @Override
+    public void logHex(String msg, byte[] payload) {
+        mBuffer.appendHex(msg, payload);
+        scheduleFlush();
+    }
+
+    @Override
+    public void logUtf8(String msg, byte[] payload) {
+        mBuffer.appendUtf8(msg, payload);
+        scheduleFlush();
+    }
+
+    public void clear() {
+        mBuffer.clear();
+        scheduleFlush();
+    }
+
+    public long getDroppedLines() {
+        return mBuffer.getDroppedLines();
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            // Choreographer is per looper, so the frame callback has to be posted from the main thread
+            mMainHandler.post(() -> Choreographer.getInstance().postFrameCallback(mFlushCallback));
+        }
+    }
+
+    private void flush() {
+        mFlushScheduled.set(false);
+        int newLines = mBuffer.snapshot(mLines);
+        if (newLines < 0) {
+            return;
+        }
+        mAdapter.notifyDataSetChanged();
+
+        for (int i = mLines.size() - newLines; i < mLines.size(); i++) {
+            Log.d(mTag, mLines.get(i));
+        }
+
+        long droppedLines = mBuffer.getDroppedLines();
+        if (droppedLines > 0) {
+            mBinding.logDroppedTextView.setText(mContext.getString(R.string.dropped_lines, droppedLines));
+            mBinding.logDroppedTextView.setVisibility(View.VISIBLE);
+        } else {
+            mBinding.logDroppedTextView.setVisibility(View.GONE);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.bignerdranch.android.bluetoothtestbed.log;
+
+import com.bignerdranch.android.bluetoothtestbed.util.StringUtils;
+
+/**
+ * A reusable slot in the LogBuffer. Producers only copy references and payload bytes in,
+ * the text is built the first time the line is shown.
+ */
+class LogEvent {
+
+    static final int FORMAT_NONE = 0;
+    static final int FORMAT_HEX = 1;
+    static final int FORMAT_UTF8 = 2;
+
+    private String mMessage;
+    private Object mDetail;
+    private byte[] mPayload = new byte[0];
+    private int mPayloadLength;
+    private int mFormat;
+    private String mRendered;
+
+    void set(String message, Object detail, byte[] payload, int format) {
+        mMessage = message;
+        mDetail = detail;
+        mFormat = payload == null ? FORMAT_NONE : format;
+        mRendered = null;
+
+        if (mFormat == FORMAT_NONE) {
+            mPayloadLength = 0;
+            return;
+        }
+        // The caller may reuse its array, so keep a copy. The slot's array only grows.
+        if (mPayload.length < payload.length) {
+            mPayload = new byte[payload.length];
+        }
+        System.arraycopy(payload, 0, mPayload, 0, payload.length);
+        mPayloadLength = payload.length;
+    }
+
+    int getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    String render(StringBuilder builder, char[] charBuffer) {
+        if (mRendered != null) {
+            return mRendered;
+        }
+
+        builder.setLength(0);
+        builder.append(mMessage);
+        if (mDetail != null) {
+            builder.append(mDetail);
+        }
+        if (mFormat == FORMAT_HEX) {
+            StringUtils.appendHexFormat(mPayload, mPayloadLength, builder);
+        } else if (mFormat == FORMAT_UTF8) {
+            int length = StringUtils.decodeUtf8(mPayload, 0, mPayloadLength, charBuffer);
+            builder.append(charBuffer, 0, length);
+        }
+        mRendered = builder.toString();
+        return mRendered;
+    }
+
+    void clear() {
+        mMessage = null;
+        mDetail = null;
+        mPayloadLength = 0;
+        mRendered = null;
+    }
+}
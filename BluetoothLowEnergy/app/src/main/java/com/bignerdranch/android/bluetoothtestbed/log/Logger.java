@@ -0,0 +1,15 @@
+package com.bignerdranch.android.bluetoothtestbed.log;
+
+/**
+ * Where log lines go. Formatting of details and payloads is deferred until a line is shown.
+ */
+public interface Logger {
+
+    void log(String message);
+
+    void log(String message, Object detail);
+
+    void logHex(String message, byte[] payload);
+
+    void logUtf8(String message, byte[] payload);
+}
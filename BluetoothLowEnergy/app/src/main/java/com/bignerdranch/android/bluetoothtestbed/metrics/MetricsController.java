@@ -0,0 +1,72 @@
+package com.bignerdranch.android.bluetoothtestbed.metrics;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.view.View;
+
+import com.bignerdranch.android.bluetoothtestbed.databinding.ViewMetricsBinding;
+
+/**
+ * Shows a registry's metrics in a view_metrics layout. The report is refreshed from a fresh
+ * snapshot twice a second while the panel is open and the activity is resumed, and not at
+ * all otherwise, so an unused panel costs nothing. The panel stays empty until it has a registry.
+ */
+public class MetricsController {
+
+    private static final long REFRESH_INTERVAL_MILLIS = 500;
+
+    private MetricsRegistry mMetrics;
+    private final ViewMetricsBinding mBinding;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mRefreshRunnable = this::refresh;
+
+    private boolean mResumed;
+
+    public MetricsController(ViewMetricsBinding binding, @Nullable MetricsRegistry metrics) {
+        mBinding = binding;
+        mMetrics = metrics;
+        mBinding.toggleMetricsButton.setOnClickListener(v -> toggle());
+    }
+
+    public void setMetrics(@Nullable MetricsRegistry metrics) {
+        mMetrics = metrics;
+        if (mResumed && isShown()) {
+            refresh();
+        }
+    }
+
+    public void onResume() {
+        mResumed = true;
+        if (isShown()) {
+            refresh();
+        }
+    }
+
+    public void onPause() {
+        mResumed = false;
+        mMainHandler.removeCallbacks(mRefreshRunnable);
+    }
+
+    private boolean isShown() {
+        return mBinding.metricsScrollView.getVisibility() == View.VISIBLE;
+    }
+
+    private void toggle() {
+        if (isShown()) {
+            mBinding.metricsScrollView.setVisibility(View.GONE);
+            mMainHandler.removeCallbacks(mRefreshRunnable);
+        } else {
+            mBinding.metricsScrollView.setVisibility(View.VISIBLE);
+            if (mResumed) {
+                refresh();
+            }
+        }
+    }
+
+    private void refresh() {
+        mMainHandler.removeCallbacks(mRefreshRunnable);
+        mBinding.metricsTextView.setText(mMetrics == null ? "" : mMetrics.snapshot().getReport());
+        mMainHandler.postDelayed(mRefreshRunnable, REFRESH_INTERVAL_MILLIS);
+    }
+}
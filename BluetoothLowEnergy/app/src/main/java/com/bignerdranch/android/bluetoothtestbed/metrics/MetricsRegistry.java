@@ -0,0 +1,65 @@
+package com.bignerdranch.android.bluetoothtestbed.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Named counters and histograms for one side of the testbed. Metrics are looked up once, when
+ * the class recording them is created, and held on to, so recording never touches the
+ * registry. Asking for a name twice returns the same metric.
+ */
+public class MetricsRegistry {
+
+    // Sorted, so snapshots list related names together
+    private final Map<String, StripedCounter> mCounters = new TreeMap<>();
+    private final Map<String, StripedHistogram> mHistograms = new TreeMap<>();
+
+    public synchronized StripedCounter counter(String name) {
+        StripedCounter counter = mCounters.get(name);
+        if (counter == null) {
+            counter = new StripedCounter();
+            mCounters.put(name, counter);
+        }
+        return counter;
+    }
+
+    // Durations in nanoseconds
+    public StripedHistogram latency(String name) {
+        return histogram(name, true);
+    }
+
+    // Sizes and other plain values
+    public StripedHistogram histogram(String name) {
+        return histogram(name, false);
+    }
+
+    private synchronized StripedHistogram histogram(String name, boolean nanos) {
+        StripedHistogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            histogram = new StripedHistogram(nanos);
+            mHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    public synchronized MetricsSnapshot snapshot() {
+        MetricsSnapshot snapshot = new MetricsSnapshot();
+        for (Map.Entry<String, StripedCounter> entry : mCounters.entrySet()) {
+            snapshot.putCounter(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, StripedHistogram> entry : mHistograms.entrySet()) {
+            StripedHistogram histogram = entry.getValue();
+            snapshot.putHistogram(entry.getKey(), histogram.snapshot(), histogram.isNanos());
+        }
+        return snapshot;
+    }
+
+    public synchronized void reset() {
+        for (StripedCounter counter : mCounters.values()) {
+            counter.reset();
+        }
+        for (StripedHistogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+    }
+}
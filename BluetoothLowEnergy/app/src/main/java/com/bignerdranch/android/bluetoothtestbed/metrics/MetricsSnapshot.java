@@ -0,0 +1,105 @@
+package com.bignerdranch.android.bluetoothtestbed.metrics;
+
+import android.support.annotation.Nullable;
+
+import com.bignerdranch.android.bluetoothtestbed.util.LatencyHistogram;
+import com.bignerdranch.android.bluetoothtestbed.util.StringUtils;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The values of every metric in a registry at one moment. Shown as a report in the debug
+ * panel, and as a compact value in the server's stats characteristic.
+ */
+public class MetricsSnapshot {
+
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    private final Map<String, Long> mCounters = new TreeMap<>();
+    private final Map<String, LatencyHistogram> mHistograms = new TreeMap<>();
+    private final Map<String, Boolean> mNanos = new TreeMap<>();
+
+    void putCounter(String name, long value) {
+        mCounters.put(name, value);
+    }
+
+    void putHistogram(String name, LatencyHistogram histogram, boolean nanos) {
+        mHistograms.put(name, histogram);
+        mNanos.put(name, nanos);
+    }
+
+    // 0 for counters never registered
+    public long getCounter(String name) {
+        Long value = mCounters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    @Nullable
+    public LatencyHistogram getHistogram(String name) {
+        return mHistograms.get(name);
+    }
+
+    // One metric per line, durations in microseconds
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Long> entry : mCounters.entrySet()) {
+            report.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            String unit = mNanos.get(entry.getKey()) ? " us" : "";
+            report.append(String.format(Locale.US, "%s n %d, p50 %s, p99 %s, max %s%s\n",
+                    entry.getKey(),
+                    histogram.getCount(),
+                    format(entry.getKey(), histogram.getValueAtPercentile(50)),
+                    format(entry.getKey(), histogram.getValueAtPercentile(99)),
+                    format(entry.getKey(), histogram.getMax()),
+                    unit));
+        }
+        return report.toString();
+    }
+
+    // "name=value" and "name=count,p50,p99,max" lines, durations in whole microseconds.
+    // Metrics still at zero are left out, and lines that would not fit in maxLength are dropped
+    public byte[] toValue(int maxLength) {
+        StringBuilder value = new StringBuilder();
+        for (Map.Entry<String, Long> entry : mCounters.entrySet()) {
+            if (entry.getValue() != 0) {
+                appendLine(value, entry.getKey() + "=" + entry.getValue(), maxLength);
+            }
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            boolean nanos = mNanos.get(entry.getKey());
+            appendLine(value, entry.getKey() + "="
+                    + histogram.getCount() + ","
+                    + scale(histogram.getValueAtPercentile(50), nanos) + ","
+                    + scale(histogram.getValueAtPercentile(99), nanos) + ","
+                    + scale(histogram.getMax(), nanos), maxLength);
+        }
+        return StringUtils.bytesFromString(value.toString());
+    }
+
+    // Names and numbers are ASCII, so characters are bytes
+    private static void appendLine(StringBuilder value, String line, int maxLength) {
+        if (value.length() + line.length() + 1 <= maxLength) {
+            value.append(line).append('\n');
+        }
+    }
+
+    private String format(String name, long value) {
+        if (mNanos.get(name)) {
+            return String.format(Locale.US, "%.1f", value / (double) NANOS_PER_MICRO);
+        }
+        return Long.toString(value);
+    }
+
+    private static long scale(long value, boolean nanos) {
+        return nanos ? value / NANOS_PER_MICRO : value;
+    }
+}
@@ -0,0 +1,48 @@
+package com.bignerdranch.android.bluetoothtestbed.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that binder threads can bump at the same time without fighting over one cache
+ * line. Each thread adds to a cell picked by its ID, and reads sum the cells.
+ *
+ * LongAdder does the same, but needs API 24.
+ */
+public class StripedCounter {
+
+    static final int STRIPES = 8;
+    // Longs per cache line, so neighbouring cells are never shared
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+    StripedCounter() {
+    }
+
+    public void increment() {
+        mCells.getAndIncrement(getStripe() * PADDING);
+    }
+
+    public void add(long delta) {
+        mCells.getAndAdd(getStripe() * PADDING, delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += mCells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    // Adds made while resetting may survive it
+    void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            mCells.set(i * PADDING, 0);
+        }
+    }
+
+    static int getStripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+}
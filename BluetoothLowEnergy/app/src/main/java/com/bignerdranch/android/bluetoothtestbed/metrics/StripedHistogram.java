@@ -0,0 +1,60 @@
+package com.bignerdranch.android.bluetoothtestbed.metrics;
+
+import com.bignerdranch.android.bluetoothtestbed.util.LatencyHistogram;
+
+/**
+ * A LatencyHistogram per stripe, each behind its own lock, so threads recording at the same
+ * time rarely wait for each other and never allocate. Snapshots merge the stripes.
+ */
+public class StripedHistogram {
+
+    private final LatencyHistogram[] mStripes = new LatencyHistogram[StripedCounter.STRIPES];
+    // Durations are shown in microseconds, anything else as is
+    private final boolean mNanos;
+
+    StripedHistogram(boolean nanos) {
+        mNanos = nanos;
+        for (int i = 0; i < mStripes.length; i++) {
+            mStripes[i] = new LatencyHistogram();
+        }
+    }
+
+    public void record(long value) {
+        LatencyHistogram stripe = mStripes[StripedCounter.getStripe()];
+        synchronized (stripe) {
+            stripe.record(value);
+        }
+    }
+
+    // Records the time since startNanos
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public boolean isNanos() {
+        return mNanos;
+    }
+
+    // Adds everything recorded so far to the given histogram
+    public void addTo(LatencyHistogram histogram) {
+        for (LatencyHistogram stripe : mStripes) {
+            synchronized (stripe) {
+                histogram.add(stripe);
+            }
+        }
+    }
+
+    public LatencyHistogram snapshot() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        addTo(histogram);
+        return histogram;
+    }
+
+    void reset() {
+        for (LatencyHistogram stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.DEFAULT_MTU;
+
+/**
+ * Serves reads of values longer than one packet. The client reads the first part, then asks
+ * for the rest a part at a time at increasing offsets. A read that starts at offset 0 is
+ * pinned to the snapshot current at that moment until its last part is served, so it sees
+ * one version of the value even if a new one is published meanwhile.
+ *
+ * Snapshots are never modified once published, so parts are sliced straight out of them.
+ * Only touched from the binder thread, like the rest of GattServerCallback's state.
+ */
+public class BlobReader {
+
+    private final Map<String, DeviceReads> mDevices = new HashMap<>();
+
+    public void setMtu(String deviceAddress, int mtu) {
+        getDeviceReads(deviceAddress).mMtu = mtu;
+    }
+
+    public void removeDevice(String deviceAddress) {
+        mDevices.remove(deviceAddress);
+    }
+
+    // Returns the part to respond with, or null if the offset is past the end of the value
+    @Nullable
+    public byte[] read(String deviceAddress, UUID characteristicUuid, int offset, byte[] snapshot) {
+        DeviceReads deviceReads = getDeviceReads(deviceAddress);
+        byte[] value = snapshot;
+        if (offset == 0) {
+            deviceReads.mPinned.remove(characteristicUuid);
+        } else {
+            byte[] pinned = deviceReads.mPinned.get(characteristicUuid);
+            if (pinned != null) {
+                value = pinned;
+            }
+        }
+
+        if (offset < 0 || offset > value.length) {
+            deviceReads.mPinned.remove(characteristicUuid);
+            return null;
+        }
+
+        // A read response carries up to ATT_MTU - 1 bytes of the value, and the client reads
+        // on while the parts come back full
+        int maxPartLength = deviceReads.mMtu - 1;
+        int end = Math.min(value.length, offset + maxPartLength);
+        if (end - offset == maxPartLength) {
+            deviceReads.mPinned.put(characteristicUuid, value);
+        } else {
+            deviceReads.mPinned.remove(characteristicUuid);
+        }
+        return Arrays.copyOfRange(value, offset, end);
+    }
+
+    private DeviceReads getDeviceReads(String deviceAddress) {
+        DeviceReads deviceReads = mDevices.get(deviceAddress);
+        if (deviceReads == null) {
+            deviceReads = new DeviceReads();
+            mDevices.put(deviceAddress, deviceReads);
+        }
+        return deviceReads;
+    }
+
+    private static class DeviceReads {
+
+        private int mMtu = DEFAULT_MTU;
+        // Snapshots of the reads still in progress, by characteristic
+        private final Map<UUID, byte[]> mPinned = new HashMap<>();
+    }
+}
@@ -0,0 +1,42 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.UUID;
+
+public class BluetoothGattServerConnection implements GattServerConnection {
+
+    private BluetoothGattServer mGattServer;
+
+    public BluetoothGattServerConnection(BluetoothGattServer gattServer) {
+        mGattServer = gattServer;
+    }
+
+    @Override
+    public boolean addService(BluetoothGattService service) {
+        return mGattServer.addService(service);
+    }
+
+    @Override
+    public boolean removeService(BluetoothGattService service) {
+        return mGattServer.removeService(service);
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+        return mGattServer.getService(uuid);
+    }
+
+    @Override
+    public boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+        return mGattServer.sendResponse(device, requestId, status, offset, value);
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic, boolean confirm) {
+        return mGattServer.notifyCharacteristicChanged(device, characteristic, confirm);
+    }
+}
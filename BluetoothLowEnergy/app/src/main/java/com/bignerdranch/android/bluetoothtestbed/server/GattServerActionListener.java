@@ -1,18 +1,49 @@
 package com.bignerdranch.android.bluetoothtestbed.server;
 
 import android.bluetooth.BluetoothDevice;
+import android.support.annotation.Nullable;
+
+import java.util.UUID;
 
 public interface GattServerActionListener {
 
     void log(String message);
 
+    // Formatting is deferred until the line is shown, keeping binder thread logging cheap
+
+    void log(String message, Object detail);
+
+    void logHex(String message, byte[] payload);
+
     void addDevice(BluetoothDevice device);
 
     void removeDevice(BluetoothDevice device);
 
-    void addClientConfiguration(BluetoothDevice device, byte[] value);
+    void addClientConfiguration(BluetoothDevice device, UUID characteristicUuid, byte[] value);
+
+    void setMtu(BluetoothDevice device, int mtu);
+
+    // What the server can agree to over the control characteristic. Read on the binder thread
+    int getServerCapabilities();
+
+    // The capabilities agreed with the device, in effect for every message it sends after them
+    void setCapabilities(BluetoothDevice device, int capabilities);
+
+    // Undoes whatever encoding the device agreed to, or null if the message is corrupt
+    @Nullable
+    byte[] decodeMessage(BluetoothDevice device, byte[] message);
+
+    // The current value of a readable characteristic as the device sees it, or null if it is
+    // not readable. Never modified once returned
+    @Nullable
+    byte[] getCharacteristicValue(BluetoothDevice device, UUID characteristicUuid);
 
     void sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value);
 
-    void notifyCharacteristicEcho(byte[] value);
+    // The echo goes back to the device that sent the message
+    void notifyCharacteristicEcho(BluetoothDevice device, byte[] value);
+
+    void onNotificationSent(BluetoothDevice device, int status);
+
+    void onServiceAdded(int status, UUID serviceUuid);
 }
@@ -5,35 +5,115 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
+import android.support.annotation.Nullable;
 
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsRegistry;
+import com.bignerdranch.android.bluetoothtestbed.metrics.StripedCounter;
+import com.bignerdranch.android.bluetoothtestbed.metrics.StripedHistogram;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceEvent;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceWriter;
 import com.bignerdranch.android.bluetoothtestbed.util.BluetoothUtils;
 import com.bignerdranch.android.bluetoothtestbed.util.ByteUtils;
-import com.bignerdranch.android.bluetoothtestbed.util.StringUtils;
+import com.bignerdranch.android.bluetoothtestbed.util.LatencyHistogram;
+import com.bignerdranch.android.bluetoothtestbed.util.MessageBatcher;
+import com.bignerdranch.android.bluetoothtestbed.util.MessageReassembler;
+import com.bignerdranch.android.bluetoothtestbed.util.PayloadCodec;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_CONTROL_UUID;
 import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_ECHO_UUID;
 import static com.bignerdranch.android.bluetoothtestbed.Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.MAX_ATTRIBUTE_LENGTH;
 
+/**
+ * Answers the server's GATT requests. Callbacks arrive on a binder thread shared by every
+ * client, so they only do what decides the response, and send it right away. Logging,
+ * reassembly, echoing and the notification fan-out are handed to a worker.
+ *
+ * Every callback type records how long it held the binder thread in a "dwell." histogram,
+ * whose count is the number of callbacks of that type. With a trace set, every callback is
+ * also recorded to it as it arrives.
+ */
 public class GattServerCallback extends BluetoothGattServerCallback {
 
+    private static final long NANOS_PER_MICRO = 1000L;
+
     private GattServerActionListener mServerActionListener;
+    private Executor mWorker;
+
+    // Keyed by device address, only touched from the binder thread
+    private Map<String, PreparedWriteBuffer> mPreparedWrites = new HashMap<>();
+    private BlobReader mBlobReader = new BlobReader();
+    // Keyed by device address, only touched from the worker
+    private Map<String, MessageReassembler> mReassemblers = new HashMap<>();
+
+    // Time spent in each callback on the binder thread
+    private final StripedHistogram mConnectionDwell;
+    private final StripedHistogram mReadDwell;
+    private final StripedHistogram mWriteDwell;
+    private final StripedHistogram mExecuteWriteDwell;
+    private final StripedHistogram mDescriptorReadDwell;
+    private final StripedHistogram mDescriptorWriteDwell;
+    private final StripedHistogram mNotificationSentDwell;
+    private final StripedHistogram mMtuDwell;
+    private final StripedHistogram[] mDwells;
+    private final StripedCounter mBytesIn;
+
+    private volatile GattTraceWriter mTrace;
 
+    // Work runs inline, on the calling thread
     public GattServerCallback(GattServerActionListener serverActionListener) {
+        this(serverActionListener, Runnable::run, new MetricsRegistry());
+    }
+
+    public GattServerCallback(GattServerActionListener serverActionListener, Executor worker, MetricsRegistry metrics) {
         mServerActionListener = serverActionListener;
+        mWorker = worker;
+        mConnectionDwell = metrics.latency("dwell.connection");
+        mReadDwell = metrics.latency("dwell.read");
+        mWriteDwell = metrics.latency("dwell.write");
+        mExecuteWriteDwell = metrics.latency("dwell.execute_write");
+        mDescriptorReadDwell = metrics.latency("dwell.descriptor_read");
+        mDescriptorWriteDwell = metrics.latency("dwell.descriptor_write");
+        mNotificationSentDwell = metrics.latency("dwell.notification_sent");
+        mMtuDwell = metrics.latency("dwell.mtu");
+        mDwells = new StripedHistogram[]{mConnectionDwell, mReadDwell, mWriteDwell, mExecuteWriteDwell,
+                mDescriptorReadDwell, mDescriptorWriteDwell, mNotificationSentDwell, mMtuDwell};
+        mBytesIn = metrics.counter("bytes_in");
     }
 
     @Override
     public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
         super.onConnectionStateChange(device, status, newState);
-        mServerActionListener.log("onConnectionStateChange " + device.getAddress()
-                + "\nstatus " + status
-                + "\nnewState " + newState);
-
-        if (newState == BluetoothProfile.STATE_CONNECTED) {
-            mServerActionListener.addDevice(device);
-        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-            mServerActionListener.removeDevice(device);
+        long startNanos = System.nanoTime();
+        trace(GattTraceEvent.SERVER_CONNECTION_STATE, device, newState, status, 0, 0, null, null, null);
+
+        if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            // Prepared writes never executed are dropped
+            mPreparedWrites.remove(device.getAddress());
+            mBlobReader.removeDevice(device.getAddress());
         }
+
+        mWorker.execute(() -> {
+            mServerActionListener.log("onConnectionStateChange " + device.getAddress()
+                    + "\nstatus " + status
+                    + "\nnewState " + newState);
+
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mServerActionListener.addDevice(device);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mServerActionListener.removeDevice(device);
+                mReassemblers.remove(device.getAddress());
+            }
+        });
+        mConnectionDwell.recordSince(startNanos);
     }
 
     // The Gatt will reject Characteristic Read requests that do not have the permission set,
@@ -44,14 +124,36 @@ public class GattServerCallback extends BluetoothGattServerCallback {
                                             int offset,
                                             BluetoothGattCharacteristic characteristic) {
         super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
+        long startNanos = System.nanoTime();
+        trace(GattTraceEvent.SERVER_CHARACTERISTIC_READ, device, requestId, 0, offset, 0,
+                characteristic.getUuid(), null, null);
 
-        mServerActionListener.log("onCharacteristicReadRequest " + characteristic.getUuid().toString());
+        respondToRead(device, requestId, offset, characteristic);
+        mWorker.execute(() -> mServerActionListener.log("onCharacteristicReadRequest ", characteristic.getUuid()));
+        mReadDwell.recordSince(startNanos);
+    }
 
-        if (BluetoothUtils.requiresResponse(characteristic)) {
-            // Unknown read characteristic requiring response, send failure
-            mServerActionListener.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+    private void respondToRead(BluetoothDevice device,
+                               int requestId,
+                               int offset,
+                               BluetoothGattCharacteristic characteristic) {
+        byte[] value = mServerActionListener.getCharacteristicValue(device, characteristic.getUuid());
+        if (value == null) {
+            if (BluetoothUtils.requiresResponse(characteristic)) {
+                // Unknown read characteristic requiring response, send failure
+                mServerActionListener.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, null);
+            }
+            // Not one of our characteristics or has NO_RESPONSE property set
+            return;
+        }
+
+        // Offsets past 0 continue a read of a value too long for one response
+        byte[] part = mBlobReader.read(device.getAddress(), characteristic.getUuid(), offset, value);
+        if (part == null) {
+            mServerActionListener.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+        } else {
+            mServerActionListener.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, part);
         }
-        // Not one of our characteristics or has NO_RESPONSE property set
     }
 
     // The Gatt will reject Characteristic Write requests that do not have the permission set,
@@ -71,18 +173,144 @@ public class GattServerCallback extends BluetoothGattServerCallback {
                 responseNeeded,
                 offset,
                 value);
-        mServerActionListener.log("onCharacteristicWriteRequest" + characteristic.getUuid().toString()
-                + "\nReceived: " + StringUtils.byteArrayInHexFormat(value));
+        long startNanos = System.nanoTime();
+        trace(GattTraceEvent.SERVER_CHARACTERISTIC_WRITE, device, requestId, 0, offset,
+                writeFlags(preparedWrite, responseNeeded), characteristic.getUuid(), null, value);
+        mBytesIn.add(value.length);
 
-        if (CHARACTERISTIC_ECHO_UUID.equals(characteristic.getUuid())) {
+        if (!preparedWrite && CHARACTERISTIC_CONTROL_UUID.equals(characteristic.getUuid())) {
+            respondToControlWrite(device, requestId, characteristic, responseNeeded, offset, value);
+            mWriteDwell.recordSince(startNanos);
+            return;
+        }
+
+        boolean accepted = respondToWrite(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
+        mWorker.execute(() -> {
+            mServerActionListener.log("onCharacteristicWriteRequest ", characteristic.getUuid());
+            mServerActionListener.logHex("Received: ", value);
+            if (!accepted) {
+                return;
+            }
+            if (MessageBatcher.isBatch(value)) {
+                // Several small messages sharing one packet
+                List<byte[]> messages = MessageBatcher.unpack(value);
+                for (int i = 0; i < messages.size(); i++) {
+                    echo(device, messages.get(i));
+                }
+                return;
+            }
+            // Messages arrive split into MTU sized packets, wait for the whole thing
+            byte[] message = getReassembler(device).onPacket(value);
+            if (message != null) {
+                echo(device, message);
+            }
+        });
+        mWriteDwell.recordSince(startNanos);
+    }
+
+    // The capabilities are agreed before responding, so the response tells the client whether
+    // it got everything it asked for. Refused clients fall back to none
+    private void respondToControlWrite(BluetoothDevice device,
+                                       int requestId,
+                                       BluetoothGattCharacteristic characteristic,
+                                       boolean responseNeeded,
+                                       int offset,
+                                       byte[] value) {
+        int capabilities = PayloadCodec.agree(mServerActionListener.getServerCapabilities(), value);
+        boolean granted = offset == 0 && value.length == 1 && capabilities == (value[0] & 0xFF);
+        if (responseNeeded) {
+            int status = offset != 0 ? BluetoothGatt.GATT_INVALID_OFFSET
+                    : granted ? BluetoothGatt.GATT_SUCCESS
+                    : BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
+            mServerActionListener.sendResponse(device, requestId, status, offset, null);
+        }
+        mWorker.execute(() -> {
+            mServerActionListener.log("onCharacteristicWriteRequest ", characteristic.getUuid());
+            mServerActionListener.logHex("Received: ", value);
+            // Applied on the worker, in order with the messages written after it
+            mServerActionListener.setCapabilities(device, granted ? capabilities : 0);
+        });
+    }
+
+    // Returns true if the value is a packet of an echo message
+    private boolean respondToWrite(BluetoothDevice device,
+                                   int requestId,
+                                   BluetoothGattCharacteristic characteristic,
+                                   boolean preparedWrite,
+                                   boolean responseNeeded,
+                                   int offset,
+                                   byte[] value) {
+        if (preparedWrite) {
+            // Part of a long write, staged until the client executes it
+            int status = getPreparedWrites(device).prepare(characteristic.getUuid(), offset, value);
+            if (responseNeeded) {
+                // The client checks that the response carries back what it sent
+                mServerActionListener.sendResponse(device, requestId, status, offset, value);
+            }
+            return false;
+        }
+
+        UUID characteristicUuid = characteristic.getUuid();
+        if (!CHARACTERISTIC_ECHO_UUID.equals(characteristicUuid)) {
+            return false;
+        }
+
+        if (offset != 0) {
+            if (responseNeeded) {
+                mServerActionListener.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+            }
+            return false;
+        }
+
+        // Streaming clients write without response
+        if (responseNeeded) {
             mServerActionListener.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+        }
+        return true;
+    }
+
+    @Override
+    public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+        super.onExecuteWrite(device, requestId, execute);
+        long startNanos = System.nanoTime();
+        trace(GattTraceEvent.SERVER_EXECUTE_WRITE, device, requestId, 0, 0,
+                execute ? GattTraceEvent.FLAG_EXECUTE : 0, null, null, null);
+
+        PreparedWriteBuffer preparedWrites = mPreparedWrites.remove(device.getAddress());
+        mServerActionListener.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
 
-            // Reverse message to differentiate original message & response
-            byte[] response = ByteUtils.reverse(value);
-            characteristic.setValue(response);
-            mServerActionListener.log("Sending: " + StringUtils.byteArrayInHexFormat(response));
-            mServerActionListener.notifyCharacteristicEcho(response);
+        // The buffer is no longer reachable from the binder thread, the worker can have it
+        mWorker.execute(() -> {
+            mServerActionListener.log("onExecuteWrite " + device.getAddress() + " execute " + execute);
+            if (!execute || preparedWrites == null) {
+                return;
+            }
+
+            // Every part was checked when it was prepared, so committing cannot fail halfway
+            List<PreparedWriteBuffer.PreparedWrite> writes = preparedWrites.execute();
+            for (int i = 0; i < writes.size(); i++) {
+                PreparedWriteBuffer.PreparedWrite write = writes.get(i);
+                if (CHARACTERISTIC_ECHO_UUID.equals(write.getCharacteristicUuid())) {
+                    // A long write is a whole message, there are no packet headers to strip
+                    echo(device, write.getValue());
+                }
+            }
+        });
+        mExecuteWriteDwell.recordSince(startNanos);
+    }
+
+    // Worker only
+    private void echo(BluetoothDevice device, byte[] payload) {
+        byte[] message = mServerActionListener.decodeMessage(device, payload);
+        if (message == null) {
+            mServerActionListener.log("Dropped a message that could not be decoded from " + device.getAddress());
+            return;
         }
+
+        // Reverse message to differentiate original message & response
+        byte[] response = ByteUtils.reverse(message);
+        mServerActionListener.logHex("Sending: ", response);
+        mServerActionListener.notifyCharacteristicEcho(device, response);
     }
 
     // The Gatt will reject Descriptor Read requests that do not have the permission set,
@@ -93,7 +321,12 @@ public class GattServerCallback extends BluetoothGattServerCallback {
                                         int offset,
                                         BluetoothGattDescriptor descriptor) {
         super.onDescriptorReadRequest(device, requestId, offset, descriptor);
-        mServerActionListener.log("onDescriptorReadRequest" + descriptor.getUuid().toString());
+        long startNanos = System.nanoTime();
+        trace(GattTraceEvent.SERVER_DESCRIPTOR_READ, device, requestId, 0, offset, 0,
+                descriptor.getCharacteristic().getUuid(), descriptor.getUuid(), null);
+
+        mWorker.execute(() -> mServerActionListener.log("onDescriptorReadRequest ", descriptor.getUuid()));
+        mDescriptorReadDwell.recordSince(startNanos);
     }
 
     // The Gatt will reject Descriptor Write requests that do not have the permission set,
@@ -107,18 +340,140 @@ public class GattServerCallback extends BluetoothGattServerCallback {
                                          int offset,
                                          byte[] value) {
         super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
-        mServerActionListener.log("onDescriptorWriteRequest: " + descriptor.getUuid().toString()
-                + "\nvalue: " + StringUtils.byteArrayInHexFormat(value));
+        long startNanos = System.nanoTime();
+        trace(GattTraceEvent.SERVER_DESCRIPTOR_WRITE, device, requestId, 0, offset,
+                writeFlags(preparedWrite, responseNeeded), descriptor.getCharacteristic().getUuid(), descriptor.getUuid(), value);
+        mBytesIn.add(value.length);
 
-        if (CLIENT_CONFIGURATION_DESCRIPTOR_UUID.equals(descriptor.getUuid())) {
-            mServerActionListener.addClientConfiguration(device, value);
+        boolean clientConfiguration = CLIENT_CONFIGURATION_DESCRIPTOR_UUID.equals(descriptor.getUuid());
+        if (clientConfiguration) {
             mServerActionListener.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
         }
+
+        // Subscriptions change on the worker, in order with the echoes they affect
+        mWorker.execute(() -> {
+            mServerActionListener.log("onDescriptorWriteRequest: ", descriptor.getUuid());
+            mServerActionListener.logHex("value: ", value);
+            if (clientConfiguration) {
+                UUID characteristicUuid = descriptor.getCharacteristic().getUuid();
+                mServerActionListener.addClientConfiguration(device, characteristicUuid, value);
+            }
+        });
+        mDescriptorWriteDwell.recordSince(startNanos);
     }
 
     @Override
     public void onNotificationSent(BluetoothDevice device, int status) {
         super.onNotificationSent(device, status);
-        mServerActionListener.log("onNotificationSent");
+        long startNanos = System.nanoTime();
+        trace(GattTraceEvent.SERVER_NOTIFICATION_SENT, device, 0, status, 0, 0, null, null, null);
+
+        // Sending the next notification is part of the fan-out
+        mWorker.execute(() -> {
+            mServerActionListener.log("onNotificationSent");
+            mServerActionListener.onNotificationSent(device, status);
+        });
+        mNotificationSentDwell.recordSince(startNanos);
+    }
+
+    @Override
+    public void onMtuChanged(BluetoothDevice device, int mtu) {
+        super.onMtuChanged(device, mtu);
+        long startNanos = System.nanoTime();
+        trace(GattTraceEvent.SERVER_MTU_CHANGED, device, mtu, 0, 0, 0, null, null, null);
+
+        mBlobReader.setMtu(device.getAddress(), mtu);
+        mWorker.execute(() -> {
+            mServerActionListener.log("onMtuChanged " + device.getAddress() + " mtu " + mtu);
+            mServerActionListener.setMtu(device, mtu);
+        });
+        mMtuDwell.recordSince(startNanos);
+    }
+
+    // Adding a service is the server's own doing, not a client's, so it is neither timed nor traced
+    @Override
+    public void onServiceAdded(int status, BluetoothGattService service) {
+        super.onServiceAdded(status, service);
+        UUID serviceUuid = service.getUuid();
+        mWorker.execute(() -> {
+            mServerActionListener.log("onServiceAdded " + serviceUuid + "\nstatus " + status);
+            mServerActionListener.onServiceAdded(status, serviceUuid);
+        });
+    }
+
+    // Trace
+
+    // Recording starts with the next callback, and stops when set to null
+    public void setTrace(@Nullable GattTraceWriter trace) {
+        mTrace = trace;
+    }
+
+    private void trace(int type,
+                       BluetoothDevice device,
+                       int argument,
+                       int status,
+                       int offset,
+                       int flags,
+                       @Nullable UUID characteristicUuid,
+                       @Nullable UUID descriptorUuid,
+                       @Nullable byte[] value) {
+        GattTraceWriter trace = mTrace;
+        if (trace != null) {
+            trace.record(type, device.getAddress(), argument, status, offset, flags, characteristicUuid, descriptorUuid, value);
+        }
+    }
+
+    private static int writeFlags(boolean preparedWrite, boolean responseNeeded) {
+        return (preparedWrite ? GattTraceEvent.FLAG_PREPARED_WRITE : 0)
+                | (responseNeeded ? GattTraceEvent.FLAG_RESPONSE_NEEDED : 0);
+    }
+
+    private PreparedWriteBuffer getPreparedWrites(BluetoothDevice device) {
+        String deviceAddress = device.getAddress();
+        PreparedWriteBuffer preparedWrites = mPreparedWrites.get(deviceAddress);
+        if (preparedWrites == null) {
+            preparedWrites = new PreparedWriteBuffer(MAX_ATTRIBUTE_LENGTH);
+            mPreparedWrites.put(deviceAddress, preparedWrites);
+        }
+        return preparedWrites;
+    }
+
+    private MessageReassembler getReassembler(BluetoothDevice device) {
+        String deviceAddress = device.getAddress();
+        MessageReassembler reassembler = mReassemblers.get(deviceAddress);
+        if (reassembler == null) {
+            // Bounded, a client can't make the worker buffer more than any message can hold
+            reassembler = new MessageReassembler(PayloadCodec.MAX_MESSAGE_LENGTH);
+            mReassemblers.put(deviceAddress, reassembler);
+        }
+        return reassembler;
+    }
+
+    // Stats
+
+    // Every callback type together
+    private LatencyHistogram getDwell() {
+        LatencyHistogram dwell = new LatencyHistogram();
+        for (StripedHistogram typeDwell : mDwells) {
+            typeDwell.addTo(dwell);
+        }
+        return dwell;
+    }
+
+    public long getDwellNanos(double percentile) {
+        return getDwell().getValueAtPercentile(percentile);
+    }
+
+    public String getReport() {
+        LatencyHistogram dwell = getDwell();
+        return String.format("Binder callbacks: %d, dwell p50 %.1f us, p99 %.1f us, max %.1f us",
+                dwell.getCount(),
+                micros(dwell.getValueAtPercentile(50)),
+                micros(dwell.getValueAtPercentile(99)),
+                micros(dwell.getMax()));
+    }
+
+    private static double micros(long nanos) {
+        return nanos / (double) NANOS_PER_MICRO;
     }
 }
@@ -0,0 +1,26 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.support.annotation.Nullable;
+
+import java.util.UUID;
+
+/**
+ * The subset of BluetoothGattServer used to serve clients, so the server can be driven
+ * by a loopback connection on the JVM.
+ */
+public interface GattServerConnection {
+
+    boolean addService(BluetoothGattService service);
+
+    boolean removeService(BluetoothGattService service);
+
+    @Nullable
+    BluetoothGattService getService(UUID uuid);
+
+    boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value);
+
+    boolean notifyCharacteristicChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic, boolean confirm);
+}
@@ -0,0 +1,510 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.support.annotation.Nullable;
+
+import com.bignerdranch.android.bluetoothtestbed.log.Logger;
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsRegistry;
+import com.bignerdranch.android.bluetoothtestbed.metrics.StripedCounter;
+import com.bignerdranch.android.bluetoothtestbed.metrics.StripedHistogram;
+import com.bignerdranch.android.bluetoothtestbed.util.BatchStats;
+import com.bignerdranch.android.bluetoothtestbed.util.BluetoothUtils;
+import com.bignerdranch.android.bluetoothtestbed.util.CodecStats;
+import com.bignerdranch.android.bluetoothtestbed.util.MessageBatcher;
+import com.bignerdranch.android.bluetoothtestbed.util.MessageFragmenter;
+import com.bignerdranch.android.bluetoothtestbed.util.PayloadCodec;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_CONTROL_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_ECHO_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_STATS_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_TIME_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.DEFAULT_MTU;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.MAX_ATTRIBUTE_LENGTH;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.SERVICE_UUID;
+
+/**
+ * The echo and time server, independent of where it runs. Requests arrive from a
+ * GattServerCallback, and responses and notifications go out through a GattServerConnection,
+ * which is the real BluetoothGattServer on a device or a loopback on the JVM.
+ */
+public class GattServerController implements GattServerActionListener, NotificationSender {
+
+    private static final byte[] EMPTY_VALUE = new byte[0];
+    // A long read asks for the value again for every part, so it is only rebuilt this often
+    private static final long STATS_MAX_AGE_NANOS = 250000000L;
+
+    private final Logger mLogger;
+    private final SubscriptionIndex mSubscriptionIndex = new SubscriptionIndex();
+    private final Map<String, Integer> mMtus = new ConcurrentHashMap<>();
+    private final NotificationDispatcher mNotificationDispatcher = new NotificationDispatcher(this);
+
+    // Set on the main thread, used from the binder thread
+    private volatile GattServerConnection mConnection;
+
+    // Readable snapshots, replaced whole and never modified. Each device reads its own echo
+    private final Map<String, byte[]> mLatestEchoes = new ConcurrentHashMap<>();
+    private volatile byte[] mLatestTime = EMPTY_VALUE;
+
+    // Echoes go to every subscriber instead of only the device that sent the message
+    private volatile boolean mBroadcastEchoes;
+
+    // Small echoes share one notification while an earlier one is still in flight, Nagle
+    // style. Batchers are only touched from the thread echoes are sent on
+    private volatile boolean mBatchEchoes;
+    private final Map<String, MessageBatcher> mEchoBatchers = new ConcurrentHashMap<>();
+    private final BatchStats mEchoBatchStats = new BatchStats();
+
+    // Offered to clients through the control characteristic
+    private volatile boolean mAllowCompression = true;
+    // What each device agreed to, keyed by address
+    private final Map<String, Integer> mCapabilities = new ConcurrentHashMap<>();
+    // Only touched from the thread echoes are handled on
+    private final CodecStats mCodecStats = new CodecStats();
+    private final PayloadCodec mMessageCodec = new PayloadCodec(PayloadCodec.DICTIONARY, mCodecStats);
+    private final PayloadCodec mEchoCodec = new PayloadCodec(PayloadCodec.REVERSED_DICTIONARY, mCodecStats);
+
+    // Shared with the GattServerCallback
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private final StripedCounter mBytesOut = mMetrics.counter("bytes_out");
+    private final StripedCounter mStatusFailures = mMetrics.counter("status_failures");
+    private final StripedHistogram mFanOut = mMetrics.histogram("fan_out");
+    private volatile byte[] mStatsValue = EMPTY_VALUE;
+    private volatile long mStatsNanos;
+    private final ServingClock mServingClock = new ServingClock(mMetrics);
+
+    public GattServerController(Logger logger) {
+        mLogger = logger;
+    }
+
+    public void setConnection(GattServerConnection connection) {
+        mConnection = connection;
+    }
+
+    // Setup
+
+    public void addService() {
+        BluetoothGattService service = new BluetoothGattService(SERVICE_UUID,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+
+        // Write characteristic
+        BluetoothGattCharacteristic writeCharacteristic = new BluetoothGattCharacteristic(
+                CHARACTERISTIC_ECHO_UUID,
+                // Without response writes are used by the client's streaming mode
+                // Reads return the latest echo sent to the reading device
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE
+                        | BluetoothGattCharacteristic.PROPERTY_READ,
+                        // Somehow this is not necessary, the client can still enable notifications
+//                        | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_WRITE | BluetoothGattCharacteristic.PERMISSION_READ);
+
+        // Characteristic with Descriptor
+        BluetoothGattCharacteristic notifyCharacteristic = new BluetoothGattCharacteristic(
+                CHARACTERISTIC_TIME_UUID,
+                // Somehow this is not necessary, the client can still enable notifications
+//                BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                // Reads return the last timestamp sent
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+
+        BluetoothGattDescriptor clientConfigurationDescriptor = new BluetoothGattDescriptor(
+                CLIENT_CONFIGURATION_DESCRIPTOR_UUID,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
+        clientConfigurationDescriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+
+        notifyCharacteristic.addDescriptor(clientConfigurationDescriptor);
+
+        // Reads return the capabilities the server offers, writes pick the ones the client uses
+        BluetoothGattCharacteristic controlCharacteristic = new BluetoothGattCharacteristic(
+                CHARACTERISTIC_CONTROL_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+
+        BluetoothGattCharacteristic statsCharacteristic = new BluetoothGattCharacteristic(
+                CHARACTERISTIC_STATS_UUID,
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+
+        service.addCharacteristic(writeCharacteristic);
+        service.addCharacteristic(notifyCharacteristic);
+        service.addCharacteristic(controlCharacteristic);
+        service.addCharacteristic(statsCharacteristic);
+
+        mSubscriptionIndex.registerCharacteristic(writeCharacteristic);
+        mSubscriptionIndex.registerCharacteristic(notifyCharacteristic);
+
+        mConnection.addService(service);
+    }
+
+    // Swaps the service for a new one on the server that is already open. Connected devices stay
+    // connected, but the new service has new handles. A client finds out on its next request,
+    // which the stack rejects with an Invalid Handle error, and GattClientCallback then discovers
+    // services again. Until then, notifications sent to it are dropped by its stack
+    public void replaceService() {
+        BluetoothGattService service = mConnection.getService(SERVICE_UUID);
+        if (service != null) {
+            mConnection.removeService(service);
+        }
+        mStatsValue = EMPTY_VALUE;
+        addService();
+    }
+
+    public void setBroadcastEchoes(boolean broadcastEchoes) {
+        mBroadcastEchoes = broadcastEchoes;
+    }
+
+    public boolean isBroadcastEchoes() {
+        return mBroadcastEchoes;
+    }
+
+    public void setBatchEchoes(boolean batchEchoes) {
+        mBatchEchoes = batchEchoes;
+    }
+
+    public boolean isBatchEchoes() {
+        return mBatchEchoes;
+    }
+
+    public BatchStats getEchoBatchStats() {
+        return mEchoBatchStats;
+    }
+
+    // Applies to clients that connect from now on, the others keep what they agreed to
+    public void setAllowCompression(boolean allowCompression) {
+        mAllowCompression = allowCompression;
+    }
+
+    public boolean isAllowCompression() {
+        return mAllowCompression;
+    }
+
+    public CodecStats getCodecStats() {
+        return mCodecStats;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    public ServingClock getServingClock() {
+        return mServingClock;
+    }
+
+    private byte[] getStatsValue() {
+        long nowNanos = System.nanoTime();
+        if (mStatsValue == EMPTY_VALUE || nowNanos - mStatsNanos > STATS_MAX_AGE_NANOS) {
+            mStatsValue = mMetrics.snapshot().toValue(MAX_ATTRIBUTE_LENGTH);
+            mStatsNanos = nowNanos;
+        }
+        return mStatsValue;
+    }
+
+    @Override
+    public int getServerCapabilities() {
+        return mAllowCompression ? PayloadCodec.CAPABILITY_COMPRESSION : 0;
+    }
+
+    private boolean isCompressing(BluetoothDevice device) {
+        Integer capabilities = mCapabilities.get(device.getAddress());
+        return capabilities != null && (capabilities & PayloadCodec.CAPABILITY_COMPRESSION) != 0;
+    }
+
+    public void clear() {
+        mStatsValue = EMPTY_VALUE;
+        mLatestEchoes.clear();
+        mLatestTime = EMPTY_VALUE;
+        mEchoBatchers.clear();
+        mCapabilities.clear();
+        mNotificationDispatcher.clear();
+        mSubscriptionIndex.clear();
+        mMtus.clear();
+    }
+
+    // Notifications
+
+    public void notifyCharacteristicTime(byte[] value) {
+        notifyCharacteristicTime(value, true);
+    }
+
+    // Periodic notifications are not logged, at up to 100 a second they would bury everything else
+    public void notifyCharacteristicTime(byte[] value, boolean log) {
+        mLatestTime = value;
+        // Only the newest timestamp is worth sending
+        notifyCharacteristic(value, CHARACTERISTIC_TIME_UUID, true, log);
+    }
+
+    private void notifyCharacteristic(byte[] value, UUID uuid, boolean latestOnly, boolean log) {
+        BluetoothGattService service = mConnection.getService(SERVICE_UUID);
+        if (service == null) {
+            // The server was stopped while the notification was on its way
+            return;
+        }
+        BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
+        if (log) {
+            log("Notifying characteristic ", characteristic.getUuid());
+            logHex("New value: ", value);
+        }
+
+        // Indications require confirmation, notifications do not
+        boolean confirm = BluetoothUtils.requiresConfirmation(characteristic);
+        OutgoingNotification notification = new OutgoingNotification(uuid, value, confirm, latestOnly);
+        int fanOut = 0;
+        for (BluetoothDevice device : mSubscriptionIndex.getSubscribers(uuid)) {
+            mNotificationDispatcher.enqueue(device, notification);
+            fanOut++;
+        }
+        mFanOut.record(fanOut);
+    }
+
+    private void notifyEcho(BluetoothDevice sender, byte[] value) {
+        BluetoothGattService service = mConnection.getService(SERVICE_UUID);
+        if (service == null) {
+            // The server was stopped while the echo was on its way
+            return;
+        }
+        BluetoothGattCharacteristic characteristic = service.getCharacteristic(CHARACTERISTIC_ECHO_UUID);
+        log("Notifying characteristic ", characteristic.getUuid());
+        logHex("New value: ", value);
+
+        boolean confirm = BluetoothUtils.requiresConfirmation(characteristic);
+        if (!mBroadcastEchoes) {
+            if (mSubscriptionIndex.isSubscribed(sender, CHARACTERISTIC_ECHO_UUID)) {
+                sendEcho(sender, isCompressing(sender) ? mEchoCodec.encode(value) : value, confirm);
+                mFanOut.record(1);
+            }
+            return;
+        }
+
+        // Compressed once, for whichever subscribers agreed to it
+        byte[] encoded = null;
+        int fanOut = 0;
+        for (BluetoothDevice device : mSubscriptionIndex.getSubscribers(CHARACTERISTIC_ECHO_UUID)) {
+            fanOut++;
+            mLatestEchoes.put(device.getAddress(), value);
+            if (!isCompressing(device)) {
+                sendEcho(device, value, confirm);
+                continue;
+            }
+            if (encoded == null) {
+                encoded = mEchoCodec.encode(value);
+            }
+            sendEcho(device, encoded, confirm);
+        }
+        mFanOut.record(fanOut);
+    }
+
+    private void sendEcho(BluetoothDevice device, byte[] value, boolean confirm) {
+        MessageBatcher batcher = getEchoBatcher(device);
+        if (!mBatchEchoes || !batcher.canBatch(value)) {
+            // Anything batched earlier goes first
+            enqueueEchoPacket(device, batcher.flush(System.nanoTime()), confirm);
+            enqueueFragmented(device, value, CHARACTERISTIC_ECHO_UUID, confirm);
+            return;
+        }
+
+        enqueueEchoPacket(device, batcher.add(value, System.nanoTime()), confirm);
+        if (mNotificationDispatcher.isIdle(device)) {
+            // Nothing to wait for, send what there is
+            enqueueEchoPacket(device, batcher.flush(System.nanoTime()), confirm);
+        }
+    }
+
+    // Sends the batched echoes once the device's notifications have all gone out
+    private void flushEchoBatch(BluetoothDevice device) {
+        MessageBatcher batcher = mEchoBatchers.get(device.getAddress());
+        if (batcher == null || batcher.isEmpty() || !mNotificationDispatcher.isIdle(device)) {
+            return;
+        }
+        BluetoothGattService service = mConnection.getService(SERVICE_UUID);
+        if (service == null) {
+            return;
+        }
+        boolean confirm = BluetoothUtils.requiresConfirmation(service.getCharacteristic(CHARACTERISTIC_ECHO_UUID));
+        enqueueEchoPacket(device, batcher.flush(System.nanoTime()), confirm);
+    }
+
+    private void enqueueEchoPacket(BluetoothDevice device, @Nullable byte[] packet, boolean confirm) {
+        if (packet == null) {
+            return;
+        }
+        OutgoingNotification notification = new OutgoingNotification(CHARACTERISTIC_ECHO_UUID, packet, confirm, false);
+        if (!mNotificationDispatcher.enqueue(device, notification)) {
+            log("Outbox full, dropped notification for " + device.getAddress());
+        }
+    }
+
+    private MessageBatcher getEchoBatcher(BluetoothDevice device) {
+        String deviceAddress = device.getAddress();
+        MessageBatcher batcher = mEchoBatchers.get(deviceAddress);
+        if (batcher == null) {
+            batcher = new MessageBatcher(getMtu(device), mEchoBatchStats);
+            mEchoBatchers.put(deviceAddress, batcher);
+        }
+        return batcher;
+    }
+
+    private void enqueueFragmented(BluetoothDevice device, byte[] value, UUID uuid, boolean confirm) {
+        // Each client negotiated its own MTU
+        for (byte[] packet : MessageFragmenter.fragment(value, getMtu(device))) {
+            OutgoingNotification notification = new OutgoingNotification(uuid, packet, confirm, false);
+            if (!mNotificationDispatcher.enqueue(device, notification)) {
+                log("Outbox full, dropped notification for " + device.getAddress());
+            }
+        }
+    }
+
+    private int getMtu(BluetoothDevice device) {
+        Integer mtu = mMtus.get(device.getAddress());
+        return mtu == null ? DEFAULT_MTU : mtu;
+    }
+
+    public long getDroppedNotifications() {
+        return mNotificationDispatcher.getDroppedNotifications();
+    }
+
+    // Gatt Server Action Listener
+
+    @Override
+    public void log(String msg) {
+        mLogger.log(msg);
+    }
+
+    @Override
+    public void log(String msg, Object detail) {
+        mLogger.log(msg, detail);
+    }
+
+    @Override
+    public void logHex(String msg, byte[] payload) {
+        mLogger.logHex(msg, payload);
+    }
+
+    @Override
+    public void addDevice(BluetoothDevice device) {
+        log("Deviced added: " + device.getAddress());
+        mSubscriptionIndex.addDevice(device);
+    }
+
+    @Override
+    public void removeDevice(BluetoothDevice device) {
+        log("Deviced removed: " + device.getAddress());
+        mSubscriptionIndex.removeDevice(device);
+        mNotificationDispatcher.removeDevice(device);
+        mMtus.remove(device.getAddress());
+        mLatestEchoes.remove(device.getAddress());
+        mEchoBatchers.remove(device.getAddress());
+        mCapabilities.remove(device.getAddress());
+    }
+
+    @Override
+    public void addClientConfiguration(BluetoothDevice device, UUID characteristicUuid, byte[] value) {
+        mSubscriptionIndex.setClientConfiguration(device, characteristicUuid, value);
+    }
+
+    @Override
+    public void setMtu(BluetoothDevice device, int mtu) {
+        mMtus.put(device.getAddress(), mtu);
+        MessageBatcher batcher = mEchoBatchers.get(device.getAddress());
+        if (batcher != null) {
+            batcher.setMtu(mtu);
+        }
+    }
+
+    @Override
+    public void setCapabilities(BluetoothDevice device, int capabilities) {
+        mCapabilities.put(device.getAddress(), capabilities);
+        log("Capabilities of " + device.getAddress() + ": "
+                + ((capabilities & PayloadCodec.CAPABILITY_COMPRESSION) != 0 ? "compression" : "none"));
+    }
+
+    @Nullable
+    @Override
+    public byte[] decodeMessage(BluetoothDevice device, byte[] message) {
+        return isCompressing(device) ? mMessageCodec.decode(message) : message;
+    }
+
+    @Nullable
+    @Override
+    public byte[] getCharacteristicValue(BluetoothDevice device, UUID characteristicUuid) {
+        if (CHARACTERISTIC_ECHO_UUID.equals(characteristicUuid)) {
+            byte[] echo = mLatestEchoes.get(device.getAddress());
+            return echo == null ? EMPTY_VALUE : echo;
+        } else if (CHARACTERISTIC_TIME_UUID.equals(characteristicUuid)) {
+            return mLatestTime;
+        } else if (CHARACTERISTIC_CONTROL_UUID.equals(characteristicUuid)) {
+            return new byte[]{(byte) getServerCapabilities()};
+        } else if (CHARACTERISTIC_STATS_UUID.equals(characteristicUuid)) {
+            return getStatsValue();
+        }
+        return null;
+    }
+
+    @Override
+    public void sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            mStatusFailures.increment();
+        }
+        if (value != null) {
+            mBytesOut.add(value.length);
+        }
+        mConnection.sendResponse(device, requestId, status, offset, value);
+    }
+
+    @Override
+    public void notifyCharacteristicEcho(BluetoothDevice device, byte[] value) {
+        // Readable by the sender even if it isn't subscribed
+        mLatestEchoes.put(device.getAddress(), value);
+        notifyEcho(device, value);
+    }
+
+    @Override
+    public void onNotificationSent(BluetoothDevice device, int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            mStatusFailures.increment();
+        }
+        mNotificationDispatcher.onNotificationSent(device);
+        flushEchoBatch(device);
+    }
+
+    @Override
+    public void onServiceAdded(int status, UUID serviceUuid) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            mStatusFailures.increment();
+            log("Adding service " + serviceUuid + " failed: " + status);
+            return;
+        }
+        if (SERVICE_UUID.equals(serviceUuid) && mServingClock.onServiceAdded(System.nanoTime())) {
+            log(mServingClock.getReport());
+        }
+    }
+
+    // Notification Sender
+
+    @Override
+    public boolean sendNotification(BluetoothDevice device, OutgoingNotification notification) {
+        BluetoothGattService service = mConnection.getService(SERVICE_UUID);
+        if (service == null) {
+            // The service is being replaced, or the server was stopped
+            return false;
+        }
+        BluetoothGattCharacteristic characteristic = service.getCharacteristic(notification.getCharacteristicUuid());
+        // The characteristic is shared by every device's outbox
+        boolean sent;
+        synchronized (characteristic) {
+            characteristic.setValue(notification.getValue());
+            sent = mConnection.notifyCharacteristicChanged(device, characteristic, notification.isConfirm());
+        }
+        if (sent) {
+            mBytesOut.add(notification.getValue().length);
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,319 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelUuid;
+import android.os.Process;
+import android.support.annotation.Nullable;
+
+import com.bignerdranch.android.bluetoothtestbed.log.ForwardingLogger;
+import com.bignerdranch.android.bluetoothtestbed.log.Logger;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TimeZone;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.SERVICE_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.TRACE_DIRECTORY;
+
+/**
+ * The GATT server, its advertising and the devices connected to it. Owned by the
+ * GattServerService, so it keeps serving whatever happens to the activity showing it.
+ *
+ * A cold start opens a new server and starts advertising. A warm restart replaces the service
+ * on the server already open, so connected devices stay connected. The ServingClock times both.
+ * Time notifications are encoded and paced on a thread of their own while the server runs.
+ *
+ * Called on the main thread. Logs go to the logger attached while the activity is shown.
+ */
+public class GattServerEngine {
+
+    private static final String TAG = "GattServerEngine";
+
+    private static final int WORKER_QUEUE_CAPACITY = 256;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final Context mContext;
+    private final BluetoothManager mBluetoothManager;
+    private final ForwardingLogger mLogger = new ForwardingLogger(TAG);
+    private final GattServerController mServerController = new GattServerController(mLogger);
+    private final ServingClock mServingClock = mServerController.getServingClock();
+
+    private BluetoothGattServer mGattServer;
+    private GattServerCallback mGattServerCallback;
+    private GattServerWorker mGattServerWorker;
+    private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
+    private GattTraceWriter mTraceWriter;
+
+    // The scheduler and encoder are only touched from the time thread
+    private HandlerThread mTimeThread;
+    private Handler mTimeHandler;
+    private boolean mSendingTime;
+    private final TimeNotificationScheduler mTimeScheduler = new TimeNotificationScheduler(this::sendTime);
+    private final TimestampEncoder mTimestampEncoder = new TimestampEncoder(TimeZone.getDefault());
+    private final Runnable mTimeTick = this::onTimeTick;
+
+    public GattServerEngine(Context context) {
+        mContext = context;
+        mBluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+    }
+
+    public GattServerController getServerController() {
+        return mServerController;
+    }
+
+    public void setLogger(@Nullable Logger logger) {
+        mLogger.setTarget(logger);
+    }
+
+    public boolean isRunning() {
+        return mGattServer != null;
+    }
+
+    // Lifecycle
+
+    // Opens the server and starts advertising, unless it is running already
+    public boolean start() {
+        if (mGattServer != null) {
+            return true;
+        }
+
+        BluetoothAdapter bluetoothAdapter = mBluetoothManager.getAdapter();
+        if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
+            log("Bluetooth is not enabled.");
+            return false;
+        }
+        if (!bluetoothAdapter.isMultipleAdvertisementSupported()) {
+            log("No Advertising Support.");
+            return false;
+        }
+
+        mServingClock.startCold(System.nanoTime());
+        mGattServerWorker = new GattServerWorker("GattServerWorker", WORKER_QUEUE_CAPACITY);
+        mGattServerWorker.start();
+        mGattServerCallback = new GattServerCallback(mServerController,
+                mGattServerWorker,
+                mServerController.getMetrics());
+        mGattServerCallback.setTrace(mTraceWriter);
+        mGattServer = mBluetoothManager.openGattServer(mContext, mGattServerCallback);
+        if (mGattServer == null) {
+            log("Unable to open the GATT server.");
+            mServingClock.stop();
+            mGattServerWorker.quit();
+            mGattServerWorker = null;
+            mGattServerCallback = null;
+            return false;
+        }
+        mServerController.setConnection(new BluetoothGattServerConnection(mGattServer));
+        mServerController.addService();
+
+        mTimeThread = new HandlerThread("TimeNotifications", Process.THREAD_PRIORITY_DISPLAY);
+        mTimeThread.start();
+        mTimeHandler = new Handler(mTimeThread.getLooper());
+
+        mBluetoothLeAdvertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
+        startAdvertising();
+        return true;
+    }
+
+    // Replaces the service in place, starting the server instead if it is not running
+    public void restart() {
+        if (mGattServer == null) {
+            start();
+            return;
+        }
+        log("Replacing the service");
+        mServingClock.startWarm(System.nanoTime());
+        mServerController.replaceService();
+    }
+
+    public void stop() {
+        if (mGattServer == null) {
+            return;
+        }
+        stopPeriodicTime();
+        mTimeThread.quitSafely();
+        mTimeThread = null;
+        stopAdvertising();
+        mServingClock.stop();
+        mServerController.clear();
+        mGattServer.close();
+        mGattServer = null;
+        mGattServerWorker.quit();
+        mGattServerWorker = null;
+        mGattServerCallback = null;
+    }
+
+    public void logServerStats() {
+        log(mServingClock.getReport());
+        if (mGattServerCallback != null) {
+            log(mGattServerCallback.getReport());
+            log(mGattServerWorker.getReport());
+        }
+        log("Dropped notifications: " + mServerController.getDroppedNotifications());
+        log(mServerController.getEchoBatchStats().getReport());
+        log(mServerController.getCodecStats().getReport());
+    }
+
+    // Advertising
+
+    private void startAdvertising() {
+        if (mBluetoothLeAdvertiser == null) {
+            return;
+        }
+
+        AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED)
+                .setConnectable(true)
+                .setTimeout(0)
+                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_LOW)
+                .build();
+
+        ParcelUuid parcelUuid = new ParcelUuid(SERVICE_UUID);
+        AdvertiseData data = new AdvertiseData.Builder()
+                .setIncludeDeviceName(true)
+                .addServiceUuid(parcelUuid)
+                .build();
+
+        mBluetoothLeAdvertiser.startAdvertising(settings, data, mAdvertiseCallback);
+    }
+
+    private void stopAdvertising() {
+        if (mBluetoothLeAdvertiser != null) {
+            mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallback);
+        }
+    }
+
+    private AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
+        @Override
+        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+            log("Peripheral advertising started.");
+            if (mServingClock.onAdvertisingStarted(System.nanoTime())) {
+                log(mServingClock.getReport());
+            }
+        }
+
+        @Override
+        public void onStartFailure(int errorCode) {
+            log("Peripheral advertising failed: " + errorCode);
+        }
+    };
+
+    // Time notifications
+
+    public boolean isSendingTime() {
+        return mSendingTime;
+    }
+
+    public void sendTimestamp() {
+        if (mTimeThread == null) {
+            return;
+        }
+        mTimeHandler.post(() -> {
+            byte[] timestampBytes = mTimestampEncoder.encode(System.currentTimeMillis());
+            mServerController.notifyCharacteristicTime(timestampBytes);
+        });
+    }
+
+    // Sends the time until stopped, or until the server stops
+    public void startPeriodicTime(int rateHz, int format) {
+        if (mTimeThread == null || mSendingTime) {
+            return;
+        }
+        mSendingTime = true;
+        mTimeHandler.post(() -> {
+            mTimestampEncoder.setFormat(format);
+            log("Sending the time at " + rateHz + " Hz");
+            scheduleTimeTick(mTimeScheduler.start(rateHz, System.nanoTime()));
+        });
+    }
+
+    public void stopPeriodicTime() {
+        if (!mSendingTime) {
+            return;
+        }
+        mSendingTime = false;
+        mTimeHandler.post(() -> {
+            mTimeScheduler.stop();
+            mTimeHandler.removeCallbacks(mTimeTick);
+            log(mTimeScheduler.getReport());
+        });
+    }
+
+    // Time thread
+
+    private void onTimeTick() {
+        scheduleTimeTick(mTimeScheduler.onTick(System.nanoTime()));
+    }
+
+    private void scheduleTimeTick(long delayNanos) {
+        if (delayNanos == TimeNotificationScheduler.NO_TICK) {
+            return;
+        }
+        // Rounded up, a tick that wakes early only has to be posted again
+        mTimeHandler.postDelayed(mTimeTick, (delayNanos + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI);
+    }
+
+    private void sendTime() {
+        byte[] timestampBytes = mTimestampEncoder.encode(System.currentTimeMillis());
+        mServerController.notifyCharacteristicTime(timestampBytes, false);
+    }
+
+    // Trace
+
+    public boolean isRecordingTrace() {
+        return mTraceWriter != null;
+    }
+
+    public boolean startTrace() {
+        if (mTraceWriter != null) {
+            return true;
+        }
+        File file = GattTraceWriter.newTraceFile(new File(mContext.getFilesDir(), TRACE_DIRECTORY), "server");
+        try {
+            mTraceWriter = new GattTraceWriter(file);
+        } catch (IOException e) {
+            log("Unable to record trace: " + e.getMessage());
+            return false;
+        }
+        if (mGattServerCallback != null) {
+            mGattServerCallback.setTrace(mTraceWriter);
+        }
+        log("Recording trace to " + file.getPath());
+        return true;
+    }
+
+    public void stopTrace() {
+        if (mTraceWriter == null) {
+            return;
+        }
+        if (mGattServerCallback != null) {
+            mGattServerCallback.setTrace(null);
+        }
+        // Callbacks still recording finish first, the writer drops anything after closing
+        GattTraceWriter traceWriter = mTraceWriter;
+        mTraceWriter = null;
+        try {
+            traceWriter.close();
+            log("Trace stopped: " + traceWriter.getEvents() + " events, "
+                    + traceWriter.getDroppedEvents() + " dropped");
+        } catch (IOException e) {
+            log("Unable to finish trace: " + e.getMessage());
+        }
+    }
+
+    // Logging
+
+    private void log(String msg) {
+        mLogger.log(msg);
+    }
+}
@@ -0,0 +1,73 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.support.v4.app.NotificationCompat;
+
+import com.bignerdranch.android.bluetoothtestbed.R;
+
+/**
+ * Runs the GattServerEngine in the foreground from the time the server is started until it is
+ * stopped, so rotating or leaving the activity keeps every client connected. The activity binds
+ * to reach the engine, starts the service to serve and stops it to close the server.
+ */
+public class GattServerService extends Service {
+
+    private static final int NOTIFICATION_ID = 1;
+
+    private final IBinder mBinder = new LocalBinder();
+    private GattServerEngine mEngine;
+
+    public class LocalBinder extends Binder {
+
+        public GattServerEngine getEngine() {
+            return mEngine;
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mEngine = new GattServerEngine(this);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (mEngine.start()) {
+            startForeground(NOTIFICATION_ID, buildNotification());
+        } else {
+            stopSelf(startId);
+        }
+        // Started again by the activity, not by the system after the process dies
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mEngine.stopTrace();
+        mEngine.stop();
+        mEngine.setLogger(null);
+    }
+
+    private Notification buildNotification() {
+        Intent intent = new Intent(this, ServerActivity.class);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent, 0);
+        return new NotificationCompat.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.bluetooth_server))
+                .setContentText(getString(R.string.server_running))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
+    }
+}
@@ -0,0 +1,130 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the GattServerCallback's work on one thread of its own, in the order it was handed
+ * over, so the binder thread is free for the next callback.
+ *
+ * The queue is bounded. When it is full the binder thread waits for room rather than dropping
+ * work or running it out of order, and each wait is counted, so a worker that can't keep up
+ * shows up in the stats instead of in memory.
+ *
+ * A task that throws is logged and counted, and the worker carries on with the next one.
+ */
+public class GattServerWorker implements Executor {
+
+    private static final String TAG = "GattServerWorker";
+
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final BlockingQueue<Runnable> mQueue;
+    private final Thread mThread;
+
+    private volatile boolean mQuit;
+    private volatile long mExecuted;
+    private volatile long mFailed;
+    private int mMaxQueueDepth;
+    private long mBlockedSubmits;
+
+    public GattServerWorker(String name, int capacity) {
+        mQueue = new ArrayBlockingQueue<>(capacity);
+        mThread = new Thread(this::run, name);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    // Work still queued is dropped, along with anything handed over afterwards
+    public void quit() {
+        mQuit = true;
+        mThread.interrupt();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!mQueue.offer(task)) {
+            synchronized (this) {
+                mBlockedSubmits++;
+            }
+            try {
+                while (!mQueue.offer(task, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (mQuit) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        int depth = mQueue.size();
+        synchronized (this) {
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, depth);
+        }
+    }
+
+    private void run() {
+        while (!mQuit) {
+            Runnable task;
+            try {
+                task = mQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Task failed", e);
+                mFailed++;
+            }
+            mExecuted++;
+        }
+        mQueue.clear();
+    }
+
+    // Stats
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    // Times the binder thread had to wait for room in the queue
+    public synchronized long getBlockedSubmits() {
+        return mBlockedSubmits;
+    }
+
+    public long getExecuted() {
+        return mExecuted;
+    }
+
+    // Tasks that threw, also counted as run
+    public long getFailed() {
+        return mFailed;
+    }
+
+    public synchronized void resetStats() {
+        mMaxQueueDepth = 0;
+        mBlockedSubmits = 0;
+    }
+
+    public synchronized String getReport() {
+        return String.format("Worker: %d tasks run, %d failed, queue depth %d, max %d, binder blocked %d times",
+                mExecuted,
+                mFailed,
+                mQueue.size(),
+                mMaxQueueDepth,
+                mBlockedSubmits);
+    }
+}
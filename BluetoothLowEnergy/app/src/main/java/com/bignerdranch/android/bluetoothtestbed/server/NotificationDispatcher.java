@@ -0,0 +1,93 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Flow control for server notifications and indications. Each connected device gets its own
+ * bounded NotificationOutbox, drained one notification at a time as onNotificationSent arrives,
+ * so notifications are no longer dropped by the stack when several are sent back to back.
+ */
+public class NotificationDispatcher {
+
+    public static final int OUTBOX_CAPACITY = 256;
+
+    private final Map<String, NotificationOutbox> mOutboxes = new ConcurrentHashMap<>();
+    private final NotificationSender mSender;
+
+    public NotificationDispatcher(NotificationSender sender) {
+        mSender = sender;
+    }
+
+    // Returns false if the device's outbox is full and the notification was dropped
+    public boolean enqueue(BluetoothDevice device, OutgoingNotification notification) {
+        NotificationOutbox outbox = getOutbox(device);
+        boolean accepted = outbox.offer(notification);
+        sendNext(device, outbox);
+        return accepted;
+    }
+
+    public void onNotificationSent(BluetoothDevice device) {
+        NotificationOutbox outbox = mOutboxes.get(device.getAddress());
+        if (outbox == null) {
+            // Device already removed
+            return;
+        }
+        outbox.onSent();
+        sendNext(device, outbox);
+    }
+
+    public boolean isIdle(BluetoothDevice device) {
+        NotificationOutbox outbox = mOutboxes.get(device.getAddress());
+        return outbox == null || outbox.isIdle();
+    }
+
+    public void removeDevice(BluetoothDevice device) {
+        NotificationOutbox outbox = mOutboxes.remove(device.getAddress());
+        if (outbox != null) {
+            outbox.clear();
+        }
+    }
+
+    public void clear() {
+        for (NotificationOutbox outbox : mOutboxes.values()) {
+            outbox.clear();
+        }
+        mOutboxes.clear();
+    }
+
+    public long getDroppedNotifications() {
+        long dropped = 0;
+        for (NotificationOutbox outbox : mOutboxes.values()) {
+            dropped += outbox.getDroppedNotifications();
+        }
+        return dropped;
+    }
+
+    private void sendNext(BluetoothDevice device, NotificationOutbox outbox) {
+        // Sent outside the outbox lock, onNotificationSent may arrive before the send returns
+        OutgoingNotification notification;
+        while ((notification = outbox.takeNext()) != null) {
+            if (mSender.sendNotification(device, notification)) {
+                return;
+            }
+            // No callback will come for this one, move on
+            outbox.onSent();
+        }
+    }
+
+    private NotificationOutbox getOutbox(BluetoothDevice device) {
+        String deviceAddress = device.getAddress();
+        NotificationOutbox outbox = mOutboxes.get(deviceAddress);
+        if (outbox == null) {
+            NotificationOutbox newOutbox = new NotificationOutbox(OUTBOX_CAPACITY);
+            outbox = mOutboxes.putIfAbsent(deviceAddress, newOutbox);
+            if (outbox == null) {
+                outbox = newOutbox;
+            }
+        }
+        return outbox;
+    }
+}
@@ -0,0 +1,83 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Pending notifications for a single device. Only one notification is in flight at a time,
+ * the next one is released once onNotificationSent arrives for the previous one.
+ */
+public class NotificationOutbox {
+
+    private final Deque<OutgoingNotification> mPending = new ArrayDeque<>();
+    private final int mCapacity;
+
+    private boolean mInFlight;
+    private long mDroppedNotifications;
+    private long mReplacedNotifications;
+
+    public NotificationOutbox(int capacity) {
+        mCapacity = capacity;
+    }
+
+    // Returns false if the outbox is full and the notification was dropped
+    public synchronized boolean offer(OutgoingNotification notification) {
+        if (notification.isLatestOnly()) {
+            Iterator<OutgoingNotification> iterator = mPending.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getCharacteristicUuid().equals(notification.getCharacteristicUuid())) {
+                    iterator.remove();
+                    mReplacedNotifications++;
+                }
+            }
+        }
+
+        if (mPending.size() >= mCapacity) {
+            mDroppedNotifications++;
+            return false;
+        }
+
+        mPending.add(notification);
+        return true;
+    }
+
+    // Returns the next notification to send and marks it in flight, or null if one is
+    // already in flight or there is nothing to send
+    @Nullable
+    public synchronized OutgoingNotification takeNext() {
+        if (mInFlight || mPending.isEmpty()) {
+            return null;
+        }
+        mInFlight = true;
+        return mPending.poll();
+    }
+
+    public synchronized void onSent() {
+        mInFlight = false;
+    }
+
+    public synchronized void clear() {
+        mPending.clear();
+        mInFlight = false;
+    }
+
+    // Nothing in flight and nothing waiting
+    public synchronized boolean isIdle() {
+        return !mInFlight && mPending.isEmpty();
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    public synchronized long getDroppedNotifications() {
+        return mDroppedNotifications;
+    }
+
+    public synchronized long getReplacedNotifications() {
+        return mReplacedNotifications;
+    }
+}
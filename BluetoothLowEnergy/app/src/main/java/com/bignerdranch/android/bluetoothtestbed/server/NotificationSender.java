@@ -0,0 +1,9 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.bluetooth.BluetoothDevice;
+
+public interface NotificationSender {
+
+    // Returns false if the notification could not be initiated
+    boolean sendNotification(BluetoothDevice device, OutgoingNotification notification);
+}
@@ -0,0 +1,37 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import java.util.UUID;
+
+public class OutgoingNotification {
+
+    private UUID mCharacteristicUuid;
+    private byte[] mValue;
+    private boolean mConfirm;
+    private boolean mLatestOnly;
+
+    // Latest only notifications replace any pending notification for the same characteristic,
+    // for values like the current time where only the newest one matters
+    public OutgoingNotification(UUID characteristicUuid, byte[] value, boolean confirm, boolean latestOnly) {
+        mCharacteristicUuid = characteristicUuid;
+        mValue = value;
+        mConfirm = confirm;
+        mLatestOnly = latestOnly;
+    }
+
+    public UUID getCharacteristicUuid() {
+        return mCharacteristicUuid;
+    }
+
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    // Indications require confirmation, notifications do not
+    public boolean isConfirm() {
+        return mConfirm;
+    }
+
+    public boolean isLatestOnly() {
+        return mLatestOnly;
+    }
+}
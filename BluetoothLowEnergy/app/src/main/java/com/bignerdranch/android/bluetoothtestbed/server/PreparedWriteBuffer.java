@@ -0,0 +1,101 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The prepared writes of one client, staged until it executes or cancels them. Each
+ * characteristic's value is assembled by offset, and nothing is committed until execute, so
+ * a long write is seen whole or not at all.
+ *
+ * Only touched from the binder thread, like the rest of GattServerCallback's state.
+ */
+public class PreparedWriteBuffer {
+
+    private final int mMaxLength;
+    // In the order first prepared
+    private final Map<UUID, StagedValue> mValues = new LinkedHashMap<>();
+
+    public PreparedWriteBuffer(int maxLength) {
+        mMaxLength = maxLength;
+    }
+
+    // Returns the status to answer the prepare request with
+    public int prepare(UUID characteristicUuid, int offset, byte[] value) {
+        StagedValue staged = mValues.get(characteristicUuid);
+        int length = staged == null ? 0 : staged.mLength;
+        // Parts may overwrite what came before, but may not leave a gap
+        if (offset < 0 || offset > length) {
+            return BluetoothGatt.GATT_INVALID_OFFSET;
+        }
+        if (offset + value.length > mMaxLength) {
+            return BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+        }
+
+        if (staged == null) {
+            staged = new StagedValue();
+            mValues.put(characteristicUuid, staged);
+        }
+        staged.write(offset, value);
+        return BluetoothGatt.GATT_SUCCESS;
+    }
+
+    public boolean isEmpty() {
+        return mValues.isEmpty();
+    }
+
+    // The assembled values, emptying the buffer
+    public List<PreparedWrite> execute() {
+        List<PreparedWrite> writes = new ArrayList<>(mValues.size());
+        for (Map.Entry<UUID, StagedValue> entry : mValues.entrySet()) {
+            StagedValue staged = entry.getValue();
+            writes.add(new PreparedWrite(entry.getKey(), Arrays.copyOf(staged.mBytes, staged.mLength)));
+        }
+        mValues.clear();
+        return writes;
+    }
+
+    public void cancel() {
+        mValues.clear();
+    }
+
+    public static class PreparedWrite {
+
+        private final UUID mCharacteristicUuid;
+        private final byte[] mValue;
+
+        PreparedWrite(UUID characteristicUuid, byte[] value) {
+            mCharacteristicUuid = characteristicUuid;
+            mValue = value;
+        }
+
+        public UUID getCharacteristicUuid() {
+            return mCharacteristicUuid;
+        }
+
+        public byte[] getValue() {
+            return mValue;
+        }
+    }
+
+    private static class StagedValue {
+
+        private byte[] mBytes = new byte[64];
+        private int mLength;
+
+        private void write(int offset, byte[] value) {
+            int end = offset + value.length;
+            if (end > mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, Math.max(end, mBytes.length * 2));
+            }
+            System.arraycopy(value, 0, mBytes, offset, value.length);
+            mLength = Math.max(mLength, end);
+        }
+    }
+}
@@ -2,83 +2,84 @@ package com.bignerdranch.android.bluetoothtestbed.server;
 
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattServer;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.AdvertiseCallback;
-import android.bluetooth.le.AdvertiseData;
-import android.bluetooth.le.AdvertiseSettings;
-import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.databinding.DataBindingUtil;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.ParcelUuid;
+import android.os.IBinder;
 import android.support.v7.app.AppCompatActivity;
-import android.util.Log;
-import android.view.View;
+import android.widget.EditText;
 
 import com.bignerdranch.android.bluetoothtestbed.R;
 import com.bignerdranch.android.bluetoothtestbed.databinding.ActivityServerBinding;
-import com.bignerdranch.android.bluetoothtestbed.util.BluetoothUtils;
-import com.bignerdranch.android.bluetoothtestbed.util.StringUtils;
+import com.bignerdranch.android.bluetoothtestbed.log.LogController;
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsController;
 
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.UUID;
-
-import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_ECHO_UUID;
-import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_TIME_UUID;
-import static com.bignerdranch.android.bluetoothtestbed.Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID;
-import static com.bignerdranch.android.bluetoothtestbed.Constants.SERVICE_UUID;
-
-public class ServerActivity extends AppCompatActivity implements GattServerActionListener {
+public class ServerActivity extends AppCompatActivity {
 
     private static final String TAG = "ServerActivity";
 
+    private static final int DEFAULT_TIME_RATE_HZ = 10;
+
     private ActivityServerBinding mBinding;
 
-    private Handler mHandler;
-    private Handler mLogHandler;
-    private List<BluetoothDevice> mDevices;
-    private Map<String, byte[]> mClientConfigurations;
+    private LogController mLogController;
+    private MetricsController mMetricsController;
+
+    // The server lives in the GattServerService, these are set while bound to it
+    private GattServerEngine mEngine;
+    private GattServerController mServerController;
 
-    private BluetoothGattServer mGattServer;
-    private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothLeAdvertiser mBluetoothLeAdvertiser;
 
     // Lifecycle
 
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        mHandler = new Handler();
-        mLogHandler = new Handler(Looper.getMainLooper());
-        mDevices = new ArrayList<>();
-        mClientConfigurations = new HashMap<>();
-
-        mBluetoothManager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
-        mBluetoothAdapter = mBluetoothManager.getAdapter();
+        BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
+        mBluetoothAdapter = bluetoothManager.getAdapter();
 
         mBinding = DataBindingUtil.setContentView(this, R.layout.activity_server);
         mBinding.sendTimestampButton.setOnClickListener(v -> sendTimestamp());
+        mBinding.periodicTimeButton.setOnClickListener(v -> togglePeriodicTime());
         mBinding.restartServerButton.setOnClickListener(v -> restartServer());
+        mBinding.serverStatsButton.setOnClickListener(v -> logServerStats());
+        mBinding.broadcastEchoesCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (mEngine != null) {
+                mServerController.setBroadcastEchoes(isChecked);
+            }
+        });
+        mBinding.batchEchoesCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (mEngine != null) {
+                mServerController.setBatchEchoes(isChecked);
+            }
+        });
+        mBinding.allowCompressionCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (mEngine != null) {
+                mServerController.setAllowCompression(isChecked);
+            }
+        });
+        mBinding.recordTraceCheckBox.setOnCheckedChangeListener(
+                (buttonView, isChecked) -> setRecordingTrace(isChecked));
         mBinding.viewServerLog.clearLogButton.setOnClickListener(v -> clearLogs());
+        mLogController = new LogController(this, TAG, mBinding.viewServerLog);
+        mMetricsController = new MetricsController(mBinding.viewServerMetrics, null);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, GattServerService.class), mServiceConnection, BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        mMetricsController.onResume();
 
         // Check if bluetooth is enabled
         if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
@@ -105,218 +106,139 @@ public class ServerActivity extends AppCompatActivity implements GattServerActio
             return;
         }
 
-        mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
-        GattServerCallback gattServerCallback = new GattServerCallback(this);
-        mGattServer = mBluetoothManager.openGattServer(this, gattServerCallback);
-
         @SuppressLint("HardwareIds")
         String deviceInfo = "Device Info"
                 + "\nName: "+ mBluetoothAdapter.getName()
                 + "\nAddress: " + mBluetoothAdapter.getAddress();
         mBinding.serverDeviceInfoTextView.setText(deviceInfo);
 
-        setupServer();
-        startAdvertising();
+        // Serves until the activity finishes, a server already running carries on as it is
+        startService(new Intent(this, GattServerService.class));
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        stopAdvertising();
-        stopServer();
+        mMetricsController.onPause();
     }
 
-    // GattServer
-
-    private void setupServer() {
-        BluetoothGattService service = new BluetoothGattService(SERVICE_UUID,
-                BluetoothGattService.SERVICE_TYPE_PRIMARY);
-
-        // Write characteristic
-        BluetoothGattCharacteristic writeCharacteristic = new BluetoothGattCharacteristic(
-                CHARACTERISTIC_ECHO_UUID,
-                BluetoothGattCharacteristic.PROPERTY_WRITE,
-                        // Somehow this is not necessary, the client can still enable notifications
-//                        | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_WRITE);
-
-        // Characteristic with Descriptor
-        BluetoothGattCharacteristic notifyCharacteristic = new BluetoothGattCharacteristic(
-                CHARACTERISTIC_TIME_UUID,
-                // Somehow this is not necessary, the client can still enable notifications
-//                BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                0,
-                0);
-
-        BluetoothGattDescriptor clientConfigurationDescriptor = new BluetoothGattDescriptor(
-                CLIENT_CONFIGURATION_DESCRIPTOR_UUID,
-                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
-        clientConfigurationDescriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-
-        notifyCharacteristic.addDescriptor(clientConfigurationDescriptor);
-
-        service.addCharacteristic(writeCharacteristic);
-        service.addCharacteristic(notifyCharacteristic);
-
-        mGattServer.addService(service);
+    @Override
+    protected void onStop() {
+        super.onStop();
+        detachEngine();
+        unbindService(mServiceConnection);
     }
 
-    private void stopServer() {
-        if (mGattServer != null) {
-            mGattServer.close();
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Leaving the server closes it, rotating or switching apps does not
+        if (isFinishing()) {
+            stopService(new Intent(this, GattServerService.class));
         }
     }
 
-    private void restartServer() {
-        stopAdvertising();
-        stopServer();
-        setupServer();
-        startAdvertising();
-    }
-
-    // Advertising
+    // GattServerService
 
-    private void startAdvertising() {
-        if (mBluetoothLeAdvertiser == null) {
-            return;
+    private ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            attachEngine(((GattServerService.LocalBinder) service).getEngine());
         }
 
-        AdvertiseSettings settings = new AdvertiseSettings.Builder()
-                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_BALANCED)
-                .setConnectable(true)
-                .setTimeout(0)
-                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_LOW)
-                .build();
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            detachEngine();
+        }
+    };
 
-        ParcelUuid parcelUuid = new ParcelUuid(SERVICE_UUID);
-        AdvertiseData data = new AdvertiseData.Builder()
-                .setIncludeDeviceName(true)
-                .addServiceUuid(parcelUuid)
-                .build();
+    private void attachEngine(GattServerEngine engine) {
+        GattServerController serverController = engine.getServerController();
+        // Shows the engine's settings, before mEngine is set so the listeners leave them be
+        mBinding.broadcastEchoesCheckBox.setChecked(serverController.isBroadcastEchoes());
+        mBinding.batchEchoesCheckBox.setChecked(serverController.isBatchEchoes());
+        mBinding.allowCompressionCheckBox.setChecked(serverController.isAllowCompression());
+        mBinding.recordTraceCheckBox.setChecked(engine.isRecordingTrace());
 
-        mBluetoothLeAdvertiser.startAdvertising(settings, data, mAdvertiseCallback);
+        mEngine = engine;
+        mServerController = serverController;
+        mEngine.setLogger(mLogController);
+        mMetricsController.setMetrics(serverController.getMetrics());
     }
 
-    private void stopAdvertising() {
-        if (mBluetoothLeAdvertiser != null) {
-            mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallback);
+    private void detachEngine() {
+        if (mEngine == null) {
+            return;
         }
+        mEngine.setLogger(null);
+        mEngine = null;
+        mServerController = null;
+        mMetricsController.setMetrics(null);
     }
 
-    private AdvertiseCallback mAdvertiseCallback = new AdvertiseCallback() {
-        @Override
-        public void onStartSuccess(AdvertiseSettings settingsInEffect) {
-            log("Peripheral advertising started.");
-        }
-
-        @Override
-        public void onStartFailure(int errorCode) {
-            log("Peripheral advertising failed: " + errorCode);
+    private void restartServer() {
+        if (mEngine != null) {
+            mEngine.restart();
         }
-    };
-
-    // Notifications
-
-    private void notifyCharacteristicTime(byte[] value) {
-        notifyCharacteristic(value, CHARACTERISTIC_TIME_UUID);
     }
 
-    private void notifyCharacteristic(byte[] value, UUID uuid) {
-        BluetoothGattService service = mGattServer.getService(SERVICE_UUID);
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
-        log("Notifying characteristic " + characteristic.getUuid().toString()
-                + ", new value: " + StringUtils.byteArrayInHexFormat(value));
-
-        characteristic.setValue(value);
-        // Indications require confirmation, notifications do not
-        boolean confirm = BluetoothUtils.requiresConfirmation(characteristic);
-        for (BluetoothDevice device : mDevices) {
-            if (clientEnabledNotifications(device, characteristic)) {
-                mGattServer.notifyCharacteristicChanged(device, characteristic, confirm);
-            }
+    private void logServerStats() {
+        if (mEngine != null) {
+            mEngine.logServerStats();
         }
     }
 
-    private boolean clientEnabledNotifications(BluetoothDevice device, BluetoothGattCharacteristic characteristic) {
-        List<BluetoothGattDescriptor> descriptorList = characteristic.getDescriptors();
-        BluetoothGattDescriptor descriptor = BluetoothUtils.findClientConfigurationDescriptor(descriptorList);
-        if (descriptor == null) {
-            // There is no client configuration descriptor, treat as true
-            return true;
+    // Trace
+
+    private void setRecordingTrace(boolean recording) {
+        if (mEngine == null) {
+            return;
         }
-        String deviceAddress = device.getAddress();
-        byte[] clientConfiguration = mClientConfigurations.get(deviceAddress);
-        if (clientConfiguration == null) {
-            // Descriptor has not been set
-            return false;
+        if (!recording) {
+            mEngine.stopTrace();
+        } else if (!mEngine.startTrace()) {
+            mBinding.recordTraceCheckBox.setChecked(false);
         }
-
-        byte[] notificationEnabled = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
-        return clientConfiguration.length == notificationEnabled.length
-                && (clientConfiguration[0] & notificationEnabled[0]) == notificationEnabled[0]
-                && (clientConfiguration[1] & notificationEnabled[1]) == notificationEnabled[1];
     }
 
     // Characteristic operations
 
-    private byte[] getTimestampBytes() {
-        @SuppressLint("SimpleDateFormat")
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String timestamp = dateFormat.format(new Date());
-        return StringUtils.bytesFromString(timestamp);
+    private void sendTimestamp() {
+        if (mEngine != null) {
+            mEngine.sendTimestamp();
+        }
     }
 
-    private void sendTimestamp() {
-        byte[] timestampBytes = getTimestampBytes();
-        notifyCharacteristicTime(timestampBytes);
+    private void togglePeriodicTime() {
+        if (mEngine == null) {
+            return;
+        }
+        if (mEngine.isSendingTime()) {
+            mEngine.stopPeriodicTime();
+            return;
+        }
+        int rateHz = readNumber(mBinding.timeRateEditText, DEFAULT_TIME_RATE_HZ);
+        int format = mBinding.currentTimeFormatCheckBox.isChecked()
+                ? TimestampEncoder.FORMAT_CURRENT_TIME
+                : TimestampEncoder.FORMAT_STRING;
+        mEngine.startPeriodicTime(rateHz, format);
+    }
+
+    private static int readNumber(EditText editText, int defaultValue) {
+        try {
+            return Integer.parseInt(editText.getText().toString());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     // Logging
 
     private void clearLogs() {
-        mLogHandler.post(() -> mBinding.viewServerLog.logTextView.setText(""));
-    }
-
-    // Gatt Server Action Listener
-
-    @Override
-    public void log(String msg) {
-        Log.d(TAG, msg);
-        mLogHandler.post(() -> {
-            mBinding.viewServerLog.logTextView.append(msg + "\n");
-            mBinding.viewServerLog.logScrollView.post(() -> mBinding.viewServerLog.logScrollView.fullScroll(View.FOCUS_DOWN));
-        });
-    }
-
-    @Override
-    public void addDevice(BluetoothDevice device) {
-        log("Deviced added: " + device.getAddress());
-        mHandler.post(() -> mDevices.add(device));
-    }
-
-    @Override
-    public void removeDevice(BluetoothDevice device) {
-        log("Deviced removed: " + device.getAddress());
-        mHandler.post(() -> {
-            mDevices.remove(device);
-            String deviceAddress = device.getAddress();
-            mClientConfigurations.remove(deviceAddress);
-        });
-    }
-
-    @Override
-    public void addClientConfiguration(BluetoothDevice device, byte[] value) {
-        String deviceAddress = device.getAddress();
-        mClientConfigurations.put(deviceAddress, value);
+        mLogController.clear();
     }
 
-    @Override
-    public void sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
-        mGattServer.sendResponse(device, requestId, status, 0, null);
-    }
-
-    @Override
-    public void notifyCharacteristicEcho(byte[] value) {
-        notifyCharacteristic(value, CHARACTERISTIC_ECHO_UUID);
+    private void log(String msg) {
+        mLogController.log(msg);
     }
 }
@@ -0,0 +1,99 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsRegistry;
+import com.bignerdranch.android.bluetoothtestbed.metrics.StripedHistogram;
+
+/**
+ * Times how long the server takes to start serving: from the start until its service is added
+ * and it is advertising, when a client can find it and use it. Cold starts open a new server
+ * and start advertising, warm restarts replace the service on a server that keeps advertising.
+ * Each kind is recorded in its own "serving." histogram.
+ *
+ * Service and advertising callbacks arrive on different threads, so every method locks.
+ */
+public class ServingClock {
+
+    public static final long NOT_SERVING = -1;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final StripedHistogram mColdStarts;
+    private final StripedHistogram mWarmStarts;
+
+    private boolean mStarting;
+    private boolean mWarm;
+    private long mStartNanos;
+    private boolean mServiceAdded;
+    private boolean mAdvertising;
+    private long mTimeToServingNanos = NOT_SERVING;
+
+    public ServingClock(MetricsRegistry metrics) {
+        mColdStarts = metrics.latency("serving.cold");
+        mWarmStarts = metrics.latency("serving.warm");
+    }
+
+    public synchronized void startCold(long nowNanos) {
+        start(false, nowNanos);
+        mAdvertising = false;
+    }
+
+    // Advertising carries on from the start before
+    public synchronized void startWarm(long nowNanos) {
+        start(true, nowNanos);
+    }
+
+    private void start(boolean warm, long nowNanos) {
+        mStarting = true;
+        mWarm = warm;
+        mStartNanos = nowNanos;
+        mServiceAdded = false;
+        mTimeToServingNanos = NOT_SERVING;
+    }
+
+    public synchronized void stop() {
+        mStarting = false;
+        mServiceAdded = false;
+        mAdvertising = false;
+        mTimeToServingNanos = NOT_SERVING;
+    }
+
+    // These return true when the server starts serving
+
+    public synchronized boolean onServiceAdded(long nowNanos) {
+        mServiceAdded = true;
+        return checkServing(nowNanos);
+    }
+
+    public synchronized boolean onAdvertisingStarted(long nowNanos) {
+        mAdvertising = true;
+        return checkServing(nowNanos);
+    }
+
+    private boolean checkServing(long nowNanos) {
+        if (!mStarting || !mServiceAdded || !mAdvertising) {
+            return false;
+        }
+        mStarting = false;
+        mTimeToServingNanos = nowNanos - mStartNanos;
+        (mWarm ? mWarmStarts : mColdStarts).record(mTimeToServingNanos);
+        return true;
+    }
+
+    public synchronized boolean isServing() {
+        return mTimeToServingNanos != NOT_SERVING;
+    }
+
+    // Of the last start, or NOT_SERVING until it is serving
+    public synchronized long getTimeToServingNanos() {
+        return mTimeToServingNanos;
+    }
+
+    public synchronized String getReport() {
+        if (mTimeToServingNanos == NOT_SERVING) {
+            return mStarting ? "Starting, not serving yet" : "Not serving";
+        }
+        return String.format("Serving %.1f ms after a %s start",
+                mTimeToServingNanos / (double) NANOS_PER_MILLI,
+                mWarm ? "warm" : "cold");
+    }
+}
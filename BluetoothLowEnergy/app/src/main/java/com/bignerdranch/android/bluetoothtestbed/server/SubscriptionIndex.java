@@ -0,0 +1,119 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.bignerdranch.android.bluetoothtestbed.util.BluetoothUtils;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Connected devices and their Client Characteristic Configuration, per characteristic.
+ *
+ * Updated from the binder thread and read from wherever notifications are sent. Readers get
+ * ready-made copy on write subscriber lists, so notifying costs nothing per non-subscriber.
+ */
+public class SubscriptionIndex {
+
+    public static final int FLAG_NOTIFY = 0x01;
+    public static final int FLAG_INDICATE = 0x02;
+
+    private final List<BluetoothDevice> mConnectedDevices = new CopyOnWriteArrayList<>();
+    private final Map<UUID, List<BluetoothDevice>> mSubscribers = new ConcurrentHashMap<>();
+    // Characteristic UUID to the configuration flags of each subscribed device address
+    private final Map<UUID, Map<String, Integer>> mConfigurations = new ConcurrentHashMap<>();
+    // Characteristics without a configuration descriptor, every connected device receives these
+    private final Set<UUID> mUnconfigurableCharacteristics = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    // Registering a characteristic again, when its service is replaced, keeps its subscribers.
+    // They only receive notifications once they have discovered the new service
+    public void registerCharacteristic(BluetoothGattCharacteristic characteristic) {
+        UUID uuid = characteristic.getUuid();
+        if (BluetoothUtils.findClientConfigurationDescriptor(characteristic.getDescriptors()) == null) {
+            mUnconfigurableCharacteristics.add(uuid);
+        } else {
+            mSubscribers.putIfAbsent(uuid, new CopyOnWriteArrayList<>());
+            mConfigurations.putIfAbsent(uuid, new ConcurrentHashMap<>());
+        }
+    }
+
+    public synchronized void addDevice(BluetoothDevice device) {
+        if (!mConnectedDevices.contains(device)) {
+            mConnectedDevices.add(device);
+        }
+    }
+
+    public synchronized void removeDevice(BluetoothDevice device) {
+        mConnectedDevices.remove(device);
+        String deviceAddress = device.getAddress();
+        for (Map.Entry<UUID, Map<String, Integer>> entry : mConfigurations.entrySet()) {
+            if (entry.getValue().remove(deviceAddress) != null) {
+                mSubscribers.get(entry.getKey()).remove(device);
+            }
+        }
+    }
+
+    public synchronized void setClientConfiguration(BluetoothDevice device, UUID characteristicUuid, byte[] value) {
+        Map<String, Integer> configurations = mConfigurations.get(characteristicUuid);
+        if (configurations == null) {
+            // Not a characteristic with a configuration descriptor
+            return;
+        }
+
+        int flags = value == null || value.length == 0
+                ? 0
+                : value[0] & (FLAG_NOTIFY | FLAG_INDICATE);
+        String deviceAddress = device.getAddress();
+        List<BluetoothDevice> subscribers = mSubscribers.get(characteristicUuid);
+        if (flags == 0) {
+            if (configurations.remove(deviceAddress) != null) {
+                subscribers.remove(device);
+            }
+        } else if (configurations.put(deviceAddress, flags) == null) {
+            subscribers.add(device);
+        }
+    }
+
+    public int getClientConfiguration(BluetoothDevice device, UUID characteristicUuid) {
+        Map<String, Integer> configurations = mConfigurations.get(characteristicUuid);
+        if (configurations == null) {
+            return 0;
+        }
+        Integer flags = configurations.get(device.getAddress());
+        return flags == null ? 0 : flags;
+    }
+
+    // Devices that should receive notifications or indications for the characteristic.
+    // The returned list is a live, thread safe view and must not be modified.
+    public List<BluetoothDevice> getSubscribers(UUID characteristicUuid) {
+        if (mUnconfigurableCharacteristics.contains(characteristicUuid)) {
+            return mConnectedDevices;
+        }
+        List<BluetoothDevice> subscribers = mSubscribers.get(characteristicUuid);
+        return subscribers == null ? Collections.emptyList() : subscribers;
+    }
+
+    public boolean isSubscribed(BluetoothDevice device, UUID characteristicUuid) {
+        if (mUnconfigurableCharacteristics.contains(characteristicUuid)) {
+            return mConnectedDevices.contains(device);
+        }
+        return getClientConfiguration(device, characteristicUuid) != 0;
+    }
+
+    public List<BluetoothDevice> getConnectedDevices() {
+        return mConnectedDevices;
+    }
+
+    public synchronized void clear() {
+        mConnectedDevices.clear();
+        mSubscribers.clear();
+        mConfigurations.clear();
+        mUnconfigurableCharacteristics.clear();
+    }
+}
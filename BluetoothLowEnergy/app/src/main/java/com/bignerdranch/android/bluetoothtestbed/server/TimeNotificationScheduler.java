@@ -0,0 +1,132 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import com.bignerdranch.android.bluetoothtestbed.util.LatencyHistogram;
+
+/**
+ * Paces time notifications at a fixed rate. Ticks are due on a fixed grid from the start, so
+ * a late tick doesn't push back the ones after it, and ticks missed by a whole period are
+ * skipped rather than sent in a burst. How late each tick ran is recorded as jitter.
+ *
+ * Driven from one thread: start and onTick return the delay until the next tick. Ticking
+ * allocates nothing.
+ */
+public class TimeNotificationScheduler {
+
+    public static final long NO_TICK = -1;
+
+    public static final int MIN_RATE_HZ = 1;
+    public static final int MAX_RATE_HZ = 100;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    public interface TimeSender {
+        void sendTime();
+    }
+
+    private final TimeSender mSender;
+    private final LatencyHistogram mJitter = new LatencyHistogram();
+
+    private boolean mRunning;
+    private int mRateHz;
+    private long mPeriodNanos;
+    private long mNextDueNanos;
+
+    // Metrics of the current or last run
+    private long mSent;
+    private long mSkipped;
+    private long mFirstSentNanos;
+    private long mLastSentNanos;
+
+    public TimeNotificationScheduler(TimeSender sender) {
+        mSender = sender;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    // Returns the delay until the next tick, the first one is sent right away
+    public long start(int rateHz, long nowNanos) {
+        mRateHz = Math.max(MIN_RATE_HZ, Math.min(rateHz, MAX_RATE_HZ));
+        mPeriodNanos = NANOS_PER_SECOND / mRateHz;
+        mNextDueNanos = nowNanos;
+        mJitter.reset();
+        mSent = 0;
+        mSkipped = 0;
+        mFirstSentNanos = 0;
+        mLastSentNanos = 0;
+
+        mRunning = true;
+        return onTick(nowNanos);
+    }
+
+    public void stop() {
+        mRunning = false;
+    }
+
+    // Sends the time if it is due, returns the delay until the next tick
+    public long onTick(long nowNanos) {
+        if (!mRunning) {
+            return NO_TICK;
+        }
+        if (nowNanos < mNextDueNanos) {
+            // Woken early
+            return mNextDueNanos - nowNanos;
+        }
+
+        mJitter.record(nowNanos - mNextDueNanos);
+        mSender.sendTime();
+        if (mSent == 0) {
+            mFirstSentNanos = nowNanos;
+        }
+        mLastSentNanos = nowNanos;
+        mSent++;
+
+        mNextDueNanos += mPeriodNanos;
+        if (mNextDueNanos <= nowNanos) {
+            long missed = (nowNanos - mNextDueNanos) / mPeriodNanos + 1;
+            mSkipped += missed;
+            mNextDueNanos += missed * mPeriodNanos;
+        }
+        return mNextDueNanos - nowNanos;
+    }
+
+    // Stats
+
+    public long getSent() {
+        return mSent;
+    }
+
+    public long getSkipped() {
+        return mSkipped;
+    }
+
+    public double getRateHz() {
+        long elapsedNanos = mLastSentNanos - mFirstSentNanos;
+        if (mSent < 2 || elapsedNanos <= 0) {
+            return 0;
+        }
+        return (mSent - 1) * (double) NANOS_PER_SECOND / elapsedNanos;
+    }
+
+    public long getJitterNanos(double percentile) {
+        return mJitter.getValueAtPercentile(percentile);
+    }
+
+    public String getReport() {
+        return String.format("Time notifications: %d Hz target, %.1f Hz actual, sent %d, skipped %d\n"
+                        + "Jitter p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                mRateHz,
+                getRateHz(),
+                mSent,
+                mSkipped,
+                millis(mJitter.getValueAtPercentile(50)),
+                millis(mJitter.getValueAtPercentile(99)),
+                millis(mJitter.getMax()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) NANOS_PER_MILLI;
+    }
+}
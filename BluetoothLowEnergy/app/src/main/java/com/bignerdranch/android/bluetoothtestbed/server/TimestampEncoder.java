@@ -0,0 +1,101 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Encodes the wall clock time for the time characteristic, either as the "yyyy-MM-dd HH:mm:ss"
+ * string the client has always shown, or in the 10 byte layout of the standard Current Time
+ * characteristic (0x2A2B): year (uint16, little endian), month, day, hours, minutes, seconds,
+ * day of week (1 is Monday), fractions of a second in 1/256 units, and adjust reason.
+ *
+ * Fields come from one reused Calendar, and a value is only built when it differs from the
+ * last one, so a string sent several times a second costs one array per second.
+ * Values are never modified once returned. Not thread safe.
+ */
+public class TimestampEncoder {
+
+    public static final int FORMAT_STRING = 0;
+    public static final int FORMAT_CURRENT_TIME = 1;
+
+    public static final int STRING_LENGTH = 19;
+    public static final int CURRENT_TIME_LENGTH = 10;
+
+    private final Calendar mCalendar;
+
+    private int mFormat = FORMAT_STRING;
+    private long mLastKey = Long.MIN_VALUE;
+    private byte[] mLastValue;
+
+    public TimestampEncoder(TimeZone timeZone) {
+        mCalendar = new GregorianCalendar(timeZone);
+    }
+
+    public void setFormat(int format) {
+        if (format != mFormat) {
+            mFormat = format;
+            mLastValue = null;
+        }
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public byte[] encode(long currentTimeMillis) {
+        // The smallest change the format can show
+        long key = mFormat == FORMAT_CURRENT_TIME
+                ? currentTimeMillis * 256 / 1000
+                : currentTimeMillis / 1000;
+        if (mLastValue != null && key == mLastKey) {
+            return mLastValue;
+        }
+
+        mCalendar.setTimeInMillis(currentTimeMillis);
+        mLastValue = mFormat == FORMAT_CURRENT_TIME ? encodeCurrentTime() : encodeString();
+        mLastKey = key;
+        return mLastValue;
+    }
+
+    private byte[] encodeString() {
+        byte[] value = new byte[STRING_LENGTH];
+        putDigits(value, 0, mCalendar.get(Calendar.YEAR), 4);
+        value[4] = '-';
+        putDigits(value, 5, mCalendar.get(Calendar.MONTH) + 1, 2);
+        value[7] = '-';
+        putDigits(value, 8, mCalendar.get(Calendar.DAY_OF_MONTH), 2);
+        value[10] = ' ';
+        putDigits(value, 11, mCalendar.get(Calendar.HOUR_OF_DAY), 2);
+        value[13] = ':';
+        putDigits(value, 14, mCalendar.get(Calendar.MINUTE), 2);
+        value[16] = ':';
+        putDigits(value, 17, mCalendar.get(Calendar.SECOND), 2);
+        return value;
+    }
+
+    private byte[] encodeCurrentTime() {
+        byte[] value = new byte[CURRENT_TIME_LENGTH];
+        int year = mCalendar.get(Calendar.YEAR);
+        value[0] = (byte) year;
+        value[1] = (byte) (year >> 8);
+        value[2] = (byte) (mCalendar.get(Calendar.MONTH) + 1);
+        value[3] = (byte) mCalendar.get(Calendar.DAY_OF_MONTH);
+        value[4] = (byte) mCalendar.get(Calendar.HOUR_OF_DAY);
+        value[5] = (byte) mCalendar.get(Calendar.MINUTE);
+        value[6] = (byte) mCalendar.get(Calendar.SECOND);
+        // Calendar starts the week on Sunday
+        value[7] = (byte) ((mCalendar.get(Calendar.DAY_OF_WEEK) + 5) % 7 + 1);
+        value[8] = (byte) (mCalendar.get(Calendar.MILLISECOND) * 256 / 1000);
+        // No adjustment
+        value[9] = 0;
+        return value;
+    }
+
+    private static void putDigits(byte[] bytes, int offset, int number, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            bytes[offset + i] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+    }
+}
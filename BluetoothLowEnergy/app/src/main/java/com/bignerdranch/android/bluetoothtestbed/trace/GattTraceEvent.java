@@ -0,0 +1,121 @@
+package com.bignerdranch.android.bluetoothtestbed.trace;
+
+import android.support.annotation.Nullable;
+
+import java.util.UUID;
+
+/**
+ * One GATT callback read back from a trace. Which fields mean something depends on the type:
+ * the argument is the request ID of server requests, the new state of connection changes and
+ * the MTU of MTU changes.
+ */
+public class GattTraceEvent {
+
+    // GattServerCallback
+    public static final int SERVER_CONNECTION_STATE = 1;
+    public static final int SERVER_CHARACTERISTIC_READ = 2;
+    public static final int SERVER_CHARACTERISTIC_WRITE = 3;
+    public static final int SERVER_EXECUTE_WRITE = 4;
+    public static final int SERVER_DESCRIPTOR_READ = 5;
+    public static final int SERVER_DESCRIPTOR_WRITE = 6;
+    public static final int SERVER_NOTIFICATION_SENT = 7;
+    public static final int SERVER_MTU_CHANGED = 8;
+
+    // GattClientCallback
+    public static final int CLIENT_CONNECTION_STATE = 16;
+    public static final int CLIENT_SERVICES_DISCOVERED = 17;
+    public static final int CLIENT_CHARACTERISTIC_WRITE = 18;
+    public static final int CLIENT_CHARACTERISTIC_READ = 19;
+    public static final int CLIENT_CHARACTERISTIC_CHANGED = 20;
+    public static final int CLIENT_DESCRIPTOR_WRITE = 21;
+    public static final int CLIENT_MTU_CHANGED = 22;
+
+    public static final int FLAG_PREPARED_WRITE = 0x01;
+    public static final int FLAG_RESPONSE_NEEDED = 0x02;
+    public static final int FLAG_EXECUTE = 0x04;
+
+    private final int mType;
+    private final long mNanos;
+    private final String mAddress;
+    private final int mArgument;
+    private final int mStatus;
+    private final int mOffset;
+    private final int mFlags;
+    private final UUID mCharacteristicUuid;
+    private final UUID mDescriptorUuid;
+    private final byte[] mValue;
+
+    GattTraceEvent(int type,
+                   long nanos,
+                   String address,
+                   int argument,
+                   int status,
+                   int offset,
+                   int flags,
+                   @Nullable UUID characteristicUuid,
+                   @Nullable UUID descriptorUuid,
+                   @Nullable byte[] value) {
+        mType = type;
+        mNanos = nanos;
+        mAddress = address;
+        mArgument = argument;
+        mStatus = status;
+        mOffset = offset;
+        mFlags = flags;
+        mCharacteristicUuid = characteristicUuid;
+        mDescriptorUuid = descriptorUuid;
+        mValue = value;
+    }
+
+    public static boolean isServerEvent(int type) {
+        return type >= SERVER_CONNECTION_STATE && type <= SERVER_MTU_CHANGED;
+    }
+
+    public static boolean isClientEvent(int type) {
+        return type >= CLIENT_CONNECTION_STATE && type <= CLIENT_MTU_CHANGED;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    // Since the trace was started
+    public long getNanos() {
+        return mNanos;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getArgument() {
+        return mArgument;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public int getOffset() {
+        return mOffset;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (mFlags & flag) != 0;
+    }
+
+    @Nullable
+    public UUID getCharacteristicUuid() {
+        return mCharacteristicUuid;
+    }
+
+    @Nullable
+    public UUID getDescriptorUuid() {
+        return mDescriptorUuid;
+    }
+
+    @Nullable
+    public byte[] getValue() {
+        return mValue;
+    }
+}
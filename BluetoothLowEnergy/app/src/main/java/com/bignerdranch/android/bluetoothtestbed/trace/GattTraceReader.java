@@ -0,0 +1,121 @@
+package com.bignerdranch.android.bluetoothtestbed.trace;
+
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+/**
+ * Reads back the events of a trace written by a GattTraceWriter, in the order they were
+ * recorded.
+ *
+ * A trace that was never closed ends in the zeros of its last mapped region. An event the
+ * process died recording has no type yet, so it ends the trace the same way. A file cut short
+ * in the middle of an event ends the trace early too, reported by isTruncated.
+ */
+public class GattTraceReader implements Closeable {
+
+    private final DataInputStream mInput;
+    private final long mStartMillis;
+    private final byte[] mAddress = new byte[GattTraceWriter.ADDRESS_LENGTH];
+    private boolean mTruncated;
+    private boolean mFinished;
+
+    public GattTraceReader(InputStream input) throws IOException {
+        mInput = new DataInputStream(new BufferedInputStream(input));
+        if (mInput.readInt() != GattTraceWriter.MAGIC) {
+            throw new IOException("Not a GATT trace");
+        }
+        int version = mInput.readUnsignedByte();
+        if (version != GattTraceWriter.VERSION) {
+            throw new IOException("Unsupported GATT trace version " + version);
+        }
+        mStartMillis = mInput.readLong();
+    }
+
+    public static GattTraceReader open(File file) throws IOException {
+        return new GattTraceReader(new FileInputStream(file));
+    }
+
+    // Wall clock time the trace was started
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    // True if the last event was cut short
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    // Returns null at the end of the trace
+    @Nullable
+    public GattTraceEvent next() throws IOException {
+        if (mFinished) {
+            return null;
+        }
+
+        int type = mInput.read();
+        if (type <= 0) {
+            mFinished = true;
+            return null;
+        }
+
+        try {
+            int flags = mInput.readUnsignedByte();
+            long nanos = mInput.readLong();
+            mInput.readFully(mAddress);
+            int argument = mInput.readInt();
+            int status = mInput.readUnsignedShort();
+            int offset = mInput.readUnsignedShort();
+            UUID characteristicUuid = (flags & GattTraceWriter.HAS_CHARACTERISTIC) != 0 ? readUuid() : null;
+            UUID descriptorUuid = (flags & GattTraceWriter.HAS_DESCRIPTOR) != 0 ? readUuid() : null;
+            byte[] value = null;
+            if ((flags & GattTraceWriter.HAS_VALUE) != 0) {
+                value = new byte[mInput.readUnsignedShort()];
+                mInput.readFully(value);
+            }
+            return new GattTraceEvent(type,
+                    nanos,
+                    formatAddress(mAddress),
+                    argument,
+                    status,
+                    offset,
+                    flags & 0x0F,
+                    characteristicUuid,
+                    descriptorUuid,
+                    value);
+        } catch (EOFException e) {
+            mTruncated = true;
+            mFinished = true;
+            return null;
+        }
+    }
+
+    private UUID readUuid() throws IOException {
+        return new UUID(mInput.readLong(), mInput.readLong());
+    }
+
+    static String formatAddress(byte[] bytes) {
+        StringBuilder address = new StringBuilder(GattTraceWriter.ADDRESS_LENGTH * 3 - 1);
+        for (int i = 0; i < bytes.length; i++) {
+            if (i > 0) {
+                address.append(':');
+            }
+            address.append(Character.toUpperCase(Character.forDigit(bytes[i] >> 4 & 0xF, 16)));
+            address.append(Character.toUpperCase(Character.forDigit(bytes[i] & 0xF, 16)));
+        }
+        return address.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInput.close();
+    }
+}
@@ -0,0 +1,202 @@
+package com.bignerdranch.android.bluetoothtestbed.trace;
+
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+/**
+ * Appends GATT callbacks to a binary trace file, for reading back with a GattTraceReader.
+ *
+ * The file is written through a memory mapping, one region at a time, so recording is a copy
+ * into memory with no system call, and whatever was recorded reaches the file even if the
+ * process dies before the trace is closed. Closing trims the unused end of the last region.
+ * A record's type is stored last, over the zero it starts out as, so a record the process died
+ * writing reads as the end of the trace.
+ *
+ * Callbacks record from binder threads, so every record takes the writer's lock. Once the
+ * file cannot grow, events are counted as dropped instead.
+ */
+public class GattTraceWriter implements Closeable {
+
+    static final int MAGIC = 0x47545243; // "GTRC"
+    static final int VERSION = 1;
+
+    // Flags stored with the event's own, saying which optional fields follow
+    static final int HAS_CHARACTERISTIC = 0x10;
+    static final int HAS_DESCRIPTOR = 0x20;
+    static final int HAS_VALUE = 0x40;
+
+    static final int ADDRESS_LENGTH = 6;
+    static final int MAX_VALUE_LENGTH = 0xFFFF;
+    // type, flags, nanos, address, argument, status, offset
+    private static final int FIXED_LENGTH = 1 + 1 + 8 + ADDRESS_LENGTH + 4 + 2 + 2;
+    private static final int UUID_LENGTH = 16;
+    private static final int REGION_SIZE = 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mStartNanos = System.nanoTime();
+    private final byte[] mAddress = new byte[ADDRESS_LENGTH];
+
+    private MappedByteBuffer mRegion;
+    private long mRegionPosition;
+    private long mEvents;
+    private long mDroppedEvents;
+    private boolean mClosed;
+
+    public GattTraceWriter(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+        mRegion = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+        mRegion.putInt(MAGIC);
+        mRegion.put((byte) VERSION);
+        mRegion.putLong(System.currentTimeMillis());
+    }
+
+    // A new file in the directory, named after what is being traced and when
+    public static File newTraceFile(File directory, String name) {
+        directory.mkdirs();
+        return new File(directory, name + "-" + System.currentTimeMillis() + ".trace");
+    }
+
+    public synchronized void record(int type,
+                                    @Nullable String address,
+                                    int argument,
+                                    int status,
+                                    int offset,
+                                    int flags,
+                                    @Nullable UUID characteristicUuid,
+                                    @Nullable UUID descriptorUuid,
+                                    @Nullable byte[] value) {
+        long nanos = System.nanoTime() - mStartNanos;
+        int valueLength = value == null ? 0 : Math.min(value.length, MAX_VALUE_LENGTH);
+        int length = FIXED_LENGTH
+                + (characteristicUuid == null ? 0 : UUID_LENGTH)
+                + (descriptorUuid == null ? 0 : UUID_LENGTH)
+                + (value == null ? 0 : 2 + valueLength);
+        if (!reserve(length)) {
+            mDroppedEvents++;
+            return;
+        }
+
+        if (characteristicUuid != null) {
+            flags |= HAS_CHARACTERISTIC;
+        }
+        if (descriptorUuid != null) {
+            flags |= HAS_DESCRIPTOR;
+        }
+        if (value != null) {
+            flags |= HAS_VALUE;
+        }
+
+        // The type goes in once the rest of the record is there
+        int start = mRegion.position();
+        mRegion.put((byte) 0);
+        mRegion.put((byte) flags);
+        mRegion.putLong(nanos);
+        mRegion.put(encodeAddress(address, mAddress));
+        mRegion.putInt(argument);
+        mRegion.putShort((short) status);
+        mRegion.putShort((short) offset);
+        if (characteristicUuid != null) {
+            putUuid(characteristicUuid);
+        }
+        if (descriptorUuid != null) {
+            putUuid(descriptorUuid);
+        }
+        if (value != null) {
+            mRegion.putShort((short) valueLength);
+            mRegion.put(value, 0, valueLength);
+        }
+        mRegion.put(start, (byte) type);
+        mEvents++;
+    }
+
+    // Maps the next region once this one cannot hold the record
+    private boolean reserve(int length) {
+        if (mClosed) {
+            return false;
+        }
+        if (mRegion != null && mRegion.remaining() >= length) {
+            return true;
+        }
+        if (mRegion == null) {
+            // An earlier region could not be mapped
+            return false;
+        }
+
+        long position = mRegionPosition + mRegion.position();
+        try {
+            mRegion = mChannel.map(FileChannel.MapMode.READ_WRITE, position, REGION_SIZE);
+            mRegionPosition = position;
+            return true;
+        } catch (IOException e) {
+            mRegion = null;
+            mRegionPosition = position;
+            return false;
+        }
+    }
+
+    private void putUuid(UUID uuid) {
+        mRegion.putLong(uuid.getMostSignificantBits());
+        mRegion.putLong(uuid.getLeastSignificantBits());
+    }
+
+    // "AA:BB:CC:DD:EE:FF" as six bytes, zeros for anything else
+    static byte[] encodeAddress(@Nullable String address, byte[] bytes) {
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            bytes[i] = 0;
+        }
+        if (address == null || address.length() != ADDRESS_LENGTH * 3 - 1) {
+            return bytes;
+        }
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            int high = Character.digit(address.charAt(i * 3), 16);
+            int low = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (high < 0 || low < 0) {
+                return encodeAddress(null, bytes);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    public synchronized long getEvents() {
+        return mEvents;
+    }
+
+    public synchronized long getDroppedEvents() {
+        return mDroppedEvents;
+    }
+
+    // Length of everything recorded so far, header included
+    public synchronized long getLength() {
+        return mRegion == null ? mRegionPosition : mRegionPosition + mRegion.position();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        long length = getLength();
+        if (mRegion != null) {
+            mRegion.force();
+            mRegion = null;
+            mRegionPosition = length;
+        }
+        try {
+            mChannel.truncate(length);
+        } finally {
+            mFile.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+/**
+ * How well MessageBatchers pack, and what it costs: messages per packet, and how long each
+ * message waited for its batch to be sent. One instance can be shared by several batchers.
+ */
+public class BatchStats {
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final LatencyHistogram mHoldTimes = new LatencyHistogram();
+
+    private long mMessages;
+    private long mPackets;
+
+    synchronized void onFlushed(long[] addedNanos, int count, long nowNanos) {
+        for (int i = 0; i < count; i++) {
+            mHoldTimes.record(nowNanos - addedNanos[i]);
+        }
+        mMessages += count;
+        mPackets++;
+    }
+
+    public synchronized long getMessages() {
+        return mMessages;
+    }
+
+    public synchronized long getPackets() {
+        return mPackets;
+    }
+
+    // Messages per packet
+    public synchronized double getPackingRatio() {
+        return mPackets == 0 ? 0 : mMessages / (double) mPackets;
+    }
+
+    public synchronized long getHoldNanos(double percentile) {
+        return mHoldTimes.getValueAtPercentile(percentile);
+    }
+
+    public synchronized void reset() {
+        mHoldTimes.reset();
+        mMessages = 0;
+        mPackets = 0;
+    }
+
+    public synchronized String getReport() {
+        return String.format("Batching: %d messages in %d packets, %.2f per packet, "
+                        + "held p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+                mMessages,
+                mPackets,
+                getPackingRatio(),
+                millis(mHoldTimes.getValueAtPercentile(50)),
+                millis(mHoldTimes.getValueAtPercentile(99)),
+                millis(mHoldTimes.getMax()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) NANOS_PER_MILLI;
+    }
+}
@@ -10,10 +10,12 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
-import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_ECHO_STRING;
-import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_TIME_STRING;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_CONTROL_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_STATS_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_ECHO_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_TIME_UUID;
 import static com.bignerdranch.android.bluetoothtestbed.Constants.CLIENT_CONFIGURATION_DESCRIPTOR_SHORT_ID;
-import static com.bignerdranch.android.bluetoothtestbed.Constants.SERVICE_STRING;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.SERVICE_UUID;
 
 public class BluetoothUtils {
 
@@ -40,16 +42,16 @@ public class BluetoothUtils {
 
     @Nullable
     public static BluetoothGattCharacteristic findEchoCharacteristic(BluetoothGatt bluetoothGatt) {
-        return findCharacteristic(bluetoothGatt, CHARACTERISTIC_ECHO_STRING);
+        return findCharacteristic(bluetoothGatt, CHARACTERISTIC_ECHO_UUID);
     }
 
     @Nullable
     public static BluetoothGattCharacteristic findTimeCharacteristic(BluetoothGatt bluetoothGatt) {
-        return findCharacteristic(bluetoothGatt, CHARACTERISTIC_TIME_STRING);
+        return findCharacteristic(bluetoothGatt, CHARACTERISTIC_TIME_UUID);
     }
 
     @Nullable
-    private static BluetoothGattCharacteristic findCharacteristic(BluetoothGatt bluetoothGatt, String uuidString) {
+    private static BluetoothGattCharacteristic findCharacteristic(BluetoothGatt bluetoothGatt, UUID uuid) {
         List<BluetoothGattService> serviceList = bluetoothGatt.getServices();
         BluetoothGattService service = BluetoothUtils.findService(serviceList);
         if (service == null) {
@@ -57,8 +59,9 @@ public class BluetoothUtils {
         }
 
         List<BluetoothGattCharacteristic> characteristicList = service.getCharacteristics();
-        for (BluetoothGattCharacteristic characteristic : characteristicList) {
-            if (characteristicMatches(characteristic, uuidString)) {
+        for (int i = 0; i < characteristicList.size(); i++) {
+            BluetoothGattCharacteristic characteristic = characteristicList.get(i);
+            if (characteristicMatches(characteristic, uuid)) {
                 return characteristic;
             }
         }
@@ -67,31 +70,30 @@ public class BluetoothUtils {
     }
 
     public static boolean isEchoCharacteristic(BluetoothGattCharacteristic characteristic) {
-        return characteristicMatches(characteristic, CHARACTERISTIC_ECHO_STRING);
+        return characteristicMatches(characteristic, CHARACTERISTIC_ECHO_UUID);
     }
 
     public static boolean isTimeCharacteristic(BluetoothGattCharacteristic characteristic) {
-        return characteristicMatches(characteristic, CHARACTERISTIC_TIME_STRING);
+        return characteristicMatches(characteristic, CHARACTERISTIC_TIME_UUID);
     }
 
-    private static boolean characteristicMatches(BluetoothGattCharacteristic characteristic, String uuidString) {
-        if (characteristic == null) {
-            return false;
-        }
-        UUID uuid = characteristic.getUuid();
-        return uuidMatches(uuid.toString(), uuidString);
+    public static boolean isControlCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return characteristicMatches(characteristic, CHARACTERISTIC_CONTROL_UUID);
     }
 
-    private static boolean isMatchingCharacteristic(BluetoothGattCharacteristic characteristic) {
+    public static boolean isStatsCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return characteristicMatches(characteristic, CHARACTERISTIC_STATS_UUID);
+    }
+
+    private static boolean characteristicMatches(BluetoothGattCharacteristic characteristic, UUID match) {
         if (characteristic == null) {
             return false;
         }
-        UUID uuid = characteristic.getUuid();
-        return matchesCharacteristicUuidString(uuid.toString());
+        return uuidMatches(characteristic.getUuid(), match);
     }
 
-    private static boolean matchesCharacteristicUuidString(String characteristicIdString) {
-        return uuidMatches(characteristicIdString, CHARACTERISTIC_ECHO_STRING, CHARACTERISTIC_TIME_STRING);
+    private static boolean isMatchingCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return isEchoCharacteristic(characteristic) || isTimeCharacteristic(characteristic);
     }
 
     public static boolean requiresResponse(BluetoothGattCharacteristic characteristic) {
@@ -108,7 +110,8 @@ public class BluetoothUtils {
 
     @Nullable
     public static BluetoothGattDescriptor findClientConfigurationDescriptor(List<BluetoothGattDescriptor> descriptorList) {
-        for(BluetoothGattDescriptor descriptor : descriptorList) {
+        for (int i = 0; i < descriptorList.size(); i++) {
+            BluetoothGattDescriptor descriptor = descriptorList.get(i);
             if (isClientConfigurationDescriptor(descriptor)) {
                 return descriptor;
             }
@@ -121,40 +124,37 @@ public class BluetoothUtils {
         if (descriptor == null) {
             return false;
         }
-        UUID uuid = descriptor.getUuid();
-        String uuidSubstring = uuid.toString().substring(4, 8);
-        return uuidMatches(uuidSubstring, CLIENT_CONFIGURATION_DESCRIPTOR_SHORT_ID);
+        return getShortId(descriptor.getUuid()) == CLIENT_CONFIGURATION_DESCRIPTOR_SHORT_ID;
     }
 
     // Service
 
-    private static boolean matchesServiceUuidString(String serviceIdString) {
-        return uuidMatches(serviceIdString, SERVICE_STRING);
+    public static boolean isTestbedService(BluetoothGattService service) {
+        return service != null && uuidMatches(service.getUuid(), SERVICE_UUID);
     }
 
     @Nullable
     private static BluetoothGattService findService(List<BluetoothGattService> serviceList) {
-        for (BluetoothGattService service : serviceList) {
-            String serviceIdString = service.getUuid()
-                    .toString();
-            if (matchesServiceUuidString(serviceIdString)) {
+        for (int i = 0; i < serviceList.size(); i++) {
+            BluetoothGattService service = serviceList.get(i);
+            if (isTestbedService(service)) {
                 return service;
             }
         }
         return null;
     }
 
-    // String matching
+    // UUID matching
 
-    // If manually filtering, substring to match:
-    // 0000XXXX-0000-0000-0000-000000000000
-    private static boolean uuidMatches(String uuidString, String... matches) {
-        for (String match : matches) {
-            if (uuidString.equalsIgnoreCase(match)) {
-                return true;
-            }
-        }
+    // Compares the raw bits, so nothing is allocated per comparison
+    public static boolean uuidMatches(UUID uuid, UUID match) {
+        return uuid.getLeastSignificantBits() == match.getLeastSignificantBits()
+                && uuid.getMostSignificantBits() == match.getMostSignificantBits();
+    }
 
-        return false;
+    // The 16 bit short ID of a Bluetooth SIG UUID:
+    // 0000XXXX-0000-1000-8000-00805f9b34fb
+    public static int getShortId(UUID uuid) {
+        return (int) ((uuid.getMostSignificantBits() >>> 32) & 0xFFFF);
     }
 }
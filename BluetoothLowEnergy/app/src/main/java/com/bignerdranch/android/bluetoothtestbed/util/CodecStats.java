@@ -0,0 +1,98 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+/**
+ * What PayloadCodecs save and what they cost: bytes before and after encoding, and the
+ * thread CPU time spent on each message. One instance can be shared by several codecs.
+ */
+public class CodecStats {
+
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    private final LatencyHistogram mEncodeCpu = new LatencyHistogram();
+    private final LatencyHistogram mDecodeCpu = new LatencyHistogram();
+
+    private long mEncoded;
+    private long mCompressed;
+    private long mBytesIn;
+    private long mBytesOut;
+    private long mDecodeFailures;
+
+    synchronized void onEncoded(int messageLength, int encodedLength, boolean compressed, long cpuNanos) {
+        mEncodeCpu.record(cpuNanos);
+        mEncoded++;
+        if (compressed) {
+            mCompressed++;
+        }
+        mBytesIn += messageLength;
+        mBytesOut += encodedLength;
+    }
+
+    // Only messages that needed decoding, plain ones pass straight through
+    synchronized void onDecoded(long cpuNanos) {
+        mDecodeCpu.record(cpuNanos);
+    }
+
+    synchronized void onDecodeFailed() {
+        mDecodeFailures++;
+    }
+
+    public synchronized long getEncoded() {
+        return mEncoded;
+    }
+
+    public synchronized long getCompressed() {
+        return mCompressed;
+    }
+
+    public synchronized long getDecoded() {
+        return mDecodeCpu.getCount();
+    }
+
+    public synchronized long getDecodeFailures() {
+        return mDecodeFailures;
+    }
+
+    // Encoded bytes per message byte, below 1 when compression pays off
+    public synchronized double getCompressionRatio() {
+        return mBytesIn == 0 ? 1 : mBytesOut / (double) mBytesIn;
+    }
+
+    public synchronized long getEncodeCpuNanos(double percentile) {
+        return mEncodeCpu.getValueAtPercentile(percentile);
+    }
+
+    public synchronized long getDecodeCpuNanos(double percentile) {
+        return mDecodeCpu.getValueAtPercentile(percentile);
+    }
+
+    public synchronized void reset() {
+        mEncodeCpu.reset();
+        mDecodeCpu.reset();
+        mEncoded = 0;
+        mCompressed = 0;
+        mBytesIn = 0;
+        mBytesOut = 0;
+        mDecodeFailures = 0;
+    }
+
+    public synchronized String getReport() {
+        return String.format("Compression: %d messages, %d compressed, %d bytes to %d, ratio %.2f, "
+                        + "encode cpu p50 %.1f us, p99 %.1f us, "
+                        + "decoded %d, cpu p50 %.1f us, p99 %.1f us, %d failed",
+                mEncoded,
+                mCompressed,
+                mBytesIn,
+                mBytesOut,
+                getCompressionRatio(),
+                micros(mEncodeCpu.getValueAtPercentile(50)),
+                micros(mEncodeCpu.getValueAtPercentile(99)),
+                mDecodeCpu.getCount(),
+                micros(mDecodeCpu.getValueAtPercentile(50)),
+                micros(mDecodeCpu.getValueAtPercentile(99)),
+                mDecodeFailures);
+    }
+
+    private static double micros(long nanos) {
+        return nanos / (double) NANOS_PER_MICRO;
+    }
+}
@@ -0,0 +1,108 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+/**
+ * Fixed size histogram of durations in nanoseconds. Buckets grow with the value, 32 for each
+ * power of two, so any percentile is within about 3% of the recorded value however long the
+ * run, and recording never allocates.
+ *
+ * Not thread safe.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Values below 2 * SUB_BUCKET_COUNT get a bucket each, then SUB_BUCKET_COUNT per power of two
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+
+    private long mTotalCount;
+    private long mTotal;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    public void record(long valueNanos) {
+        long value = Math.max(0, valueNanos);
+        mCounts[getBucketIndex(value)]++;
+        mTotalCount++;
+        mTotal += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mTotalCount = 0;
+        mTotal = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    // Adds everything recorded by the other histogram to this one
+    public void add(LatencyHistogram other) {
+        if (other.mTotalCount == 0) {
+            return;
+        }
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotalCount += other.mTotalCount;
+        mTotal += other.mTotal;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    public long getMin() {
+        return mTotalCount == 0 ? 0 : mMin;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public long getMean() {
+        return mTotalCount == 0 ? 0 : mTotal / mTotalCount;
+    }
+
+    // The value at the given percentile, 0 to 100, rounded up to the end of its bucket
+    public long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(getBucketEnd(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < 2 * SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        // The top SUB_BUCKET_BITS + 1 bits, between SUB_BUCKET_COUNT and 2 * SUB_BUCKET_COUNT - 1
+        int top = (int) (value >>> shift);
+        return shift * SUB_BUCKET_COUNT + top;
+    }
+
+    static long getBucketEnd(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long top = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+}
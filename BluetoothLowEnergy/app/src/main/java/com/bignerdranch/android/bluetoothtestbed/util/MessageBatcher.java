@@ -0,0 +1,136 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.bignerdranch.android.bluetoothtestbed.util.MessageFragmenter.FLAG_FIRST;
+import static com.bignerdranch.android.bluetoothtestbed.util.MessageFragmenter.FLAG_LAST;
+import static com.bignerdranch.android.bluetoothtestbed.util.MessageFragmenter.HEADER_SIZE;
+import static com.bignerdranch.android.bluetoothtestbed.util.MessageFragmenter.SEQUENCE_MASK;
+
+/**
+ * Packs small messages into one packet, so several of them share an ATT write or notification.
+ * A batch starts with BATCH_HEADER, which the MessageFragmenter never produces since first
+ * packets always have sequence 0, followed by each message as a one byte length and its bytes.
+ * A batch of one goes out as a plain single packet message.
+ *
+ * A batch is released when the next message doesn't fit, when it is full, or when the caller
+ * flushes it, on a deadline or when the link goes idle. Not thread safe.
+ */
+public class MessageBatcher {
+
+    public static final int BATCH_HEADER = FLAG_FIRST | FLAG_LAST | SEQUENCE_MASK;
+
+    private static final int LENGTH_SIZE = 1;
+    private static final int MAX_MESSAGE_LENGTH = 0xFF;
+
+    private final BatchStats mStats;
+
+    // Packet being built, header included
+    private byte[] mBuffer;
+    private int mLength = HEADER_SIZE;
+    private long[] mAddedNanos;
+    private int mCount;
+
+    public MessageBatcher(int mtu, BatchStats stats) {
+        mStats = stats;
+        mBuffer = new byte[HEADER_SIZE + MessageFragmenter.getMaxPayloadSize(mtu)];
+        mBuffer[0] = (byte) BATCH_HEADER;
+        mAddedNanos = new long[mBuffer.length];
+    }
+
+    // The MTU only ever grows, so whatever is pending still fits
+    public void setMtu(int mtu) {
+        int capacity = HEADER_SIZE + MessageFragmenter.getMaxPayloadSize(mtu);
+        if (capacity > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, capacity);
+            mAddedNanos = Arrays.copyOf(mAddedNanos, capacity);
+        }
+    }
+
+    // Messages over half a packet save little by sharing one, and are sent on their own
+    public boolean canBatch(byte[] message) {
+        return message.length <= MAX_MESSAGE_LENGTH
+                && LENGTH_SIZE + message.length <= (mBuffer.length - HEADER_SIZE) / 2;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    // When the oldest pending message was added
+    public long getOldestNanos() {
+        return mAddedNanos[0];
+    }
+
+    // Adds a message that canBatch accepted. Returns a packet to send now, or null if the
+    // message is still pending
+    @Nullable
+    public byte[] add(byte[] message, long nowNanos) {
+        byte[] released = null;
+        if (mLength + LENGTH_SIZE + message.length > mBuffer.length) {
+            released = flush(nowNanos);
+        }
+
+        mBuffer[mLength] = (byte) message.length;
+        System.arraycopy(message, 0, mBuffer, mLength + LENGTH_SIZE, message.length);
+        mLength += LENGTH_SIZE + message.length;
+        mAddedNanos[mCount++] = nowNanos;
+
+        // A fresh batch holds at most half a packet, so it can't be full as well
+        if (mLength == mBuffer.length) {
+            return flush(nowNanos);
+        }
+        return released;
+    }
+
+    // Returns the pending packet, or null if there is nothing pending
+    @Nullable
+    public byte[] flush(long nowNanos) {
+        if (mCount == 0) {
+            return null;
+        }
+
+        byte[] packet;
+        if (mCount == 1) {
+            packet = new byte[mLength - LENGTH_SIZE];
+            packet[0] = (byte) (FLAG_FIRST | FLAG_LAST);
+            System.arraycopy(mBuffer, HEADER_SIZE + LENGTH_SIZE, packet, HEADER_SIZE, packet.length - HEADER_SIZE);
+        } else {
+            packet = Arrays.copyOf(mBuffer, mLength);
+        }
+        mStats.onFlushed(mAddedNanos, mCount, nowNanos);
+
+        mLength = HEADER_SIZE;
+        mCount = 0;
+        return packet;
+    }
+
+    public void clear() {
+        mLength = HEADER_SIZE;
+        mCount = 0;
+    }
+
+    public static boolean isBatch(byte[] packet) {
+        return packet != null && packet.length >= HEADER_SIZE && (packet[0] & 0xFF) == BATCH_HEADER;
+    }
+
+    // The messages of a batch packet, a message cut short is dropped
+    public static List<byte[]> unpack(byte[] packet) {
+        List<byte[]> messages = new ArrayList<>();
+        int offset = HEADER_SIZE;
+        while (offset < packet.length) {
+            int length = packet[offset] & 0xFF;
+            offset += LENGTH_SIZE;
+            if (offset + length > packet.length) {
+                break;
+            }
+            messages.add(Arrays.copyOfRange(packet, offset, offset + length));
+            offset += length;
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,51 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.ATT_HEADER_SIZE;
+
+/**
+ * Splits a message into packets that fit in a single ATT write or notification.
+ *
+ * Each packet starts with a one byte header: the first and last packet flags, followed by
+ * a 6 bit sequence number so the MessageReassembler can tell when a packet went missing.
+ */
+public class MessageFragmenter {
+
+    public static final int HEADER_SIZE = 1;
+
+    static final int FLAG_FIRST = 0x80;
+    static final int FLAG_LAST = 0x40;
+    static final int SEQUENCE_MASK = 0x3F;
+
+    public static List<byte[]> fragment(byte[] message, int mtu) {
+        int payloadSize = getMaxPayloadSize(mtu);
+        int packetCount = Math.max(1, (message.length + payloadSize - 1) / payloadSize);
+        List<byte[]> packets = new ArrayList<>(packetCount);
+
+        for (int i = 0; i < packetCount; i++) {
+            int offset = i * payloadSize;
+            int length = Math.min(payloadSize, message.length - offset);
+
+            int header = i & SEQUENCE_MASK;
+            if (i == 0) {
+                header |= FLAG_FIRST;
+            }
+            if (i == packetCount - 1) {
+                header |= FLAG_LAST;
+            }
+
+            byte[] packet = new byte[HEADER_SIZE + length];
+            packet[0] = (byte) header;
+            System.arraycopy(message, offset, packet, HEADER_SIZE, length);
+            packets.add(packet);
+        }
+
+        return packets;
+    }
+
+    public static int getMaxPayloadSize(int mtu) {
+        return mtu - ATT_HEADER_SIZE - HEADER_SIZE;
+    }
+}
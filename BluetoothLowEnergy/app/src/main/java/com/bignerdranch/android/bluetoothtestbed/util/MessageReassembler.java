@@ -0,0 +1,88 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+
+import static com.bignerdranch.android.bluetoothtestbed.util.MessageFragmenter.FLAG_FIRST;
+import static com.bignerdranch.android.bluetoothtestbed.util.MessageFragmenter.FLAG_LAST;
+import static com.bignerdranch.android.bluetoothtestbed.util.MessageFragmenter.HEADER_SIZE;
+import static com.bignerdranch.android.bluetoothtestbed.util.MessageFragmenter.SEQUENCE_MASK;
+
+/**
+ * Rebuilds messages split by the MessageFragmenter. One instance is needed per sender.
+ * Messages longer than the maximum are dropped as soon as they outgrow it.
+ */
+public class MessageReassembler {
+
+    private final int mMaxMessageLength;
+    private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private boolean mInProgress;
+    private int mExpectedSequence;
+    private int mDroppedMessages;
+
+    public MessageReassembler() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public MessageReassembler(int maxMessageLength) {
+        mMaxMessageLength = maxMessageLength;
+    }
+
+    // Returns the complete message once its last packet arrives, null otherwise
+    @Nullable
+    public byte[] onPacket(byte[] packet) {
+        if (packet == null || packet.length < HEADER_SIZE) {
+            return null;
+        }
+
+        int header = packet[0] & 0xFF;
+        int sequence = header & SEQUENCE_MASK;
+
+        if ((header & FLAG_FIRST) == FLAG_FIRST) {
+            if (mInProgress) {
+                // Previous message never finished
+                mDroppedMessages++;
+            }
+            mBuffer.reset();
+            mInProgress = true;
+        } else if (!mInProgress || sequence != mExpectedSequence) {
+            // Missed the start of this message or a packet in the middle of it
+            if (mInProgress) {
+                mDroppedMessages++;
+            }
+            mBuffer.reset();
+            mInProgress = false;
+            return null;
+        }
+
+        if (packet.length - HEADER_SIZE > mMaxMessageLength - mBuffer.size()) {
+            // Too long, the rest of its packets are dropped as if its start was missed
+            mDroppedMessages++;
+            mBuffer.reset();
+            mInProgress = false;
+            return null;
+        }
+
+        mBuffer.write(packet, HEADER_SIZE, packet.length - HEADER_SIZE);
+        mExpectedSequence = (sequence + 1) & SEQUENCE_MASK;
+
+        if ((header & FLAG_LAST) == FLAG_LAST) {
+            mInProgress = false;
+            byte[] message = mBuffer.toByteArray();
+            mBuffer.reset();
+            return message;
+        }
+
+        return null;
+    }
+
+    public int getDroppedMessages() {
+        return mDroppedMessages;
+    }
+
+    public void reset() {
+        mBuffer.reset();
+        mInProgress = false;
+    }
+}
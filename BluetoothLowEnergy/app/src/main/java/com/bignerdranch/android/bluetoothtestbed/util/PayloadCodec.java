@@ -0,0 +1,189 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+import android.os.Debug;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses echo messages with raw deflate and a preset dictionary, so even messages of a few
+ * dozen bytes have something to match against. Used once both ends agreed to
+ * CAPABILITY_COMPRESSION over the control characteristic.
+ *
+ * A compressed message starts with TAG_COMPRESSED. Anything else goes out unchanged, unless
+ * it happens to start with one of the tags, then it gets TAG_ESCAPED in front. Neither tag
+ * is ever the first byte of UTF-8 text, so text that does not compress costs nothing.
+ *
+ * The server sends every message back reversed, so that direction uses REVERSED_DICTIONARY.
+ * Not thread safe, use one codec per thread and direction.
+ */
+public class PayloadCodec {
+
+    public static final int CAPABILITY_COMPRESSION = 0x01;
+
+    public static final int TAG_COMPRESSED = 0xFF;
+    public static final int TAG_ESCAPED = 0xFE;
+
+    // Shorter messages never shrink by enough to pay for the tag
+    public static final int MIN_COMPRESSED_LENGTH = 16;
+    // Keeps a corrupt or hostile message from inflating without bound
+    public static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+
+    // Words and phrases typical of echo messages. Deflate matches closer to the end more
+    // cheaply, so the most common ones come last
+    public static final byte[] DICTIONARY = StringUtils.bytesFromString(
+            "received message sending request response notification characteristic "
+                    + "descriptor service device server client connected disconnected "
+                    + "benchmark stream packet status error time value write read echo "
+                    + "would could should there their about which after before again "
+                    + "Hello, world! Testing 1 2 3. Bluetooth Low Energy testbed. "
+                    + "this that with from have will your what when were been "
+                    + "the and for you are not but all can one was ");
+    public static final byte[] REVERSED_DICTIONARY = ByteUtils.reverse(DICTIONARY);
+
+    private final byte[] mDictionary;
+    private final CodecStats mStats;
+
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private byte[] mBuffer = new byte[0];
+
+    public PayloadCodec(byte[] dictionary, CodecStats stats) {
+        mDictionary = dictionary;
+        mStats = stats;
+    }
+
+    // The capabilities both sides have, from a control characteristic value
+    public static int agree(int capabilities, @Nullable byte[] value) {
+        if (value == null || value.length != 1) {
+            return 0;
+        }
+        return capabilities & value[0];
+    }
+
+    // Encoding
+
+    public byte[] encode(byte[] message) {
+        long startNanos = Debug.threadCpuTimeNanos();
+        byte[] encoded = compress(message);
+        boolean compressed = encoded != null;
+        if (!compressed) {
+            encoded = isTagged(message) ? escape(message) : message;
+        }
+        mStats.onEncoded(message.length, encoded.length, compressed, Debug.threadCpuTimeNanos() - startNanos);
+        return encoded;
+    }
+
+    // Returns null if the message is too short, or would not come out shorter
+    @Nullable
+    private byte[] compress(byte[] message) {
+        if (message.length < MIN_COMPRESSED_LENGTH) {
+            return null;
+        }
+
+        Deflater deflater = getDeflater();
+        deflater.setInput(message);
+        deflater.finish();
+        ensureBuffer(message.length);
+        // Anything that does not fit in one byte less than the message is not worth sending
+        int length = deflater.deflate(mBuffer, 1, message.length - 2);
+        if (!deflater.finished()) {
+            return null;
+        }
+        mBuffer[0] = (byte) TAG_COMPRESSED;
+        return Arrays.copyOf(mBuffer, 1 + length);
+    }
+
+    private static byte[] escape(byte[] message) {
+        byte[] escaped = new byte[message.length + 1];
+        escaped[0] = (byte) TAG_ESCAPED;
+        System.arraycopy(message, 0, escaped, 1, message.length);
+        return escaped;
+    }
+
+    // Decoding
+
+    // Returns null if the message is compressed but corrupt
+    @Nullable
+    public byte[] decode(byte[] payload) {
+        if (!isTagged(payload)) {
+            return payload;
+        }
+
+        long startNanos = Debug.threadCpuTimeNanos();
+        byte[] message = (payload[0] & 0xFF) == TAG_ESCAPED
+                ? Arrays.copyOfRange(payload, 1, payload.length)
+                : inflate(payload);
+        if (message == null) {
+            mStats.onDecodeFailed();
+        } else {
+            mStats.onDecoded(Debug.threadCpuTimeNanos() - startNanos);
+        }
+        return message;
+    }
+
+    @Nullable
+    private byte[] inflate(byte[] payload) {
+        Inflater inflater = getInflater();
+        inflater.setInput(payload, 1, payload.length - 1);
+        ensureBuffer(payload.length * 4);
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == mBuffer.length) {
+                    if (length >= MAX_MESSAGE_LENGTH) {
+                        return null;
+                    }
+                    ensureBuffer(Math.min(length * 2, MAX_MESSAGE_LENGTH));
+                }
+                int inflated = inflater.inflate(mBuffer, length, mBuffer.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // Truncated
+                    return null;
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        }
+        return Arrays.copyOf(mBuffer, length);
+    }
+
+    private static boolean isTagged(byte[] payload) {
+        if (payload.length == 0) {
+            return false;
+        }
+        int first = payload[0] & 0xFF;
+        return first == TAG_COMPRESSED || first == TAG_ESCAPED;
+    }
+
+    // Resetting drops the dictionary, so it is set again for every message
+    private Deflater getDeflater() {
+        if (mDeflater == null) {
+            mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+        } else {
+            mDeflater.reset();
+        }
+        mDeflater.setDictionary(mDictionary);
+        return mDeflater;
+    }
+
+    private Inflater getInflater() {
+        if (mInflater == null) {
+            mInflater = new Inflater(true);
+        } else {
+            mInflater.reset();
+        }
+        mInflater.setDictionary(mDictionary);
+        return mInflater;
+    }
+
+    private void ensureBuffer(int length) {
+        if (mBuffer.length < length) {
+            mBuffer = Arrays.copyOf(mBuffer, length);
+        }
+    }
+}
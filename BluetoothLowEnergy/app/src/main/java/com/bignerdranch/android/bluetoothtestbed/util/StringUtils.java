@@ -1,9 +1,8 @@
 package com.bignerdranch.android.bluetoothtestbed.util;
 
 import android.support.annotation.Nullable;
-import android.util.Log;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This class is meant to be a replacement for TextUtils to allow unit testing
@@ -11,53 +10,111 @@ import java.io.UnsupportedEncodingException;
  */
 public class StringUtils {
 
-    private static final String TAG = "StringUtils";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
-    private static String byteToHex(byte b) {
-        char char1 = Character.forDigit((b & 0xF0) >> 4, 16);
-        char char2 = Character.forDigit((b & 0x0F), 16);
+    private static final char REPLACEMENT_CHARACTER = '\uFFFD';
 
-        return String.format("0x%1$s%2$s", char1, char2);
-    }
+    // Hex
 
     public static String byteArrayInHexFormat(byte[] byteArray) {
         if (byteArray == null) {
             return null;
         }
 
-        StringBuilder stringBuilder = new StringBuilder();
+        StringBuilder stringBuilder = new StringBuilder(getHexFormatLength(byteArray.length));
+        appendHexFormat(byteArray, byteArray.length, stringBuilder);
+        return stringBuilder.toString();
+    }
+
+    // Appends "{ 0x01, 0x02 }" for the first length bytes, without allocating
+    // when the builder already has room
+    public static void appendHexFormat(byte[] byteArray, int length, StringBuilder stringBuilder) {
         stringBuilder.append("{ ");
-        for (int i = 0; i < byteArray.length; i++) {
+        for (int i = 0; i < length; i++) {
             if (i > 0) {
                 stringBuilder.append(", ");
             }
-            String hexString = byteToHex(byteArray[i]);
-            stringBuilder.append(hexString);
+            int b = byteArray[i];
+            stringBuilder.append('0')
+                    .append('x')
+                    .append(HEX_DIGITS[(b >> 4) & 0x0F])
+                    .append(HEX_DIGITS[b & 0x0F]);
         }
         stringBuilder.append(" }");
+    }
 
-        return stringBuilder.toString();
+    public static int getHexFormatLength(int byteCount) {
+        // "{ " + "0xXX" per byte + ", " between bytes + " }"
+        return 4 + byteCount * 4 + Math.max(0, byteCount - 1) * 2;
     }
 
-    public static byte[] bytesFromString(String string) {
-        byte[] stringBytes = new byte[0];
-        try {
-            stringBytes = string.getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Failed to convert message string to byte array");
-        }
+    // UTF-8
 
-        return stringBytes;
+    public static byte[] bytesFromString(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
     }
 
     @Nullable
     public static String stringFromBytes(byte[] bytes) {
-        String byteString = null;
-        try {
-            byteString = new String(bytes, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Unable to convert message bytes to string");
+        if (bytes == null) {
+            return null;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Decodes into a reusable char array, which must hold at least length chars.
+    // Malformed input is replaced with U+FFFD. Returns the number of chars written.
+    public static int decodeUtf8(byte[] bytes, int offset, int length, char[] chars) {
+        int end = offset + length;
+        int i = offset;
+        int count = 0;
+
+        while (i < end) {
+            int b = bytes[i++];
+            if (b >= 0) {
+                chars[count++] = (char) b;
+                continue;
+            }
+
+            int extraBytes;
+            int codePoint;
+            int minimum;
+            if ((b & 0xE0) == 0xC0) {
+                extraBytes = 1;
+                codePoint = b & 0x1F;
+                minimum = 0x80;
+            } else if ((b & 0xF0) == 0xE0) {
+                extraBytes = 2;
+                codePoint = b & 0x0F;
+                minimum = 0x800;
+            } else if ((b & 0xF8) == 0xF0) {
+                extraBytes = 3;
+                codePoint = b & 0x07;
+                minimum = 0x10000;
+            } else {
+                chars[count++] = REPLACEMENT_CHARACTER;
+                continue;
+            }
+
+            int j = 0;
+            while (j < extraBytes && i < end && (bytes[i] & 0xC0) == 0x80) {
+                codePoint = (codePoint << 6) | (bytes[i++] & 0x3F);
+                j++;
+            }
+
+            if (j < extraBytes
+                    || codePoint < minimum
+                    || codePoint > Character.MAX_CODE_POINT
+                    || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                chars[count++] = REPLACEMENT_CHARACTER;
+            } else if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                chars[count++] = Character.highSurrogate(codePoint);
+                chars[count++] = Character.lowSurrogate(codePoint);
+            } else {
+                chars[count++] = (char) codePoint;
+            }
         }
-        return byteString;
+
+        return count;
     }
 }
@@ -0,0 +1,62 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPriorityGovernorTest {
+
+    @Test
+    public void busyQueueAsksForHighPriority() throws Exception {
+        ConnectionPriorityGovernor governor = new ConnectionPriorityGovernor();
+
+        assertEquals(ConnectionPriorityGovernor.NO_CHANGE, governor.update(0, 1, false, 0));
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, governor.update(100, 10, false, 0));
+
+        governor.onPriorityChanged(BluetoothGatt.CONNECTION_PRIORITY_HIGH, 100, 0);
+        assertEquals(ConnectionPriorityGovernor.NO_CHANGE, governor.update(200, 10, false, 100));
+    }
+
+    @Test
+    public void idleLinkDropsBackInSteps() throws Exception {
+        ConnectionPriorityGovernor governor = new ConnectionPriorityGovernor();
+        governor.update(0, 0, true, 0);
+        governor.onPriorityChanged(BluetoothGatt.CONNECTION_PRIORITY_HIGH, 0, 0);
+
+        assertEquals(ConnectionPriorityGovernor.NO_CHANGE, governor.update(1000, 0, false, 0));
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, governor.update(3000, 0, false, 0));
+        governor.onPriorityChanged(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, 3000, 0);
+
+        assertEquals(ConnectionPriorityGovernor.NO_CHANGE, governor.update(10000, 0, false, 0));
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, governor.update(20000, 0, false, 0));
+    }
+
+    @Test
+    public void idleTimeCountsFromTheFirstUpdate() throws Exception {
+        ConnectionPriorityGovernor governor = new ConnectionPriorityGovernor();
+        // Uptime clocks are far from zero
+        long connectedMillis = 123456789L;
+
+        assertEquals(ConnectionPriorityGovernor.NO_CHANGE, governor.update(connectedMillis, 0, false, 0));
+        assertEquals(ConnectionPriorityGovernor.NO_CHANGE, governor.update(connectedMillis + 1000, 0, false, 0));
+        assertEquals(ConnectionPriorityGovernor.NO_CHANGE, governor.update(connectedMillis + 19999, 0, false, 0));
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER, governor.update(connectedMillis + 20000, 0, false, 0));
+    }
+
+    @Test
+    public void switchRecordsThroughputBeforeAndAfter() throws Exception {
+        ConnectionPriorityGovernor governor = new ConnectionPriorityGovernor();
+        governor.update(0, 0, false, 0);
+        governor.update(1000, 10, false, 1000);
+        governor.onPriorityChanged(BluetoothGatt.CONNECTION_PRIORITY_HIGH, 1000, 1000);
+
+        assertEquals("1000 ms: balanced to high, 1000 bytes/sec before, not measured after",
+                governor.getSwitchReports().get(0));
+
+        governor.update(4000, 10, false, 10000);
+        assertEquals("1000 ms: balanced to high, 1000 bytes/sec before, 3000 bytes/sec after",
+                governor.getSwitchReports().get(0));
+    }
+}
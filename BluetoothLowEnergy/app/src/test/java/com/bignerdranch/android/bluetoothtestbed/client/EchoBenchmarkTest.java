@@ -0,0 +1,66 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import com.bignerdranch.android.bluetoothtestbed.util.ByteUtils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EchoBenchmarkTest {
+
+    @Test
+    public void reversedEchoIsMatchedAndTimed() throws Exception {
+        EchoBenchmark benchmark = new EchoBenchmark(64, 2, 2);
+        byte[][] burst = benchmark.nextBurst(1000);
+
+        assertTrue(benchmark.onEcho(ByteUtils.reverse(burst[1]), 6000));
+        assertTrue(benchmark.onEcho(ByteUtils.reverse(burst[0]), 9000));
+
+        assertTrue(benchmark.isComplete());
+        assertEquals(0, benchmark.getLost());
+        assertEquals(8000, benchmark.getLatencyNanos(100));
+    }
+
+    @Test
+    public void unreversedEchoIsNotMatched() throws Exception {
+        EchoBenchmark benchmark = new EchoBenchmark(64, 1, 1);
+        byte[] message = benchmark.nextBurst(0)[0];
+
+        assertFalse(benchmark.onEcho(message, 10));
+        assertEquals(0, benchmark.getReceived());
+    }
+
+    @Test
+    public void corruptedEchoIsCounted() throws Exception {
+        EchoBenchmark benchmark = new EchoBenchmark(64, 1, 1);
+        byte[] echo = ByteUtils.reverse(benchmark.nextBurst(0)[0]);
+        echo[0]++;
+
+        assertTrue(benchmark.onEcho(echo, 10));
+        assertEquals(1, benchmark.getCorrupted());
+        assertEquals(0, benchmark.getReceived());
+    }
+
+    @Test
+    public void nextBurstIsDueOnceAllEchoesAreBack() throws Exception {
+        EchoBenchmark benchmark = new EchoBenchmark(32, 5, 2);
+        byte[][] burst = benchmark.nextBurst(0);
+        assertEquals(2, burst.length);
+
+        benchmark.onEcho(ByteUtils.reverse(burst[0]), 10);
+        assertFalse(benchmark.isBurstDue());
+        benchmark.onEcho(ByteUtils.reverse(burst[1]), 10);
+        assertTrue(benchmark.isBurstDue());
+    }
+
+    @Test
+    public void missingEchoesAreLostWhenFinished() throws Exception {
+        EchoBenchmark benchmark = new EchoBenchmark(32, 3, 3);
+        byte[][] burst = benchmark.nextBurst(0);
+        benchmark.onEcho(ByteUtils.reverse(burst[2]), 10);
+
+        benchmark.finish();
+        assertTrue(benchmark.isComplete());
+        assertEquals(2, benchmark.getLost());
+    }
+}
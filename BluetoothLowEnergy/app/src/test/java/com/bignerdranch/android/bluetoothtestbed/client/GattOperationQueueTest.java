@@ -0,0 +1,132 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GattOperationQueueTest {
+
+    private FakeGattConnection mConnection;
+    private GattOperationQueue mQueue;
+    private BluetoothGattCharacteristic mCharacteristic;
+
+    @Before
+    public void setUp() throws Exception {
+        mConnection = new FakeGattConnection();
+        mQueue = new GattOperationQueue();
+        mQueue.setConnection(mConnection);
+        mCharacteristic = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE);
+    }
+
+    @Test
+    public void onlyOneOperationIsInFlight() throws Exception {
+        mQueue.enqueue(new WriteCharacteristicOperation(mCharacteristic, new byte[]{1}));
+        mQueue.enqueue(new WriteCharacteristicOperation(mCharacteristic, new byte[]{2}));
+        mQueue.enqueue(new RequestMtuOperation(185));
+
+        assertEquals(1, mConnection.mRequests.size());
+        assertEquals(3, mQueue.getQueueDepth());
+    }
+
+    @Test
+    public void nextOperationIsSentWhenCallbackArrives() throws Exception {
+        mQueue.enqueue(new WriteCharacteristicOperation(mCharacteristic, new byte[]{1}));
+        mQueue.enqueue(new RequestMtuOperation(185));
+
+        mQueue.onOperationCompleted(GattOperation.TYPE_WRITE_CHARACTERISTIC, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(2, mConnection.mRequests.size());
+        assertEquals("mtu", mConnection.mRequests.get(1));
+
+        mQueue.onOperationCompleted(GattOperation.TYPE_REQUEST_MTU, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(0, mQueue.getQueueDepth());
+        assertEquals(2, mQueue.getCompletedOperations());
+    }
+
+    @Test
+    public void mismatchedCallbackDoesNotAdvanceQueue() throws Exception {
+        mQueue.enqueue(new WriteCharacteristicOperation(mCharacteristic, new byte[]{1}));
+        mQueue.enqueue(new ReadCharacteristicOperation(mCharacteristic));
+
+        mQueue.onOperationCompleted(GattOperation.TYPE_WRITE_DESCRIPTOR, BluetoothGatt.GATT_SUCCESS);
+        assertEquals(1, mConnection.mRequests.size());
+        assertEquals(2, mQueue.getQueueDepth());
+    }
+
+    @Test
+    public void operationThatFailsToStartIsSkipped() throws Exception {
+        mConnection.mAcceptRequests = false;
+        mQueue.enqueue(new WriteCharacteristicOperation(mCharacteristic, new byte[]{1}));
+        mConnection.mAcceptRequests = true;
+        mQueue.enqueue(new ReadCharacteristicOperation(mCharacteristic));
+
+        assertEquals(1, mQueue.getFailedOperations());
+        assertEquals(1, mQueue.getQueueDepth());
+        assertEquals("read", mConnection.mRequests.get(1));
+    }
+
+    @Test
+    public void operationsWaitForConnection() throws Exception {
+        GattOperationQueue queue = new GattOperationQueue();
+        queue.enqueue(new RequestMtuOperation(185));
+        assertTrue(mConnection.mRequests.isEmpty());
+
+        queue.setConnection(mConnection);
+        assertEquals(1, mConnection.mRequests.size());
+    }
+
+    private static class FakeGattConnection implements GattConnection {
+
+        private List<String> mRequests = new ArrayList<>();
+        private boolean mAcceptRequests = true;
+
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            mRequests.add("write");
+            return mAcceptRequests;
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            mRequests.add("read");
+            return mAcceptRequests;
+        }
+
+        @Override
+        public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+            mRequests.add("descriptor");
+            return mAcceptRequests;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            mRequests.add("mtu");
+            return mAcceptRequests;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            mRequests.add("discover");
+            return mAcceptRequests;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int connectionPriority) {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanResultStoreTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void devicesAreListedOnceInOrderFirstSeen() throws Exception {
+        ScanResultStore store = new ScanResultStore();
+        store.clear(0);
+
+        assertTrue(store.update("B", null, -60, SECOND));
+        assertTrue(store.update("A", null, -70, SECOND));
+        assertFalse(store.update("B", null, -60, 3 * SECOND));
+
+        List<ScanEntry> entries = store.snapshot();
+        assertEquals(2, entries.size());
+        assertEquals("B", entries.get(0).getAddress());
+        assertEquals(3, entries.get(0).getLastSeenSeconds());
+        assertEquals("A", entries.get(1).getAddress());
+    }
+
+    @Test
+    public void rssiIsSmoothed() throws Exception {
+        ScanResultStore store = new ScanResultStore();
+        store.clear(0);
+
+        store.update("A", null, -80, 0);
+        store.update("A", null, -40, 0);
+
+        assertEquals(-70, store.snapshot().get(0).getRssi());
+    }
+
+    @Test
+    public void snapshotIsOnlyTakenAfterChanges() throws Exception {
+        ScanResultStore store = new ScanResultStore();
+        store.clear(0);
+        store.update("A", null, -50, 0);
+        store.update("B", null, -50, 0);
+        List<ScanEntry> first = store.snapshot();
+
+        assertNull(store.snapshot());
+
+        store.update("B", null, -50, SECOND);
+        List<ScanEntry> second = store.snapshot();
+        // Unchanged devices keep their entry
+        assertSame(first.get(0), second.get(0));
+        assertNotSame(first.get(1), second.get(1));
+    }
+}
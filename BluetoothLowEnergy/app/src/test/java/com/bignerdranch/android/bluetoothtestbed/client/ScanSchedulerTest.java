@@ -0,0 +1,129 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import com.bignerdranch.android.bluetoothtestbed.log.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanSchedulerTest {
+
+    private FakeScanner mScanner;
+    private ScanThrottle mThrottle;
+    private ScanScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mScanner = new FakeScanner();
+        mThrottle = new ScanThrottle();
+        mScheduler = new ScanScheduler(mScanner, mThrottle, new SilentLogger(), true);
+    }
+
+    @Test
+    public void switchesToBatchedOnceDiscoverySettles() throws Exception {
+        long delay = mScheduler.start(0, 30000);
+        assertEquals("low latency 0", mScanner.mCalls.get(0));
+
+        mScheduler.onScanResults(1, 1, 1500);
+        // Still finding servers
+        assertEquals(1500, mScheduler.onTick(delay));
+        assertEquals(ScanScheduler.PHASE_LOW_LATENCY, mScheduler.getPhase());
+
+        mScheduler.onTick(3500);
+        assertEquals(ScanScheduler.PHASE_BATCHED, mScheduler.getPhase());
+        assertEquals("stop", mScanner.mCalls.get(1));
+        assertEquals("low power 1000", mScanner.mCalls.get(2));
+        assertEquals(2, mScheduler.getScanStarts());
+    }
+
+    @Test
+    public void stopsAtEndOfPeriod() throws Exception {
+        mScheduler.start(0, 30000);
+
+        assertEquals(ScanScheduler.NO_TICK, mScheduler.onTick(30000));
+        assertEquals(ScanScheduler.PHASE_IDLE, mScheduler.getPhase());
+        assertEquals("stop", mScanner.mCalls.get(mScanner.mCalls.size() - 1));
+    }
+
+    @Test
+    public void batchedResultsAreFlushedBeforeStopping() throws Exception {
+        long delay = mScheduler.start(0, 30000);
+        mScheduler.onTick(delay);
+        assertEquals(ScanScheduler.PHASE_BATCHED, mScheduler.getPhase());
+
+        mScheduler.stop(5000);
+
+        int calls = mScanner.mCalls.size();
+        assertEquals("flush", mScanner.mCalls.get(calls - 2));
+        assertEquals("stop", mScanner.mCalls.get(calls - 1));
+    }
+
+    @Test
+    public void startIsDelayedWhenThrottled() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            mThrottle.recordStart(i * 1000);
+        }
+
+        long delay = mScheduler.start(10000, 30000);
+        assertEquals(ScanScheduler.PHASE_WAITING, mScheduler.getPhase());
+        assertTrue(mScanner.mCalls.isEmpty());
+        assertEquals(1, mScheduler.getThrottledStarts());
+
+        mScheduler.onTick(10000 + delay);
+        assertEquals(ScanScheduler.PHASE_LOW_LATENCY, mScheduler.getPhase());
+    }
+
+    @Test
+    public void throttleAllowsFiveStartsPerWindow() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, mThrottle.getDelayUntilStart(i));
+            mThrottle.recordStart(i);
+        }
+
+        assertTrue(mThrottle.getDelayUntilStart(5) > 30000 - 5);
+        assertEquals(0, mThrottle.getDelayUntilStart(40000));
+    }
+
+    private static class FakeScanner implements Scanner {
+
+        private List<String> mCalls = new ArrayList<>();
+
+        @Override
+        public void startScan(boolean lowLatency, long reportDelayMillis) {
+            mCalls.add((lowLatency ? "low latency " : "low power ") + reportDelayMillis);
+        }
+
+        @Override
+        public void flushPendingScanResults() {
+            mCalls.add("flush");
+        }
+
+        @Override
+        public void stopScan() {
+            mCalls.add("stop");
+        }
+    }
+
+    private static class SilentLogger implements Logger {
+
+        @Override
+        public void log(String message) {
+        }
+
+        @Override
+        public void log(String message, Object detail) {
+        }
+
+        @Override
+        public void logHex(String message, byte[] payload) {
+        }
+
+        @Override
+        public void logUtf8(String message, byte[] payload) {
+        }
+    }
+}
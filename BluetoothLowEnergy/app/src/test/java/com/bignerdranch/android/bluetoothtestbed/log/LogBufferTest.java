@@ -0,0 +1,72 @@
+package com.bignerdranch.android.bluetoothtestbed.log;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogBufferTest {
+
+    @Test
+    public void keepsNewestLines() throws Exception {
+        LogBuffer buffer = new LogBuffer(3);
+        for (int i = 0; i < 5; i++) {
+            buffer.append("line " + i);
+        }
+
+        List<String> lines = new ArrayList<>();
+        assertEquals(3, buffer.snapshot(lines));
+        assertEquals(Arrays.asList("line 2", "line 3", "line 4"), lines);
+        assertEquals(2, buffer.getDroppedLines());
+    }
+
+    @Test
+    public void onlyUnreadLinesCountAsDropped() throws Exception {
+        LogBuffer buffer = new LogBuffer(3);
+        List<String> lines = new ArrayList<>();
+        buffer.append("a");
+        buffer.append("b");
+        buffer.snapshot(lines);
+
+        buffer.append("c");
+        buffer.append("d");
+        buffer.append("e");
+
+        assertEquals(0, buffer.getDroppedLines());
+        assertEquals(3, buffer.snapshot(lines));
+        assertEquals(Arrays.asList("c", "d", "e"), lines);
+    }
+
+    @Test
+    public void snapshotOnlyWhenChanged() throws Exception {
+        LogBuffer buffer = new LogBuffer(3);
+        List<String> lines = new ArrayList<>();
+        buffer.append("a");
+
+        assertEquals(1, buffer.snapshot(lines));
+        assertEquals(-1, buffer.snapshot(lines));
+
+        buffer.clear();
+        assertEquals(0, buffer.snapshot(lines));
+        assertTrue(lines.isEmpty());
+    }
+
+    @Test
+    public void formatsPayloadWhenRead() throws Exception {
+        LogBuffer buffer = new LogBuffer(3);
+        byte[] payload = {0x68, 0x69};
+        buffer.appendHex("Received: ", payload);
+        buffer.appendUtf8("Message: ", payload);
+        buffer.append("Characteristic ", 42);
+
+        // Later changes by the caller do not leak into the log
+        payload[0] = 0;
+
+        List<String> lines = new ArrayList<>();
+        buffer.snapshot(lines);
+        assertEquals(Arrays.asList("Received: { 0x68, 0x69 }", "Message: hi", "Characteristic 42"), lines);
+    }
+}
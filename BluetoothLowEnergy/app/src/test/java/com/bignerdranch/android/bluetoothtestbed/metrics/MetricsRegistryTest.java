@@ -0,0 +1,76 @@
+package com.bignerdranch.android.bluetoothtestbed.metrics;
+
+import com.bignerdranch.android.bluetoothtestbed.util.StringUtils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void countsFromManyThreadsAddUp() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        StripedCounter counter = metrics.counter("callbacks");
+        StripedHistogram histogram = metrics.histogram("sizes");
+        Thread[] threads = new Thread[12];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    counter.increment();
+                    histogram.record(20);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(120000, snapshot.getCounter("callbacks"));
+        assertEquals(120000, snapshot.getHistogram("sizes").getCount());
+        assertEquals(20, snapshot.getHistogram("sizes").getMax());
+    }
+
+    @Test
+    public void sameNameReturnsSameMetric() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+
+        metrics.counter("bytes_in").add(10);
+        metrics.counter("bytes_in").add(5);
+
+        assertSame(metrics.latency("dwell"), metrics.latency("dwell"));
+        assertEquals(15, metrics.snapshot().getCounter("bytes_in"));
+        assertEquals(0, metrics.snapshot().getCounter("never_registered"));
+    }
+
+    @Test
+    public void resetClearsEveryMetric() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("bytes_out").add(100);
+        metrics.latency("dwell").record(5000);
+
+        metrics.reset();
+
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(0, snapshot.getCounter("bytes_out"));
+        assertEquals(0, snapshot.getHistogram("dwell").getCount());
+    }
+
+    @Test
+    public void valueSkipsEmptyMetricsAndKeepsWholeLines() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("a_count").add(7);
+        metrics.counter("b_unused");
+        metrics.latency("c_dwell").record(3000);
+        metrics.histogram("d_unused");
+
+        String value = StringUtils.stringFromBytes(metrics.snapshot().toValue(512));
+        assertEquals("a_count=7\nc_dwell=1,3,3,3\n", value);
+
+        // Only the first line fits
+        value = StringUtils.stringFromBytes(metrics.snapshot().toValue(15));
+        assertEquals("a_count=7\n", value);
+    }
+}
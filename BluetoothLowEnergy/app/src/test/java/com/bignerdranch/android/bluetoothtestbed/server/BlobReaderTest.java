@@ -0,0 +1,55 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BlobReaderTest {
+
+    private static final String DEVICE = "00:11:22:33:44:55";
+    private static final UUID ECHO = UUID.randomUUID();
+
+    @Test
+    public void longValueIsReadInParts() throws Exception {
+        BlobReader reader = new BlobReader();
+        reader.setMtu(DEVICE, 5);
+        byte[] value = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, reader.read(DEVICE, ECHO, 0, value));
+        assertArrayEquals(new byte[]{5, 6, 7, 8}, reader.read(DEVICE, ECHO, 4, value));
+        assertArrayEquals(new byte[]{9, 10}, reader.read(DEVICE, ECHO, 8, value));
+        assertArrayEquals(new byte[0], reader.read(DEVICE, ECHO, 10, value));
+        assertNull(reader.read(DEVICE, ECHO, 11, value));
+    }
+
+    @Test
+    public void readSeesOneVersionAcrossAnUpdate() throws Exception {
+        BlobReader reader = new BlobReader();
+        reader.setMtu(DEVICE, 5);
+        byte[] first = {1, 2, 3, 4, 5, 6};
+        byte[] second = {9, 9, 9, 9, 9, 9, 9, 9, 9};
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, reader.read(DEVICE, ECHO, 0, first));
+        // Published while the read is in progress
+        assertArrayEquals(new byte[]{5, 6}, reader.read(DEVICE, ECHO, 4, second));
+        // The next read starts over on the new value
+        assertArrayEquals(new byte[]{9, 9, 9, 9}, reader.read(DEVICE, ECHO, 0, second));
+        assertArrayEquals(new byte[]{9, 9, 9, 9}, reader.read(DEVICE, ECHO, 4, first));
+    }
+
+    @Test
+    public void removedDeviceForgetsItsReads() throws Exception {
+        BlobReader reader = new BlobReader();
+        reader.setMtu(DEVICE, 5);
+        byte[] first = {1, 2, 3, 4, 5, 6};
+        byte[] second = {7, 7, 7, 7, 7, 7, 7, 7};
+
+        reader.read(DEVICE, ECHO, 0, first);
+        reader.removeDevice(DEVICE);
+
+        // Back to the default MTU, and the pinned value is gone
+        assertArrayEquals(new byte[]{7, 7, 7}, reader.read(DEVICE, ECHO, 5, second));
+    }
+}
@@ -0,0 +1,92 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GattServerWorkerTest {
+
+    @Test
+    public void tasksRunInOrderOffTheCallingThread() throws Exception {
+        GattServerWorker worker = new GattServerWorker("test", 4);
+        List<Integer> order = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        worker.start();
+        for (int i = 0; i < 20; i++) {
+            int task = i;
+            worker.execute(() -> {
+                order.add(task);
+                threads.add(Thread.currentThread());
+            });
+        }
+        worker.execute(done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        worker.quit();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (int) order.get(i));
+            assertNotSame(Thread.currentThread(), threads.get(i));
+        }
+        assertEquals(21, worker.getExecuted());
+    }
+
+    @Test
+    public void failedTaskDoesNotStopTheWorker() throws Exception {
+        GattServerWorker worker = new GattServerWorker("test", 4);
+        CountDownLatch done = new CountDownLatch(1);
+
+        worker.start();
+        worker.execute(() -> {
+            throw new IllegalStateException("test");
+        });
+        worker.execute(done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        worker.quit();
+        assertEquals(1, worker.getFailed());
+        assertTrue(worker.getReport(), worker.getReport().contains("1 failed"));
+    }
+
+    @Test
+    public void fullQueueMakesTheCallerWait() throws Exception {
+        GattServerWorker worker = new GattServerWorker("test", 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        // Nothing runs until the worker starts, so the third task has to wait for room
+        worker.execute(() -> awaitQuietly(release));
+        worker.execute(() -> {
+        });
+        assertEquals(2, worker.getQueueDepth());
+
+        Thread submitter = new Thread(() -> worker.execute(done::countDown));
+        submitter.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (worker.getBlockedSubmits() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, worker.getBlockedSubmits());
+
+        worker.start();
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        worker.quit();
+        assertEquals(2, worker.getMaxQueueDepth());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class NotificationOutboxTest {
+
+    private static final UUID ECHO = UUID.randomUUID();
+    private static final UUID TIME = UUID.randomUUID();
+
+    @Test
+    public void releasesOneNotificationAtATime() throws Exception {
+        NotificationOutbox outbox = new NotificationOutbox(8);
+        outbox.offer(new OutgoingNotification(ECHO, new byte[]{1}, false, false));
+        outbox.offer(new OutgoingNotification(ECHO, new byte[]{2}, false, false));
+
+        assertArrayEquals(new byte[]{1}, outbox.takeNext().getValue());
+        assertNull(outbox.takeNext());
+
+        outbox.onSent();
+        assertArrayEquals(new byte[]{2}, outbox.takeNext().getValue());
+    }
+
+    @Test
+    public void latestOnlyReplacesPendingValue() throws Exception {
+        NotificationOutbox outbox = new NotificationOutbox(8);
+        outbox.offer(new OutgoingNotification(ECHO, new byte[]{1}, false, false));
+        outbox.offer(new OutgoingNotification(TIME, new byte[]{2}, false, true));
+        outbox.offer(new OutgoingNotification(ECHO, new byte[]{3}, false, false));
+        outbox.offer(new OutgoingNotification(TIME, new byte[]{4}, false, true));
+
+        assertEquals(3, outbox.getPendingCount());
+        assertEquals(1, outbox.getReplacedNotifications());
+        outbox.takeNext();
+        outbox.onSent();
+        outbox.takeNext();
+        outbox.onSent();
+        assertArrayEquals(new byte[]{4}, outbox.takeNext().getValue());
+    }
+
+    @Test
+    public void dropsWhenFull() throws Exception {
+        NotificationOutbox outbox = new NotificationOutbox(2);
+
+        assertTrue(outbox.offer(new OutgoingNotification(ECHO, new byte[]{1}, false, false)));
+        assertTrue(outbox.offer(new OutgoingNotification(ECHO, new byte[]{2}, false, false)));
+        assertFalse(outbox.offer(new OutgoingNotification(ECHO, new byte[]{3}, false, false)));
+        assertEquals(1, outbox.getDroppedNotifications());
+    }
+}
@@ -0,0 +1,55 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class PreparedWriteBufferTest {
+
+    private static final UUID ECHO = UUID.randomUUID();
+    private static final UUID TIME = UUID.randomUUID();
+
+    @Test
+    public void partsAreAssembledByOffset() throws Exception {
+        PreparedWriteBuffer buffer = new PreparedWriteBuffer(512);
+
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.prepare(ECHO, 0, new byte[]{1, 2, 3}));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.prepare(TIME, 0, new byte[]{9}));
+        // Overlapping parts overwrite
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.prepare(ECHO, 2, new byte[]{4, 5}));
+
+        List<PreparedWriteBuffer.PreparedWrite> writes = buffer.execute();
+        assertEquals(2, writes.size());
+        assertEquals(ECHO, writes.get(0).getCharacteristicUuid());
+        assertArrayEquals(new byte[]{1, 2, 4, 5}, writes.get(0).getValue());
+        assertArrayEquals(new byte[]{9}, writes.get(1).getValue());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void gapsAndOverlongValuesAreRejected() throws Exception {
+        PreparedWriteBuffer buffer = new PreparedWriteBuffer(4);
+
+        assertEquals(BluetoothGatt.GATT_INVALID_OFFSET, buffer.prepare(ECHO, 1, new byte[]{1}));
+        assertEquals(BluetoothGatt.GATT_SUCCESS, buffer.prepare(ECHO, 0, new byte[]{1, 2, 3}));
+        assertEquals(BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH, buffer.prepare(ECHO, 3, new byte[]{4, 5}));
+
+        assertArrayEquals(new byte[]{1, 2, 3}, buffer.execute().get(0).getValue());
+    }
+
+    @Test
+    public void cancelReleasesEverything() throws Exception {
+        PreparedWriteBuffer buffer = new PreparedWriteBuffer(512);
+        buffer.prepare(ECHO, 0, new byte[100]);
+
+        buffer.cancel();
+
+        assertTrue(buffer.isEmpty());
+        assertTrue(buffer.execute().isEmpty());
+    }
+}
@@ -0,0 +1,65 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsRegistry;
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsSnapshot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ServingClockTest {
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    @Test
+    public void coldStartServesOnceAddedAndAdvertising() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        ServingClock clock = new ServingClock(metrics);
+
+        clock.startCold(0);
+        assertFalse(clock.onServiceAdded(20 * NANOS_PER_MILLI));
+        assertFalse(clock.isServing());
+        assertTrue(clock.onAdvertisingStarted(150 * NANOS_PER_MILLI));
+
+        assertEquals(150 * NANOS_PER_MILLI, clock.getTimeToServingNanos());
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getHistogram("serving.cold").getCount());
+        assertEquals(0, snapshot.getHistogram("serving.warm").getCount());
+    }
+
+    @Test
+    public void warmRestartOnlyWaitsForTheService() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        ServingClock clock = new ServingClock(metrics);
+        clock.startCold(0);
+        clock.onAdvertisingStarted(10 * NANOS_PER_MILLI);
+        clock.onServiceAdded(30 * NANOS_PER_MILLI);
+
+        clock.startWarm(1000 * NANOS_PER_MILLI);
+        assertFalse(clock.isServing());
+        assertTrue(clock.onServiceAdded(1005 * NANOS_PER_MILLI));
+
+        assertEquals(5 * NANOS_PER_MILLI, clock.getTimeToServingNanos());
+        assertEquals(1, metrics.snapshot().getHistogram("serving.warm").getCount());
+        assertTrue(clock.getReport(), clock.getReport().contains("warm"));
+    }
+
+    @Test
+    public void servingIsOnlyRecordedOncePerStart() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        ServingClock clock = new ServingClock(metrics);
+        clock.startCold(0);
+        clock.onServiceAdded(1);
+        clock.onAdvertisingStarted(2);
+
+        // Another service, or advertising started again
+        assertFalse(clock.onServiceAdded(3));
+        assertFalse(clock.onAdvertisingStarted(4));
+        clock.stop();
+        assertFalse(clock.onServiceAdded(5));
+
+        assertFalse(clock.isServing());
+        assertEquals(ServingClock.NOT_SERVING, clock.getTimeToServingNanos());
+        assertEquals(1, metrics.snapshot().getHistogram("serving.cold").getCount());
+    }
+}
@@ -0,0 +1,56 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TimeNotificationSchedulerTest {
+
+    private static final long MILLI = 1000000L;
+
+    private int mSent;
+
+    @Test
+    public void ticksStayOnTheGridWhenLate() throws Exception {
+        TimeNotificationScheduler scheduler = new TimeNotificationScheduler(() -> mSent++);
+
+        assertEquals(10 * MILLI, scheduler.start(100, 0));
+        // Late ticks don't push back the next one
+        assertEquals(7 * MILLI, scheduler.onTick(13 * MILLI));
+        assertEquals(9 * MILLI, scheduler.onTick(21 * MILLI));
+        // Early wake ups send nothing
+        assertEquals(5 * MILLI, scheduler.onTick(25 * MILLI));
+
+        assertEquals(3, mSent);
+        assertEquals(0, scheduler.getSkipped());
+        assertTrue(scheduler.getJitterNanos(100) >= 3 * MILLI);
+    }
+
+    @Test
+    public void missedTicksAreSkipped() throws Exception {
+        TimeNotificationScheduler scheduler = new TimeNotificationScheduler(() -> mSent++);
+        scheduler.start(100, 0);
+
+        assertEquals(5 * MILLI, scheduler.onTick(35 * MILLI));
+
+        assertEquals(2, mSent);
+        assertEquals(2, scheduler.getSkipped());
+    }
+
+    @Test
+    public void rateIsClampedAndMeasured() throws Exception {
+        TimeNotificationScheduler scheduler = new TimeNotificationScheduler(() -> mSent++);
+
+        assertEquals(10 * MILLI, scheduler.start(1000, 0));
+        for (long now = 10 * MILLI; now <= 1000 * MILLI; now += 10 * MILLI) {
+            scheduler.onTick(now);
+        }
+
+        assertEquals(101, scheduler.getSent());
+        assertEquals(100, scheduler.getRateHz(), 0.01);
+
+        scheduler.stop();
+        assertEquals(TimeNotificationScheduler.NO_TICK, scheduler.onTick(1010 * MILLI));
+        assertEquals(101, mSent);
+    }
+}
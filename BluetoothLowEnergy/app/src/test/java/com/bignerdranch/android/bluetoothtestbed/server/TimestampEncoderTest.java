@@ -0,0 +1,36 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class TimestampEncoderTest {
+
+    // Tuesday 2017-03-14 15:09:26.500 UTC
+    private static final long TIME_MILLIS = 1489504166500L;
+
+    @Test
+    public void encodesTheString() throws Exception {
+        TimestampEncoder encoder = new TimestampEncoder(TimeZone.getTimeZone("UTC"));
+
+        byte[] value = encoder.encode(TIME_MILLIS);
+
+        assertEquals("2017-03-14 15:09:26", new String(value, StandardCharsets.UTF_8));
+        // Nothing new to show within the same second
+        assertSame(value, encoder.encode(TIME_MILLIS + 400));
+        assertNotSame(value, encoder.encode(TIME_MILLIS + 600));
+    }
+
+    @Test
+    public void encodesTheCurrentTimeLayout() throws Exception {
+        TimestampEncoder encoder = new TimestampEncoder(TimeZone.getTimeZone("UTC"));
+        encoder.setFormat(TimestampEncoder.FORMAT_CURRENT_TIME);
+
+        byte[] value = encoder.encode(TIME_MILLIS);
+
+        assertArrayEquals(new byte[]{(byte) 0xE1, 0x07, 3, 14, 15, 9, 26, 2, (byte) 128, 0}, value);
+    }
+}
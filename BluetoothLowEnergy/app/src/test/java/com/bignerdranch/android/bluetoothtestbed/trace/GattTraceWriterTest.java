@@ -0,0 +1,155 @@
+package com.bignerdranch.android.bluetoothtestbed.trace;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GattTraceWriterTest {
+
+    private static final String ADDRESS = "0A:1B:2C:3D:4E:5F";
+    private static final UUID CHARACTERISTIC_UUID = UUID.fromString("7D2EA28A-F7BD-485A-BD9D-92AD6ECFE93E");
+    private static final UUID DESCRIPTOR_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void eventsReadBackAsRecorded() throws Exception {
+        File file = mFolder.newFile();
+        try (GattTraceWriter writer = new GattTraceWriter(file)) {
+            writer.record(GattTraceEvent.SERVER_CHARACTERISTIC_WRITE, ADDRESS, 42, 0, 18,
+                    GattTraceEvent.FLAG_PREPARED_WRITE | GattTraceEvent.FLAG_RESPONSE_NEEDED,
+                    CHARACTERISTIC_UUID, null, new byte[]{1, 2, 3});
+            writer.record(GattTraceEvent.SERVER_DESCRIPTOR_WRITE, ADDRESS, 43, 0, 0, 0,
+                    CHARACTERISTIC_UUID, DESCRIPTOR_UUID, new byte[0]);
+            writer.record(GattTraceEvent.CLIENT_MTU_CHANGED, ADDRESS, 185, 0x101, 0, 0, null, null, null);
+            assertEquals(3, writer.getEvents());
+        }
+
+        try (GattTraceReader reader = GattTraceReader.open(file)) {
+            GattTraceEvent write = reader.next();
+            assertEquals(GattTraceEvent.SERVER_CHARACTERISTIC_WRITE, write.getType());
+            assertEquals(ADDRESS, write.getAddress());
+            assertEquals(42, write.getArgument());
+            assertEquals(18, write.getOffset());
+            assertTrue(write.hasFlag(GattTraceEvent.FLAG_PREPARED_WRITE));
+            assertTrue(write.hasFlag(GattTraceEvent.FLAG_RESPONSE_NEEDED));
+            assertFalse(write.hasFlag(GattTraceEvent.FLAG_EXECUTE));
+            assertEquals(CHARACTERISTIC_UUID, write.getCharacteristicUuid());
+            assertNull(write.getDescriptorUuid());
+            assertArrayEquals(new byte[]{1, 2, 3}, write.getValue());
+
+            GattTraceEvent descriptorWrite = reader.next();
+            assertEquals(DESCRIPTOR_UUID, descriptorWrite.getDescriptorUuid());
+            assertArrayEquals(new byte[0], descriptorWrite.getValue());
+            assertTrue(descriptorWrite.getNanos() >= write.getNanos());
+
+            GattTraceEvent mtu = reader.next();
+            assertEquals(185, mtu.getArgument());
+            assertEquals(0x101, mtu.getStatus());
+            assertNull(mtu.getCharacteristicUuid());
+            assertNull(mtu.getValue());
+
+            assertNull(reader.next());
+            assertFalse(reader.isTruncated());
+        }
+    }
+
+    @Test
+    public void unclosedTraceEndsAtTheLastEvent() throws Exception {
+        File file = mFolder.newFile();
+        GattTraceWriter writer = new GattTraceWriter(file);
+        writer.record(GattTraceEvent.SERVER_NOTIFICATION_SENT, ADDRESS, 0, 0, 0, 0, null, null, null);
+
+        // As if the process died, the rest of the mapped region is zeros
+        try (GattTraceReader reader = GattTraceReader.open(file)) {
+            assertEquals(GattTraceEvent.SERVER_NOTIFICATION_SENT, reader.next().getType());
+            assertNull(reader.next());
+            assertFalse(reader.isTruncated());
+        }
+        writer.close();
+        assertEquals(writer.getLength(), file.length());
+    }
+
+    @Test
+    public void eventRecordedHalfWayEndsTheTrace() throws Exception {
+        File file = mFolder.newFile();
+        GattTraceWriter writer = new GattTraceWriter(file);
+        writer.record(GattTraceEvent.SERVER_NOTIFICATION_SENT, ADDRESS, 0, 0, 0, 0, null, null, null);
+        long start = writer.getLength();
+        writer.record(GattTraceEvent.SERVER_CHARACTERISTIC_WRITE, ADDRESS, 0, 0, 0, 0,
+                CHARACTERISTIC_UUID, null, new byte[20]);
+
+        // As if the process died half way through the second, before its type was stored
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(start);
+            randomAccessFile.write(0);
+            randomAccessFile.seek((start + writer.getLength()) / 2);
+            randomAccessFile.write(new byte[(int) (writer.getLength() - start) / 2]);
+        }
+
+        try (GattTraceReader reader = GattTraceReader.open(file)) {
+            assertEquals(GattTraceEvent.SERVER_NOTIFICATION_SENT, reader.next().getType());
+            assertNull(reader.next());
+            assertFalse(reader.isTruncated());
+        }
+        writer.close();
+    }
+
+    @Test
+    public void eventCutShortIsReportedAsTruncated() throws Exception {
+        File file = mFolder.newFile();
+        try (GattTraceWriter writer = new GattTraceWriter(file)) {
+            writer.record(GattTraceEvent.CLIENT_CONNECTION_STATE, ADDRESS, 2, 0, 0, 0, null, null, null);
+            writer.record(GattTraceEvent.CLIENT_CHARACTERISTIC_CHANGED, ADDRESS, 0, 0, 0, 0,
+                    CHARACTERISTIC_UUID, null, new byte[20]);
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(file.length() - 5);
+        }
+
+        try (GattTraceReader reader = GattTraceReader.open(file)) {
+            assertEquals(GattTraceEvent.CLIENT_CONNECTION_STATE, reader.next().getType());
+            assertNull(reader.next());
+            assertTrue(reader.isTruncated());
+        }
+    }
+
+    @Test
+    public void eventsAfterCloseAreDropped() throws Exception {
+        GattTraceWriter writer = new GattTraceWriter(mFolder.newFile());
+        writer.close();
+
+        writer.record(GattTraceEvent.SERVER_MTU_CHANGED, ADDRESS, 185, 0, 0, 0, null, null, null);
+
+        assertEquals(0, writer.getEvents());
+        assertEquals(1, writer.getDroppedEvents());
+    }
+
+    @Test
+    public void addressesRoundTrip() throws Exception {
+        byte[] bytes = GattTraceWriter.encodeAddress("a0:B1:c2:D3:e4:F5", new byte[GattTraceWriter.ADDRESS_LENGTH]);
+        assertEquals("A0:B1:C2:D3:E4:F5", GattTraceReader.formatAddress(bytes));
+
+        byte[] unknown = new byte[GattTraceWriter.ADDRESS_LENGTH];
+        assertEquals("00:00:00:00:00:00",
+                GattTraceReader.formatAddress(GattTraceWriter.encodeAddress("not an address", unknown)));
+        assertEquals("00:00:00:00:00:00",
+                GattTraceReader.formatAddress(GattTraceWriter.encodeAddress("ZZ:B1:C2:D3:E4:F5", unknown)));
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws Exception {
+        byte[] notATrace = Arrays.copyOf("Hello, world!".getBytes("UTF-8"), 32);
+        new GattTraceReader(new ByteArrayInputStream(notATrace));
+    }
+}
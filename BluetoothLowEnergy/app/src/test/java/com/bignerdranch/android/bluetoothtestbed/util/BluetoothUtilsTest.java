@@ -0,0 +1,49 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_ECHO_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_TIME_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID;
+import static org.junit.Assert.*;
+
+public class BluetoothUtilsTest {
+
+    @Test
+    public void equalUuidsMatch() throws Exception {
+        UUID copy = UUID.fromString(CHARACTERISTIC_ECHO_UUID.toString());
+
+        assertTrue(BluetoothUtils.uuidMatches(CHARACTERISTIC_ECHO_UUID, copy));
+        assertTrue(BluetoothUtils.uuidMatches(CHARACTERISTIC_ECHO_UUID, CHARACTERISTIC_ECHO_UUID));
+    }
+
+    @Test
+    public void differentUuidsDoNotMatch() throws Exception {
+        assertFalse(BluetoothUtils.uuidMatches(CHARACTERISTIC_ECHO_UUID, CHARACTERISTIC_TIME_UUID));
+        // Same least significant half
+        assertFalse(BluetoothUtils.uuidMatches(CHARACTERISTIC_ECHO_UUID,
+                new UUID(0, CHARACTERISTIC_ECHO_UUID.getLeastSignificantBits())));
+    }
+
+    @Test
+    public void shortUuidOnlyMatchesItsBaseForm() throws Exception {
+        // 0x2902 in a 128 bit UUID of its own
+        UUID notBased = UUID.fromString("00002902-F7BD-485A-BD9D-92AD6ECFE93E");
+
+        assertEquals(BluetoothUtils.getShortId(CLIENT_CONFIGURATION_DESCRIPTOR_UUID), BluetoothUtils.getShortId(notBased));
+        assertFalse(BluetoothUtils.uuidMatches(CLIENT_CONFIGURATION_DESCRIPTOR_UUID, notBased));
+        assertTrue(BluetoothUtils.uuidMatches(CLIENT_CONFIGURATION_DESCRIPTOR_UUID,
+                UUID.fromString("00002902-0000-1000-8000-00805F9B34FB")));
+    }
+
+    @Test
+    public void shortIdIsTheSixteenBitsAfterTheZeros() throws Exception {
+        assertEquals(0x2902, BluetoothUtils.getShortId(CLIENT_CONFIGURATION_DESCRIPTOR_UUID));
+        assertEquals(0x180F, BluetoothUtils.getShortId(UUID.fromString("0000180F-0000-1000-8000-00805f9b34fb")));
+        assertEquals(0xFFFF, BluetoothUtils.getShortId(UUID.fromString("0000FFFF-0000-1000-8000-00805f9b34fb")));
+        // Anything above the 16 bits is ignored
+        assertEquals(0xBAAD, BluetoothUtils.getShortId(CHARACTERISTIC_ECHO_UUID));
+    }
+}
@@ -0,0 +1,43 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 50; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(25, histogram.getValueAtPercentile(50));
+        assertEquals(50, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getMin());
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000000L);
+        }
+
+        assertEquals(500000000L, histogram.getValueAtPercentile(50), 500000000L * 0.04);
+        assertEquals(990000000L, histogram.getValueAtPercentile(99), 990000000L * 0.04);
+        assertEquals(1000000000L, histogram.getValueAtPercentile(99.9), 1000000000L * 0.04);
+        assertEquals(1000000000L, histogram.getMax());
+    }
+
+    @Test
+    public void bucketsAreContiguous() throws Exception {
+        for (long value = 60; value < 100000; value++) {
+            int index = LatencyHistogram.getBucketIndex(value);
+            assertTrue(value <= LatencyHistogram.getBucketEnd(index));
+            assertTrue(value > LatencyHistogram.getBucketEnd(index - 1));
+        }
+        assertTrue(LatencyHistogram.getBucketIndex(Long.MAX_VALUE) >= 0);
+    }
+}
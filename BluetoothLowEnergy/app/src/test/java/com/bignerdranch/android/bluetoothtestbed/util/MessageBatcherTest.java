@@ -0,0 +1,81 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.DEFAULT_MTU;
+import static org.junit.Assert.*;
+
+public class MessageBatcherTest {
+
+    @Test
+    public void messagesThatDontFitReleaseTheBatch() throws Exception {
+        MessageBatcher batcher = new MessageBatcher(DEFAULT_MTU, new BatchStats());
+
+        for (int i = 0; i < 4; i++) {
+            assertNull(batcher.add(new byte[]{(byte) i, 1, 2}, 0));
+        }
+        byte[] packet = batcher.add(new byte[]{4, 1, 2}, 0);
+
+        assertTrue(packet.length <= DEFAULT_MTU - 3);
+        assertTrue(MessageBatcher.isBatch(packet));
+        List<byte[]> messages = MessageBatcher.unpack(packet);
+        assertEquals(4, messages.size());
+        assertArrayEquals(new byte[]{3, 1, 2}, messages.get(3));
+    }
+
+    @Test
+    public void fullBatchIsReleasedAtOnce() throws Exception {
+        MessageBatcher batcher = new MessageBatcher(DEFAULT_MTU, new BatchStats());
+
+        assertNull(batcher.add(new byte[8], 0));
+        assertNull(batcher.add(new byte[8], 0));
+        byte[] packet = batcher.add(new byte[0], 0);
+
+        assertEquals(DEFAULT_MTU - 3, packet.length);
+        assertEquals(3, MessageBatcher.unpack(packet).size());
+        assertTrue(batcher.isEmpty());
+    }
+
+    @Test
+    public void batchOfOneIsAPlainMessage() throws Exception {
+        MessageBatcher batcher = new MessageBatcher(DEFAULT_MTU, new BatchStats());
+        batcher.add(new byte[]{1, 2, 3}, 0);
+
+        byte[] packet = batcher.flush(0);
+
+        assertFalse(MessageBatcher.isBatch(packet));
+        assertArrayEquals(new byte[]{1, 2, 3}, new MessageReassembler().onPacket(packet));
+        assertNull(batcher.flush(0));
+    }
+
+    @Test
+    public void largeMessagesAreNotBatched() throws Exception {
+        MessageBatcher batcher = new MessageBatcher(DEFAULT_MTU, new BatchStats());
+
+        assertTrue(batcher.canBatch(new byte[8]));
+        assertFalse(batcher.canBatch(new byte[9]));
+
+        batcher.setMtu(517);
+        assertTrue(batcher.canBatch(new byte[255]));
+        assertFalse(batcher.canBatch(new byte[256]));
+    }
+
+    @Test
+    public void statsCountPackingAndHoldTime() throws Exception {
+        BatchStats stats = new BatchStats();
+        MessageBatcher batcher = new MessageBatcher(DEFAULT_MTU, stats);
+
+        batcher.add(new byte[]{1}, 0);
+        batcher.add(new byte[]{2}, 2000000);
+        batcher.flush(5000000);
+        batcher.add(new byte[]{3}, 6000000);
+        batcher.flush(6000000);
+
+        assertEquals(3, stats.getMessages());
+        assertEquals(2, stats.getPackets());
+        assertEquals(1.5, stats.getPackingRatio(), 0.001);
+        assertTrue(stats.getHoldNanos(100) >= 5000000);
+    }
+}
@@ -0,0 +1,81 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.DEFAULT_MTU;
+import static org.junit.Assert.*;
+
+public class MessageFragmenterTest {
+
+    @Test
+    public void packetsFitInMtu() throws Exception {
+        List<byte[]> packets = MessageFragmenter.fragment(new byte[100], DEFAULT_MTU);
+
+        assertEquals(6, packets.size());
+        for (byte[] packet : packets) {
+            assertTrue(packet.length <= DEFAULT_MTU - 3);
+        }
+    }
+
+    @Test
+    public void reassemblesLargeMessage() throws Exception {
+        byte[] message = new byte[4096];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+
+        MessageReassembler reassembler = new MessageReassembler();
+        byte[] result = null;
+        for (byte[] packet : MessageFragmenter.fragment(message, DEFAULT_MTU)) {
+            assertNull(result);
+            result = reassembler.onPacket(packet);
+        }
+
+        assertArrayEquals(message, result);
+    }
+
+    @Test
+    public void emptyMessageIsOnePacket() throws Exception {
+        List<byte[]> packets = MessageFragmenter.fragment(new byte[0], DEFAULT_MTU);
+
+        assertEquals(1, packets.size());
+        assertArrayEquals(new byte[0], new MessageReassembler().onPacket(packets.get(0)));
+    }
+
+    @Test
+    public void missingPacketDropsMessage() throws Exception {
+        List<byte[]> packets = MessageFragmenter.fragment(new byte[60], DEFAULT_MTU);
+        MessageReassembler reassembler = new MessageReassembler();
+
+        assertNull(reassembler.onPacket(packets.get(0)));
+        assertNull(reassembler.onPacket(packets.get(2)));
+        assertNull(reassembler.onPacket(packets.get(3)));
+        assertEquals(1, reassembler.getDroppedMessages());
+
+        // The next message still comes through
+        byte[] message = {1, 2, 3};
+        assertArrayEquals(message, reassembler.onPacket(MessageFragmenter.fragment(message, DEFAULT_MTU).get(0)));
+    }
+
+    @Test
+    public void messageOverTheMaximumIsDropped() throws Exception {
+        MessageReassembler reassembler = new MessageReassembler(100);
+        List<byte[]> packets = MessageFragmenter.fragment(new byte[101], DEFAULT_MTU);
+
+        for (byte[] packet : packets) {
+            assertNull(reassembler.onPacket(packet));
+        }
+        assertEquals(1, reassembler.getDroppedMessages());
+
+        // One at the maximum still comes through
+        byte[] message = new byte[100];
+        byte[] result = null;
+        for (byte[] packet : MessageFragmenter.fragment(message, DEFAULT_MTU)) {
+            result = reassembler.onPacket(packet);
+        }
+        assertArrayEquals(message, result);
+        assertEquals(1, reassembler.getDroppedMessages());
+    }
+}
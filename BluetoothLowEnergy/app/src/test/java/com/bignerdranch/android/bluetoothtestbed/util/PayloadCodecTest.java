@@ -0,0 +1,86 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PayloadCodecTest {
+
+    private static final byte[] TEXT = StringUtils.bytesFromString(
+            "Hello, world! Sending the message to the server and back again, would you echo it?");
+
+    @Test
+    public void repetitiveTextIsCompressed() throws Exception {
+        CodecStats stats = new CodecStats();
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.DICTIONARY, stats);
+
+        byte[] encoded = codec.encode(TEXT);
+
+        assertEquals(PayloadCodec.TAG_COMPRESSED, encoded[0] & 0xFF);
+        assertTrue(encoded.length < TEXT.length / 2);
+        assertArrayEquals(TEXT, new PayloadCodec(PayloadCodec.DICTIONARY, stats).decode(encoded));
+        assertEquals(1, stats.getCompressed());
+        assertTrue(stats.getCompressionRatio() < 0.5);
+    }
+
+    @Test
+    public void reversedDictionaryMatchesEchoes() throws Exception {
+        byte[] echo = ByteUtils.reverse(TEXT);
+        PayloadCodec plain = new PayloadCodec(PayloadCodec.DICTIONARY, new CodecStats());
+        PayloadCodec reversed = new PayloadCodec(PayloadCodec.REVERSED_DICTIONARY, new CodecStats());
+
+        byte[] encoded = reversed.encode(echo);
+
+        assertTrue(encoded.length < plain.encode(echo).length);
+        assertArrayEquals(echo, reversed.decode(encoded));
+    }
+
+    @Test
+    public void shortAndIncompressibleMessagesPassThrough() throws Exception {
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.DICTIONARY, new CodecStats());
+        byte[] shortText = StringUtils.bytesFromString("Hi there");
+        byte[] noise = new byte[100];
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = (byte) (i * 97 + (i >> 2) * 31);
+        }
+        noise[0] = 1;
+
+        assertSame(shortText, codec.encode(shortText));
+        assertSame(noise, codec.encode(noise));
+        assertSame(noise, codec.decode(noise));
+    }
+
+    @Test
+    public void messagesStartingWithATagAreEscaped() throws Exception {
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.DICTIONARY, new CodecStats());
+        byte[] message = {(byte) PayloadCodec.TAG_COMPRESSED, 1, 2};
+
+        byte[] encoded = codec.encode(message);
+
+        assertEquals(PayloadCodec.TAG_ESCAPED, encoded[0] & 0xFF);
+        assertArrayEquals(message, codec.decode(encoded));
+    }
+
+    @Test
+    public void corruptMessageIsRejected() throws Exception {
+        CodecStats stats = new CodecStats();
+        PayloadCodec codec = new PayloadCodec(PayloadCodec.DICTIONARY, stats);
+        byte[] encoded = codec.encode(TEXT);
+
+        assertNull(codec.decode(Arrays.copyOf(encoded, encoded.length / 2)));
+        assertEquals(1, stats.getDecodeFailures());
+        // The codec is still usable after
+        assertArrayEquals(TEXT, codec.decode(encoded));
+    }
+
+    @Test
+    public void onlySharedCapabilitiesAreAgreed() throws Exception {
+        assertEquals(PayloadCodec.CAPABILITY_COMPRESSION,
+                PayloadCodec.agree(PayloadCodec.CAPABILITY_COMPRESSION, new byte[]{0x03}));
+        assertEquals(0, PayloadCodec.agree(PayloadCodec.CAPABILITY_COMPRESSION, new byte[]{0x02}));
+        assertEquals(0, PayloadCodec.agree(PayloadCodec.CAPABILITY_COMPRESSION, new byte[0]));
+        assertEquals(0, PayloadCodec.agree(PayloadCodec.CAPABILITY_COMPRESSION, null));
+    }
+}
@@ -0,0 +1,43 @@
+package com.bignerdranch.android.bluetoothtestbed.util;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class StringUtilsTest {
+
+    @Test
+    public void hexFormat() throws Exception {
+        assertEquals("{ 0x00, 0x7f, 0xa5, 0xff }",
+                StringUtils.byteArrayInHexFormat(new byte[]{0x00, 0x7F, (byte) 0xA5, (byte) 0xFF}));
+        assertEquals("{  }", StringUtils.byteArrayInHexFormat(new byte[0]));
+    }
+
+    @Test
+    public void hexFormatLength() throws Exception {
+        byte[] bytes = new byte[37];
+        assertEquals(StringUtils.byteArrayInHexFormat(bytes).length(), StringUtils.getHexFormatLength(bytes.length));
+    }
+
+    @Test
+    public void decodesUtf8() throws Exception {
+        String text = "echo \u00e9\u4e2d \ud83d\ude00";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        char[] chars = new char[bytes.length];
+
+        int length = StringUtils.decodeUtf8(bytes, 0, bytes.length, chars);
+        assertEquals(text, new String(chars, 0, length));
+    }
+
+    @Test
+    public void replacesMalformedUtf8() throws Exception {
+        // Truncated 3 byte sequence, then a stray continuation byte
+        byte[] bytes = {0x61, (byte) 0xE4, (byte) 0xB8, 0x62, (byte) 0x80};
+        char[] chars = new char[bytes.length];
+
+        int length = StringUtils.decodeUtf8(bytes, 0, bytes.length, chars);
+        assertEquals("a\ufffdb\ufffd", new String(chars, 0, length));
+    }
+}
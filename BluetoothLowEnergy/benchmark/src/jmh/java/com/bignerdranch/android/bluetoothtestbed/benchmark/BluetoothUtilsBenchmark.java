@@ -0,0 +1,64 @@
+package com.bignerdranch.android.bluetoothtestbed.benchmark;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import com.bignerdranch.android.bluetoothtestbed.client.GattCharacteristicIndex;
+import com.bignerdranch.android.bluetoothtestbed.util.BluetoothUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+@State(Scope.Thread)
+public class BluetoothUtilsBenchmark {
+
+    private BluetoothGatt mGatt;
+    private List<BluetoothGattDescriptor> mDescriptors;
+    private GattCharacteristicIndex mIndex;
+
+    @Setup
+    public void setUp() {
+        mGatt = Fixtures.newGatt();
+        BluetoothGattCharacteristic timeCharacteristic = BluetoothUtils.findTimeCharacteristic(mGatt);
+        mDescriptors = timeCharacteristic.getDescriptors();
+        mIndex = new GattCharacteristicIndex();
+        mIndex.resolve(mGatt.getServices());
+    }
+
+    @Benchmark
+    public BluetoothGattCharacteristic findEchoCharacteristic() {
+        return BluetoothUtils.findEchoCharacteristic(mGatt);
+    }
+
+    @Benchmark
+    public BluetoothGattCharacteristic findTimeCharacteristic() {
+        return BluetoothUtils.findTimeCharacteristic(mGatt);
+    }
+
+    @Benchmark
+    public List<BluetoothGattCharacteristic> findCharacteristics() {
+        return BluetoothUtils.findCharacteristics(mGatt);
+    }
+
+    @Benchmark
+    public BluetoothGattDescriptor findClientConfigurationDescriptor() {
+        return BluetoothUtils.findClientConfigurationDescriptor(mDescriptors);
+    }
+
+    // What a send costs once services have been resolved
+    @Benchmark
+    public BluetoothGattCharacteristic indexedEchoCharacteristic() {
+        return mIndex.getEchoCharacteristic();
+    }
+
+    // What discovery and rediscovery cost
+    @Benchmark
+    public boolean resolveIndex() {
+        return mIndex.resolve(mGatt.getServices());
+    }
+}
@@ -0,0 +1,28 @@
+package com.bignerdranch.android.bluetoothtestbed.benchmark;
+
+import com.bignerdranch.android.bluetoothtestbed.util.ByteUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+public class ByteUtilsBenchmark {
+
+    @Param({"20", "185", "512"})
+    public int mPayloadSize;
+
+    private byte[] mPayload;
+
+    @Setup
+    public void setUp() {
+        mPayload = Fixtures.newPayload(mPayloadSize);
+    }
+
+    @Benchmark
+    public byte[] reverse() {
+        return ByteUtils.reverse(mPayload);
+    }
+}
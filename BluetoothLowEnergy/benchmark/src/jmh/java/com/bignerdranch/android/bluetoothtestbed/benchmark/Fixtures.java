@@ -0,0 +1,80 @@
+package com.bignerdranch.android.bluetoothtestbed.benchmark;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.UUID;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_ECHO_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_TIME_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.SERVICE_UUID;
+
+class Fixtures {
+
+    private static final String BASE_UUID_FORMAT = "0000%04x-0000-1000-8000-00805f9b34fb";
+
+    static BluetoothDevice newDevice(int index) {
+        return new BluetoothDevice(String.format("00:11:22:33:%02X:%02X", index >> 8 & 0xFF, index & 0xFF));
+    }
+
+    // A remote device with the testbed service listed after the standard ones, as most devices do
+    static BluetoothGatt newGatt() {
+        BluetoothGatt gatt = new BluetoothGatt(newDevice(0));
+        gatt.getServices().add(newStandardService(0x1800, 0x2A00, 0x2A01));
+        gatt.getServices().add(newStandardService(0x1801, 0x2A05));
+        gatt.getServices().add(newStandardService(0x180A, 0x2A24, 0x2A25, 0x2A26, 0x2A29));
+        gatt.getServices().add(newService());
+        return gatt;
+    }
+
+    // The same service ServerActivity sets up
+    static BluetoothGattService newService() {
+        BluetoothGattService service = new BluetoothGattService(SERVICE_UUID,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+
+        BluetoothGattCharacteristic echoCharacteristic = new BluetoothGattCharacteristic(
+                CHARACTERISTIC_ECHO_UUID,
+                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE);
+
+        BluetoothGattCharacteristic timeCharacteristic = new BluetoothGattCharacteristic(
+                CHARACTERISTIC_TIME_UUID,
+                0,
+                0);
+        timeCharacteristic.addDescriptor(new BluetoothGattDescriptor(
+                CLIENT_CONFIGURATION_DESCRIPTOR_UUID,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+
+        service.addCharacteristic(echoCharacteristic);
+        service.addCharacteristic(timeCharacteristic);
+        return service;
+    }
+
+    private static BluetoothGattService newStandardService(int serviceId, int... characteristicIds) {
+        BluetoothGattService service = new BluetoothGattService(standardUuid(serviceId),
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for (int characteristicId : characteristicIds) {
+            service.addCharacteristic(new BluetoothGattCharacteristic(standardUuid(characteristicId),
+                    BluetoothGattCharacteristic.PROPERTY_READ,
+                    BluetoothGattCharacteristic.PERMISSION_READ));
+        }
+        return service;
+    }
+
+    private static UUID standardUuid(int shortId) {
+        return UUID.fromString(String.format(BASE_UUID_FORMAT, shortId));
+    }
+
+    // Printable text, like the messages typed into the client
+    static byte[] newPayload(int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,74 @@
+package com.bignerdranch.android.bluetoothtestbed.benchmark;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsRegistry;
+import com.bignerdranch.android.bluetoothtestbed.server.GattServerCallback;
+import com.bignerdranch.android.bluetoothtestbed.util.MessageFragmenter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Executor;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_ECHO_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.MAX_MTU;
+
+/**
+ * Cost of one echo write request. With the "inline" worker the worker's part runs on the
+ * calling thread, so this is the whole request path, through to the listener being asked to
+ * notify the echo. With "handoff" the work is handed over and dropped, leaving only what the
+ * binder thread does: the response and the handover.
+ */
+@State(Scope.Thread)
+public class GattServerCallbackBenchmark {
+
+    // Up to the largest single packet payload at the maximum MTU
+    @Param({"20", "185", "512"})
+    public int mPayloadSize;
+
+    @Param({"inline", "handoff"})
+    public String mWorker;
+
+    private GattServerCallback mCallback;
+    private BluetoothDevice mDevice;
+    private BluetoothGattCharacteristic mCharacteristic;
+    private byte[] mPacket;
+    private int mRequestId;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        Executor worker = "inline".equals(mWorker) ? Runnable::run : blackhole::consume;
+        mCallback = new GattServerCallback(new StubServerActionListener(blackhole), worker, new MetricsRegistry());
+        mDevice = Fixtures.newDevice(1);
+        mCharacteristic = Fixtures.newService().getCharacteristic(CHARACTERISTIC_ECHO_UUID);
+        mPacket = MessageFragmenter.fragment(Fixtures.newPayload(mPayloadSize), MAX_MTU).get(0);
+    }
+
+    @Benchmark
+    public void echoWriteRequest() {
+        mCallback.onCharacteristicWriteRequest(mDevice,
+                mRequestId++,
+                mCharacteristic,
+                false,
+                true,
+                0,
+                mPacket);
+    }
+
+    @Benchmark
+    public void echoWriteWithoutResponse() {
+        mCallback.onCharacteristicWriteRequest(mDevice,
+                mRequestId++,
+                mCharacteristic,
+                false,
+                false,
+                0,
+                mPacket);
+    }
+}
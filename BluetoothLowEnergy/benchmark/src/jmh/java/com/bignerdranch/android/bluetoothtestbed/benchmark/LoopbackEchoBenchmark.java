@@ -0,0 +1,52 @@
+package com.bignerdranch.android.bluetoothtestbed.benchmark;
+
+import com.bignerdranch.android.bluetoothtestbed.loopback.Loopback;
+import com.bignerdranch.android.bluetoothtestbed.loopback.LoopbackConfig;
+import com.bignerdranch.android.bluetoothtestbed.loopback.LoopbackEchoClient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * CPU cost of a whole echo round trip through the client and server code on a loopback link:
+ * queueing, fragmenting, the server callback, notification dispatch and reassembly.
+ * Radio time is simulated, so this is host time only.
+ */
+@State(Scope.Thread)
+public class LoopbackEchoBenchmark {
+
+    @Param({"20", "200", "2000"})
+    public int mMessageSize;
+
+    @Param({"false", "true"})
+    public boolean mWriteWithoutResponse;
+
+    private Loopback mLoopback;
+    private LoopbackEchoClient mClient;
+    private byte[] mMessage;
+
+    @Setup
+    public void setUp() {
+        mLoopback = new Loopback(new LoopbackConfig());
+        mClient = mLoopback.connect();
+        mLoopback.runUntilIdle();
+        mClient.setWriteWithoutResponse(mWriteWithoutResponse);
+        mMessage = Fixtures.newPayload(mMessageSize);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetStats() {
+        mClient.resetStats();
+    }
+
+    @Benchmark
+    public byte[] echo() {
+        mClient.sendEcho(mMessage);
+        mLoopback.runUntilIdle();
+        return mClient.getLastEcho();
+    }
+}
@@ -0,0 +1,56 @@
+package com.bignerdranch.android.bluetoothtestbed.benchmark;
+
+import com.bignerdranch.android.bluetoothtestbed.util.StringUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+public class StringUtilsBenchmark {
+
+    @Param({"20", "185", "512"})
+    public int mPayloadSize;
+
+    private byte[] mPayload;
+    private String mMessage;
+    private StringBuilder mStringBuilder;
+    private char[] mChars;
+
+    @Setup
+    public void setUp() {
+        mPayload = Fixtures.newPayload(mPayloadSize);
+        mMessage = StringUtils.stringFromBytes(mPayload);
+        mStringBuilder = new StringBuilder(StringUtils.getHexFormatLength(mPayloadSize));
+        mChars = new char[mPayloadSize];
+    }
+
+    @Benchmark
+    public String byteArrayInHexFormat() {
+        return StringUtils.byteArrayInHexFormat(mPayload);
+    }
+
+    @Benchmark
+    public StringBuilder appendHexFormat() {
+        mStringBuilder.setLength(0);
+        StringUtils.appendHexFormat(mPayload, mPayload.length, mStringBuilder);
+        return mStringBuilder;
+    }
+
+    @Benchmark
+    public byte[] bytesFromString() {
+        return StringUtils.bytesFromString(mMessage);
+    }
+
+    @Benchmark
+    public String stringFromBytes() {
+        return StringUtils.stringFromBytes(mPayload);
+    }
+
+    @Benchmark
+    public int decodeUtf8() {
+        return StringUtils.decodeUtf8(mPayload, 0, mPayload.length, mChars);
+    }
+}
@@ -0,0 +1,97 @@
+package com.bignerdranch.android.bluetoothtestbed.benchmark;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.bignerdranch.android.bluetoothtestbed.server.GattServerActionListener;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+
+// Hands everything the callback produces to the Blackhole, so none of it is optimized away
+class StubServerActionListener implements GattServerActionListener {
+
+    private Blackhole mBlackhole;
+
+    StubServerActionListener(Blackhole blackhole) {
+        mBlackhole = blackhole;
+    }
+
+    @Override
+    public void log(String message) {
+        mBlackhole.consume(message);
+    }
+
+    @Override
+    public void log(String message, Object detail) {
+        mBlackhole.consume(message);
+        mBlackhole.consume(detail);
+    }
+
+    @Override
+    public void logHex(String message, byte[] payload) {
+        mBlackhole.consume(message);
+        mBlackhole.consume(payload);
+    }
+
+    @Override
+    public void addDevice(BluetoothDevice device) {
+        mBlackhole.consume(device);
+    }
+
+    @Override
+    public void removeDevice(BluetoothDevice device) {
+        mBlackhole.consume(device);
+    }
+
+    @Override
+    public void addClientConfiguration(BluetoothDevice device, UUID characteristicUuid, byte[] value) {
+        mBlackhole.consume(value);
+    }
+
+    @Override
+    public void setMtu(BluetoothDevice device, int mtu) {
+        mBlackhole.consume(mtu);
+    }
+
+    @Override
+    public int getServerCapabilities() {
+        return 0;
+    }
+
+    @Override
+    public void setCapabilities(BluetoothDevice device, int capabilities) {
+        mBlackhole.consume(capabilities);
+    }
+
+    @Override
+    public byte[] decodeMessage(BluetoothDevice device, byte[] message) {
+        return message;
+    }
+
+    @Override
+    public byte[] getCharacteristicValue(BluetoothDevice device, UUID characteristicUuid) {
+        mBlackhole.consume(characteristicUuid);
+        return null;
+    }
+
+    @Override
+    public void sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+        mBlackhole.consume(requestId);
+    }
+
+    @Override
+    public void notifyCharacteristicEcho(BluetoothDevice device, byte[] value) {
+        mBlackhole.consume(value);
+    }
+
+    @Override
+    public void onNotificationSent(BluetoothDevice device, int status) {
+        mBlackhole.consume(status);
+    }
+
+    @Override
+    public void onServiceAdded(int status, UUID serviceUuid) {
+        mBlackhole.consume(serviceUuid);
+    }
+}
@@ -0,0 +1,33 @@
+package android.bluetooth;
+
+/**
+ * JVM stand-in for the Android class, just enough for benchmarks and JVM tests.
+ * Devices are identified by address, like the real thing.
+ */
+public class BluetoothDevice {
+
+    private final String mAddress;
+
+    public BluetoothDevice(String address) {
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BluetoothDevice && mAddress.equals(((BluetoothDevice) o).mAddress);
+    }
+
+    @Override
+    public int hashCode() {
+        return mAddress.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mAddress;
+    }
+}
@@ -0,0 +1,89 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * JVM stand-in for the Android class, just enough for benchmarks and JVM tests.
+ * Requests are not sent anywhere, subclass it to fake a remote device.
+ */
+public class BluetoothGatt implements BluetoothProfile {
+
+    public static final int GATT_SUCCESS = 0;
+    public static final int GATT_READ_NOT_PERMITTED = 0x2;
+    public static final int GATT_WRITE_NOT_PERMITTED = 0x3;
+    public static final int GATT_INSUFFICIENT_AUTHENTICATION = 0x5;
+    public static final int GATT_REQUEST_NOT_SUPPORTED = 0x6;
+    public static final int GATT_INVALID_OFFSET = 0x7;
+    public static final int GATT_INVALID_ATTRIBUTE_LENGTH = 0xd;
+    public static final int GATT_INSUFFICIENT_ENCRYPTION = 0xf;
+    public static final int GATT_CONNECTION_CONGESTED = 0x8f;
+    public static final int GATT_FAILURE = 0x101;
+
+    public static final int CONNECTION_PRIORITY_BALANCED = 0;
+    public static final int CONNECTION_PRIORITY_HIGH = 1;
+    public static final int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    private final BluetoothDevice mDevice;
+    private final List<BluetoothGattService> mServices = new ArrayList<>();
+
+    public BluetoothGatt(BluetoothDevice device) {
+        mDevice = device;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    public BluetoothGattService getService(UUID uuid) {
+        for (BluetoothGattService service : mServices) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    public boolean discoverServices() {
+        return false;
+    }
+
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return false;
+    }
+
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return false;
+    }
+
+    public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+        return false;
+    }
+
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        return false;
+    }
+
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        return true;
+    }
+
+    public boolean requestMtu(int mtu) {
+        return false;
+    }
+
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return false;
+    }
+
+    public void disconnect() {
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,90 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * JVM stand-in for the Android class, just enough for benchmarks and JVM tests.
+ */
+public class BluetoothGattCharacteristic {
+
+    public static final int PROPERTY_BROADCAST = 0x01;
+    public static final int PROPERTY_READ = 0x02;
+    public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    public static final int PROPERTY_WRITE = 0x08;
+    public static final int PROPERTY_NOTIFY = 0x10;
+    public static final int PROPERTY_INDICATE = 0x20;
+
+    public static final int PERMISSION_READ = 0x01;
+    public static final int PERMISSION_WRITE = 0x10;
+
+    public static final int WRITE_TYPE_NO_RESPONSE = 0x01;
+    public static final int WRITE_TYPE_DEFAULT = 0x02;
+
+    private final UUID mUuid;
+    private final int mProperties;
+    private final int mPermissions;
+    private final List<BluetoothGattDescriptor> mDescriptors = new ArrayList<>();
+    private int mWriteType = WRITE_TYPE_DEFAULT;
+    private byte[] mValue;
+    BluetoothGattService mService;
+
+    public BluetoothGattCharacteristic(UUID uuid, int properties, int permissions) {
+        mUuid = uuid;
+        mProperties = properties;
+        mPermissions = permissions;
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public int getProperties() {
+        return mProperties;
+    }
+
+    public int getPermissions() {
+        return mPermissions;
+    }
+
+    public int getWriteType() {
+        return mWriteType;
+    }
+
+    public void setWriteType(int writeType) {
+        mWriteType = writeType;
+    }
+
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    public boolean setValue(byte[] value) {
+        mValue = value;
+        return true;
+    }
+
+    public BluetoothGattService getService() {
+        return mService;
+    }
+
+    public boolean addDescriptor(BluetoothGattDescriptor descriptor) {
+        descriptor.mCharacteristic = this;
+        mDescriptors.add(descriptor);
+        return true;
+    }
+
+    public List<BluetoothGattDescriptor> getDescriptors() {
+        return mDescriptors;
+    }
+
+    public BluetoothGattDescriptor getDescriptor(UUID uuid) {
+        for (BluetoothGattDescriptor descriptor : mDescriptors) {
+            if (descriptor.getUuid().equals(uuid)) {
+                return descriptor;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,53 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * JVM stand-in for the Android class, just enough for benchmarks and JVM tests.
+ * Nothing is sent anywhere, subclass it to fake connected devices.
+ */
+public class BluetoothGattServer implements BluetoothProfile {
+
+    private final List<BluetoothGattService> mServices = new ArrayList<>();
+
+    public boolean addService(BluetoothGattService service) {
+        mServices.add(service);
+        return true;
+    }
+
+    public boolean removeService(BluetoothGattService service) {
+        return mServices.remove(service);
+    }
+
+    public BluetoothGattService getService(UUID uuid) {
+        for (BluetoothGattService service : mServices) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    public List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    public boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+        return false;
+    }
+
+    public boolean notifyCharacteristicChanged(BluetoothDevice device,
+                                               BluetoothGattCharacteristic characteristic,
+                                               boolean confirm) {
+        return false;
+    }
+
+    public void clearServices() {
+        mServices.clear();
+    }
+
+    public void close() {
+    }
+}
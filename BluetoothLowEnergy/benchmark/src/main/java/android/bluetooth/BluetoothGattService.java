@@ -0,0 +1,50 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * JVM stand-in for the Android class, just enough for benchmarks and JVM tests.
+ */
+public class BluetoothGattService {
+
+    public static final int SERVICE_TYPE_PRIMARY = 0;
+    public static final int SERVICE_TYPE_SECONDARY = 1;
+
+    private final UUID mUuid;
+    private final int mType;
+    private final List<BluetoothGattCharacteristic> mCharacteristics = new ArrayList<>();
+
+    public BluetoothGattService(UUID uuid, int serviceType) {
+        mUuid = uuid;
+        mType = serviceType;
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public boolean addCharacteristic(BluetoothGattCharacteristic characteristic) {
+        characteristic.mService = this;
+        mCharacteristics.add(characteristic);
+        return true;
+    }
+
+    public List<BluetoothGattCharacteristic> getCharacteristics() {
+        return mCharacteristics;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        for (BluetoothGattCharacteristic characteristic : mCharacteristics) {
+            if (characteristic.getUuid().equals(uuid)) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+}
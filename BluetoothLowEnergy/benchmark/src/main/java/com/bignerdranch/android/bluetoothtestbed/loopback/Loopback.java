@@ -0,0 +1,111 @@
+package com.bignerdranch.android.bluetoothtestbed.loopback;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.bignerdranch.android.bluetoothtestbed.client.ClientConnection;
+import com.bignerdranch.android.bluetoothtestbed.log.Logger;
+import com.bignerdranch.android.bluetoothtestbed.server.GattServerCallback;
+import com.bignerdranch.android.bluetoothtestbed.server.GattServerController;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceWriter;
+
+import java.util.Random;
+
+/**
+ * The testbed's client and server talking to each other in one process, without radios.
+ * The real GattServerCallback and GattServerController serve any number of LoopbackEchoClients,
+ * each on its own simulated link, all in simulated time.
+ */
+public class Loopback {
+
+    private static final String SERVER_ADDRESS = "02:00:00:00:00:00";
+
+    private final LoopbackConfig mConfig;
+    private final LoopbackScheduler mScheduler = new LoopbackScheduler();
+    private final GattServerController mServerController;
+    private final GattServerCallback mServerCallback;
+    private final LoopbackServer mServer;
+    private final BluetoothDevice mServerDevice = new BluetoothDevice(SERVER_ADDRESS);
+    private final Random mRandom;
+
+    private int mNextClient = 1;
+
+    public Loopback(LoopbackConfig config) {
+        mConfig = config;
+        mRandom = new Random(config.getSeed());
+        mServerController = new GattServerController(new SilentLogger());
+        mServerCallback = new GattServerCallback(mServerController,
+                Runnable::run,
+                mServerController.getMetrics());
+        mServer = new LoopbackServer(mServerCallback);
+        mServerController.setConnection(mServer);
+        mServerController.addService();
+    }
+
+    // Connects a new client, run the scheduler until it is ready before sending
+    public LoopbackEchoClient connect() {
+        LoopbackEchoClient client = new LoopbackEchoClient(mServer,
+                mScheduler,
+                mConfig,
+                mRandom,
+                newClientDevice(),
+                mServerDevice);
+        client.connect();
+        return client;
+    }
+
+    // Connects a client side session the way ClientActivity does, on a link of its own
+    public LoopbackLink connect(ClientConnection connection) {
+        LoopbackLink link = new LoopbackLink(mServer,
+                mScheduler,
+                mConfig,
+                mRandom,
+                newClientDevice(),
+                mServerDevice,
+                connection.getCallback());
+        connection.setConnection(link);
+        link.connect();
+        return link;
+    }
+
+    private BluetoothDevice newClientDevice() {
+        String address = String.format("02:00:00:00:%02X:%02X", mNextClient >> 8 & 0xFF, mNextClient & 0xFF);
+        mNextClient++;
+        return new BluetoothDevice(address);
+    }
+
+    public LoopbackScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    public GattServerController getServerController() {
+        return mServerController;
+    }
+
+    // Records the server's callbacks, clients record their own
+    public void setServerTrace(GattTraceWriter trace) {
+        mServerCallback.setTrace(trace);
+    }
+
+    public void runUntilIdle() {
+        mScheduler.runUntilIdle();
+    }
+
+    public static class SilentLogger implements Logger {
+
+        @Override
+        public void log(String message) {
+        }
+
+        @Override
+        public void log(String message, Object detail) {
+        }
+
+        @Override
+        public void logHex(String message, byte[] payload) {
+        }
+
+        @Override
+        public void logUtf8(String message, byte[] payload) {
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.bignerdranch.android.bluetoothtestbed.loopback;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.DEFAULT_MTU;
+
+/**
+ * Radio conditions for a loopback link. The defaults are a good phone to phone link:
+ * 7.5 ms connection interval, 247 byte MTU, a few packets per connection event and no loss.
+ */
+public class LoopbackConfig {
+
+    private long mConnectionIntervalNanos = TimeUnit.MICROSECONDS.toNanos(7500);
+    private int mMtu = 247;
+    private int mPacketsPerEvent = 4;
+    private int mQueueCapacity = 16;
+    private double mLossRate;
+    private long mSeed;
+
+    public long getConnectionIntervalNanos() {
+        return mConnectionIntervalNanos;
+    }
+
+    public LoopbackConfig setConnectionInterval(long interval, TimeUnit unit) {
+        mConnectionIntervalNanos = unit.toNanos(interval);
+        return this;
+    }
+
+    // The largest MTU the server side accepts, the client gets the smaller of this and what it asks for
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public LoopbackConfig setMtu(int mtu) {
+        mMtu = Math.max(DEFAULT_MTU, mtu);
+        return this;
+    }
+
+    // Packets each side may send in one connection event
+    public int getPacketsPerEvent() {
+        return mPacketsPerEvent;
+    }
+
+    public LoopbackConfig setPacketsPerEvent(int packetsPerEvent) {
+        mPacketsPerEvent = Math.max(1, packetsPerEvent);
+        return this;
+    }
+
+    // Packets the stack buffers in each direction before it stops accepting writes and notifications
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    public LoopbackConfig setQueueCapacity(int queueCapacity) {
+        mQueueCapacity = Math.max(1, queueCapacity);
+        return this;
+    }
+
+    // Chance a packet is lost on air. As on a real link, lost packets are retransmitted in the
+    // next connection event, so loss costs latency and throughput but never data.
+    public double getLossRate() {
+        return mLossRate;
+    }
+
+    public LoopbackConfig setLossRate(double lossRate) {
+        mLossRate = Math.min(Math.max(lossRate, 0), 0.99);
+        return this;
+    }
+
+    // Losses are drawn from a seeded generator, so runs are repeatable
+    public long getSeed() {
+        return mSeed;
+    }
+
+    public LoopbackConfig setSeed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+}
@@ -0,0 +1,347 @@
+package com.bignerdranch.android.bluetoothtestbed.loopback;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.bignerdranch.android.bluetoothtestbed.client.EchoBenchmark;
+import com.bignerdranch.android.bluetoothtestbed.client.GattCharacteristicIndex;
+import com.bignerdranch.android.bluetoothtestbed.client.GattClientActionListener;
+import com.bignerdranch.android.bluetoothtestbed.client.GattClientCallback;
+import com.bignerdranch.android.bluetoothtestbed.client.GattOperationQueue;
+import com.bignerdranch.android.bluetoothtestbed.client.ReadCharacteristicOperation;
+import com.bignerdranch.android.bluetoothtestbed.client.WriteCharacteristicOperation;
+import com.bignerdranch.android.bluetoothtestbed.util.CodecStats;
+import com.bignerdranch.android.bluetoothtestbed.util.MessageFragmenter;
+import com.bignerdranch.android.bluetoothtestbed.util.PayloadCodec;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.DEFAULT_MTU;
+
+/**
+ * Stands in for ClientActivity on a loopback link: the same GattClientCallback, operation
+ * queue and characteristic index, driven by code instead of buttons. Records the simulated
+ * round trip time of every echo.
+ */
+public class LoopbackEchoClient implements GattClientActionListener {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final LoopbackScheduler mScheduler;
+    private final GattOperationQueue mOperationQueue = new GattOperationQueue();
+    private final GattCharacteristicIndex mCharacteristicIndex = new GattCharacteristicIndex();
+    private final LoopbackLink mLink;
+    private final CodecStats mCodecStats = new CodecStats();
+    private final PayloadCodec mMessageCodec = new PayloadCodec(PayloadCodec.DICTIONARY, mCodecStats);
+    private final PayloadCodec mEchoCodec = new PayloadCodec(PayloadCodec.REVERSED_DICTIONARY, mCodecStats);
+
+    // Echoes come back in the order they were sent
+    private final Deque<Long> mSendTimes = new ArrayDeque<>();
+    private long[] mLatencies = new long[64];
+
+    private boolean mConnected;
+    private boolean mEchoInitialized;
+    private boolean mTimeInitialized;
+    private int mMtu = DEFAULT_MTU;
+    private boolean mWriteWithoutResponse;
+    private boolean mCompressionOffered;
+    private boolean mCompressing;
+    private EchoBenchmark mEchoBenchmark;
+
+    private byte[] mLastEcho;
+    private String mLastError;
+    private long mErrors;
+    private long mEchoesSent;
+    private int mEchoesReceived;
+    private long mBytesReceived;
+    private long mFirstSendNanos;
+    private long mLastReceivedNanos;
+
+    LoopbackEchoClient(LoopbackServer server,
+                       LoopbackScheduler scheduler,
+                       LoopbackConfig config,
+                       Random random,
+                       BluetoothDevice clientDevice,
+                       BluetoothDevice serverDevice) {
+        mScheduler = scheduler;
+        GattClientCallback callback = new GattClientCallback(this, mOperationQueue, mCharacteristicIndex);
+        mLink = new LoopbackLink(server, scheduler, config, random, clientDevice, serverDevice, callback);
+    }
+
+    public void connect() {
+        mOperationQueue.setConnection(mLink);
+        mLink.connect();
+    }
+
+    // Connected, with echo notifications enabled
+    public boolean isReady() {
+        return mConnected && mEchoInitialized;
+    }
+
+    public void setWriteWithoutResponse(boolean writeWithoutResponse) {
+        mWriteWithoutResponse = writeWithoutResponse;
+    }
+
+    // Set before connecting, like ClientConnection
+    public void setCompressionOffered(boolean compressionOffered) {
+        mCompressionOffered = compressionOffered;
+    }
+
+    // Queues the message like ClientActivity does, returns false if the client is not ready
+    public boolean sendEcho(byte[] message) {
+        BluetoothGattCharacteristic characteristic = mCharacteristicIndex.getEchoCharacteristic();
+        if (!isReady() || characteristic == null) {
+            return false;
+        }
+
+        int writeType = mWriteWithoutResponse
+                ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+        byte[] payload = mCompressing ? mMessageCodec.encode(message) : message;
+        List<byte[]> packets = MessageFragmenter.fragment(payload, mMtu);
+        for (byte[] packet : packets) {
+            mOperationQueue.enqueue(new WriteCharacteristicOperation(characteristic, packet, writeType));
+        }
+
+        long now = mScheduler.getNowNanos();
+        if (mEchoesSent == 0) {
+            mFirstSendNanos = now;
+        }
+        mSendTimes.add(now);
+        mEchoesSent++;
+        return true;
+    }
+
+    // Writes the message whole, without packet headers, the way other GATT clients would.
+    // The link turns it into a long write
+    public boolean sendLongWrite(byte[] message) {
+        BluetoothGattCharacteristic characteristic = mCharacteristicIndex.getEchoCharacteristic();
+        if (!isReady() || characteristic == null) {
+            return false;
+        }
+
+        mOperationQueue.enqueue(new WriteCharacteristicOperation(characteristic,
+                message,
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT));
+        mSendTimes.add(mScheduler.getNowNanos());
+        mEchoesSent++;
+        return true;
+    }
+
+    // Reads the server's metrics, the value ends up in the characteristic index
+    public boolean readStats() {
+        BluetoothGattCharacteristic characteristic = mCharacteristicIndex.getStatsCharacteristic();
+        if (!mConnected || characteristic == null) {
+            return false;
+        }
+
+        mOperationQueue.enqueue(new ReadCharacteristicOperation(characteristic));
+        return true;
+    }
+
+    // Reads the echo characteristic, the value ends up in the characteristic index
+    public boolean readEcho() {
+        BluetoothGattCharacteristic characteristic = mCharacteristicIndex.getEchoCharacteristic();
+        if (!isReady() || characteristic == null) {
+            return false;
+        }
+
+        mOperationQueue.enqueue(new ReadCharacteristicOperation(characteristic));
+        return true;
+    }
+
+    // Runs the benchmark the way ClientActivity does, a burst at a time
+    public void startBenchmark(EchoBenchmark benchmark) {
+        mEchoBenchmark = benchmark;
+        sendBenchmarkBurst();
+    }
+
+    private void sendBenchmarkBurst() {
+        for (byte[] message : mEchoBenchmark.nextBurst(mScheduler.getNowNanos())) {
+            sendEcho(message);
+        }
+    }
+
+    public void resetStats() {
+        mSendTimes.clear();
+        mEchoesSent = 0;
+        mEchoesReceived = 0;
+        mBytesReceived = 0;
+        mFirstSendNanos = 0;
+        mLastReceivedNanos = 0;
+        mErrors = 0;
+        mLastError = null;
+        mOperationQueue.resetStats();
+    }
+
+    // Stats
+
+    public LoopbackLink getLink() {
+        return mLink;
+    }
+
+    public GattCharacteristicIndex getCharacteristicIndex() {
+        return mCharacteristicIndex;
+    }
+
+    public GattOperationQueue getOperationQueue() {
+        return mOperationQueue;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public boolean isCompressing() {
+        return mCompressing;
+    }
+
+    public CodecStats getCodecStats() {
+        return mCodecStats;
+    }
+
+    public boolean isTimeInitialized() {
+        return mTimeInitialized;
+    }
+
+    public byte[] getLastEcho() {
+        return mLastEcho;
+    }
+
+    public long getErrors() {
+        return mErrors;
+    }
+
+    public String getLastError() {
+        return mLastError;
+    }
+
+    public long getEchoesSent() {
+        return mEchoesSent;
+    }
+
+    public long getEchoesReceived() {
+        return mEchoesReceived;
+    }
+
+    // Round trip time of the given percentile of echoes, 0 to 100
+    public long getLatencyNanos(double percentile) {
+        if (mEchoesReceived == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mLatencies, mEchoesReceived);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.min(Math.max(index, 0), sorted.length - 1)];
+    }
+
+    public double getMessagesPerSecond() {
+        return perSecond(mEchoesReceived);
+    }
+
+    public double getBytesPerSecond() {
+        return perSecond(mBytesReceived);
+    }
+
+    private double perSecond(long count) {
+        long elapsedNanos = mLastReceivedNanos - mFirstSendNanos;
+        if (count == 0 || elapsedNanos <= 0) {
+            return 0;
+        }
+        return count * (double) NANOS_PER_SECOND / elapsedNanos;
+    }
+
+    // Gatt Client Action Listener
+
+    @Override
+    public void log(String message) {
+    }
+
+    @Override
+    public void log(String message, Object detail) {
+    }
+
+    @Override
+    public void logHex(String message, byte[] payload) {
+    }
+
+    @Override
+    public void logUtf8(String message, byte[] payload) {
+    }
+
+    @Override
+    public void logError(String message) {
+        mErrors++;
+        mLastError = message;
+    }
+
+    @Override
+    public void setConnected(boolean connected) {
+        mConnected = connected;
+    }
+
+    @Override
+    public void initializeTime() {
+        mTimeInitialized = true;
+    }
+
+    @Override
+    public void initializeEcho() {
+        mEchoInitialized = true;
+    }
+
+    @Override
+    public void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    @Override
+    public int getCapabilities() {
+        return mCompressionOffered ? PayloadCodec.CAPABILITY_COMPRESSION : 0;
+    }
+
+    @Override
+    public void setCapabilities(int capabilities) {
+        mCompressing = (capabilities & PayloadCodec.CAPABILITY_COMPRESSION) != 0;
+    }
+
+    @Override
+    public void onEchoReceived(byte[] payload) {
+        byte[] message = mCompressing ? mEchoCodec.decode(payload) : payload;
+        if (message == null) {
+            logError("Unable to decode echo");
+            return;
+        }
+
+        long now = mScheduler.getNowNanos();
+        if (mEchoBenchmark != null && mEchoBenchmark.onEcho(message, now) && mEchoBenchmark.isBurstDue()) {
+            mScheduler.schedule(0, this::sendBenchmarkBurst);
+        }
+        Long sendTime = mSendTimes.poll();
+        if (sendTime != null) {
+            if (mEchoesReceived == mLatencies.length) {
+                mLatencies = Arrays.copyOf(mLatencies, mLatencies.length * 2);
+            }
+            mLatencies[mEchoesReceived++] = now - sendTime;
+        }
+        mBytesReceived += message.length;
+        mLastReceivedNanos = now;
+        mLastEcho = message;
+    }
+
+    @Override
+    public void disconnectGattServer() {
+        mConnected = false;
+        mEchoInitialized = false;
+        mTimeInitialized = false;
+        mCompressing = false;
+        mMtu = DEFAULT_MTU;
+        mOperationQueue.clear();
+        mCharacteristicIndex.invalidate();
+        mLink.disconnect();
+    }
+}
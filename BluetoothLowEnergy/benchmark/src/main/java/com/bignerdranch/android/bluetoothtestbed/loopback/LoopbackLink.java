@@ -0,0 +1,526 @@
+package com.bignerdranch.android.bluetoothtestbed.loopback;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import com.bignerdranch.android.bluetoothtestbed.client.GattConnection;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.ATT_HEADER_SIZE;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.DEFAULT_MTU;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.GATT_INVALID_HANDLE;
+
+/**
+ * One simulated connection between a client and the loopback server.
+ *
+ * Packets are queued in each direction and only move at connection events, up to a few per
+ * event, so every request and response costs at least one connection interval. Writes without
+ * response and notifications complete as soon as the stack has buffered them, and are held back
+ * while the queue is full, as Android does. Writes too long for one packet are split into
+ * prepared writes and an execute, like the stack splits them, and values too long for one read
+ * response are read a part at a time.
+ */
+public class LoopbackLink implements GattConnection {
+
+    // Prepare Write Requests carry a 2 byte offset after the ATT header
+    private static final int PREPARE_WRITE_HEADER_SIZE = ATT_HEADER_SIZE + 2;
+
+    private final LoopbackServer mServer;
+    private final LoopbackScheduler mScheduler;
+    private final LoopbackConfig mConfig;
+    private final Random mRandom;
+
+    // The client, as the server sees it
+    private final BluetoothDevice mClientDevice;
+    // The server, as the client sees it
+    private final BluetoothGatt mGatt;
+    private final BluetoothGattCallback mClientCallback;
+
+    private final Deque<Runnable> mToServer = new ArrayDeque<>();
+    private final Deque<Runnable> mToClient = new ArrayDeque<>();
+    // Completions waiting for room in the queue
+    private final Deque<Runnable> mBlockedToServer = new ArrayDeque<>();
+    private final Deque<Runnable> mBlockedToClient = new ArrayDeque<>();
+    private final Map<Integer, ResponseHandler> mPendingRequests = new HashMap<>();
+
+    private boolean mConnected;
+    private boolean mEventScheduled;
+    private int mMtu = DEFAULT_MTU;
+    // Recorded only, the link keeps the configured interval whatever the priority
+    private int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private int mNextRequestId;
+
+    private long mPacketsToServer;
+    private long mPacketsToClient;
+    private long mRetransmissions;
+
+    LoopbackLink(LoopbackServer server,
+                 LoopbackScheduler scheduler,
+                 LoopbackConfig config,
+                 Random random,
+                 BluetoothDevice clientDevice,
+                 BluetoothDevice serverDevice,
+                 BluetoothGattCallback clientCallback) {
+        mServer = server;
+        mScheduler = scheduler;
+        mConfig = config;
+        mRandom = random;
+        mClientDevice = clientDevice;
+        mGatt = new BluetoothGatt(serverDevice);
+        mClientCallback = clientCallback;
+    }
+
+    // Connection
+
+    public void connect() {
+        if (mConnected) {
+            return;
+        }
+        mConnected = true;
+        mServer.addLink(this);
+        mScheduler.schedule(mConfig.getConnectionIntervalNanos(), () -> {
+            if (!mConnected) {
+                return;
+            }
+            mServer.getCallback().onConnectionStateChange(mClientDevice,
+                    BluetoothGatt.GATT_SUCCESS,
+                    BluetoothProfile.STATE_CONNECTED);
+            mClientCallback.onConnectionStateChange(mGatt,
+                    BluetoothGatt.GATT_SUCCESS,
+                    BluetoothProfile.STATE_CONNECTED);
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        if (!mConnected) {
+            return;
+        }
+        mConnected = false;
+        mServer.removeLink(this);
+        mToServer.clear();
+        mToClient.clear();
+        mBlockedToServer.clear();
+        mBlockedToClient.clear();
+        mPendingRequests.clear();
+        mMtu = DEFAULT_MTU;
+        mScheduler.schedule(0, () -> {
+            mServer.getCallback().onConnectionStateChange(mClientDevice,
+                    BluetoothGatt.GATT_SUCCESS,
+                    BluetoothProfile.STATE_DISCONNECTED);
+            mClientCallback.onConnectionStateChange(mGatt,
+                    BluetoothGatt.GATT_SUCCESS,
+                    BluetoothProfile.STATE_DISCONNECTED);
+        });
+    }
+
+    // Gatt Connection, requests from the client
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        BluetoothGattCharacteristic serverCharacteristic = mServer.findCharacteristic(characteristic);
+        byte[] value = characteristic.getValue();
+        if (!mConnected || value == null) {
+            return false;
+        }
+        if (serverCharacteristic == null) {
+            sendToInvalidHandle(characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE,
+                    (status, responseValue) -> mClientCallback.onCharacteristicWrite(mGatt, characteristic, status));
+            return true;
+        }
+        byte[] sentValue = Arrays.copyOf(value, value.length);
+        boolean permitted = (serverCharacteristic.getPermissions() & BluetoothGattCharacteristic.PERMISSION_WRITE) != 0;
+
+        if (value.length > mMtu - ATT_HEADER_SIZE) {
+            if (characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+                return false;
+            }
+            // Too long for one packet, the stack turns it into prepared writes and an execute
+            sendPreparedWrite(characteristic, serverCharacteristic, sentValue, permitted, 0);
+            return true;
+        }
+
+        if (characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            sendToServer(() -> {
+                if (permitted) {
+                    mServer.getCallback().onCharacteristicWriteRequest(mClientDevice,
+                            mNextRequestId++,
+                            serverCharacteristic,
+                            false,
+                            false,
+                            0,
+                            sentValue);
+                }
+            });
+            completeWhenBuffered(mToServer, mBlockedToServer,
+                    () -> mClientCallback.onCharacteristicWrite(mGatt, characteristic, BluetoothGatt.GATT_SUCCESS));
+            return true;
+        }
+
+        sendRequest(requestId -> {
+            if (permitted) {
+                mServer.getCallback().onCharacteristicWriteRequest(mClientDevice,
+                        requestId,
+                        serverCharacteristic,
+                        false,
+                        true,
+                        0,
+                        sentValue);
+            } else {
+                onResponse(requestId, BluetoothGatt.GATT_WRITE_NOT_PERMITTED, null);
+            }
+        }, (status, responseValue) -> mClientCallback.onCharacteristicWrite(mGatt, characteristic, status));
+        return true;
+    }
+
+    private void sendPreparedWrite(BluetoothGattCharacteristic characteristic,
+                                   BluetoothGattCharacteristic serverCharacteristic,
+                                   byte[] value,
+                                   boolean permitted,
+                                   int offset) {
+        // Each part loses 2 more bytes to the offset
+        int partLength = Math.min(mMtu - PREPARE_WRITE_HEADER_SIZE, value.length - offset);
+        byte[] part = Arrays.copyOfRange(value, offset, offset + partLength);
+
+        sendRequest(requestId -> {
+            if (permitted) {
+                mServer.getCallback().onCharacteristicWriteRequest(mClientDevice,
+                        requestId,
+                        serverCharacteristic,
+                        true,
+                        true,
+                        offset,
+                        part);
+            } else {
+                onResponse(requestId, BluetoothGatt.GATT_WRITE_NOT_PERMITTED, null);
+            }
+        }, (status, responseValue) -> {
+            if (status != BluetoothGatt.GATT_SUCCESS || !Arrays.equals(part, responseValue)) {
+                // Like the stack, give up on the whole write
+                sendExecuteWrite(false, executeStatus -> mClientCallback.onCharacteristicWrite(mGatt,
+                        characteristic,
+                        status == BluetoothGatt.GATT_SUCCESS ? BluetoothGatt.GATT_FAILURE : status));
+            } else if (offset + partLength < value.length) {
+                sendPreparedWrite(characteristic, serverCharacteristic, value, permitted, offset + partLength);
+            } else {
+                sendExecuteWrite(true, executeStatus -> mClientCallback.onCharacteristicWrite(mGatt,
+                        characteristic,
+                        executeStatus));
+            }
+        });
+    }
+
+    private void sendExecuteWrite(boolean execute, ExecuteHandler handler) {
+        sendRequest(requestId -> mServer.getCallback().onExecuteWrite(mClientDevice, requestId, execute),
+                (status, responseValue) -> handler.onExecuted(status));
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        BluetoothGattCharacteristic serverCharacteristic = mServer.findCharacteristic(characteristic);
+        if (!mConnected) {
+            return false;
+        }
+        if (serverCharacteristic == null) {
+            sendToInvalidHandle(false,
+                    (status, responseValue) -> mClientCallback.onCharacteristicRead(mGatt, characteristic, status));
+            return true;
+        }
+
+        sendReadRequest(characteristic, serverCharacteristic, 0, new ByteArrayOutputStream());
+        return true;
+    }
+
+    // Like the stack, keeps reading at the next offset while responses come back full
+    private void sendReadRequest(BluetoothGattCharacteristic characteristic,
+                                 BluetoothGattCharacteristic serverCharacteristic,
+                                 int offset,
+                                 ByteArrayOutputStream received) {
+        sendRequest(requestId -> {
+            // The stack rejects reads the characteristic does not allow
+            if ((serverCharacteristic.getPermissions() & BluetoothGattCharacteristic.PERMISSION_READ) != 0) {
+                mServer.getCallback().onCharacteristicReadRequest(mClientDevice, requestId, offset, serverCharacteristic);
+            } else {
+                onResponse(requestId, BluetoothGatt.GATT_READ_NOT_PERMITTED, null);
+            }
+        }, (status, responseValue) -> {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                mClientCallback.onCharacteristicRead(mGatt, characteristic, status);
+                return;
+            }
+
+            // A read response holds at most ATT_MTU - 1 bytes
+            int maxPartLength = mMtu - 1;
+            byte[] part = responseValue == null ? new byte[0] : responseValue;
+            received.write(part, 0, Math.min(part.length, maxPartLength));
+            if (part.length >= maxPartLength) {
+                sendReadRequest(characteristic, serverCharacteristic, offset + maxPartLength, received);
+            } else {
+                characteristic.setValue(received.toByteArray());
+                mClientCallback.onCharacteristicRead(mGatt, characteristic, status);
+            }
+        });
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        BluetoothGattDescriptor serverDescriptor = mServer.findDescriptor(descriptor);
+        byte[] value = descriptor.getValue();
+        if (!mConnected || value == null) {
+            return false;
+        }
+        if (serverDescriptor == null) {
+            sendToInvalidHandle(false,
+                    (status, responseValue) -> mClientCallback.onDescriptorWrite(mGatt, descriptor, status));
+            return true;
+        }
+        byte[] sentValue = Arrays.copyOf(value, value.length);
+
+        sendRequest(requestId -> {
+            if ((serverDescriptor.getPermissions() & BluetoothGattDescriptor.PERMISSION_WRITE) != 0) {
+                mServer.getCallback().onDescriptorWriteRequest(mClientDevice,
+                        requestId,
+                        serverDescriptor,
+                        false,
+                        true,
+                        0,
+                        sentValue);
+            } else {
+                onResponse(requestId, BluetoothGatt.GATT_WRITE_NOT_PERMITTED, null);
+            }
+        }, (status, responseValue) -> mClientCallback.onDescriptorWrite(mGatt, descriptor, status));
+        return true;
+    }
+
+    // The server no longer has the attribute. Requests get an Invalid Handle error back from its
+    // stack, commands are dropped without a word
+    private void sendToInvalidHandle(boolean command, ResponseHandler handler) {
+        if (command) {
+            sendToServer(() -> {
+            });
+            completeWhenBuffered(mToServer, mBlockedToServer,
+                    () -> handler.onResponse(BluetoothGatt.GATT_SUCCESS, null));
+        } else {
+            sendRequest(requestId -> onResponse(requestId, GATT_INVALID_HANDLE, null), handler);
+        }
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        if (!mConnected) {
+            return false;
+        }
+
+        sendToServer(() -> {
+            int negotiatedMtu = Math.max(DEFAULT_MTU, Math.min(mtu, mConfig.getMtu()));
+            mMtu = negotiatedMtu;
+            mServer.getCallback().onMtuChanged(mClientDevice, negotiatedMtu);
+            sendToClient(() -> mClientCallback.onMtuChanged(mGatt, negotiatedMtu, BluetoothGatt.GATT_SUCCESS));
+        });
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int connectionPriority) {
+        if (!mConnected) {
+            return false;
+        }
+        mConnectionPriority = connectionPriority;
+        return true;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!mConnected) {
+            return false;
+        }
+
+        // A single round trip, real discovery takes one per attribute group
+        sendToServer(() -> sendToClient(() -> {
+            mGatt.getServices().clear();
+            mGatt.getServices().addAll(mServer.copyServices());
+            mClientCallback.onServicesDiscovered(mGatt, BluetoothGatt.GATT_SUCCESS);
+        }));
+        return true;
+    }
+
+    // From the server
+
+    boolean onResponse(int requestId, int status, byte[] value) {
+        ResponseHandler handler = mPendingRequests.remove(requestId);
+        if (!mConnected || handler == null) {
+            return false;
+        }
+
+        byte[] responseValue = value == null ? null : Arrays.copyOf(value, value.length);
+        sendToClient(() -> handler.onResponse(status, responseValue));
+        return true;
+    }
+
+    boolean notifyCharacteristicChanged(BluetoothGattCharacteristic characteristic, boolean confirm) {
+        BluetoothGattCharacteristic clientCharacteristic = findClientCharacteristic(characteristic);
+        byte[] value = characteristic.getValue();
+        if (!mConnected || value == null) {
+            return false;
+        }
+
+        // Android truncates notifications to what fits in one packet
+        byte[] sentValue = Arrays.copyOf(value, Math.min(value.length, mMtu - ATT_HEADER_SIZE));
+        Runnable delivery = () -> {
+            if (clientCharacteristic == null) {
+                // A handle the client has not discovered, its stack drops the notification
+                return;
+            }
+            clientCharacteristic.setValue(sentValue);
+            mClientCallback.onCharacteristicChanged(mGatt, clientCharacteristic);
+        };
+        Runnable sent = () -> mServer.getCallback().onNotificationSent(mClientDevice, BluetoothGatt.GATT_SUCCESS);
+
+        if (confirm) {
+            // Indications are sent once the client's confirmation comes back
+            sendToClient(() -> {
+                delivery.run();
+                sendToServer(sent);
+            });
+        } else {
+            sendToClient(delivery);
+            completeWhenBuffered(mToClient, mBlockedToClient, sent);
+        }
+        return true;
+    }
+
+    // Radio
+
+    private void sendRequest(ServerRequest request, ResponseHandler handler) {
+        sendToServer(() -> {
+            int requestId = mNextRequestId++;
+            mPendingRequests.put(requestId, handler);
+            request.send(requestId);
+        });
+    }
+
+    private void sendToServer(Runnable packet) {
+        mToServer.add(packet);
+        scheduleConnectionEvent();
+    }
+
+    private void sendToClient(Runnable packet) {
+        mToClient.add(packet);
+        scheduleConnectionEvent();
+    }
+
+    private void completeWhenBuffered(Deque<Runnable> packets, Deque<Runnable> blocked, Runnable completion) {
+        if (packets.size() <= mConfig.getQueueCapacity()) {
+            mScheduler.schedule(0, completion);
+        } else {
+            blocked.add(completion);
+        }
+    }
+
+    private void scheduleConnectionEvent() {
+        if (mEventScheduled || !mConnected || (mToServer.isEmpty() && mToClient.isEmpty())) {
+            return;
+        }
+
+        // Connection events happen on a fixed grid, whenever the packet was queued
+        long interval = mConfig.getConnectionIntervalNanos();
+        long nextEventNanos = (mScheduler.getNowNanos() / interval + 1) * interval;
+        mEventScheduled = true;
+        mScheduler.scheduleAt(nextEventNanos, this::onConnectionEvent);
+    }
+
+    private void onConnectionEvent() {
+        mEventScheduled = false;
+        if (!mConnected) {
+            return;
+        }
+
+        // Packets queued while this event runs wait for the next one
+        int toServer = Math.min(mToServer.size(), mConfig.getPacketsPerEvent());
+        int toClient = Math.min(mToClient.size(), mConfig.getPacketsPerEvent());
+        mPacketsToServer += transmit(mToServer, mBlockedToServer, toServer);
+        mPacketsToClient += transmit(mToClient, mBlockedToClient, toClient);
+        scheduleConnectionEvent();
+    }
+
+    private int transmit(Deque<Runnable> packets, Deque<Runnable> blocked, int count) {
+        int transmitted = 0;
+        while (transmitted < count && mConnected && !packets.isEmpty()) {
+            if (mRandom.nextDouble() < mConfig.getLossRate()) {
+                // Retransmitted next event, nothing behind it may overtake it
+                mRetransmissions++;
+                break;
+            }
+            packets.poll().run();
+            transmitted++;
+        }
+
+        while (!blocked.isEmpty() && packets.size() <= mConfig.getQueueCapacity()) {
+            mScheduler.schedule(0, blocked.poll());
+        }
+        return transmitted;
+    }
+
+    private BluetoothGattCharacteristic findClientCharacteristic(BluetoothGattCharacteristic serverCharacteristic) {
+        for (BluetoothGattService service : mGatt.getServices()) {
+            if (mServer.isCopyOf(service, serverCharacteristic.getService())) {
+                return service.getCharacteristic(serverCharacteristic.getUuid());
+            }
+        }
+        return null;
+    }
+
+    // Stats
+
+    public BluetoothDevice getClientDevice() {
+        return mClientDevice;
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    public long getPacketsToServer() {
+        return mPacketsToServer;
+    }
+
+    public long getPacketsToClient() {
+        return mPacketsToClient;
+    }
+
+    public long getRetransmissions() {
+        return mRetransmissions;
+    }
+
+    private interface ExecuteHandler {
+        void onExecuted(int status);
+    }
+
+    private interface ServerRequest {
+        void send(int requestId);
+    }
+
+    private interface ResponseHandler {
+        void onResponse(int status, byte[] value);
+    }
+}
@@ -0,0 +1,79 @@
+package com.bignerdranch.android.bluetoothtestbed.loopback;
+
+import java.util.PriorityQueue;
+
+/**
+ * Runs loopback events in simulated time, on the calling thread. Nothing sleeps, so a run
+ * covering minutes of radio time finishes in milliseconds and gives the same result every time.
+ */
+public class LoopbackScheduler {
+
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+
+    private long mNowNanos;
+    private long mNextSequence;
+
+    public long getNowNanos() {
+        return mNowNanos;
+    }
+
+    public void schedule(long delayNanos, Runnable action) {
+        scheduleAt(mNowNanos + delayNanos, action);
+    }
+
+    public void scheduleAt(long timeNanos, Runnable action) {
+        // Events due at the same time run in the order they were scheduled
+        mEvents.add(new Event(Math.max(timeNanos, mNowNanos), mNextSequence++, action));
+    }
+
+    public boolean isIdle() {
+        return mEvents.isEmpty();
+    }
+
+    // Returns false if there was nothing to run
+    public boolean runNext() {
+        Event event = mEvents.poll();
+        if (event == null) {
+            return false;
+        }
+        mNowNanos = event.mTimeNanos;
+        event.mAction.run();
+        return true;
+    }
+
+    public void runUntilIdle() {
+        while (runNext()) {
+            // Keep going
+        }
+    }
+
+    // Runs everything due in the next durationNanos, then moves the clock to the end of it
+    public void runFor(long durationNanos) {
+        long endNanos = mNowNanos + durationNanos;
+        while (!mEvents.isEmpty() && mEvents.peek().mTimeNanos <= endNanos) {
+            runNext();
+        }
+        mNowNanos = endNanos;
+    }
+
+    private static class Event implements Comparable<Event> {
+
+        private final long mTimeNanos;
+        private final long mSequence;
+        private final Runnable mAction;
+
+        private Event(long timeNanos, long sequence, Runnable action) {
+            mTimeNanos = timeNanos;
+            mSequence = sequence;
+            mAction = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (mTimeNanos != other.mTimeNanos) {
+                return mTimeNanos < other.mTimeNanos ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+}
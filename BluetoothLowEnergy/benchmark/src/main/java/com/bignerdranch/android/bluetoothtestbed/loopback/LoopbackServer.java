@@ -0,0 +1,136 @@
+package com.bignerdranch.android.bluetoothtestbed.loopback;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+
+import com.bignerdranch.android.bluetoothtestbed.server.GattServerConnection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The server end of every loopback link. Holds the services the server added, and routes
+ * responses and notifications to the link of the device they are for.
+ *
+ * Clients reach attributes through the copies they discovered, which stand for handles. Like
+ * on a device, a service removed and added again has new handles, so the copies of the old one
+ * reach nothing until the client discovers services again.
+ */
+public class LoopbackServer implements GattServerConnection {
+
+    private final BluetoothGattServerCallback mCallback;
+    private final List<BluetoothGattService> mServices = new ArrayList<>();
+    // Keyed by device address
+    private final Map<String, LoopbackLink> mLinks = new HashMap<>();
+    // Every service a client discovered, to the service it was copied from
+    private final Map<BluetoothGattService, BluetoothGattService> mOriginals = new IdentityHashMap<>();
+
+    LoopbackServer(BluetoothGattServerCallback callback) {
+        mCallback = callback;
+    }
+
+    BluetoothGattServerCallback getCallback() {
+        return mCallback;
+    }
+
+    void addLink(LoopbackLink link) {
+        mLinks.put(link.getClientDevice().getAddress(), link);
+    }
+
+    void removeLink(LoopbackLink link) {
+        mLinks.remove(link.getClientDevice().getAddress());
+    }
+
+    // Gatt Server Connection
+
+    @Override
+    public boolean addService(BluetoothGattService service) {
+        mServices.add(service);
+        mCallback.onServiceAdded(BluetoothGatt.GATT_SUCCESS, service);
+        return true;
+    }
+
+    @Override
+    public boolean removeService(BluetoothGattService service) {
+        return mServices.remove(service);
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+        for (BluetoothGattService service : mServices) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+        LoopbackLink link = mLinks.get(device.getAddress());
+        return link != null && link.onResponse(requestId, status, value);
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic, boolean confirm) {
+        LoopbackLink link = mLinks.get(device.getAddress());
+        return link != null && link.notifyCharacteristicChanged(characteristic, confirm);
+    }
+
+    // Attribute lookup for the links
+
+    // Null once the service was removed, a stale handle
+    BluetoothGattCharacteristic findCharacteristic(BluetoothGattCharacteristic clientCharacteristic) {
+        BluetoothGattService service = mOriginals.get(clientCharacteristic.getService());
+        if (service == null || !mServices.contains(service)) {
+            return null;
+        }
+        return service.getCharacteristic(clientCharacteristic.getUuid());
+    }
+
+    BluetoothGattDescriptor findDescriptor(BluetoothGattDescriptor clientDescriptor) {
+        BluetoothGattCharacteristic characteristic = findCharacteristic(clientDescriptor.getCharacteristic());
+        return characteristic == null ? null : characteristic.getDescriptor(clientDescriptor.getUuid());
+    }
+
+    // What a client gets from discovery, its own copies of every attribute
+    List<BluetoothGattService> copyServices() {
+        List<BluetoothGattService> copies = copyServices(mServices);
+        for (int i = 0; i < copies.size(); i++) {
+            mOriginals.put(copies.get(i), mServices.get(i));
+        }
+        return copies;
+    }
+
+    boolean isCopyOf(BluetoothGattService clientService, BluetoothGattService service) {
+        return mOriginals.get(clientService) == service;
+    }
+
+    public static List<BluetoothGattService> copyServices(List<BluetoothGattService> services) {
+        List<BluetoothGattService> copies = new ArrayList<>();
+        for (BluetoothGattService service : services) {
+            BluetoothGattService serviceCopy = new BluetoothGattService(service.getUuid(), service.getType());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                BluetoothGattCharacteristic characteristicCopy = new BluetoothGattCharacteristic(
+                        characteristic.getUuid(),
+                        characteristic.getProperties(),
+                        characteristic.getPermissions());
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    characteristicCopy.addDescriptor(new BluetoothGattDescriptor(descriptor.getUuid(),
+                            descriptor.getPermissions()));
+                }
+                serviceCopy.addCharacteristic(characteristicCopy);
+            }
+            copies.add(serviceCopy);
+        }
+        return copies;
+    }
+}
@@ -0,0 +1,87 @@
+package com.bignerdranch.android.bluetoothtestbed.replay;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import com.bignerdranch.android.bluetoothtestbed.server.GattServerConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Stands in for the BluetoothGattServer while a trace is replayed. Every response and
+ * notification is accepted and counted but goes nowhere, since what the clients did next
+ * is already in the trace.
+ */
+public class ReplayServer implements GattServerConnection {
+
+    private final List<BluetoothGattService> mServices = new ArrayList<>();
+
+    private long mResponses;
+    private long mFailureResponses;
+    private long mNotifications;
+    private long mNotifiedBytes;
+
+    public List<BluetoothGattService> getServices() {
+        return mServices;
+    }
+
+    public long getResponses() {
+        return mResponses;
+    }
+
+    public long getFailureResponses() {
+        return mFailureResponses;
+    }
+
+    public long getNotifications() {
+        return mNotifications;
+    }
+
+    public long getNotifiedBytes() {
+        return mNotifiedBytes;
+    }
+
+    // Gatt Server Connection
+
+    @Override
+    public boolean addService(BluetoothGattService service) {
+        mServices.add(service);
+        return true;
+    }
+
+    @Override
+    public boolean removeService(BluetoothGattService service) {
+        return mServices.remove(service);
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+        for (BluetoothGattService service : mServices) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean sendResponse(BluetoothDevice device, int requestId, int status, int offset, byte[] value) {
+        mResponses++;
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            mFailureResponses++;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic, boolean confirm) {
+        mNotifications++;
+        byte[] value = characteristic.getValue();
+        mNotifiedBytes += value == null ? 0 : value.length;
+        return true;
+    }
+}
@@ -0,0 +1,363 @@
+package com.bignerdranch.android.bluetoothtestbed.replay;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import com.bignerdranch.android.bluetoothtestbed.client.ClientConnection;
+import com.bignerdranch.android.bluetoothtestbed.client.ClientConnectionManager;
+import com.bignerdranch.android.bluetoothtestbed.client.GattConnection;
+import com.bignerdranch.android.bluetoothtestbed.loopback.Loopback;
+import com.bignerdranch.android.bluetoothtestbed.loopback.LoopbackServer;
+import com.bignerdranch.android.bluetoothtestbed.server.GattServerCallback;
+import com.bignerdranch.android.bluetoothtestbed.server.GattServerController;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceEvent;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceReader;
+import com.bignerdranch.android.bluetoothtestbed.util.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.SERVICE_UUID;
+
+/**
+ * Feeds a trace recorded on a device back into the testbed's callbacks on the JVM, to
+ * reproduce a failure or to benchmark the callbacks against real traffic.
+ *
+ * Server events go to a GattServerCallback serving a real GattServerController, and client
+ * events to the GattClientCallback of a ClientConnection per server address, each with its
+ * own copy of the testbed service. Nothing is sent anywhere: responses and notifications
+ * are counted, and whatever the other side did about them is the next events in the trace.
+ *
+ * Events are replayed at the pace they were recorded, or as fast as possible.
+ *
+ * Run with ./gradlew :benchmark:replay -Ptrace=path/to/file.trace [-PmaxSpeed]
+ */
+public class TraceReplay {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final boolean mMaxSpeed;
+    private final ReplayServer mServer = new ReplayServer();
+    private final GattServerController mServerController = new GattServerController(new Loopback.SilentLogger());
+    private final GattServerCallback mServerCallback;
+    private final ClientConnectionManager mClients;
+    private final Map<String, BluetoothDevice> mDevices = new HashMap<>();
+    private final Map<String, BluetoothGatt> mGatts = new HashMap<>();
+
+    // How far behind schedule each event was, at the recorded pace
+    private final LatencyHistogram mLateness = new LatencyHistogram();
+    private long mServerEvents;
+    private long mClientEvents;
+    private long mElapsedNanos;
+
+    public TraceReplay(boolean maxSpeed) {
+        mMaxSpeed = maxSpeed;
+        mServerCallback = new GattServerCallback(mServerController,
+                Runnable::run,
+                mServerController.getMetrics());
+        mServerController.setConnection(mServer);
+        mServerController.addService();
+        mClients = new ClientConnectionManager(new Loopback.SilentLogger(), new ReplayClientListener());
+    }
+
+    public void replay(GattTraceReader reader) throws IOException {
+        long startNanos = System.nanoTime();
+        long firstEventNanos = -1;
+        GattTraceEvent event;
+        while ((event = reader.next()) != null) {
+            if (firstEventNanos < 0) {
+                firstEventNanos = event.getNanos();
+            }
+            if (!mMaxSpeed) {
+                long dueNanos = startNanos + event.getNanos() - firstEventNanos;
+                long waitNanos;
+                while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+                mLateness.record(System.nanoTime() - dueNanos);
+            }
+
+            if (GattTraceEvent.isServerEvent(event.getType())) {
+                replayServerEvent(event);
+                mServerEvents++;
+            } else if (GattTraceEvent.isClientEvent(event.getType())) {
+                replayClientEvent(event);
+                mClientEvents++;
+            }
+        }
+        mElapsedNanos = System.nanoTime() - startNanos;
+    }
+
+    // Server
+
+    private void replayServerEvent(GattTraceEvent event) {
+        BluetoothDevice device = getDevice(event.getAddress());
+        switch (event.getType()) {
+            case GattTraceEvent.SERVER_CONNECTION_STATE:
+                mServerCallback.onConnectionStateChange(device, event.getStatus(), event.getArgument());
+                break;
+            case GattTraceEvent.SERVER_CHARACTERISTIC_READ:
+                mServerCallback.onCharacteristicReadRequest(device,
+                        event.getArgument(),
+                        event.getOffset(),
+                        findCharacteristic(mServer.getServices(), event.getCharacteristicUuid()));
+                break;
+            case GattTraceEvent.SERVER_CHARACTERISTIC_WRITE:
+                mServerCallback.onCharacteristicWriteRequest(device,
+                        event.getArgument(),
+                        findCharacteristic(mServer.getServices(), event.getCharacteristicUuid()),
+                        event.hasFlag(GattTraceEvent.FLAG_PREPARED_WRITE),
+                        event.hasFlag(GattTraceEvent.FLAG_RESPONSE_NEEDED),
+                        event.getOffset(),
+                        getValue(event));
+                break;
+            case GattTraceEvent.SERVER_EXECUTE_WRITE:
+                mServerCallback.onExecuteWrite(device, event.getArgument(), event.hasFlag(GattTraceEvent.FLAG_EXECUTE));
+                break;
+            case GattTraceEvent.SERVER_DESCRIPTOR_READ:
+                mServerCallback.onDescriptorReadRequest(device,
+                        event.getArgument(),
+                        event.getOffset(),
+                        findDescriptor(mServer.getServices(), event));
+                break;
+            case GattTraceEvent.SERVER_DESCRIPTOR_WRITE:
+                mServerCallback.onDescriptorWriteRequest(device,
+                        event.getArgument(),
+                        findDescriptor(mServer.getServices(), event),
+                        event.hasFlag(GattTraceEvent.FLAG_PREPARED_WRITE),
+                        event.hasFlag(GattTraceEvent.FLAG_RESPONSE_NEEDED),
+                        event.getOffset(),
+                        getValue(event));
+                break;
+            case GattTraceEvent.SERVER_NOTIFICATION_SENT:
+                mServerCallback.onNotificationSent(device, event.getStatus());
+                break;
+            case GattTraceEvent.SERVER_MTU_CHANGED:
+                mServerCallback.onMtuChanged(device, event.getArgument());
+                break;
+        }
+    }
+
+    // Client
+
+    private void replayClientEvent(GattTraceEvent event) {
+        BluetoothGatt gatt = getGatt(event.getAddress());
+        ClientConnection connection = getClientConnection(gatt.getDevice());
+        BluetoothGattCharacteristic characteristic;
+        switch (event.getType()) {
+            case GattTraceEvent.CLIENT_CONNECTION_STATE:
+                connection.getCallback().onConnectionStateChange(gatt, event.getStatus(), event.getArgument());
+                break;
+            case GattTraceEvent.CLIENT_SERVICES_DISCOVERED:
+                connection.getCallback().onServicesDiscovered(gatt, event.getStatus());
+                break;
+            case GattTraceEvent.CLIENT_CHARACTERISTIC_WRITE:
+                characteristic = findCharacteristic(gatt.getServices(), event.getCharacteristicUuid());
+                characteristic.setValue(event.getValue());
+                connection.getCallback().onCharacteristicWrite(gatt, characteristic, event.getStatus());
+                break;
+            case GattTraceEvent.CLIENT_CHARACTERISTIC_READ:
+                characteristic = findCharacteristic(gatt.getServices(), event.getCharacteristicUuid());
+                characteristic.setValue(event.getValue());
+                connection.getCallback().onCharacteristicRead(gatt, characteristic, event.getStatus());
+                break;
+            case GattTraceEvent.CLIENT_CHARACTERISTIC_CHANGED:
+                characteristic = findCharacteristic(gatt.getServices(), event.getCharacteristicUuid());
+                characteristic.setValue(event.getValue());
+                connection.getCallback().onCharacteristicChanged(gatt, characteristic);
+                break;
+            case GattTraceEvent.CLIENT_DESCRIPTOR_WRITE:
+                BluetoothGattDescriptor descriptor = findDescriptor(gatt.getServices(), event);
+                descriptor.setValue(event.getValue());
+                connection.getCallback().onDescriptorWrite(gatt, descriptor, event.getStatus());
+                break;
+            case GattTraceEvent.CLIENT_MTU_CHANGED:
+                connection.getCallback().onMtuChanged(gatt, event.getArgument(), event.getStatus());
+                break;
+        }
+    }
+
+    // A connection disconnected earlier in the trace is replaced by a new one
+    private ClientConnection getClientConnection(BluetoothDevice device) {
+        ClientConnection connection = mClients.get(device.getAddress());
+        if (connection == null) {
+            connection = mClients.add(device.getAddress(), device);
+            connection.setConnection(new ReplayGattConnection());
+        }
+        return connection;
+    }
+
+    // Each server address discovers its own copy of the testbed service
+    private BluetoothGatt getGatt(String address) {
+        BluetoothGatt gatt = mGatts.get(address);
+        if (gatt == null) {
+            gatt = new BluetoothGatt(getDevice(address));
+            gatt.getServices().addAll(LoopbackServer.copyServices(mServer.getServices()));
+            mGatts.put(address, gatt);
+        }
+        return gatt;
+    }
+
+    // Attributes
+
+    private BluetoothDevice getDevice(String address) {
+        BluetoothDevice device = mDevices.get(address);
+        if (device == null) {
+            device = new BluetoothDevice(address);
+            mDevices.put(address, device);
+        }
+        return device;
+    }
+
+    // Characteristics the testbed service does not have, from another build, stand on their own
+    private static BluetoothGattCharacteristic findCharacteristic(List<BluetoothGattService> services, UUID uuid) {
+        for (BluetoothGattService service : services) {
+            if (SERVICE_UUID.equals(service.getUuid())) {
+                BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
+                if (characteristic != null) {
+                    return characteristic;
+                }
+            }
+        }
+        return new BluetoothGattCharacteristic(uuid, 0, 0);
+    }
+
+    private static BluetoothGattDescriptor findDescriptor(List<BluetoothGattService> services, GattTraceEvent event) {
+        BluetoothGattCharacteristic characteristic = findCharacteristic(services, event.getCharacteristicUuid());
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(event.getDescriptorUuid());
+        if (descriptor == null) {
+            descriptor = new BluetoothGattDescriptor(event.getDescriptorUuid(), 0);
+            new BluetoothGattCharacteristic(characteristic.getUuid(), 0, 0).addDescriptor(descriptor);
+        }
+        return descriptor;
+    }
+
+    private static byte[] getValue(GattTraceEvent event) {
+        return event.getValue() == null ? new byte[0] : event.getValue();
+    }
+
+    // Results
+
+    public ReplayServer getServer() {
+        return mServer;
+    }
+
+    public GattServerController getServerController() {
+        return mServerController;
+    }
+
+    public ClientConnectionManager getClients() {
+        return mClients;
+    }
+
+    public long getServerEvents() {
+        return mServerEvents;
+    }
+
+    public long getClientEvents() {
+        return mClientEvents;
+    }
+
+    public String getReport() {
+        long events = mServerEvents + mClientEvents;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Replayed %d server and %d client events in %.1f ms, %.0f events/sec\n",
+                mServerEvents,
+                mClientEvents,
+                mElapsedNanos / NANOS_PER_MILLI,
+                mElapsedNanos == 0 ? 0 : events * (double) NANOS_PER_SECOND / mElapsedNanos));
+        if (!mMaxSpeed && mLateness.getCount() > 0) {
+            report.append(String.format("Late by p50 %.3f ms, p99 %.3f ms, max %.3f ms\n",
+                    mLateness.getValueAtPercentile(50) / NANOS_PER_MILLI,
+                    mLateness.getValueAtPercentile(99) / NANOS_PER_MILLI,
+                    mLateness.getMax() / NANOS_PER_MILLI));
+        }
+        report.append(String.format("Server sent %d responses (%d failures) and %d notifications\n",
+                mServer.getResponses(),
+                mServer.getFailureResponses(),
+                mServer.getNotifications()));
+        report.append(mServerCallback.getReport()).append('\n');
+        report.append("Server metrics\n").append(mServerController.getMetrics().snapshot().getReport());
+        report.append("Client metrics\n").append(mClients.getMetrics().snapshot().getReport());
+        return report.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args[0].isEmpty()) {
+            System.err.println("Usage: TraceReplay <trace file> [--max-speed]");
+            System.exit(1);
+        }
+        boolean maxSpeed = args.length > 1 && "--max-speed".equals(args[1]);
+
+        TraceReplay replay = new TraceReplay(maxSpeed);
+        try (GattTraceReader reader = GattTraceReader.open(new File(args[0]))) {
+            replay.replay(reader);
+            if (reader.isTruncated()) {
+                System.out.println("The trace ends partway through an event");
+            }
+        }
+        System.out.print(replay.getReport());
+    }
+
+    // Operations the replayed clients queue are accepted, their callbacks come from the trace
+    private static class ReplayGattConnection implements GattConnection {
+
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return true;
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return true;
+        }
+
+        @Override
+        public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+            return true;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return true;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return true;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int connectionPriority) {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+    }
+
+    private static class ReplayClientListener implements ClientConnection.Listener {
+
+        @Override
+        public void onReady(ClientConnection connection) {
+        }
+
+        @Override
+        public void onEchoReceived(ClientConnection connection, byte[] message) {
+        }
+
+        @Override
+        public void onDisconnected(ClientConnection connection) {
+        }
+    }
+}
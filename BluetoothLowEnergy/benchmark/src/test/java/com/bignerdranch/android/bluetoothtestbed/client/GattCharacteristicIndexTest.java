@@ -0,0 +1,95 @@
+package com.bignerdranch.android.bluetoothtestbed.client;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_CONTROL_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_ECHO_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_STATS_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_TIME_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.SERVICE_UUID;
+import static org.junit.Assert.*;
+
+public class GattCharacteristicIndexTest {
+
+    private static final UUID OTHER_SERVICE_UUID = UUID.fromString("0000180F-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void resolvesEveryTestbedCharacteristic() throws Exception {
+        GattCharacteristicIndex index = new GattCharacteristicIndex();
+        BluetoothGattService service = newService(CHARACTERISTIC_ECHO_UUID,
+                CHARACTERISTIC_TIME_UUID,
+                CHARACTERISTIC_CONTROL_UUID,
+                CHARACTERISTIC_STATS_UUID);
+
+        assertTrue(index.resolve(Arrays.asList(new BluetoothGattService(OTHER_SERVICE_UUID, 0), service)));
+
+        assertTrue(index.isResolved());
+        assertSame(service.getCharacteristic(CHARACTERISTIC_ECHO_UUID), index.getEchoCharacteristic());
+        assertSame(service.getCharacteristic(CHARACTERISTIC_TIME_UUID), index.getTimeCharacteristic());
+        assertSame(service.getCharacteristic(CHARACTERISTIC_CONTROL_UUID), index.getControlCharacteristic());
+        assertSame(service.getCharacteristic(CHARACTERISTIC_STATS_UUID), index.getStatsCharacteristic());
+        assertEquals(CLIENT_CONFIGURATION_DESCRIPTOR_UUID, index.getTimeConfigurationDescriptor().getUuid());
+    }
+
+    @Test
+    public void missingServiceResolvesNothing() throws Exception {
+        GattCharacteristicIndex index = new GattCharacteristicIndex();
+        index.resolve(Collections.singletonList(newService(CHARACTERISTIC_ECHO_UUID)));
+
+        assertFalse(index.resolve(Collections.singletonList(new BluetoothGattService(OTHER_SERVICE_UUID, 0))));
+
+        // Nothing is left over from the service resolved before
+        assertFalse(index.isResolved());
+        assertNull(index.getEchoCharacteristic());
+    }
+
+    @Test
+    public void partialServiceResolvesWhatIsThere() throws Exception {
+        GattCharacteristicIndex index = new GattCharacteristicIndex();
+
+        // As on a server from before the capability handshake and stats
+        assertTrue(index.resolve(Collections.singletonList(newService(CHARACTERISTIC_ECHO_UUID))));
+
+        assertTrue(index.isResolved());
+        assertNotNull(index.getEchoCharacteristic());
+        assertNull(index.getTimeCharacteristic());
+        assertNull(index.getTimeConfigurationDescriptor());
+        assertNull(index.getControlCharacteristic());
+        assertNull(index.getStatsCharacteristic());
+    }
+
+    @Test
+    public void invalidatedIndexResolvesTheNewService() throws Exception {
+        GattCharacteristicIndex index = new GattCharacteristicIndex();
+        index.resolve(Collections.singletonList(newService(CHARACTERISTIC_ECHO_UUID)));
+
+        index.invalidate();
+        assertFalse(index.isResolved());
+        assertNull(index.getEchoCharacteristic());
+
+        BluetoothGattService replacement = newService(CHARACTERISTIC_ECHO_UUID);
+        assertTrue(index.resolve(Collections.singletonList(replacement)));
+        assertSame(replacement.getCharacteristic(CHARACTERISTIC_ECHO_UUID), index.getEchoCharacteristic());
+    }
+
+    private static BluetoothGattService newService(UUID... characteristicUuids) {
+        BluetoothGattService service = new BluetoothGattService(SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for (UUID uuid : characteristicUuids) {
+            BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(uuid,
+                    BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+            characteristic.addDescriptor(new BluetoothGattDescriptor(CLIENT_CONFIGURATION_DESCRIPTOR_UUID,
+                    BluetoothGattDescriptor.PERMISSION_WRITE));
+            service.addCharacteristic(characteristic);
+        }
+        return service;
+    }
+}
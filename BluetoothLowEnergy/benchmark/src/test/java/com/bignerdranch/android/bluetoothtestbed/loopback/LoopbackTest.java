@@ -0,0 +1,459 @@
+package com.bignerdranch.android.bluetoothtestbed.loopback;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.bignerdranch.android.bluetoothtestbed.client.ClientConnection;
+import com.bignerdranch.android.bluetoothtestbed.client.ClientConnectionManager;
+import com.bignerdranch.android.bluetoothtestbed.client.EchoBenchmark;
+import com.bignerdranch.android.bluetoothtestbed.metrics.MetricsSnapshot;
+import com.bignerdranch.android.bluetoothtestbed.server.GattServerController;
+import com.bignerdranch.android.bluetoothtestbed.server.ServingClock;
+import com.bignerdranch.android.bluetoothtestbed.util.StringUtils;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LoopbackTest {
+
+    private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void clientIsReadyAfterSetup() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig().setMtu(185));
+        LoopbackEchoClient client = connect(loopback);
+
+        assertTrue(client.isTimeInitialized());
+        assertEquals(185, client.getMtu());
+        assertEquals(0, client.getErrors());
+    }
+
+    @Test
+    public void echoIsReversed() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        LoopbackEchoClient client = connect(loopback);
+
+        assertTrue(client.sendEcho(new byte[]{1, 2, 3}));
+        loopback.runUntilIdle();
+
+        assertArrayEquals(new byte[]{3, 2, 1}, client.getLastEcho());
+    }
+
+    @Test
+    public void longMessageIsFragmentedToTheDefaultMtu() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig().setMtu(23));
+        LoopbackEchoClient client = connect(loopback);
+        byte[] message = newMessage(200);
+
+        client.sendEcho(message);
+        loopback.runUntilIdle();
+
+        assertArrayEquals(reverse(message), client.getLastEcho());
+        assertTrue(client.getLink().getPacketsToServer() > 200 / 19);
+    }
+
+    @Test
+    public void roundTripTakesTwoConnectionEvents() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig()
+                .setConnectionInterval(10, TimeUnit.MILLISECONDS));
+        LoopbackEchoClient client = connect(loopback);
+
+        client.sendEcho(new byte[]{1});
+        loopback.runUntilIdle();
+
+        // The write goes out in the next event, the echo comes back in the one after
+        long latency = client.getLatencyNanos(50);
+        assertTrue(latency > INTERVAL_NANOS);
+        assertTrue(latency <= 2 * INTERVAL_NANOS);
+    }
+
+    @Test
+    public void lossCostsLatencyButNotData() throws Exception {
+        Loopback lossless = new Loopback(new LoopbackConfig());
+        Loopback lossy = new Loopback(new LoopbackConfig().setLossRate(0.3).setSeed(42));
+
+        LoopbackEchoClient losslessClient = stream(lossless, 50, 100);
+        LoopbackEchoClient lossyClient = stream(lossy, 50, 100);
+
+        assertEquals(50, lossyClient.getEchoesReceived());
+        assertTrue(lossyClient.getLink().getRetransmissions() > 0);
+        assertTrue(lossyClient.getLatencyNanos(99) > losslessClient.getLatencyNanos(99));
+    }
+
+    @Test
+    public void writeWithoutResponseIsFaster() throws Exception {
+        Loopback withResponse = new Loopback(new LoopbackConfig());
+        LoopbackEchoClient withResponseClient = stream(withResponse, 100, 200);
+
+        Loopback withoutResponse = new Loopback(new LoopbackConfig());
+        LoopbackEchoClient withoutResponseClient = connect(withoutResponse);
+        withoutResponseClient.setWriteWithoutResponse(true);
+        for (int i = 0; i < 100; i++) {
+            withoutResponseClient.sendEcho(newMessage(200));
+        }
+        withoutResponse.runUntilIdle();
+
+        assertEquals(100, withoutResponseClient.getEchoesReceived());
+        assertTrue(withoutResponseClient.getBytesPerSecond() > withResponseClient.getBytesPerSecond());
+    }
+
+    @Test
+    public void throughputDoesNotRegress() throws Exception {
+        // 7.5 ms interval, 247 byte MTU, 4 packets per event: one write and its
+        // response every two events, so about 13 kB/s with response
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        LoopbackEchoClient client = stream(loopback, 100, 200);
+
+        assertEquals(100, client.getEchoesReceived());
+        assertTrue("Throughput " + client.getBytesPerSecond(), client.getBytesPerSecond() > 12000);
+    }
+
+    @Test
+    public void longWriteIsEchoedWhole() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig().setMtu(23));
+        LoopbackEchoClient client = connect(loopback);
+        byte[] message = newMessage(100);
+
+        assertTrue(client.sendLongWrite(message));
+        loopback.runUntilIdle();
+
+        assertArrayEquals(reverse(message), client.getLastEcho());
+        assertEquals(0, client.getErrors());
+    }
+
+    @Test
+    public void tooLongWriteIsRejected() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig().setMtu(23));
+        LoopbackEchoClient client = connect(loopback);
+
+        client.sendLongWrite(newMessage(600));
+        loopback.runUntilIdle();
+
+        assertNull(client.getLastEcho());
+        assertTrue(client.getErrors() > 0);
+    }
+
+    @Test
+    public void longReadReturnsTheWholeValue() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig().setMtu(23));
+        LoopbackEchoClient client = connect(loopback);
+        byte[] message = newMessage(100);
+        client.sendLongWrite(message);
+        loopback.runUntilIdle();
+
+        assertTrue(client.readEcho());
+        loopback.runUntilIdle();
+
+        assertArrayEquals(reverse(message), client.getCharacteristicIndex().getEchoCharacteristic().getValue());
+        assertEquals(0, client.getErrors());
+    }
+
+    @Test
+    public void everyClientGetsItsOwnEcho() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        LoopbackEchoClient first = connect(loopback);
+        LoopbackEchoClient second = connect(loopback);
+
+        first.sendEcho(new byte[]{1, 2});
+        second.sendEcho(new byte[]{3, 4, 5});
+        loopback.runUntilIdle();
+
+        assertArrayEquals(new byte[]{2, 1}, first.getLastEcho());
+        assertEquals(1, first.getEchoesReceived());
+        assertArrayEquals(new byte[]{5, 4, 3}, second.getLastEcho());
+        assertEquals(1, second.getEchoesReceived());
+    }
+
+    @Test
+    public void broadcastEchoesReachEveryClient() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        loopback.getServerController().setBroadcastEchoes(true);
+        LoopbackEchoClient first = connect(loopback);
+        LoopbackEchoClient second = connect(loopback);
+
+        first.sendEcho(new byte[]{1, 2});
+        loopback.runUntilIdle();
+
+        assertArrayEquals(new byte[]{2, 1}, first.getLastEcho());
+        assertArrayEquals(new byte[]{2, 1}, second.getLastEcho());
+    }
+
+    @Test
+    public void batchedEchoesShareNotifications() throws Exception {
+        Loopback plain = new Loopback(new LoopbackConfig());
+        Loopback batched = new Loopback(new LoopbackConfig());
+        batched.getServerController().setBatchEchoes(true);
+
+        LoopbackEchoClient plainClient = streamSmall(plain, 50);
+        LoopbackEchoClient batchedClient = streamSmall(batched, 50);
+
+        assertEquals(50, batchedClient.getEchoesReceived());
+        assertArrayEquals(new byte[]{3, 2, 1, 0}, batchedClient.getLastEcho());
+        assertTrue(batched.getServerController().getEchoBatchStats().getPackingRatio() > 1);
+        assertTrue(batchedClient.getLink().getPacketsToClient() < plainClient.getLink().getPacketsToClient());
+    }
+
+    @Test
+    public void compressedEchoesRoundTrip() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        LoopbackEchoClient client = loopback.connect();
+        client.setCompressionOffered(true);
+        loopback.runUntilIdle();
+        assertTrue(client.isReady());
+        assertTrue(client.isCompressing());
+        byte[] message = StringUtils.bytesFromString(
+                "Hello, world! Testing the echo server again, and again, and again.");
+
+        client.sendEcho(message);
+        loopback.runUntilIdle();
+
+        assertArrayEquals(reverse(message), client.getLastEcho());
+        assertTrue(client.getCodecStats().getCompressionRatio() < 1);
+        assertEquals(1, client.getCodecStats().getDecoded());
+        assertEquals(1, loopback.getServerController().getCodecStats().getCompressed());
+        assertEquals(0, client.getErrors());
+    }
+
+    @Test
+    public void compressionNeedsBothSides() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        loopback.getServerController().setAllowCompression(false);
+        LoopbackEchoClient client = loopback.connect();
+        client.setCompressionOffered(true);
+        loopback.runUntilIdle();
+        byte[] message = StringUtils.bytesFromString("Hello, world! Hello, world! Hello, world!");
+
+        client.sendEcho(message);
+        loopback.runUntilIdle();
+
+        assertFalse(client.isCompressing());
+        assertArrayEquals(reverse(message), client.getLastEcho());
+        assertEquals(0, client.getCodecStats().getEncoded());
+    }
+
+    @Test
+    public void refusedCapabilitiesFallBackToUncompressed() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        LoopbackEchoClient client = loopback.connect();
+        client.setCompressionOffered(true);
+        // Compression is switched off between the client reading it and asking for it
+        while (controlValue(client) == null) {
+            assertTrue(loopback.getScheduler().runNext());
+        }
+        loopback.getServerController().setAllowCompression(false);
+        loopback.runUntilIdle();
+        assertTrue(client.isReady());
+        byte[] message = StringUtils.bytesFromString("Hello, world! Hello, world! Hello, world!");
+
+        client.sendEcho(message);
+        loopback.runUntilIdle();
+
+        assertFalse(client.isCompressing());
+        assertArrayEquals(reverse(message), client.getLastEcho());
+        assertEquals(0, client.getCodecStats().getEncoded());
+        assertEquals(0, loopback.getServerController().getCodecStats().getCompressed());
+        assertEquals(0, client.getErrors());
+    }
+
+    @Test
+    public void disconnectRemovesDevice() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        LoopbackEchoClient client = connect(loopback);
+
+        client.disconnectGattServer();
+        loopback.runUntilIdle();
+
+        assertFalse(client.isReady());
+        assertFalse(client.sendEcho(new byte[]{1}));
+    }
+
+    @Test
+    public void echoBenchmarkRunsEveryBurst() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig().setLossRate(0.1).setSeed(7));
+        LoopbackEchoClient client = connect(loopback);
+        EchoBenchmark benchmark = new EchoBenchmark(300, 100, 10);
+
+        client.startBenchmark(benchmark);
+        loopback.runUntilIdle();
+
+        assertTrue(benchmark.isComplete());
+        assertEquals(0, benchmark.getLost());
+        assertEquals(0, benchmark.getCorrupted());
+        assertTrue(benchmark.getLatencyNanos(99.9) >= benchmark.getLatencyNanos(50));
+        assertTrue(benchmark.getBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void managerSpreadsOrBroadcastsAcrossConnections() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        ClientConnectionManager manager = new ClientConnectionManager(new Loopback.SilentLogger(), new NoOpListener());
+        for (int i = 0; i < 3; i++) {
+            ClientConnection connection = manager.add("server " + i, null);
+            loopback.connect(connection);
+        }
+        loopback.runUntilIdle();
+        assertEquals(3, manager.getReadyCount());
+
+        for (int i = 0; i < 6; i++) {
+            assertNotNull(manager.sendEchoRoundRobin(new byte[]{(byte) i}, false));
+        }
+        assertEquals(3, manager.broadcastEcho(new byte[]{9}, false));
+        loopback.runUntilIdle();
+
+        for (String address : new String[]{"server 0", "server 1", "server 2"}) {
+            assertEquals(3, manager.get(address).getMessagesSent());
+        }
+    }
+
+    @Test
+    public void statsCharacteristicReportsServerMetrics() throws Exception {
+        // Small enough that the stats take a long read
+        Loopback loopback = new Loopback(new LoopbackConfig().setMtu(23));
+        LoopbackEchoClient client = stream(loopback, 5, 40);
+
+        assertTrue(client.readStats());
+        loopback.runUntilIdle();
+
+        String stats = StringUtils.stringFromBytes(client.getCharacteristicIndex().getStatsCharacteristic().getValue());
+        assertTrue(stats, stats.contains("bytes_in="));
+        assertTrue(stats, stats.contains("dwell.write="));
+        assertTrue(stats, stats.contains("fan_out=5,"));
+        assertEquals(0, client.getErrors());
+    }
+
+    @Test
+    public void managerConnectionsShareMetrics() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        ClientConnectionManager manager = new ClientConnectionManager(new Loopback.SilentLogger(), new NoOpListener());
+        for (int i = 0; i < 2; i++) {
+            loopback.connect(manager.add("server " + i, null));
+        }
+        loopback.runUntilIdle();
+
+        assertEquals(2, manager.broadcastEcho(new byte[]{1, 2, 3}, false));
+        loopback.runUntilIdle();
+
+        MetricsSnapshot snapshot = manager.getMetrics().snapshot();
+        assertEquals(2, snapshot.getCounter("cb.services_discovered"));
+        assertEquals(0, snapshot.getCounter("status_failures"));
+        assertTrue(snapshot.getCounter("cb.characteristic_changed") >= 2);
+        assertEquals(2, snapshot.getHistogram("op.write_characteristic").getCount());
+    }
+
+    @Test
+    public void managerForgetsDisconnectedConnections() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        ClientConnectionManager manager = new ClientConnectionManager(new Loopback.SilentLogger(), new NoOpListener());
+        LoopbackLink link = loopback.connect(manager.add("server", null));
+        loopback.runUntilIdle();
+
+        manager.disconnectAll();
+        loopback.runUntilIdle();
+
+        assertEquals(0, manager.size());
+        assertFalse(link.isConnected());
+        assertNull(manager.sendEchoRoundRobin(new byte[]{1}, false));
+    }
+
+    @Test
+    public void clientDiscoversAReplacedServiceAgain() throws Exception {
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        LoopbackEchoClient client = connect(loopback);
+        BluetoothGattCharacteristic oldTimeCharacteristic = client.getCharacteristicIndex().getTimeCharacteristic();
+        GattServerController server = loopback.getServerController();
+        ServingClock servingClock = server.getServingClock();
+        // Advertising carries on through a warm restart
+        servingClock.onAdvertisingStarted(System.nanoTime());
+
+        servingClock.startWarm(System.nanoTime());
+        server.replaceService();
+        loopback.runUntilIdle();
+
+        assertTrue(servingClock.isServing());
+        assertEquals(1, server.getMetrics().snapshot().getHistogram("serving.warm").getCount());
+
+        // The client still has the old handles, so it misses this
+        server.notifyCharacteristicTime(new byte[]{4, 5, 6});
+        // and this is rejected, which sends it to discover services again
+        assertTrue(client.sendEcho(new byte[]{1, 2, 3}));
+        loopback.runUntilIdle();
+
+        assertNull(oldTimeCharacteristic.getValue());
+        assertNull(client.getLastEcho());
+        assertTrue(client.getLink().isConnected());
+        assertTrue(client.isReady());
+        assertNotSame(oldTimeCharacteristic, client.getCharacteristicIndex().getTimeCharacteristic());
+
+        server.notifyCharacteristicTime(new byte[]{7, 8, 9});
+        assertTrue(client.sendEcho(new byte[]{1, 2, 3}));
+        loopback.runUntilIdle();
+
+        assertArrayEquals(new byte[]{7, 8, 9}, client.getCharacteristicIndex().getTimeCharacteristic().getValue());
+        assertArrayEquals(new byte[]{3, 2, 1}, client.getLastEcho());
+        assertEquals(0, client.getErrors());
+    }
+
+    private static LoopbackEchoClient connect(Loopback loopback) {
+        LoopbackEchoClient client = loopback.connect();
+        loopback.runUntilIdle();
+        assertTrue(client.isReady());
+        return client;
+    }
+
+    private static LoopbackEchoClient stream(Loopback loopback, int count, int size) {
+        LoopbackEchoClient client = connect(loopback);
+        for (int i = 0; i < count; i++) {
+            client.sendEcho(newMessage(size));
+        }
+        loopback.runUntilIdle();
+        return client;
+    }
+
+    private static LoopbackEchoClient streamSmall(Loopback loopback, int count) {
+        LoopbackEchoClient client = connect(loopback);
+        client.setWriteWithoutResponse(true);
+        for (int i = 0; i < count; i++) {
+            client.sendEcho(newMessage(4));
+        }
+        loopback.runUntilIdle();
+        return client;
+    }
+
+    private static byte[] newMessage(int size) {
+        byte[] message = new byte[size];
+        for (int i = 0; i < size; i++) {
+            message[i] = (byte) i;
+        }
+        return message;
+    }
+
+    private static byte[] controlValue(LoopbackEchoClient client) {
+        BluetoothGattCharacteristic control = client.getCharacteristicIndex().getControlCharacteristic();
+        return control == null ? null : control.getValue();
+    }
+
+    private static byte[] reverse(byte[] bytes) {
+        byte[] reversed = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            reversed[i] = bytes[bytes.length - 1 - i];
+        }
+        return reversed;
+    }
+
+    private static class NoOpListener implements ClientConnection.Listener {
+
+        @Override
+        public void onReady(ClientConnection connection) {
+        }
+
+        @Override
+        public void onEchoReceived(ClientConnection connection, byte[] message) {
+        }
+
+        @Override
+        public void onDisconnected(ClientConnection connection) {
+        }
+    }
+}
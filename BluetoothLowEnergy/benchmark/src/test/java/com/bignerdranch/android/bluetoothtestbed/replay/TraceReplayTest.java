@@ -0,0 +1,104 @@
+package com.bignerdranch.android.bluetoothtestbed.replay;
+
+import com.bignerdranch.android.bluetoothtestbed.client.ClientConnection;
+import com.bignerdranch.android.bluetoothtestbed.client.ClientConnectionManager;
+import com.bignerdranch.android.bluetoothtestbed.loopback.Loopback;
+import com.bignerdranch.android.bluetoothtestbed.loopback.LoopbackConfig;
+import com.bignerdranch.android.bluetoothtestbed.loopback.LoopbackEchoClient;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceReader;
+import com.bignerdranch.android.bluetoothtestbed.trace.GattTraceWriter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class TraceReplayTest {
+
+    private static final String SERVER_ADDRESS = "02:00:00:00:00:00";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void replayedServerSendsTheSameNotifications() throws Exception {
+        File file = mFolder.newFile();
+        Loopback loopback = new Loopback(new LoopbackConfig().setMtu(23));
+        long notifications;
+        try (GattTraceWriter trace = new GattTraceWriter(file)) {
+            loopback.setServerTrace(trace);
+            LoopbackEchoClient client = loopback.connect();
+            loopback.runUntilIdle();
+            for (int i = 0; i < 5; i++) {
+                client.sendEcho(new byte[40 + i]);
+            }
+            // A long write and a long read as well
+            client.sendLongWrite(new byte[100]);
+            loopback.runUntilIdle();
+            client.readEcho();
+            loopback.runUntilIdle();
+            assertEquals(6, client.getEchoesReceived());
+            notifications = loopback.getServerController().getMetrics().snapshot().getHistogram("fan_out").getCount();
+        }
+
+        TraceReplay replay = replay(file);
+
+        assertTrue(replay.getServerEvents() > 0);
+        assertEquals(0, replay.getClientEvents());
+        assertEquals(notifications, replay.getServerController().getMetrics().snapshot()
+                .getHistogram("fan_out").getCount());
+        assertEquals(0, replay.getServer().getFailureResponses());
+    }
+
+    @Test
+    public void replayedClientReceivesTheSameEchoes() throws Exception {
+        File file = mFolder.newFile();
+        Loopback loopback = new Loopback(new LoopbackConfig());
+        ClientConnectionManager manager = new ClientConnectionManager(new Loopback.SilentLogger(), new NoOpListener());
+        try (GattTraceWriter trace = new GattTraceWriter(file)) {
+            manager.setTrace(trace);
+            ClientConnection connection = manager.add(SERVER_ADDRESS, null);
+            loopback.connect(connection);
+            loopback.runUntilIdle();
+            for (int i = 0; i < 4; i++) {
+                manager.sendEchoRoundRobin(new byte[]{1, 2, (byte) i}, false);
+            }
+            loopback.runUntilIdle();
+            assertEquals(4, connection.getEchoesReceived());
+        }
+
+        TraceReplay replay = replay(file);
+
+        ClientConnection replayed = replay.getClients().get(SERVER_ADDRESS);
+        assertEquals(0, replay.getServerEvents());
+        assertTrue(replayed.isReady());
+        assertEquals(4, replayed.getEchoesReceived());
+    }
+
+    private static TraceReplay replay(File file) throws Exception {
+        TraceReplay replay = new TraceReplay(true);
+        try (GattTraceReader reader = GattTraceReader.open(file)) {
+            replay.replay(reader);
+            assertFalse(reader.isTruncated());
+        }
+        return replay;
+    }
+
+    private static class NoOpListener implements ClientConnection.Listener {
+
+        @Override
+        public void onReady(ClientConnection connection) {
+        }
+
+        @Override
+        public void onEchoReceived(ClientConnection connection, byte[] message) {
+        }
+
+        @Override
+        public void onDisconnected(ClientConnection connection) {
+        }
+    }
+}
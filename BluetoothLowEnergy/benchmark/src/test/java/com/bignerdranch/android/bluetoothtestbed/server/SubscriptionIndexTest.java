@@ -0,0 +1,106 @@
+package com.bignerdranch.android.bluetoothtestbed.server;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_ECHO_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CHARACTERISTIC_TIME_UUID;
+import static com.bignerdranch.android.bluetoothtestbed.Constants.CLIENT_CONFIGURATION_DESCRIPTOR_UUID;
+import static org.junit.Assert.*;
+
+public class SubscriptionIndexTest {
+
+    private static final BluetoothDevice FIRST = new BluetoothDevice("00:11:22:33:44:01");
+    private static final BluetoothDevice SECOND = new BluetoothDevice("00:11:22:33:44:02");
+
+    @Test
+    public void configurationFlagsSubscribeAndUnsubscribe() throws Exception {
+        SubscriptionIndex index = new SubscriptionIndex();
+        index.registerCharacteristic(configurable(CHARACTERISTIC_TIME_UUID));
+        index.addDevice(FIRST);
+        index.addDevice(SECOND);
+
+        index.setClientConfiguration(FIRST, CHARACTERISTIC_TIME_UUID, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        index.setClientConfiguration(SECOND, CHARACTERISTIC_TIME_UUID, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+        assertEquals(SubscriptionIndex.FLAG_NOTIFY, index.getClientConfiguration(FIRST, CHARACTERISTIC_TIME_UUID));
+        assertEquals(SubscriptionIndex.FLAG_INDICATE, index.getClientConfiguration(SECOND, CHARACTERISTIC_TIME_UUID));
+        assertEquals(Arrays.asList(FIRST, SECOND), index.getSubscribers(CHARACTERISTIC_TIME_UUID));
+
+        // Enabling again doesn't list the device twice
+        index.setClientConfiguration(FIRST, CHARACTERISTIC_TIME_UUID, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        assertEquals(2, index.getSubscribers(CHARACTERISTIC_TIME_UUID).size());
+
+        index.setClientConfiguration(FIRST, CHARACTERISTIC_TIME_UUID, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        assertEquals(0, index.getClientConfiguration(FIRST, CHARACTERISTIC_TIME_UUID));
+        assertFalse(index.isSubscribed(FIRST, CHARACTERISTIC_TIME_UUID));
+        assertTrue(index.isSubscribed(SECOND, CHARACTERISTIC_TIME_UUID));
+        assertEquals(Collections.singletonList(SECOND), index.getSubscribers(CHARACTERISTIC_TIME_UUID));
+    }
+
+    @Test
+    public void removedDeviceIsUnsubscribedFromEverything() throws Exception {
+        SubscriptionIndex index = new SubscriptionIndex();
+        index.registerCharacteristic(configurable(CHARACTERISTIC_TIME_UUID));
+        index.registerCharacteristic(configurable(CHARACTERISTIC_ECHO_UUID));
+        index.addDevice(FIRST);
+        index.addDevice(SECOND);
+        index.setClientConfiguration(FIRST, CHARACTERISTIC_TIME_UUID, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        index.setClientConfiguration(FIRST, CHARACTERISTIC_ECHO_UUID, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+        index.setClientConfiguration(SECOND, CHARACTERISTIC_ECHO_UUID, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+
+        index.removeDevice(FIRST);
+
+        assertEquals(Collections.singletonList(SECOND), index.getConnectedDevices());
+        assertTrue(index.getSubscribers(CHARACTERISTIC_TIME_UUID).isEmpty());
+        assertEquals(Collections.singletonList(SECOND), index.getSubscribers(CHARACTERISTIC_ECHO_UUID));
+        assertEquals(0, index.getClientConfiguration(FIRST, CHARACTERISTIC_TIME_UUID));
+        assertEquals(0, index.getClientConfiguration(FIRST, CHARACTERISTIC_ECHO_UUID));
+    }
+
+    @Test
+    public void unconfigurableCharacteristicReachesEveryConnectedDevice() throws Exception {
+        SubscriptionIndex index = new SubscriptionIndex();
+        index.registerCharacteristic(new BluetoothGattCharacteristic(CHARACTERISTIC_ECHO_UUID,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0));
+        index.addDevice(FIRST);
+        index.addDevice(SECOND);
+
+        // Nothing to configure, writes are ignored
+        index.setClientConfiguration(FIRST, CHARACTERISTIC_ECHO_UUID, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+
+        assertEquals(Arrays.asList(FIRST, SECOND), index.getSubscribers(CHARACTERISTIC_ECHO_UUID));
+        assertTrue(index.isSubscribed(FIRST, CHARACTERISTIC_ECHO_UUID));
+        index.removeDevice(SECOND);
+        assertEquals(Collections.singletonList(FIRST), index.getSubscribers(CHARACTERISTIC_ECHO_UUID));
+        assertFalse(index.isSubscribed(SECOND, CHARACTERISTIC_ECHO_UUID));
+    }
+
+    @Test
+    public void registeringAgainKeepsSubscribers() throws Exception {
+        SubscriptionIndex index = new SubscriptionIndex();
+        index.registerCharacteristic(configurable(CHARACTERISTIC_TIME_UUID));
+        index.addDevice(FIRST);
+        index.setClientConfiguration(FIRST, CHARACTERISTIC_TIME_UUID, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+
+        // As when the service is replaced
+        index.registerCharacteristic(configurable(CHARACTERISTIC_TIME_UUID));
+
+        assertEquals(SubscriptionIndex.FLAG_NOTIFY, index.getClientConfiguration(FIRST, CHARACTERISTIC_TIME_UUID));
+        assertEquals(Collections.singletonList(FIRST), index.getSubscribers(CHARACTERISTIC_TIME_UUID));
+    }
+
+    private static BluetoothGattCharacteristic configurable(UUID uuid) {
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(uuid,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+        characteristic.addDescriptor(new BluetoothGattDescriptor(CLIENT_CONFIGURATION_DESCRIPTOR_UUID,
+                BluetoothGattDescriptor.PERMISSION_WRITE));
+        return characteristic;
+    }
+}